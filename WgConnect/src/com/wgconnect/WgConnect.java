@@ -17,11 +17,18 @@
  */
 package com.wgconnect;
 
+import com.wgconnect.config.AccessControl;
 import com.wgconnect.config.ConnectConfig;
 import com.wgconnect.config.ConfigException;
 import com.wgconnect.config.WgInterfaceInfo;
+import com.wgconnect.machine.McastReceiver;
+import com.wgconnect.machine.TunnelReaper;
+import com.wgconnect.machine.TunnelReconciler;
+import com.wgconnect.machine.TunnelStatsCollector;
 import com.wgconnect.machine.V4Machine;
 import com.wgconnect.machine.V6Machine;
+import com.wgconnect.machine.WarmInterfacePool;
+import com.wgconnect.machine.WorkerPool;
 import com.wgconnect.core.Version;
 import com.wgconnect.core.util.Constants;
 import com.wgconnect.core.util.Utils;
@@ -29,6 +36,9 @@ import com.wgconnect.core.util.WgConnectLogger;
 import com.wgconnect.db.persistence.PersistenceTunnel;
 import com.wgconnect.gui.linux.LinuxGui;
 
+import com.wgtools.WgKeyPool;
+import com.wgtools.WgUapi;
+
 import inet.ipaddr.AddressStringException;
 import inet.ipaddr.IPAddress;
 import inet.ipaddr.IPAddress.IPVersion;
@@ -40,26 +50,27 @@ import inet.ipaddr.ipv6.IPv6AddressSegment;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
-import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
@@ -75,6 +86,7 @@ import picocli.CommandLine.IHelpFactory;
 import picocli.CommandLine.Model.ArgSpec;
 import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
 import picocli.CommandLine.ParseResult;
 import picocli.CommandLine.Spec;
 import com.wgconnect.gui.Gui;
@@ -113,19 +125,18 @@ public class WgConnect implements Runnable {
     protected static String databaseUsername = Constants.DATABASE_USERNAME;
     protected static String databasePassword = Constants.DATABASE_PASSWORD;
         
-    private static final List<McastReceiver> v4McastReceivers = new ArrayList<>();
-    private static final List<McastReceiver> v6McastReceivers = new ArrayList<>();
+    private static McastReceiver mcastReceiver;
     
     private static V4Machine v4Machine;
     private static V6Machine v6Machine;
     
-    private MulticastSocket v4McastSock;
-    private MulticastSocket v6McastSock;
-    
-    private static final int TUNNELS_REFRESH_RATE = 30;
     private static List<PersistenceTunnel> wgConnectTunnels;
     private static List<RefreshTunnelsHandler> wgConnectTunnelsHandlers;
     
+    // The tombstones of removed tunnels for the delta info exchange
+    private static final LinkedList<PersistenceTunnel> removedTunnels = new LinkedList<>();
+    private static long removedTunnelsPrunedVersion = 0;
+    
     private static final String V4_OPTION = "-4";
     private static final String V6_OPTION = "-6";
     
@@ -214,6 +225,73 @@ public class WgConnect implements Runnable {
         description = "Specify the persistent keepalive interval for all Wireguard tunnels (default: ${DEFAULT-VALUE})")
     protected static int persistentKeepalive = Constants.DEFAULT_PERSISTENT_KEEPALIVE;
 
+    @Option(names = {"-A", "--allow"}, arity = "1..*", paramLabel = "<prefixes|keys>",
+        description = "Specify the V4/V6 address prefixes and Wireguard public keys of the peers allowed to build tunnels, " +
+        "separated by spaces (default: all peers are allowed).")
+    protected List<String> allowEntries = new ArrayList<>();
+
+    @Option(names = {"-D", "--deny"}, arity = "1..*", paramLabel = "<prefixes|keys>",
+        description = "Specify the V4/V6 address prefixes and Wireguard public keys of the peers denied to build tunnels, " +
+        "separated by spaces. A denied entry overrides an allowed one.")
+    protected List<String> denyEntries = new ArrayList<>();
+
+    @Option(names = {"-c", "--aclfile"}, arity = "1", paramLabel = "<filename>",
+        description = "Specify an access control file with one \"allow <prefix|key>\" or \"deny <prefix|key>\" entry per line.")
+    protected String aclFilename = null;
+
+    @Option(names = {"-T", "--transport"}, arity = "1", paramLabel = "<transport>",
+        description = "Specify the control message transport, \"" + Constants.TRANSPORT_NETTY + "\" or \"" +
+        Constants.TRANSPORT_REUSEPORT + "\" for SO_REUSEPORT sharded sockets (default: ${DEFAULT-VALUE}).")
+    protected static String transport = Constants.TRANSPORT_NETTY;
+
+    @Option(names = {"-S", "--sockets"}, arity = "1", paramLabel = "<count>",
+        description = "Specify the number of sockets, each with its own receive thread, per local address for the " +
+        Constants.TRANSPORT_REUSEPORT + " transport (default: ${DEFAULT-VALUE}).")
+    protected static int reusePortSockets = Runtime.getRuntime().availableProcessors();
+
+    @Option(names = {"-W", "--workers"}, arity = "1", paramLabel = "<threads>",
+        description = "Specify the number of worker threads shared by all of the V4 and V6 channels (default: ${DEFAULT-VALUE}).")
+    protected static int workerThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(names = {"-w", "--wildcard"}, defaultValue = "false",
+        description = "Serve the tunnel ping and info messages of all the tunnels from one wildcard-bound socket per port " +
+        "instead of one socket per tunnel address. The teardown messages are only accepted on the sockets bound to a " +
+        "tunnel address.")
+    protected static boolean tunnelWildcardSocket = false;
+
+    @Option(names = {"-B", "--peerbatch"}, arity = "1", paramLabel = "<peers>",
+        description = "Specify the number of queued peer updates of an interface that are applied at once (default: ${DEFAULT-VALUE}).")
+    protected static int peerBatchSize = Constants.PEER_BATCH_SIZE;
+
+    @Option(names = {"-I", "--peerinterval"}, arity = "1", paramLabel = "<milliseconds>",
+        description = "Specify the interval at which the queued peer updates of each interface are applied, " +
+        "0 to apply them immediately (default: ${DEFAULT-VALUE}).")
+    protected static long peerBatchInterval = Constants.PEER_BATCH_INTERVAL;
+
+    @Option(names = {"-K", "--keypool"}, arity = "1", paramLabel = "<depth>",
+        description = "Specify the number of Wireguard key sets generated ahead of the new tunnels, " +
+        "0 to generate the keys of each tunnel when it is set up (default: ${DEFAULT-VALUE}).")
+    protected static int keyPoolDepth = Constants.KEY_POOL_DEPTH;
+
+    @Option(names = {"-N", "--ifpeers"}, arity = "1", paramLabel = "<peers>",
+        description = "Specify the number of peers packed onto each tunnel interface, grouped by local address and tunnel network, " +
+        "0 for one interface per server tunnel network and per client tunnel address (default: ${DEFAULT-VALUE}).")
+    protected static int peersPerInterface = Constants.PEERS_PER_INTERFACE;
+
+    @Option(names = {"-P", "--warmpool"}, arity = "1", paramLabel = "<interfaces>",
+        description = "Specify the number of spare tunnel interfaces of each IP version that are created, keyed and brought up " +
+        "ahead of the new tunnels, 0 to create each interface when it is needed (default: ${DEFAULT-VALUE}).")
+    protected static int warmPoolSize = Constants.WARM_INTERFACE_POOL_SIZE;
+
+    @Option(names = {"-R", "--reaptimeout"}, arity = "1", paramLabel = "<seconds>",
+        description = "Specify the time since the latest handshake after which a tunnel is torn down and removed, " +
+        "0 to keep the tunnels regardless of their handshakes (default: ${DEFAULT-VALUE}).")
+    protected static long reaperHandshakeTimeout = Constants.REAPER_HANDSHAKE_TIMEOUT;
+
+    @Option(names = {"-U", "--uapidir"}, arity = "1", paramLabel = "<directory>",
+        description = "Specify the directory of the UAPI sockets of the userspace Wireguard implementations (default: ${DEFAULT-VALUE}).")
+    protected static String uapiSocketDirectory = WgUapi.DEFAULT_SOCKET_DIRECTORY;
+
     /**
      * Start the V4/V6 machines.
      * 
@@ -234,10 +312,24 @@ public class WgConnect implements Runnable {
 
             }
             
+            // Reach the devices of the userspace Wireguard implementations through their UAPI sockets
+            WgUapi.setSocketDirectory(uapiSocketDirectory);
+            
+            // Generate the keys of the new tunnels ahead of time
+            WgKeyPool.getInstance().start(keyPoolDepth);
+            
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 @Override
                 public void run() {
                     log.info("Stopping " + WG_CONNECT_MACHINES);
+                    TunnelReconciler.getInstance().shutdown();
+                    TunnelReaper.getInstance().shutdown();
+                    if (mcastReceiver != null) {
+                        mcastReceiver.shutdown();
+                    }
+                    WarmInterfacePool.getInstance().shutdown();
+                    log.info("Worker pool metrics: " + WorkerPool.getInstance().getMetrics());
+                    logRateLimiterMetrics(true);
                     System.out.println("Stopping " + WG_CONNECT_MACHINES + ": " + new Date());
                 }
             });
@@ -270,6 +362,8 @@ public class WgConnect implements Runnable {
             
             List<PersistenceTunnel> currentTunnels = config.initTunnelsList();
             
+            AccessControl.getInstance().init(allowEntries, denyEntries, aclFilename);
+            
             String msg;
             msg = (v4LocalInetAddrs != null) ? "V4 local addresses: " + Arrays.toString(v4LocalInetAddrs.toArray()) :
                 "V4 local addresses: none";
@@ -362,19 +456,40 @@ public class WgConnect implements Runnable {
                 guiInterface.initialize();
             }
             
-            // Start the tunnels refresh thread
-            scheduledExecutorService.scheduleAtFixedRate(WgConnect::refreshTunnels, TUNNELS_REFRESH_RATE, TUNNELS_REFRESH_RATE, TimeUnit.SECONDS);
+            // Start the tunnel statistics collector
+            TunnelStatsCollector.getInstance().start();
 
+            mcastReceiver = new McastReceiver();
+            
             // Start the V4 machiness
             if (spec.commandLine().getParseResult().originalArgs().stream().anyMatch(a -> a.startsWith(V4_OPTION))) {
                 startV4Machiness();
+                WarmInterfacePool.getInstance().start(IPVersion.IPV4, warmPoolSize);
             }
             
             // Start the V6 machines
             if (spec.commandLine().getParseResult().originalArgs().stream().anyMatch(a -> a.startsWith(V6_OPTION))) {
                 startV6Machines();
+                WarmInterfacePool.getInstance().start(IPVersion.IPV6, warmPoolSize);
             }
             
+            // Start the single multicast receiver of the V4 and V6 machines
+            executorService.execute(mcastReceiver);
+            
+            // Start collecting the stale tunnels and the interfaces and peers left behind
+            TunnelReaper.getInstance().start();
+            
+            // Converge the devices on the tunnels, on a schedule and after the bursts of new tunnels
+            TunnelReconciler.getInstance().start();
+            
+            // Sync the tunnel info with the peers, only the changes are exchanged
+            scheduledExecutorService.scheduleWithFixedDelay(WgConnect::syncTunnelsInfo, Constants.TUNNEL_INFO_SYNC_INTERVAL,
+                Constants.TUNNEL_INFO_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+            
+            // Export the rate limiter drop counters whenever packets were dropped
+            scheduledExecutorService.scheduleWithFixedDelay(() -> logRateLimiterMetrics(false), Constants.RATE_LIMIT_LOG_INTERVAL,
+                Constants.RATE_LIMIT_LOG_INTERVAL, TimeUnit.MILLISECONDS);
+            
             log.info("Startup complete");
         } catch (ConfigException | IOException ex) {
             log.info(ex.getMessage());
@@ -382,17 +497,7 @@ public class WgConnect implements Runnable {
     }
     
     public static void refreshTunnels() {
-        for (WgInterfaceInfo netIf : Utils.getAllWgNetIfs()) {
-            for (WgInterfaceInfo.Peer peer : netIf.getPeers()) {
-                PersistenceTunnel tunnel = WgConnect.getTunnelByLocalAndRemotePublicKeys(netIf.getLocalPublicKey(), peer.getPublicKey());
-                if (tunnel != null) {
-                    tunnel.setFwmark(netIf.getLocalFwmark());
-                    tunnel.setSentBandwidth(peer.getSentBandwidth());
-                    tunnel.setReceivedBandwidth(peer.getReceivedBandwidth());
-                    tunnel.setLatestHandshake(peer.getLatestHandshake());
-                }
-            }
-        }
+        TunnelStatsCollector.getInstance().collect(true);
         
         wgConnectTunnelsHandlers.stream().forEach(handler -> handler.handleNotification());
     }
@@ -412,7 +517,6 @@ public class WgConnect implements Runnable {
                 v4LocalNetIfs = getV4MulticastNetIfs();
             }
 
-            v4McastSock = new MulticastSocket(new InetSocketAddress(v4McastInetAddr, v4PortNumber));
             if (v4RemoteInetAddrs.isEmpty()) {
                 v4RemoteInetAddrs.add(v4McastInetAddr);
             }
@@ -436,16 +540,7 @@ public class WgConnect implements Runnable {
                         }
                     }
                     
-                    WgConnect.McastReceiver v4McastReceiver = new WgConnect.McastReceiver(
-                        netIf, v4McastSock, IPVersion.IPV4);
-                    v4McastReceivers.add(v4McastReceiver);
-
-                    new Thread() {
-                        @Override
-                        public void run() {
-                            executorService.execute(v4McastReceiver);
-                        }
-                    }.start();
+                    mcastReceiver.join(IPVersion.IPV4, v4McastInetAddr, v4PortNumber, netIf);
                 }
             } else {
                 for (InetAddress inetAddr : v4LocalInetAddrs) {
@@ -459,16 +554,7 @@ public class WgConnect implements Runnable {
  
                         inetAddrs.add(inetAddr);
                         
-                        WgConnect.McastReceiver v4McastReceiver = new WgConnect.McastReceiver(
-                            netIf, v4McastSock, IPVersion.IPV4);
-                        v4McastReceivers.add(v4McastReceiver);
-
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                executorService.execute(v4McastReceiver);
-                            }
-                        }.start();
+                        mcastReceiver.join(IPVersion.IPV4, v4McastInetAddr, v4PortNumber, netIf);
                     } else {
                         log.info("Could not find the network interface for V4 address {}", inetAddr.getHostAddress());
                     }
@@ -495,7 +581,6 @@ public class WgConnect implements Runnable {
                 v6LocalNetIfs = getV6MulticastNetIfs();
             }
 
-            v6McastSock = new MulticastSocket(new InetSocketAddress(v6McastInetAddr, v6PortNumber));
             if (v6RemoteInetAddrs.isEmpty()) {
                 v6RemoteInetAddrs.add(v6McastInetAddr);
             }
@@ -513,16 +598,7 @@ public class WgConnect implements Runnable {
                         }
                     }
                     
-                    WgConnect.McastReceiver v6McastReceiver = new WgConnect.McastReceiver(
-                        netIf, v6McastSock, IPVersion.IPV6);
-                    v6McastReceivers.add(v6McastReceiver);
-
-                    new Thread() {
-                        @Override
-                        public void run() {
-                            executorService.execute(v6McastReceiver);
-                        }
-                    }.start();
+                    mcastReceiver.join(IPVersion.IPV6, v6McastInetAddr, v6PortNumber, netIf);
                 }
             } else {
                 for (InetAddress inetAddr : v6LocalInetAddrs) {
@@ -537,16 +613,7 @@ public class WgConnect implements Runnable {
                         
                         inetAddrs.add(inetAddr);
                        
-                        WgConnect.McastReceiver v6McastReceiver = new WgConnect.McastReceiver(
-                            netIf, v6McastSock, IPVersion.IPV6);
-                        v6McastReceivers.add(v6McastReceiver);
-
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                executorService.execute(v6McastReceiver);
-                            }
-                        }.start();
+                        mcastReceiver.join(IPVersion.IPV6, v6McastInetAddr, v6PortNumber, netIf);
                     } else {
                         log.info("Could not find the network interface for V6 address {}", inetAddr.getHostAddress());
                     }
@@ -566,75 +633,14 @@ public class WgConnect implements Runnable {
         }
     }
     
-    protected class McastReceiver implements Runnable {
-        
-        static final int BUFFER_SIZE = 4096;
-        
-        NetworkInterface networkInterface = null;
-        MulticastSocket mcastSock = null;
-        IPVersion ipVersion;
-        
-        String name;
-        
-        public McastReceiver(NetworkInterface networkInterface, MulticastSocket mcastSock,
-            IPVersion ipVersion) {
-            this.networkInterface = networkInterface;
-            this.mcastSock = mcastSock;
-            this.ipVersion = ipVersion;
-            
-            name = String.format("%s-%s-%s", networkInterface.getName(), mcastSock.getLocalAddress().getHostAddress(),
-                mcastSock.getLocalPort());
-        }
-        
-        public String getName() {
-            return name;
-        }
-        
-        @Override
-        public void run() {
-            if (networkInterface != null) {
-                try {
-                    mcastSock.joinGroup(mcastSock.getLocalSocketAddress(), networkInterface);
-                    
-                    while (true) {
-                        try {
-                            byte[] buffer = new byte[BUFFER_SIZE];
-                            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                            mcastSock.receive(packet);
-                            
-                            if (ipVersion.isIPv4()) {
-                                v4Machine.processMulticastDiscoverMessage(packet, buffer, packet.getLength());
-                            } else if (ipVersion.isIPv6()) {
-                                v6Machine.processMulticastSolicitMessage(packet, buffer, packet.getLength());
-                            } else {
-                                log.info("Unknown IP type: {}", ipVersion);
-                                break;
-                            }
-                        } catch (IOException ex) {
-                            log.info(ex.getMessage());
-                        }
-                    }
-                    
-                    mcastSock.close();
-                } catch (IOException ex) {
-                    log.info(ex.getMessage());
-                }
-            }
-        }
-    }
-    
-    public static List<McastReceiver> getV4McastReceivers() {
-        return v4McastReceivers;
+    public static McastReceiver getMcastReceiver() {
+        return mcastReceiver;
     }
     
     public static V4Machine getV4Machine() {
         return v4Machine;
     }
     
-    public static List<McastReceiver> getV6McastReceivers() {
-        return v6McastReceivers;
-    }
-
     public static V6Machine getV6Machine() {
         return v6Machine;
     }
@@ -1280,6 +1286,50 @@ public class WgConnect implements Runnable {
         return databasePassword;
     }
     
+    public static String getTransport() {
+        return transport;
+    }
+    
+    public static int getReusePortSockets() {
+        return reusePortSockets;
+    }
+    
+    public static int getWorkerThreads() {
+        return workerThreads;
+    }
+    
+    public static boolean getTunnelWildcardSocket() {
+        return tunnelWildcardSocket;
+    }
+
+    public static int getPeerBatchSize() {
+        return peerBatchSize;
+    }
+
+    public static long getPeerBatchInterval() {
+        return peerBatchInterval;
+    }
+
+    public static int getKeyPoolDepth() {
+        return keyPoolDepth;
+    }
+
+    public static int getPeersPerInterface() {
+        return peersPerInterface;
+    }
+
+    public static int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    public static long getReaperHandshakeTimeout() {
+        return reaperHandshakeTimeout;
+    }
+
+    public static String getUapiSocketDirectory() {
+        return uapiSocketDirectory;
+    }
+    
     public static int getPersistentKeepalive() {
         return persistentKeepalive;
     }
@@ -1295,7 +1345,15 @@ public class WgConnect implements Runnable {
     }
     
     public static void addTunnel(PersistenceTunnel tunnel) {
+        synchronized (removedTunnels) {
+            removedTunnels.remove(tunnel);
+        }
+        
+        tunnel.setInfoVersion(PersistenceTunnel.nextInfoVersion());
+        
         wgConnectTunnels.add(tunnel);
+        
+        TunnelReconciler.getInstance().requestReconcile();
     }
 
     public static PersistenceTunnel getTunnelByTunnelId(String id) {
@@ -1364,6 +1422,17 @@ public class WgConnect implements Runnable {
             .orElse(null);
     }
     
+    public static PersistenceTunnel getTunnelByRemoteTunnelInetAddr(InetAddress remoteTunnelInetAddr) {
+        return wgConnectTunnels
+            .stream()
+            .filter(t -> {
+                IPAddress addr = new IPAddressString(t.getRemoteTunnelInetAddr()).getAddress();
+                return addr != null && addr.toInetAddress().equals(remoteTunnelInetAddr);
+            })
+            .findFirst()
+            .orElse(null);
+    }
+    
     public static PersistenceTunnel getTunnelByLocalAndRemoteTunnelInetAddrs(String localTunnelInetAddr, String remoteTunnelInetAddr) {
         return wgConnectTunnels
             .stream()
@@ -1417,6 +1486,13 @@ public class WgConnect implements Runnable {
             .orElse(null);
     }
     
+    public static List<PersistenceTunnel> getTunnelsByLocalIfName(String ifName) {
+        return wgConnectTunnels
+            .stream()
+            .filter(t -> StringUtils.equals(t.getLocalInterfaceName(), ifName))
+            .collect(Collectors.toList());
+    }
+    
     public static PersistenceTunnel getTunnelByRemoteIfName(String ifName) {
         return wgConnectTunnels
             .stream()
@@ -1450,14 +1526,119 @@ public class WgConnect implements Runnable {
             .collect(Collectors.toList());
     }
     
-    public static void removeTunnel(PersistenceTunnel tunnel) {
-        wgConnectTunnels.remove(tunnel);
+    public static boolean removeTunnel(PersistenceTunnel tunnel) {
+        if (wgConnectTunnels.remove(tunnel)) {
+            // Keep a tombstone so that the delta info replies can report the removal
+            PersistenceTunnel tombstone = new PersistenceTunnel();
+            tombstone.setId(tunnel.getId());
+            tombstone.setLocalPhysInetAddr(tunnel.getLocalPhysInetAddr());
+            tombstone.setState(Constants.TUNNEL_STATUS_REMOVED);
+            tombstone.setInfoVersion(PersistenceTunnel.nextInfoVersion());
+            
+            synchronized (removedTunnels) {
+                removedTunnels.add(tombstone);
+                if (removedTunnels.size() > Constants.MAX_TUNNEL_INFO_TOMBSTONES) {
+                    removedTunnelsPrunedVersion = removedTunnels.removeFirst().getInfoVersion();
+                }
+            }
+            
+            return true;
+        }
+        
+        return false;
     }
     
     public static void updateTunnel(PersistenceTunnel tunnel) {
         
     }
     
+    public static long getTunnelsInfoVersion() {
+        return PersistenceTunnel.getLastInfoVersion();
+    }
+    
+    public static List<PersistenceTunnel> getV4TunnelsChangedSince(long version) {
+        return getTunnelsChangedSince(version,
+            t -> InetAddressValidator.getInstance().isValidInet4Address(t.getLocalPhysInetAddr()));
+    }
+    
+    public static List<PersistenceTunnel> getV6TunnelsChangedSince(long version) {
+        return getTunnelsChangedSince(version,
+            t -> InetAddressValidator.getInstance().isValidInet6Address(t.getLocalPhysInetAddr()));
+    }
+    
+    /**
+     * Gets the tunnels whose info version is newer than the given version, including the
+     * tombstones of removed tunnels, ordered by version. If the tombstones for the version
+     * have already been pruned, all of the current tunnels are returned instead. The versions
+     * are assigned when the tunnel info fields are set, so this is a read only scan.
+     * 
+     * @param version  the last tunnel info version seen by the requester
+     * @param filter  the tunnel filter
+     * @return the changed and removed tunnels
+     */
+    private static List<PersistenceTunnel> getTunnelsChangedSince(long version, Predicate<PersistenceTunnel> filter) {
+        List<PersistenceTunnel> changed = new ArrayList<>();
+        
+        boolean pruned;
+        synchronized (removedTunnels) {
+            pruned = version < removedTunnelsPrunedVersion;
+            if (!pruned) {
+                removedTunnels
+                    .stream()
+                    .filter(t -> t.getInfoVersion() > version)
+                    .filter(filter)
+                    .forEach(changed::add);
+            }
+        }
+        
+        synchronized (wgConnectTunnels) {
+            wgConnectTunnels
+                .stream()
+                .filter(filter)
+                .filter(t -> pruned || t.getInfoVersion() > version)
+                .forEach(changed::add);
+        }
+        
+        changed.sort(Comparator.comparingLong(PersistenceTunnel::getInfoVersion));
+        
+        return changed;
+    }
+    
+    public static void logRateLimiterMetrics(boolean all) {
+        if (v4Machine != null) {
+            v4Machine.getUnicastRateLimiter().logMetrics(all);
+            v4Machine.getMulticastRateLimiter().logMetrics(all);
+        }
+        if (v6Machine != null) {
+            v6Machine.getUnicastRateLimiter().logMetrics(all);
+            v6Machine.getMulticastRateLimiter().logMetrics(all);
+        }
+    }
+    
+    /**
+     * Sends a tunnel info request through each of the tunnels that are up. The replies only carry
+     * the tunnels that changed since the last sync with each peer.
+     */
+    public static void syncTunnelsInfo() {
+        List<PersistenceTunnel> tunnels;
+        synchronized (wgConnectTunnels) {
+            tunnels = wgConnectTunnels
+                .stream()
+                .filter(t -> StringUtils.equals(t.getState(), Constants.TUNNEL_STATUS_UP))
+                .collect(Collectors.toList());
+        }
+        
+        for (PersistenceTunnel tunnel : tunnels) {
+            if (InetAddressValidator.getInstance().isValidInet4Address(tunnel.getLocalPhysInetAddr())) {
+                if (v4Machine != null) {
+                    v4Machine.sendTunnelsInfoRequestMessage(tunnel);
+                }
+            } else if (v6Machine != null) {
+                v6Machine.sendTunnelsInfoRequestMessage(tunnel);
+            }
+        }
+    }
+    
     public static void updateTunnelsInfo() {
         Utils.getAllWgNetIfs().forEach(info -> {
             for (WgInterfaceInfo.Peer peer : info.getPeers()) {
@@ -1570,6 +1751,11 @@ public class WgConnect implements Runnable {
             System.exit(0);
         }
         
+        if (!Constants.TRANSPORT_NETTY.equalsIgnoreCase(transport) && !Constants.TRANSPORT_REUSEPORT.equalsIgnoreCase(transport)) {
+            throw new ParameterException(spec.commandLine(), String.format("Invalid value '%s' for option '--transport': " +
+                "expected \"%s\" or \"%s\"", transport, Constants.TRANSPORT_NETTY, Constants.TRANSPORT_REUSEPORT));
+        }
+        
         startMachines();
     }
 
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.config;
+
+import com.wgconnect.core.util.PrefixTrie;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressString;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * AccessControl
+ *
+ * The allow and deny lists of the peers that may build tunnels. Address prefixes are compiled into
+ * binary tries and Wireguard public keys into hash sets. A denied entry always wins, and when an
+ * allow list is not empty an address or key must also be on it. The IPv4 and IPv6 prefixes form
+ * a single address allow list, so allowing only IPv4 prefixes denies every IPv6 address.
+ *
+ * The access control file has one entry per line, "allow <prefix|key>" or "deny <prefix|key>",
+ * and lines starting with '#' are comments.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class AccessControl {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(AccessControl.class);
+
+    private static AccessControl INSTANCE;
+
+    public static final String ALLOW = "allow";
+    public static final String DENY = "deny";
+
+    private static final int WG_KEY_LENGTH = 32;
+    private static final String COMMENT = "#";
+
+    private final PrefixTrie v4Allow = new PrefixTrie();
+    private final PrefixTrie v4Deny = new PrefixTrie();
+    private final PrefixTrie v6Allow = new PrefixTrie();
+    private final PrefixTrie v6Deny = new PrefixTrie();
+
+    private final Set<String> keysAllow = ConcurrentHashMap.newKeySet();
+    private final Set<String> keysDeny = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Gets the single instance of AccessControl.
+     *
+     * @return single instance of AccessControl
+     */
+    public static synchronized AccessControl getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new AccessControl();
+        }
+
+        return INSTANCE;
+    }
+
+    private AccessControl() {}
+
+    /**
+     * Initialize the allow and deny lists.
+     *
+     * @param allowEntries the allowed prefixes and keys from the command line
+     * @param denyEntries the denied prefixes and keys from the command line
+     * @param aclFilename the access control file, or null
+     * @throws ConfigException if an entry or the file is invalid
+     */
+    public void init(List<String> allowEntries, List<String> denyEntries, String aclFilename) throws ConfigException {
+        for (String entry : allowEntries != null ? allowEntries : Collections.<String>emptyList()) {
+            addEntry(entry, true);
+        }
+
+        for (String entry : denyEntries != null ? denyEntries : Collections.<String>emptyList()) {
+            addEntry(entry, false);
+        }
+
+        if (StringUtils.isNotBlank(aclFilename)) {
+            loadFile(aclFilename);
+        }
+
+        log.info("Access control: allow " + (v4Allow.size() + v6Allow.size()) + " prefixes, " + keysAllow.size() +
+            " keys; deny " + (v4Deny.size() + v6Deny.size()) + " prefixes, " + keysDeny.size() + " keys");
+    }
+
+    private void loadFile(String aclFilename) throws ConfigException {
+        List<String> lines;
+        try {
+            lines = FileUtils.readLines(new File(aclFilename), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new ConfigException("Unable to read the access control file " + aclFilename, ex);
+        }
+
+        int lineNumber = 0;
+        for (String line : lines) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith(COMMENT)) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2 || !(fields[0].equalsIgnoreCase(ALLOW) || fields[0].equalsIgnoreCase(DENY))) {
+                throw new ConfigException("Invalid access control entry at " + aclFilename + ":" + lineNumber + ": " + line);
+            }
+
+            addEntry(fields[1], fields[0].equalsIgnoreCase(ALLOW));
+        }
+    }
+
+    /**
+     * Adds an address prefix or a Wireguard public key to the allow or deny list.
+     *
+     * @param entry the address prefix or the public key
+     * @param allow true for the allow list, false for the deny list
+     * @throws ConfigException if the entry is neither a prefix nor a public key
+     */
+    public void addEntry(String entry, boolean allow) throws ConfigException {
+        entry = StringUtils.trimToEmpty(entry);
+
+        if (isWgPublicKey(entry)) {
+            (allow ? keysAllow : keysDeny).add(entry);
+            return;
+        }
+
+        IPAddress prefix = new IPAddressString(entry).getAddress();
+        if (prefix == null) {
+            throw new ConfigException("Invalid access control entry: " + entry);
+        }
+
+        int prefixLen = prefix.isPrefixed() ? prefix.getNetworkPrefixLength() : prefix.getBitCount();
+        byte[] addr = prefix.getLower().getBytes();
+        if (prefix.isIPv4()) {
+            (allow ? v4Allow : v4Deny).add(addr, prefixLen);
+        } else {
+            (allow ? v6Allow : v6Deny).add(addr, prefixLen);
+        }
+    }
+
+    public boolean isEmpty() {
+        return v4Allow.isEmpty() && v4Deny.isEmpty() && v6Allow.isEmpty() && v6Deny.isEmpty() &&
+            keysAllow.isEmpty() && keysDeny.isEmpty();
+    }
+
+    /**
+     * Checks if a peer address may build tunnels.
+     *
+     * @param inetAddr the peer address
+     * @return true if the address is allowed
+     */
+    public boolean isAllowedInetAddr(InetAddress inetAddr) {
+        if (inetAddr == null) {
+            return true;
+        }
+
+        byte[] addr = inetAddr.getAddress();
+        PrefixTrie allow = addr.length == 4 ? v4Allow : v6Allow;
+        PrefixTrie deny = addr.length == 4 ? v4Deny : v6Deny;
+
+        if (deny.matches(addr)) {
+            return false;
+        }
+
+        // An allow list of one address family denies the other family as well
+        if (v4Allow.isEmpty() && v6Allow.isEmpty()) {
+            return true;
+        }
+
+        return allow.matches(addr);
+    }
+
+    /**
+     * Checks if a peer Wireguard public key may build tunnels.
+     *
+     * @param publicKey the peer public key, or null if the peer sent no key
+     * @return true if the key is allowed, a missing key is only allowed without a key allow list
+     */
+    public boolean isAllowedPublicKey(String publicKey) {
+        if (StringUtils.isBlank(publicKey)) {
+            return keysAllow.isEmpty();
+        }
+
+        if (keysDeny.contains(publicKey)) {
+            return false;
+        }
+
+        return keysAllow.isEmpty() || keysAllow.contains(publicKey);
+    }
+
+    public boolean hasPublicKeyRules() {
+        return !keysAllow.isEmpty() || !keysDeny.isEmpty();
+    }
+
+    private static boolean isWgPublicKey(String entry) {
+        try {
+            return Base64.getDecoder().decode(entry).length == WG_KEY_LENGTH;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+}
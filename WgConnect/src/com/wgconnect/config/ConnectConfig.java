@@ -20,8 +20,16 @@ package com.wgconnect.config;
 import com.wgconnect.WgConnect;
 import com.wgconnect.core.message.V4Message;
 import com.wgconnect.core.message.V6Message;
+import com.wgconnect.core.option.base.BaseIpAddressOption;
+import com.wgconnect.core.option.base.BaseStringOption;
+import com.wgconnect.core.option.base.BaseUnsignedIntOption;
+import com.wgconnect.core.option.base.Option;
 import com.wgconnect.core.option.machine.LocalTunnelInetAddrOption;
 import com.wgconnect.core.option.machine.RemoteTunnelInetAddrOption;
+import com.wgconnect.core.option.machine.TunnelIdOption;
+import com.wgconnect.core.option.machine.TunnelInfoCountOption;
+import com.wgconnect.core.option.machine.TunnelInfoEpochOption;
+import com.wgconnect.core.option.machine.TunnelInfoVersionOption;
 import com.wgconnect.core.util.Constants;
 import com.wgconnect.core.util.WgConnectLogger;
 import com.wgconnect.core.util.Utils;
@@ -30,6 +38,7 @@ import com.wgconnect.db.h2.PersistenceDatabaseManagerH2;
 import com.wgconnect.db.PersistenceDatabaseManagerImpl;
 import com.wgconnect.db.PersistenceDatabaseManager;
 
+import com.wgtools.LinkEnumerator;
 import com.wgtools.Wg;
 import inet.ipaddr.IPAddress.IPVersion;
 
@@ -38,23 +47,28 @@ import jakarta.persistence.TypedQuery;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
 import java.security.KeyPair;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Properties;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.validator.routines.InetAddressValidator;
 
 import org.hibernate.cfg.AvailableSettings;
@@ -78,7 +92,6 @@ public class ConnectConfig {
     private List<Class> databaseMgrEntityClasses;
     private final Properties databaseProperties = new Properties();
     
-    private List<PersistenceTunnel> wgConnectTunnels;
     private final KeyPair genericKeyPair = Utils.generateCryptoKeyPair(
         Constants.GENERIC_CRYPTO_ALGORITHM, Constants.GENERIC_CRYPTO_KEYSIZE);
     
@@ -149,258 +162,171 @@ public class ConnectConfig {
     }
     
     public List<PersistenceTunnel> initTunnelsList() {
-        if (wgConnectTunnels == null) {
-            wgConnectTunnels = new ArrayList();
-        }
-        
-        List<PersistenceTunnel> persistenceTunnels = new ArrayList<>();
+        // Index the persisted tunnels by their local and remote public keys
+        Map<String, PersistenceTunnel> persistenceTunnels = new HashMap<>();
         EntityManager em = databaseMgr.getEntityManager();
         
         if (em != null) {
             TypedQuery<PersistenceTunnel> query = em.createNamedQuery(PersistenceTunnel.QUERY_NAME_ALL_TUNNELS, PersistenceTunnel.class);
             for (PersistenceTunnel t : query.getResultList()) {
-                persistenceTunnels.add(t);
+                persistenceTunnels.put(tunnelKey(t.getLocalPublicKey(), t.getRemotePublicKey()), t);
             }
         }
         
         // Check for existing V4/V6 Wireguard tunnels
-        List<PersistenceTunnel> nettyLocalAddons = new ArrayList<>();
+        Map<String, PersistenceTunnel> nettyLocalAddons = new LinkedHashMap<>();
         Wg wg = new Wg();
         if (!StringUtils.isEmpty(wg.getInterfaces())) {
-            try {
-                Enumeration<NetworkInterface> netIfs = NetworkInterface.getNetworkInterfaces();
-                while (netIfs.hasMoreElements()) {
-                    NetworkInterface netIf = netIfs.nextElement();
-                    if (netIf.getDisplayName().startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV6))) {
-                        String inetAddr = null;
-                        Enumeration<InetAddress> inetAddrs = netIf.getInetAddresses();
-                        while (inetAddrs.hasMoreElements()) {
-                            InetAddress currentAddress = inetAddrs.nextElement();
-                            if (currentAddress instanceof Inet6Address && !currentAddress.isLoopbackAddress()) {
-                                inetAddr = currentAddress.getHostAddress();
-                                break;
-                            }
-                        }
-
-                        String localTunnelInetAddr = inetAddr;
-                        String privateKey = wg.getInterfacePrivateKey(netIf.getDisplayName());
-                        String publicKey = wg.getInterfacePublicKey(netIf.getDisplayName());
-                        long listenPort = wg.getInterfaceListenPort(netIf.getDisplayName());
-                        List<String> peers = wg.getInterfacePeers(netIf.getDisplayName());
-                        Map<String, String> endpoints = wg.getInterfaceEndpointsAsMap(netIf.getDisplayName());
-                        Map<String, String> allowedIps = wg.getInterfaceAllowedIpsAsMap(netIf.getDisplayName());
-                        Map<String, String> persistentKeepalives = wg.getInterfacePersistentKeepalivesAsMap(netIf.getDisplayName());
-
-                        if (privateKey != null && publicKey != null && listenPort >= 0 && !peers.isEmpty() && !endpoints.isEmpty() &&
-                            !allowedIps.isEmpty() && !persistentKeepalives.isEmpty()) {
-
-                            // Check if the persistent tunnels are actual exisiting tunnels
-                            for (PersistenceTunnel t : persistenceTunnels) {
-                                Optional<String> value = endpoints.values()
-                                    .stream()
-                                    .filter(v -> v.contains(t.getRemotePhysInetAddr()))
-                                    .findFirst();
-
-                                if (value.isEmpty()) {
-                                    persistenceTunnels.remove(t);
-                                }
-                            }
-
-                            // Perform a more detailed anaylsis of the persistence tunnels
-                            for (String peer : peers) {
-                                String endpoint = endpoints.get(peer);
-                                String[] remotePhysInetAddrInfo = StringUtils.split(endpoint, ":");
-
-                                String allowedIp = allowedIps.get(peer);
-                                String[] remoteTunnelInetAddrInfo = allowedIp.split("/");
-
-                                String persistentKeepalive = persistentKeepalives.get(peer);
-
-                                // Check if this tunnel is in the persistence database
-                                Optional<PersistenceTunnel> pt = persistenceTunnels
-                                    .stream()
-                                    .filter(t ->
-                                        t.getInetType().equalsIgnoreCase(IPVersion.IPV6.toString()) &&
-                                        StringUtils.equals(t.getLocalPrivateKey(), privateKey) &&
-                                        StringUtils.equals(t.getLocalPublicKey(), publicKey) &&
-                                        t.getLocalPhysInetListenPort() == listenPort &&
-                                        StringUtils.equals(t.getRemotePublicKey(), peer) &&
-                                        StringUtils.equals(t.getRemotePhysInetAddr(), remotePhysInetAddrInfo[0]) &&
-                                        t.getRemotePhysInetListenPort() == Long.parseLong(remotePhysInetAddrInfo[1]) &&
-                                        StringUtils.equals(t.getRemoteTunnelInetAddr(), remoteTunnelInetAddrInfo[0]) &&
-                                        StringUtils.equals(t.getLocalTunnelInetAddr(), localTunnelInetAddr))
-                                    .findFirst();
-
-                                if (pt.isPresent()) {
-                                    Optional<PersistenceTunnel> addon = nettyLocalAddons
-                                        .stream()
-                                        .filter(t ->
-                                            StringUtils.equals(t.getLocalTunnelInetAddr(), pt.get().getLocalTunnelInetAddr()) &&
-                                            t.getLocalTunnelInetComPort() == pt.get().getLocalTunnelInetComPort())
-                                        .findAny();
-
-                                    if (addon.isEmpty()) {
-                                        nettyLocalAddons.add(pt.get());
-                                    }
-
-                                    wgConnectTunnels.add(pt.get());
-                                    persistenceTunnels.remove(pt.get());
-
-                                    continue;
-
-                                }
-
-                                PersistenceTunnel tunnel = new PersistenceTunnel();
-                                tunnel.setId(UUID.randomUUID());
-                                tunnel.setInetType(IPVersion.IPV6.toString());
-
-                                tunnel.setRemoteEndpointType(Constants.TUNNEL_ENDPOINT_TYPE_CLIENT);
-                                tunnel.setLocalEndpointType(Constants.TUNNEL_ENDPOINT_TYPE_CLIENT);
-
-                                tunnel.setLocalPhysInetComPort(WgConnect.getV6PortNumber());
-                                tunnel.setLocalPhysInetListenPort(listenPort);
-
-                                tunnel.setRemoteTunnelInetAddr(remoteTunnelInetAddrInfo[0]);
-
-                                tunnel.setLocalPrivateKey(privateKey);
-                                tunnel.setLocalPublicKey(publicKey);
-                                tunnel.setRemotePublicKey(peer);
-
-                                tunnel.setKeepalive(Integer.parseInt(persistentKeepalives.get(persistentKeepalive)));
-
-                                tunnel.setState(Constants.TUNNEL_STATUS_UP);
-                                WgConnect.guiAddTunnel(tunnel);
-
-                                if (validator.isValid(remotePhysInetAddrInfo[0])) {
-                                    tunnel.setRemotePhysInetAddr(remotePhysInetAddrInfo[0]);
-                                    tunnel.setRemotePhysInetListenPort(Long.parseLong(remotePhysInetAddrInfo[1]));
-
-                                    String serverPhysInetAddr = wg.getLocalEndpointByInetAddr(remotePhysInetAddrInfo[0]);
-                                    if (validator.isValid(serverPhysInetAddr)) {
-                                        tunnel.setLocalPhysInetAddr(serverPhysInetAddr);
-                                    }
-                                }
-                            }
-                        }
+            // List the WgConnect links by prefix and read the addresses of those links only
+            List<String> v6IfNames = LinkEnumerator.getLinkNames(Constants.getTunnelInterfacePrefix(IPVersion.IPV6));
+            List<String> v4IfNames = LinkEnumerator.getLinkNames(Constants.getTunnelInterfacePrefix(IPVersion.IPV4));
+            Map<String, List<InetAddress>> v6IfInetAddrs = LinkEnumerator.getInetAddrs(v6IfNames, IPVersion.IPV6);
+            Map<String, List<InetAddress>> v4IfInetAddrs = LinkEnumerator.getInetAddrs(v4IfNames, IPVersion.IPV4);
+            
+            List<String> ifNames = new ArrayList<>(v6IfNames);
+            ifNames.addAll(v4IfNames);
+            
+            // Dump each interface once, the interfaces in parallel
+            for (WgInterfaceInfo info : dumpInterfaces(ifNames)) {
+                IPVersion ipVersion = info.getName().startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV6)) ?
+                    IPVersion.IPV6 : IPVersion.IPV4;
+                
+                if (isNone(info.getLocalPrivateKey()) || isNone(info.getLocalPublicKey()) || info.getPeers().isEmpty()) {
+                    continue;
+                }
+                
+                String localTunnelInetAddr = null;
+                Map<String, List<InetAddress>> ifInetAddrs = ipVersion.isIPv6() ? v6IfInetAddrs : v4IfInetAddrs;
+                for (InetAddress currentAddress : ifInetAddrs.getOrDefault(info.getName(), Collections.emptyList())) {
+                    if (!currentAddress.isLoopbackAddress()) {
+                        localTunnelInetAddr = currentAddress.getHostAddress();
+                        break;
                     }
-                    
-                    if (netIf.getDisplayName().startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV4))) {
-                        String inetAddr = null;
-                        Enumeration<InetAddress> inetAddress = netIf.getInetAddresses();
-                        while (inetAddress.hasMoreElements()) {
-                            InetAddress currentAddress = inetAddress.nextElement();
-                            if (currentAddress instanceof Inet4Address && !currentAddress.isLoopbackAddress()) {
-                                inetAddr = currentAddress.getHostAddress();
-                                break;
-                            }
-                        }
-
-                        String serverTunnelInetAddr = inetAddr;
-                        String privateKey = wg.getInterfacePrivateKey(netIf.getDisplayName());
-                        String publicKey = wg.getInterfacePublicKey(netIf.getDisplayName());
-                        long listenPort = wg.getInterfaceListenPort(netIf.getDisplayName());
-                        List<String> peers = wg.getInterfacePeers(netIf.getDisplayName());
-                        Map<String, String> endpoints = wg.getInterfaceEndpointsAsMap(netIf.getDisplayName());
-                        Map<String, String> allowedIps = wg.getInterfaceAllowedIpsAsMap(netIf.getDisplayName());
-                        Map<String, String> persistentKeepalives = wg.getInterfacePersistentKeepalivesAsMap(netIf.getDisplayName());
-
-                        if (privateKey != null && publicKey != null && listenPort >= 0 && !peers.isEmpty() && !endpoints.isEmpty() &&
-                            !allowedIps.isEmpty() && !persistentKeepalives.isEmpty()) {
-
-                            // Check if the persistent server tunnels are actual exisiting tunnels
-                            for (PersistenceTunnel t : persistenceTunnels) {
-                                Optional<String> value = endpoints.values()
-                                    .stream()
-                                    .filter(v -> v.contains(t.getRemotePhysInetAddr()))
-                                    .findFirst();
-
-                                if (value.isEmpty()) {
-                                    persistenceTunnels.remove(t);
-                                }
-                            }
-
-                            for (String peer : peers) {
-                                String endpoint = endpoints.get(peer);
-                                String[] clientPhysInetAddrInfo = StringUtils.split(endpoint, ":");
-
-                                String allowedIp = allowedIps.get(peer);
-                                String[] clientTunnelInetAddrInfo = allowedIp.split("/");
-
-                                String persistentKeepalive = persistentKeepalives.get(peer);
-
-                                // Check if this wg tunnel is in the persistence database
-                                Optional<PersistenceTunnel> pt = persistenceTunnels
-                                    .stream()
-                                    .filter(t ->
-                                        t.getInetType().equalsIgnoreCase(IPVersion.IPV4.toString()) &&
-                                        StringUtils.equals(t.getLocalPrivateKey(), privateKey) &&
-                                        StringUtils.equals(t.getLocalPublicKey(), publicKey) &&
-                                        t.getLocalPhysInetListenPort() == listenPort &&
-                                        StringUtils.equals(t.getRemotePublicKey(), peer) &&
-                                        StringUtils.equals(t.getRemotePhysInetAddr(), clientPhysInetAddrInfo[0]) &&
-                                        t.getRemotePhysInetListenPort() == Long.parseLong(clientPhysInetAddrInfo[1]) &&
-                                        StringUtils.equals(t.getRemoteTunnelInetAddr(), clientTunnelInetAddrInfo[0]) &&
-                                        StringUtils.equals(t.getLocalTunnelInetAddr(), serverTunnelInetAddr))
-                                    .findFirst();
-
-                                if (pt.isPresent()) {
-                                    Optional<PersistenceTunnel> addon = nettyLocalAddons
-                                        .stream()
-                                        .filter(t ->
-                                            StringUtils.equals(t.getLocalTunnelInetAddr(), pt.get().getLocalTunnelInetAddr()) &&
-                                            t.getLocalTunnelInetComPort() == pt.get().getLocalTunnelInetComPort())
-                                        .findAny();
-
-                                    if (addon.isEmpty()) {
-                                        nettyLocalAddons.add(pt.get());
-                                    }
-
-                                    wgConnectTunnels.add(pt.get());
-                                    persistenceTunnels.remove(pt.get());
-
-                                    continue;
-                                }
-
-                                PersistenceTunnel tunnel = new PersistenceTunnel();
-                                tunnel.setId(UUID.randomUUID());
-                                tunnel.setInetType(IPVersion.IPV4.toString());
-
-                                tunnel.setRemoteEndpointType(Constants.TUNNEL_ENDPOINT_TYPE_CLIENT);
-                                tunnel.setLocalEndpointType(Constants.TUNNEL_ENDPOINT_TYPE_SERVER);
-
-                                tunnel.setLocalPhysInetComPort(WgConnect.getV6PortNumber());
-                                tunnel.setLocalPhysInetListenPort(listenPort);
-
-                                tunnel.setRemoteTunnelInetAddr(clientTunnelInetAddrInfo[0]);
-
-                                tunnel.setLocalPrivateKey(privateKey);
-                                tunnel.setLocalPublicKey(publicKey);
-                                tunnel.setRemotePublicKey(peer);
-
-                                tunnel.setKeepalive(Integer.parseInt(persistentKeepalive));
-
-                                tunnel.setState(Constants.TUNNEL_STATUS_UP);
-                                WgConnect.guiAddTunnel(tunnel);
-
-                                if (validator.isValid(clientPhysInetAddrInfo[0])) {
-                                    tunnel.setRemotePhysInetAddr(clientPhysInetAddrInfo[0]);
-                                    tunnel.setRemotePhysInetListenPort(Long.parseLong(clientPhysInetAddrInfo[1]));
-
-                                    String serverPhysInetAddr = wg.getLocalEndpointByInetAddr(clientPhysInetAddrInfo[0]);
-                                    if (validator.isValid(serverPhysInetAddr)) {
-                                        tunnel.setLocalPhysInetAddr(serverPhysInetAddr);
-                                    }
-                                }
-                            }
+                }
+                
+                for (WgInterfaceInfo.Peer peer : info.getPeers()) {
+                    // Check if this tunnel is in the persistence database
+                    PersistenceTunnel pt = persistenceTunnels.remove(tunnelKey(info.getLocalPublicKey(), peer.getPublicKey()));
+                    if (pt != null && pt.getInetType().equalsIgnoreCase(ipVersion.toString())) {
+                        // The device is the actual state, the listen port may have been reassigned
+                        pt.setLocalPhysInetListenPort(info.getLocalListenPort());
+                        if (pt.getLocalTunnelInetAddr() == null) {
+                            pt.setLocalTunnelInetAddr(localTunnelInetAddr);
                         }
+                        
+                        nettyLocalAddons.putIfAbsent(pt.getLocalTunnelInetAddr() + " " + pt.getLocalTunnelInetComPort(), pt);
+                        WgConnect.addTunnel(pt);
+                        
+                        continue;
                     }
+                    
+                    adoptPeer(wg, ipVersion, info, peer, localTunnelInetAddr);
                 }
-            } catch (SocketException ex) {
-                log.error("SocketException: " + ex);
             }
         }
         
-        return nettyLocalAddons;
+        return new ArrayList<>(nettyLocalAddons.values());
+    }
+    
+    /**
+     * Dumps the interfaces with one dump per interface, on a bounded pool of worker threads.
+     * 
+     * @param ifNames the interface names
+     * @return the interfaces that could be dumped, in the order of their names
+     */
+    private static List<WgInterfaceInfo> dumpInterfaces(List<String> ifNames) {
+        List<WgInterfaceInfo> infos = new ArrayList<>(ifNames.size());
+        if (ifNames.isEmpty()) {
+            return infos;
+        }
+        
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(ifNames.size(), Constants.ADOPTION_WORKER_THREADS), r -> {
+            Thread thread = new Thread(r, "ConnectConfig-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        List<Callable<WgInterfaceInfo>> dumps = new ArrayList<>(ifNames.size());
+        ifNames.forEach(ifName -> dumps.add(() -> Utils.getWgIfByName(ifName)));
+        
+        try {
+            for (Future<WgInterfaceInfo> future : workers.invokeAll(dumps)) {
+                try {
+                    infos.add(future.get());
+                } catch (ExecutionException ex) {
+                    log.info("Unable to dump an interface: " + ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+        
+        return infos;
+    }
+    
+    /**
+     * Creates a tunnel for a peer of an existing interface that is not in the persistence database,
+     * and registers it so that the reaper does not collect the peer as an orphan.
+     */
+    private void adoptPeer(Wg wg, IPVersion ipVersion, WgInterfaceInfo info, WgInterfaceInfo.Peer peer,
+        String localTunnelInetAddr) {
+        if (peer.getAllowedIps().isEmpty()) {
+            return;
+        }
+        
+        // The first allowed IP prefix is the remote tunnel address
+        String allowedIp = StringUtils.substringBefore(peer.getAllowedIps().get(0), ",");
+        
+        PersistenceTunnel tunnel = new PersistenceTunnel();
+        tunnel.setId(UUID.randomUUID());
+        tunnel.setInetType(ipVersion.toString());
+        
+        tunnel.setRemoteEndpointType(Constants.TUNNEL_ENDPOINT_TYPE_CLIENT);
+        if (ipVersion.isIPv6()) {
+            tunnel.setLocalEndpointType(Constants.TUNNEL_ENDPOINT_TYPE_CLIENT);
+            tunnel.setLocalPhysInetComPort(WgConnect.getV6PortNumber());
+        } else {
+            tunnel.setLocalEndpointType(Constants.TUNNEL_ENDPOINT_TYPE_SERVER);
+            tunnel.setLocalPhysInetComPort(WgConnect.getV4PortNumber());
+        }
+        tunnel.setLocalPhysInetListenPort(info.getLocalListenPort());
+        
+        tunnel.setLocalInterfaceName(info.getName());
+        tunnel.setLocalTunnelInetAddr(localTunnelInetAddr);
+        tunnel.setRemoteTunnelInetAddr(StringUtils.substringBefore(allowedIp, WgInterfaceInfo.CIDR_SEPARATOR));
+        
+        tunnel.setLocalPrivateKey(info.getLocalPrivateKey());
+        tunnel.setLocalPublicKey(info.getLocalPublicKey());
+        tunnel.setRemotePublicKey(peer.getPublicKey());
+        
+        tunnel.setKeepalive(NumberUtils.toInt(peer.getKeepAlive(), 0));
+        
+        tunnel.setState(Constants.TUNNEL_STATUS_UP);
+        WgConnect.guiAddTunnel(tunnel);
+        
+        WgInterfaceInfo.Endpoint endpoint = peer.getEndpoint();
+        if (endpoint != null && validator.isValid(endpoint.getAddr())) {
+            tunnel.setRemotePhysInetAddr(endpoint.getAddr());
+            tunnel.setRemotePhysInetListenPort(endpoint.getPort());
+            
+            String localPhysInetAddr = wg.getLocalEndpointByInetAddr(endpoint.getAddr());
+            if (validator.isValid(localPhysInetAddr)) {
+                tunnel.setLocalPhysInetAddr(localPhysInetAddr);
+            }
+        }
+        
+        WgConnect.addTunnel(tunnel);
+    }
+    
+    private static boolean isNone(String value) {
+        return value == null || StringUtils.equals(value, "(none)");
+    }
+    
+    private static String tunnelKey(String localPublicKey, String remotePublicKey) {
+        return localPublicKey + " " + remotePublicKey;
     }
     
     public V4Message buildV4TunnelsInfoRequestMessage(PersistenceTunnel localTunnel, InetSocketAddress remoteSockInetAddr) {
@@ -423,6 +349,9 @@ public class ConnectConfig {
 
         msg.putOption(new LocalTunnelInetAddrOption(localTunnel.getRemoteTunnelInetAddr(), true));
         msg.putOption(new RemoteTunnelInetAddrOption(localTunnel.getLocalTunnelInetAddr(), true));
+        msg.putOption(new TunnelInfoVersionOption(localTunnel.getRemoteInfoVersion(), true));
+        msg.putOption(new TunnelInfoEpochOption(localTunnel.getRemoteInfoEpoch(), true));
+        localTunnel.startInfoReply(msg.getTransactionId());
         
         return msg;
     }
@@ -438,10 +367,123 @@ public class ConnectConfig {
 
         msg.putOption(new LocalTunnelInetAddrOption(tunnel.getRemoteTunnelInetAddr(), false));
         msg.putOption(new RemoteTunnelInetAddrOption(tunnel.getLocalTunnelInetAddr(), false));
+        msg.putOption(new TunnelInfoVersionOption(tunnel.getRemoteInfoVersion(), false));
+        msg.putOption(new TunnelInfoEpochOption(tunnel.getRemoteInfoEpoch(), false));
+        tunnel.startInfoReply(msg.getTransactionId());
         
         return msg;
     }
     
+    /**
+     * Applies one message of a tunnel info reply to the peer tunnels of a tunnel. A tombstone
+     * removes the peer tunnel, any other record replaces it unless it is older than the one
+     * already applied. Only the reply to the last info request is applied, and the highest
+     * version of the reply is kept as the last one seen from the peer once all of its records
+     * have arrived, so a lost message is sent again in the reply to the next request. A reply
+     * from another epoch means the peer restarted, which drops the peer tunnels it reported
+     * before.
+     * 
+     * @param tunnel the tunnel the reply was received through
+     * @param transactionId the transaction id of the reply
+     * @param options the options of the reply message by option code
+     */
+    public void applyTunnelsInfoReply(PersistenceTunnel tunnel, long transactionId, IntFunction<Option> options) {
+        TunnelInfoEpochOption tunnelInfoEpochOption =
+            (TunnelInfoEpochOption) options.apply(Constants.OPTION_TUNNEL_INFO_EPOCH);
+        TunnelInfoCountOption tunnelInfoCountOption =
+            (TunnelInfoCountOption) options.apply(Constants.OPTION_TUNNEL_INFO_COUNT);
+        if (tunnelInfoEpochOption == null || tunnelInfoCountOption == null) {
+            log.info("Ignoring a tunnel info reply without an epoch or record count from " + tunnel.getRemoteTunnelInetAddr());
+            return;
+        }
+        
+        synchronized (tunnel) {
+            PersistenceTunnel.InfoReply reply = tunnel.getInfoReply();
+            if (reply == null || reply.getTransactionId() != transactionId) {
+                log.debug("Ignoring a stale tunnel info reply from " + tunnel.getRemoteTunnelInetAddr());
+                return;
+            }
+            
+            long epoch = tunnelInfoEpochOption.getUnsignedInt();
+            if (epoch != tunnel.getRemoteInfoEpoch()) {
+                tunnel.getPeerTunnels().clear();
+                tunnel.setRemoteInfoVersion(0);
+                tunnel.setRemoteInfoEpoch(epoch);
+            }
+            
+            TunnelIdOption tunnelIdOption = (TunnelIdOption) options.apply(Constants.OPTION_TUNNEL_ID);
+            TunnelInfoVersionOption tunnelInfoVersionOption =
+                (TunnelInfoVersionOption) options.apply(Constants.OPTION_TUNNEL_INFO_VERSION);
+            String id = tunnelIdOption != null ? tunnelIdOption.getString() : null;
+            long version = tunnelInfoVersionOption != null ? tunnelInfoVersionOption.getUnsignedInt() : 0;
+            
+            if (id != null && !applyTunnelInfoRecord(tunnel.getPeerTunnels(), id, version, options)) {
+                return;
+            }
+            
+            if (reply.add(id, version) >= tunnelInfoCountOption.getUnsignedInt()) {
+                if (reply.getVersion() > tunnel.getRemoteInfoVersion()) {
+                    tunnel.setRemoteInfoVersion(reply.getVersion());
+                }
+                tunnel.clearInfoReply();
+            }
+        }
+    }
+    
+    private boolean applyTunnelInfoRecord(Map<String, PersistenceTunnel> peerTunnels, String id, long version,
+        IntFunction<Option> options) {
+        PersistenceTunnel current = peerTunnels.get(id);
+        if (current != null && current.getInfoVersion() >= version) {
+            return true;
+        }
+        
+        if (StringUtils.equals(getString(options, Constants.OPTION_TUNNEL_STATUS), Constants.TUNNEL_STATUS_REMOVED)) {
+            peerTunnels.remove(id);
+            return true;
+        }
+        
+        PersistenceTunnel peerTunnel = new PersistenceTunnel();
+        try {
+            peerTunnel.setId(UUID.fromString(id));
+        } catch (IllegalArgumentException ex) {
+            log.info("Ignoring a tunnel info reply with an invalid tunnel id " + id);
+            return false;
+        }
+        
+        peerTunnel.setState(getString(options, Constants.OPTION_TUNNEL_STATUS));
+        peerTunnel.setRemoteEndpointType(getString(options, Constants.OPTION_REMOTE_ENDPOINT_TYPE));
+        peerTunnel.setLocalEndpointType(getString(options, Constants.OPTION_LOCAL_ENDPOINT_TYPE));
+        peerTunnel.setRemotePhysInetAddr(getIpAddress(options, Constants.OPTION_REMOTE_PHYS_INET_ADDR));
+        peerTunnel.setRemotePhysInetComPort(getUnsignedInt(options, Constants.OPTION_REMOTE_PHYS_INET_COM_PORT));
+        peerTunnel.setLocalPhysInetAddr(getIpAddress(options, Constants.OPTION_LOCAL_PHYS_INET_ADDR));
+        peerTunnel.setLocalPhysInetComPort(getUnsignedInt(options, Constants.OPTION_LOCAL_PHYS_INET_COM_PORT));
+        peerTunnel.setRemoteTunnelInetAddr(getIpAddress(options, Constants.OPTION_REMOTE_TUNNEL_INET_ADDR));
+        peerTunnel.setLocalTunnelInetAddr(getIpAddress(options, Constants.OPTION_LOCAL_TUNNEL_INET_ADDR));
+        peerTunnel.setRemotePublicKey(getString(options, Constants.OPTION_REMOTE_WG_PUBLIC_KEY));
+        peerTunnel.setRemotePhysInetListenPort(getUnsignedInt(options, Constants.OPTION_REMOTE_PHYS_INET_LISTEN_PORT));
+        peerTunnel.setLocalPublicKey(getString(options, Constants.OPTION_LOCAL_WG_PUBLIC_KEY));
+        peerTunnel.setLocalPhysInetListenPort(getUnsignedInt(options, Constants.OPTION_LOCAL_PHYS_INET_LISTEN_PORT));
+        peerTunnel.setInfoVersion(version);
+        
+        peerTunnels.put(id, peerTunnel);
+        return true;
+    }
+    
+    private static String getString(IntFunction<Option> options, int code) {
+        Option option = options.apply(code);
+        return option instanceof BaseStringOption ? ((BaseStringOption) option).getString() : null;
+    }
+    
+    private static String getIpAddress(IntFunction<Option> options, int code) {
+        Option option = options.apply(code);
+        return option instanceof BaseIpAddressOption ? ((BaseIpAddressOption) option).getIpAddress() : null;
+    }
+    
+    private static long getUnsignedInt(IntFunction<Option> options, int code) {
+        Option option = options.apply(code);
+        return option instanceof BaseUnsignedIntOption ? ((BaseUnsignedIntOption) option).getUnsignedInt() : 0;
+    }
+    
     public void updatePersistenceDatabase(PersistenceTunnel tunnel) {
         databaseMgr.updateEntity(tunnel);
     }
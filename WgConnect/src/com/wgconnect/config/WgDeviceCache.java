@@ -0,0 +1,218 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.config;
+
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.Utils;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import com.wgtools.LinkMonitor;
+import com.wgtools.Wg;
+import com.wgtools.WgUapi;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * WgDeviceCache
+ * 
+ * A versioned snapshot of the WgConnect Wireguard devices and their peers, indexed by device name,
+ * interface prefix, peer public key and peer endpoint address. The devices are dumped once per
+ * snapshot. A snapshot is replaced when it is older than its time to live, when a device is changed
+ * through Wg, or when the link monitor reports a change of a WgConnect interface.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class WgDeviceCache {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(WgDeviceCache.class);
+
+    private static WgDeviceCache INSTANCE;
+
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile Snapshot snapshot;
+    private long version;
+
+    /**
+     * An immutable view of the devices at one point in time.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final long generation;
+        private final long invalidation;
+        private final long timestamp;
+
+        private final List<WgInterfaceInfo> devices;
+        private final Map<String, WgInterfaceInfo> byName = new HashMap<>();
+        private final Map<String, List<WgInterfaceInfo>> byPrefix = new HashMap<>();
+        private final Map<String, List<WgInterfaceInfo>> byPeerPublicKey = new HashMap<>();
+        private final Map<String, List<WgInterfaceInfo>> byEndpointAddr = new HashMap<>();
+
+        Snapshot(long version, long generation, long invalidation, List<WgInterfaceInfo> devices) {
+            this.version = version;
+            this.generation = generation;
+            this.invalidation = invalidation;
+            this.timestamp = System.currentTimeMillis();
+            this.devices = Collections.unmodifiableList(devices);
+
+            for (WgInterfaceInfo device : devices) {
+                byName.putIfAbsent(device.getName().toLowerCase(), device);
+                for (IPVersion ipVersion : IPVersion.values()) {
+                    String prefix = Constants.getTunnelInterfacePrefix(ipVersion);
+                    if (device.getName().startsWith(prefix)) {
+                        addIndex(byPrefix, prefix, device);
+                    }
+                }
+                for (WgInterfaceInfo.Peer peer : device.getPeers()) {
+                    addIndex(byPeerPublicKey, peer.getPublicKey(), device);
+                    if (peer.getEndpoint() != null) {
+                        addIndex(byEndpointAddr, peer.getEndpoint().getAddr(), device);
+                    }
+                }
+            }
+        }
+
+        private static void addIndex(Map<String, List<WgInterfaceInfo>> index, String key, WgInterfaceInfo device) {
+            if (key != null) {
+                List<WgInterfaceInfo> list = index.computeIfAbsent(key, k -> new ArrayList<>());
+                if (list.isEmpty() || list.get(list.size() - 1) != device) {
+                    list.add(device);
+                }
+            }
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public List<WgInterfaceInfo> getDevices() {
+            return devices;
+        }
+
+        public WgInterfaceInfo getByName(String name) {
+            return name != null ? byName.get(name.toLowerCase()) : null;
+        }
+
+        /**
+         * Gets the devices with a name prefix, in enumeration order.
+         * 
+         * @param prefix the interface name prefix
+         * @return the devices
+         */
+        public List<WgInterfaceInfo> getByPrefix(String prefix) {
+            List<WgInterfaceInfo> list = byPrefix.get(prefix);
+            if (list != null) {
+                return Collections.unmodifiableList(list);
+            }
+
+            return devices.stream().filter(i -> i.getName().startsWith(prefix)).collect(Collectors.toList());
+        }
+
+        public List<WgInterfaceInfo> getByPeerPublicKey(String publicKey) {
+            return Collections.unmodifiableList(byPeerPublicKey.getOrDefault(publicKey, Collections.emptyList()));
+        }
+
+        public List<WgInterfaceInfo> getByEndpointAddr(String endpointAddr) {
+            return Collections.unmodifiableList(byEndpointAddr.getOrDefault(endpointAddr, Collections.emptyList()));
+        }
+    }
+
+    /**
+     * Gets the single instance of WgDeviceCache.
+     * 
+     * @return single instance of WgDeviceCache
+     */
+    public static synchronized WgDeviceCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new WgDeviceCache();
+        }
+
+        return INSTANCE;
+    }
+
+    private WgDeviceCache() {
+        if (LinkMonitor.start(this::linkChanged) != null) {
+            log.info("Device cache refreshed on the link notifications");
+        }
+    }
+
+    /**
+     * Gets the current snapshot, dumping the devices again if it is stale.
+     * 
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (isFresh(current)) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = snapshot;
+            if (!isFresh(current)) {
+                long generation = Wg.getConfigGeneration();
+                long invalidation = invalidations.get();
+                
+                // The served userspace devices are listed again with the snapshot
+                WgUapi.invalidate();
+
+                List<WgInterfaceInfo> devices = new ArrayList<>();
+                devices.addAll(Utils.getAllV4WgNetIfs());
+                devices.addAll(Utils.getAllV6WgNetIfs());
+
+                current = new Snapshot(++version, generation, invalidation, devices);
+                snapshot = current;
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Forces the next lookup to dump the devices again.
+     */
+    public void invalidate() {
+        invalidations.incrementAndGet();
+    }
+
+    private boolean isFresh(Snapshot current) {
+        return current != null &&
+            current.generation == Wg.getConfigGeneration() &&
+            current.invalidation == invalidations.get() &&
+            System.currentTimeMillis() - current.timestamp < Constants.WG_DEVICE_CACHE_TTL;
+    }
+
+    private void linkChanged(String ifName) {
+        if (ifName == null ||
+            ifName.startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV4)) ||
+            ifName.startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV6))) {
+            invalidate();
+        }
+    }
+}
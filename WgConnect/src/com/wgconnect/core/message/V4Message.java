@@ -104,6 +104,30 @@ public class V4Message implements Message {
         log.setDebugEnabled(false);
     }
 
+    /**
+     * Copy this V4Message for a different local and remote address. The options are shared.
+     *
+     * @param localAddress  InetSocketAddress on the local host on which the copy is received or sent
+     * @param remoteAddress InetSocketAddress on the remote host on which the copy is sent or received
+     * @return the copied V4Message
+     */
+    public V4Message copy(InetSocketAddress localAddress, InetSocketAddress remoteAddress) {
+        V4Message message = new V4Message(localAddress, remoteAddress);
+        message.unicast = unicast;
+        message.op = op;
+        message.htype = htype;
+        message.padding1 = padding1;
+        message.padding2 = padding2;
+        message.transactionId = transactionId;
+        message.clientAddr = clientAddr;
+        message.clientPort = clientPort;
+        message.serverAddr = serverAddr;
+        message.serverPort = serverPort;
+        message.options.putAll(options);
+
+        return message;
+    }
+
     public void setUnicast(boolean unicast) {
         this.unicast = unicast;
     }
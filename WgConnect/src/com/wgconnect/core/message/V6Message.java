@@ -119,6 +119,28 @@ public class V6Message implements Message {
         this.remoteAddress = remoteAddress;
     }
 
+    /**
+     * Copy this V6Message for a different local and remote address. The options are shared.
+     * 
+     * @param localAddress  InetSocketAddress on the local host on which
+     *                      the copy is received or sent
+     * @param remoteAddress InetSocketAddress on the remote host on which
+     *                      the copy is sent or received
+     * @return the copied V6Message
+     */
+    public V6Message copy(InetSocketAddress localAddress, InetSocketAddress remoteAddress) {
+        V6Message message = new V6Message(localAddress, remoteAddress);
+        message.unicast = unicast;
+        message.messageType = messageType;
+        message.padding1 = padding1;
+        message.padding2 = padding2;
+        message.padding3 = padding3;
+        message.transactionId = transactionId;
+        message.options.putAll(options);
+
+        return message;
+    }
+
     /**
      * Set the unicast flag for this message.
      * 
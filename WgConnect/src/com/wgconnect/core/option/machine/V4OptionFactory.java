@@ -140,6 +140,22 @@ public class V4OptionFactory {
                 option = new TunnelNetworkOption(true);
                 break;
                 
+            case Constants.OPTION_TUNNEL_INFO_VERSION:
+                option = new TunnelInfoVersionOption(true);
+                break;
+                
+            case Constants.OPTION_TUNNEL_INFO_EPOCH:
+                option = new TunnelInfoEpochOption(true);
+                break;
+                
+            case Constants.OPTION_TUNNEL_INFO_COUNT:
+                option = new TunnelInfoCountOption(true);
+                break;
+                
+            case Constants.OPTION_COOKIE:
+                option = new CookieOption(true);
+                break;
+                
             case Constants.OPTION_EOF:
                 break;
                 
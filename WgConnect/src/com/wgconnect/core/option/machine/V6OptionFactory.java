@@ -138,6 +138,22 @@ public class V6OptionFactory {
                 option = new TunnelNetworkOption(false);
                 break;
                 
+            case Constants.OPTION_TUNNEL_INFO_VERSION:
+                option = new TunnelInfoVersionOption(false);
+                break;
+                
+            case Constants.OPTION_TUNNEL_INFO_EPOCH:
+                option = new TunnelInfoEpochOption(false);
+                break;
+                
+            case Constants.OPTION_TUNNEL_INFO_COUNT:
+                option = new TunnelInfoCountOption(false);
+                break;
+                
+            case Constants.OPTION_COOKIE:
+                option = new CookieOption(false);
+                break;
+                
             default:
                 // Unknown option code, build an opaque option to hold it
                 UnknownOption unknownOption = new UnknownOption();
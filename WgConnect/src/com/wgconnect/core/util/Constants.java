@@ -50,10 +50,85 @@ public class Constants {
     public static String HOME = "/opt/wgconnect";
 	
     // Generic machine channel definitions
-    public static final int MAX_CHANNEL_THREADS = 32;
     public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 51200;
     public static final int DEFAULT_SEND_BUFFER_SIZE    = 51200;
     
+    // Machine channel transports
+    public static final String TRANSPORT_NETTY = "netty";
+    public static final String TRANSPORT_REUSEPORT = "reuseport";
+    public static final int REUSEPORT_MAX_DATAGRAM_SIZE = 65535;  // in bytes
+    public static final int REUSEPORT_SEND_BATCH_SIZE = 64;       // datagrams
+    
+    // Multicast receiver definitions
+    public static final int MCAST_RECEIVE_BUFFER_SIZE = 4096;     // in bytes
+    public static final int MCAST_RECEIVE_BATCH_SIZE = 32;        // datagrams
+    
+    // Multicast sender definitions
+    public static final int MCAST_SEND_TICK = 100;                // in milliseconds
+    public static final int MCAST_SEND_TTL = 1;
+    public static final boolean MCAST_SEND_LOOP = false;
+    
+    // Shared machine channel worker pool definitions
+    public static final long WORKER_POOL_MAX_CHANNEL_MEMORY = 1048576;  // in bytes
+    public static final long WORKER_POOL_MAX_TOTAL_MEMORY = 16777216;   // in bytes
+    public static final long WORKER_POOL_KEEP_ALIVE_TIME = 30;          // in seconds
+    public static final int WORKER_POOL_LANES_PER_THREAD = 16;
+    
+    // Peer configuration batch definitions
+    public static final long PEER_BATCH_INTERVAL = 20;          // in milliseconds
+    public static final int PEER_BATCH_SIZE = 256;              // peers per interface
+    public static final long PEER_BATCH_APPLY_TIMEOUT = 10000;  // in milliseconds
+    
+    // Wireguard key pool definitions
+    public static final int KEY_POOL_DEPTH = 32;                // key sets
+    
+    // Peer packing definitions
+    public static final int PEERS_PER_INTERFACE = 0;            // 0 for no limit
+    
+    // Warm interface pool definitions
+    public static final int WARM_INTERFACE_POOL_SIZE = 0;       // spare interfaces per IP version
+    
+    // Tunnel reaper definitions
+    public static final long REAPER_INTERVAL = 30000;           // in milliseconds
+    public static final long REAPER_GRACE_TIME = 300;           // in seconds
+    public static final long REAPER_HANDSHAKE_TIMEOUT = 0;      // in seconds, 0 to keep the tunnels with old handshakes
+    public static final long REAPER_TEARDOWN_TIMEOUT = 5000;    // in milliseconds
+    public static final int REAPER_BATCH_SIZE = 256;            // tunnels per pass
+    
+    // Tunnel reconciler definitions
+    public static final long RECONCILE_INTERVAL = 60000;        // in milliseconds
+    public static final long RECONCILE_DEBOUNCE = 500;          // in milliseconds, to coalesce a burst of new tunnels
+    
+    // Wireguard device snapshot cache definitions
+    public static final long WG_DEVICE_CACHE_TTL = 5000;        // in milliseconds
+    
+    // Tunnel statistics collector definitions
+    public static final long STATS_TICK = 1000;                 // in milliseconds
+    public static final long STATS_ACTIVE_INTERVAL = 5000;      // in milliseconds
+    public static final long STATS_IDLE_INTERVAL = 60000;       // in milliseconds
+    public static final int STATS_WORKER_THREADS = 4;
+    
+    // Startup adoption definitions
+    public static final int ADOPTION_WORKER_THREADS = 8;        // interfaces dumped in parallel
+    
+    // Discover/Solicit cookie challenge definitions
+    public static final int COOKIE_LOAD_THRESHOLD = 8;          // pending server machines
+    public static final int COOKIE_SECRET_ROTATION_TIME = 120;  // in seconds
+    public static final int COOKIE_LENGTH = 16;                 // in bytes
+    public static final int MAX_COOKIE_RETRIES = 3;
+    
+    // Control port rate limiter definitions: per source prefix token buckets
+    public static final int RATE_LIMIT_UNICAST_RATE = 50;       // packets per second
+    public static final int RATE_LIMIT_UNICAST_BURST = 100;     // packets
+    public static final int RATE_LIMIT_MULTICAST_RATE = 5;      // packets per second
+    public static final int RATE_LIMIT_MULTICAST_BURST = 10;    // packets
+    public static final int RATE_LIMIT_V4_PREFIX_LEN = 32;
+    public static final int RATE_LIMIT_V6_PREFIX_LEN = 64;
+    public static final int RATE_LIMIT_IDLE_TIME = 60;          // in seconds
+    public static final int RATE_LIMIT_STRIPES = 256;           // power of two
+    public static final int RATE_LIMIT_STRIPE_SLOTS = 32;
+    public static final long RATE_LIMIT_LOG_INTERVAL = 60000;   // in milliseconds
+    
     // Generic Cryptography definitions
     public static String GENERIC_CRYPTO_ALGORITHM = "RSA";
     public static int GENERIC_CRYPTO_KEYSIZE = 2048;
@@ -85,7 +160,7 @@ public class Constants {
     public static final int V6_SUBNET_MASK_80 = IPv6Address.BITS_PER_SEGMENT * 5;
     public static final int V6_SUBNET_MASK_96 = IPv6Address.BITS_PER_SEGMENT * 6;
     public static final int V6_SUBNET_MASK_112 = IPv6Address.BITS_PER_SEGMENT * 7;
-    public static final int V6_SUBNET_MASK_128 = IPv4Address.BITS_PER_SEGMENT * 8;
+    public static final int V6_SUBNET_MASK_128 = IPv6Address.BITS_PER_SEGMENT * 8;
     
     public static final String V4_TUNNEL_STATUS_DISCOVER = "Discover";
     public static final String V4_TUNNEL_STATUS_OFFER = "Offer";
@@ -103,6 +178,12 @@ public class Constants {
     public static final String TUNNEL_STATUS_PEER_CONFIG_ERROR = "Peer Config Error";
     public static final String TUNNEL_STATUS_UP = "Up";
     public static final String TUNNEL_STATUS_DOWN = "Down";
+    public static final String TUNNEL_STATUS_TEARDOWN = "Teardown";
+    public static final String TUNNEL_STATUS_REMOVED = "Removed";
+    
+    // Tunnel info sync: the number of removed tunnel tombstones retained for delta replies
+    public static final int MAX_TUNNEL_INFO_TOMBSTONES = 1024;
+    public static final long TUNNEL_INFO_SYNC_INTERVAL = 60000;    // in milliseconds
     
     private static final String TUNNEL_IF_BASE_NAME_LINUX = "wgconnect";
     private static final String TUNNEL_V4_IF_NAME_PREFIX_LINUX = "v4" + TUNNEL_IF_BASE_NAME_LINUX;
@@ -238,6 +319,13 @@ public class Constants {
     
     public static final int OPTION_TUNNEL_NETWORK = 180;
     
+    public static final int OPTION_TUNNEL_INFO_VERSION = 181;
+    
+    public static final int OPTION_COOKIE = 182;
+    
+    public static final int OPTION_TUNNEL_INFO_EPOCH = 183;
+    public static final int OPTION_TUNNEL_INFO_COUNT = 184;
+    
     public static final int OPTION_EOF = 255;
 
     // Generic responses
@@ -265,7 +353,12 @@ public class Constants {
     public static final short V6_MESSAGE_TYPE_INFO_REQUEST = 9;
     public static final short V6_MESSAGE_TYPE_INFO_REQUEST_REPLY = 10;
     
-    public static final short V6_MESSAGE_TYPE_END = 11;
+    public static final short V6_MESSAGE_TYPE_COOKIE_REPLY = 11;
+    
+    public static final short V6_MESSAGE_TYPE_TEARDOWN = 12;
+    public static final short V6_MESSAGE_TYPE_TEARDOWN_REPLY = 13;
+    
+    public static final short V6_MESSAGE_TYPE_END = 14;
     
     public static final String[] V6_MESSAGE_STRING = {
         "Server",
@@ -281,6 +374,11 @@ public class Constants {
         
         "Info Request",
         "Info Request Reply",
+        
+        "Cookie Reply",
+        
+        "Teardown",
+        "Teardown Reply",
     };
     
     /**
@@ -336,8 +434,13 @@ public class Constants {
     
     public static final int V4_MESSAGE_TYPE_INFO_REQUEST = 109;
     public static final int V4_MESSAGE_TYPE_INFO_REQUEST_REPLY = 110;
+    
+    public static final int V4_MESSAGE_TYPE_COOKIE_REPLY = 111;
+    
+    public static final int V4_MESSAGE_TYPE_TEARDOWN = 112;
+    public static final int V4_MESSAGE_TYPE_TEARDOWN_REPLY = 113;
 
-    public static final int V4_MESSAGE_TYPE_END = 111;
+    public static final int V4_MESSAGE_TYPE_END = 114;
     
     public static final String[] V4_MESSAGE_STRING = {
         "Server",
@@ -353,6 +456,11 @@ public class Constants {
                 
         "Info Request",
         "Info Request Reply",
+        
+        "Cookie Reply",
+        
+        "Teardown",
+        "Teardown Reply",
     };
     
     /**
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.core.util;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * InterfaceNameAllocator
+ *
+ * Allocates the numbered names of the WgConnect interfaces. The numbers in use under each prefix are
+ * tracked in a bitmap, seeded once from the existing devices, with a hint at the lowest free number,
+ * so a name is allocated without rescanning the devices and is never handed out twice.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class InterfaceNameAllocator {
+
+    private static InterfaceNameAllocator INSTANCE;
+
+    private final Map<String, Names> names = new HashMap<>();
+
+    private static class Names {
+        final BitSet used = new BitSet();
+        int lowestFree = 0;
+    }
+
+    /**
+     * Gets the single instance of InterfaceNameAllocator.
+     *
+     * @return single instance of InterfaceNameAllocator
+     */
+    public static synchronized InterfaceNameAllocator getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new InterfaceNameAllocator();
+        }
+
+        return INSTANCE;
+    }
+
+    private InterfaceNameAllocator() {}
+
+    /**
+     * Allocates the lowest free interface name under a prefix.
+     *
+     * @param ifPrefix the interface name prefix
+     * @return the interface name
+     */
+    public synchronized String allocate(String ifPrefix) {
+        Names prefixNames = getNames(ifPrefix);
+
+        int num = prefixNames.used.nextClearBit(prefixNames.lowestFree);
+        // Skip a name that was taken outside of WgConnect since the bitmap was seeded
+        while (Utils.isWgConnectInterface(ifPrefix + num)) {
+            prefixNames.used.set(num);
+            num = prefixNames.used.nextClearBit(num + 1);
+        }
+
+        prefixNames.used.set(num);
+        prefixNames.lowestFree = num + 1;
+
+        return ifPrefix + num;
+    }
+
+    /**
+     * Marks an existing interface name as in use.
+     *
+     * @param ifPrefix the interface name prefix
+     * @param ifName the interface name
+     */
+    public synchronized void reserve(String ifPrefix, String ifName) {
+        int num = getNumber(ifPrefix, ifName);
+        if (num >= 0) {
+            getNames(ifPrefix).used.set(num);
+        }
+    }
+
+    /**
+     * Frees the name of a deleted interface.
+     *
+     * @param ifPrefix the interface name prefix
+     * @param ifName the interface name
+     */
+    public synchronized void release(String ifPrefix, String ifName) {
+        int num = getNumber(ifPrefix, ifName);
+        if (num >= 0) {
+            Names prefixNames = getNames(ifPrefix);
+            prefixNames.used.clear(num);
+            prefixNames.lowestFree = Math.min(prefixNames.lowestFree, num);
+        }
+    }
+
+    private Names getNames(String ifPrefix) {
+        Names prefixNames = names.get(ifPrefix);
+        if (prefixNames == null) {
+            prefixNames = new Names();
+            for (String ifName : Utils.getAllExistingNetIfsByPrefix(ifPrefix)) {
+                int num = getNumber(ifPrefix, ifName);
+                if (num >= 0) {
+                    prefixNames.used.set(num);
+                }
+            }
+            names.put(ifPrefix, prefixNames);
+        }
+
+        return prefixNames;
+    }
+
+    private static int getNumber(String ifPrefix, String ifName) {
+        String numStr = StringUtils.removeStart(ifName, ifPrefix);
+        if (ifName == null || !ifName.startsWith(ifPrefix) || !StringUtils.isNumeric(numStr) || numStr.length() > 9) {
+            return -1;
+        }
+
+        return Integer.parseInt(numStr);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.core.util;
+
+/**
+ * PrefixTrie
+ *
+ * A binary trie of address prefixes. A lookup walks at most one node per address bit.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class PrefixTrie {
+
+    private static final class Node {
+        Node zero;
+        Node one;
+        boolean terminal;
+    }
+
+    private final Node root = new Node();
+    private int size = 0;
+
+    /**
+     * Adds a prefix to the trie.
+     *
+     * @param addr the prefix address bytes
+     * @param prefixLen the prefix length in bits
+     */
+    public synchronized void add(byte[] addr, int prefixLen) {
+        prefixLen = Math.max(0, Math.min(prefixLen, addr.length * Byte.SIZE));
+
+        Node node = root;
+        for (int i = 0; i < prefixLen; i++) {
+            if (getBit(addr, i)) {
+                if (node.one == null) {
+                    node.one = new Node();
+                }
+                node = node.one;
+            } else {
+                if (node.zero == null) {
+                    node.zero = new Node();
+                }
+                node = node.zero;
+            }
+        }
+
+        if (!node.terminal) {
+            node.terminal = true;
+            size++;
+        }
+    }
+
+    /**
+     * Checks if the address is covered by any prefix in the trie.
+     *
+     * @param addr the address bytes
+     * @return true if a prefix matches the address
+     */
+    public boolean matches(byte[] addr) {
+        Node node = root;
+        int bits = addr.length * Byte.SIZE;
+
+        for (int i = 0; node != null; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i == bits) {
+                break;
+            }
+            node = getBit(addr, i) ? node.one : node.zero;
+        }
+
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean getBit(byte[] addr, int bit) {
+        return (addr[bit / Byte.SIZE] & (0x80 >>> (bit % Byte.SIZE))) != 0;
+    }
+}
@@ -17,8 +17,10 @@
  */
 package com.wgconnect.core.util;
 
+import com.wgconnect.config.WgDeviceCache;
 import com.wgconnect.config.WgInterfaceInfo;
 
+import com.wgtools.LinkEnumerator;
 import com.wgtools.Wg;
 
 import inet.ipaddr.IPAddress.IPVersion;
@@ -32,7 +34,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
-import java.net.SocketException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -353,14 +354,12 @@ public class Utils {
     public static String generateIfName(String ifPrefix) {
         long availableNumber = 1;
         
-        for (WgInterfaceInfo netIf : getAllWgNetIfs()) {
-            if (netIf.getName().startsWith(ifPrefix)) {
-                String numStr = StringUtils.removeStart(netIf.getName(), ifPrefix);
-                if (StringUtils.isNumeric(numStr)) {
-                    long ifNum = Long.parseLong(numStr);
-                    if (ifNum >= availableNumber) {
-                        availableNumber = ifNum + 1;
-                    }
+        for (WgInterfaceInfo netIf : getWgDevices().getByPrefix(ifPrefix)) {
+            String numStr = StringUtils.removeStart(netIf.getName(), ifPrefix);
+            if (StringUtils.isNumeric(numStr)) {
+                long ifNum = Long.parseLong(numStr);
+                if (ifNum >= availableNumber) {
+                    availableNumber = ifNum + 1;
                 }
             }
         }
@@ -370,20 +369,14 @@ public class Utils {
     
     public static boolean isWgConnectInterface(String ifName) {
         // Find any existing wg interface with the given name
-        return getAllWgNetIfs()
-            .stream()
-            .anyMatch(i -> i.getName().equalsIgnoreCase(ifName));
+        return getWgDevices().getByName(ifName) != null;
     }
     
     public static String getWgConnectIfByPrefixAndRemotePublicKey(String ifPrefix, String remotePublicKey) {
         String ifName = null;
-        for (WgInterfaceInfo netIf : getAllWgNetIfs()) {
+        for (WgInterfaceInfo netIf : getWgDevices().getByPeerPublicKey(remotePublicKey)) {
             if (netIf.getName().startsWith(ifPrefix)) {
-                for (WgInterfaceInfo.Peer peer : netIf.getPeers()) {
-                    if (StringUtils.equals(peer.getPublicKey(), remotePublicKey)) {
-                        ifName = netIf.getName();
-                    }
-                }
+                ifName = netIf.getName();
             }
         }
         
@@ -392,14 +385,9 @@ public class Utils {
     
     public static String getWgConnectIfByPrefixAndEndpointAddr(String ifPrefix, String endpointAddr) {
         String ifName = null;
-        for (WgInterfaceInfo netIf : getAllWgNetIfs()) {
+        for (WgInterfaceInfo netIf : getWgDevices().getByEndpointAddr(endpointAddr)) {
             if (netIf.getName().startsWith(ifPrefix)) {
-                for (WgInterfaceInfo.Peer peer : netIf.getPeers()) {
-                    if (StringUtils.equals(peer.getEndpoint().getAddr(), endpointAddr)) {
-                        ifName = netIf.getName();
-                        break;
-                    }
-                }
+                ifName = netIf.getName();
             }
         }
         
@@ -407,51 +395,22 @@ public class Utils {
     }
     
     public static String getAnyExistingWgConnectIfByPrefix(String ifPrefix) {
-        WgInterfaceInfo netIf = getAllWgNetIfs()
-            .stream()
-            .filter(i -> i.getName().startsWith(ifPrefix)) 
-            .findFirst()
-            .orElse(null);
+        List<WgInterfaceInfo> netIfs = getWgDevices().getByPrefix(ifPrefix);
         
-        return netIf != null ? netIf.getName() : null;
+        return !netIfs.isEmpty() ? netIfs.get(0).getName() : null;
     }
     
     public static List<String> getAllExistingNetIfsByPrefix(String ifPrefix) {
         // Find all existing interface with the given prefix
-        List<String> ifNames = new ArrayList<>();
-        getAllWgNetIfs()
+        return getWgDevices().getByPrefix(ifPrefix)
             .stream()
-            .filter(i -> i.getName().startsWith(ifPrefix))
-            .forEachOrdered(i -> ifNames.add(i.getName()));
-        
-        return ifNames.stream().sorted().collect(Collectors.toList());
-
-    }
-    
-    public static String getNextAvailableNetIfName(String ifPrefix, long currentIfaceNum) {
-        // Look for an available interface from the existing wg interfaces, if any
-        for (WgInterfaceInfo netIf : getAllWgNetIfs()) {
-            if (netIf.getName().startsWith(ifPrefix)) {
-                String numStr = StringUtils.removeStart(netIf.getName(), ifPrefix);
-                if (StringUtils.isNumeric(numStr)) {
-                    if (Long.parseLong(numStr) > currentIfaceNum) {
-                        currentIfaceNum = Long.parseLong(numStr);
-                        break;
-                    }
-                }
-            }
-        }
-
-        // Generate a new wg interface name
-        return String.format("%s%d", ifPrefix, currentIfaceNum + 1);
+            .map(WgInterfaceInfo::getName)
+            .sorted()
+            .collect(Collectors.toList());
     }
     
     public static WgInterfaceInfo getWgNetIfByName(String netIfName) {
-        return getAllWgNetIfs()
-            .stream()
-            .filter(i -> i.getName().equalsIgnoreCase(netIfName)) 
-            .findFirst()
-            .orElse(null);
+        return getWgDevices().getByName(netIfName);
     }
     
     public static WgInterfaceInfo getWgIfByName(String wgIfName) {
@@ -461,13 +420,11 @@ public class Utils {
     public static WgInterfaceInfo getWgNetIfByExclusion(String ifPrefix, String remoteInetAddr) {
         // Look for an available existing interface that excludes the given remoteInetAddr
         WgInterfaceInfo wgNetIf = null;
-        for (WgInterfaceInfo netIf : getAllWgNetIfs()) {
-            if (netIf.getName().startsWith(ifPrefix)) {
-                for (WgInterfaceInfo.Peer peer : netIf.getPeers()) {
-                    if (!StringUtils.equals(peer.getEndpoint().getAddr(), remoteInetAddr)) {
-                        wgNetIf = netIf;
-                        break;
-                    }
+        for (WgInterfaceInfo netIf : getWgDevices().getByPrefix(ifPrefix)) {
+            for (WgInterfaceInfo.Peer peer : netIf.getPeers()) {
+                if (!StringUtils.equals(peer.getEndpoint().getAddr(), remoteInetAddr)) {
+                    wgNetIf = netIf;
+                    break;
                 }
             }
         }
@@ -477,14 +434,9 @@ public class Utils {
     
     public static WgInterfaceInfo getWgNetIfByLocalAndRemotePublicKeys(String localPublicKey, String remotePublicKey) {
         WgInterfaceInfo wgNetIf = null;
-        for (WgInterfaceInfo netIf : getAllWgNetIfs()) {
+        for (WgInterfaceInfo netIf : getWgDevices().getByPeerPublicKey(remotePublicKey)) {
             if (StringUtils.equals(netIf.getLocalPublicKey(), localPublicKey)) {
-                for (WgInterfaceInfo.Peer peer : netIf.getPeers()) {
-                    if (StringUtils.equals(peer.getPublicKey(), remotePublicKey)) {
-                        wgNetIf = netIf;
-                        break;
-                    }
-                }
+                wgNetIf = netIf;
             }
         }
        
@@ -494,17 +446,8 @@ public class Utils {
     public static List<WgInterfaceInfo> getAllV6WgNetIfs() {
         Wg wg = new Wg();
         List<WgInterfaceInfo> wgNetIfs = new ArrayList<>();
-        try {
-            Enumeration<NetworkInterface> netIfs = NetworkInterface.getNetworkInterfaces();
-            while (netIfs.hasMoreElements()) {
-                NetworkInterface netIf = netIfs.nextElement();
-                if (netIf.getDisplayName().startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV6))) {
-                    List<String> netIfDump = wg.getInterfaceDump(netIf.getDisplayName());
-                    wgNetIfs.add(new WgInterfaceInfo(netIf.getDisplayName()).parse(netIfDump));
-                }
-            }
-        } catch (SocketException ex) {
-            log.error("SocketException: " + ex);
+        for (String ifName : LinkEnumerator.getLinkNames(Constants.getTunnelInterfacePrefix(IPVersion.IPV6))) {
+            wgNetIfs.add(new WgInterfaceInfo(ifName).parse(wg.getInterfaceDump(ifName)));
         }
         
         return wgNetIfs;
@@ -513,28 +456,19 @@ public class Utils {
     public static List<WgInterfaceInfo> getAllV4WgNetIfs() {
         Wg wg = new Wg();
         List<WgInterfaceInfo> wgNetIfs = new ArrayList<>();
-        try {
-            Enumeration<NetworkInterface> netIfs = NetworkInterface.getNetworkInterfaces();
-            while (netIfs.hasMoreElements()) {
-                NetworkInterface netIf = netIfs.nextElement();
-                if (netIf.getDisplayName().startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV4))) {
-                    List<String> netIfDump = wg.getInterfaceDump(netIf.getDisplayName());
-                    wgNetIfs.add(new WgInterfaceInfo(netIf.getDisplayName()).parse(netIfDump));
-                }
-            }
-        } catch (SocketException ex) {
-            log.error("SocketException: " + ex);
+        for (String ifName : LinkEnumerator.getLinkNames(Constants.getTunnelInterfacePrefix(IPVersion.IPV4))) {
+            wgNetIfs.add(new WgInterfaceInfo(ifName).parse(wg.getInterfaceDump(ifName)));
         }
         
         return wgNetIfs;
     }
     
     public static List<WgInterfaceInfo> getAllWgNetIfs() {
-        List<WgInterfaceInfo> wgNetIfs = new ArrayList<>();
-        wgNetIfs.addAll(getAllV4WgNetIfs());
-        wgNetIfs.addAll(getAllV6WgNetIfs());
-        
-        return wgNetIfs;
+        return getWgDevices().getDevices();
+    }
+    
+    private static WgDeviceCache.Snapshot getWgDevices() {
+        return WgDeviceCache.getInstance().getSnapshot();
     }
     
     public static boolean isMulticastAddress(String addrStr) {
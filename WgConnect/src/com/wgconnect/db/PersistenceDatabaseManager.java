@@ -41,6 +41,8 @@ public interface PersistenceDatabaseManager {
     public void insertEntity(Object entity);
     
     public void updateEntity(Object entity);
+    
+    public void deleteEntity(Object entity);
   
     public Properties getProperties();
     
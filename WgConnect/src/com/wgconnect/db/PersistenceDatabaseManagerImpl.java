@@ -70,6 +70,9 @@ public class PersistenceDatabaseManagerImpl implements PersistenceDatabaseManage
     @Override
     public void updateEntity(Object entity) {}
 
+    @Override
+    public void deleteEntity(Object entity) {}
+
     @Override
     public Properties getProperties() {
         return properties;
@@ -108,6 +108,13 @@ public class PersistenceDatabaseManagerH2 implements PersistenceDatabaseManager
         entityManager.getTransaction().commit();
     }
 
+    @Override
+    public void deleteEntity(Object entity) {
+        entityManager.getTransaction().begin();
+        entityManager.remove(entityManager.contains(entity) ? entity : entityManager.merge(entity));
+        entityManager.getTransaction().commit();
+    }
+
     @Override
     public String getJdbcDriver() {
         return JDBC_DRIVER;
@@ -24,11 +24,19 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.NamedQuery;
 import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
 
 import java.io.Serializable;
 import java.net.InetSocketAddress;
 import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -106,10 +114,29 @@ public class PersistenceTunnel implements Serializable {
     private String state;
     
     private boolean isConfigured;
+    
+    // Runtime tunnel info sync state: not persisted
+    @Transient
+    private long infoVersion = 0;
+    @Transient
+    private long remoteInfoVersion = 0;
+    @Transient
+    private long remoteInfoEpoch = 0;
+    @Transient
+    private InfoReply infoReply;
+    @Transient
+    private final Map<String, PersistenceTunnel> peerTunnels = new ConcurrentHashMap<>();
+    
+    // The source of the tunnel info versions, shared by all of the tunnels
+    private static final AtomicLong infoVersions = new AtomicLong();
+    
+    // The versions restart with every run, so they are only comparable within the same epoch
+    private static final long INFO_EPOCH = ThreadLocalRandom.current().nextLong(1, 0x100000000L);
         
     public PersistenceTunnel() {}
 
     public void setId(UUID id) {
+        infoChanged(this.id, id);
         this.id = id;
     }
     
@@ -134,6 +161,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setRemoteEndpointType(String type) {
+        infoChanged(remoteEndpointType, type);
         remoteEndpointType = type;
     }
     
@@ -142,6 +170,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setLocalEndpointType(String type) {
+        infoChanged(localEndpointType, type);
         localEndpointType = type;
     }
     
@@ -150,12 +179,14 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setLocalPhysInetAddr(String addr) {
+        String previous = localPhysInetAddr;
         String[] addrArray = StringUtils.split(addr, V6_INTERFACE_SUFFIX_DELIMITER);
         if (addrArray != null) {
             localPhysInetAddr = addrArray[0];
         } else {
             localPhysInetAddr = addr;            
         }
+        infoChanged(previous, localPhysInetAddr);
     }
     
     public String getLocalPhysInetAddr() {
@@ -163,6 +194,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setLocalPhysInetListenPort(long port) {
+        infoChanged(localPhysInetListenPort, port);
         localPhysInetListenPort = port;
     }
     
@@ -171,6 +203,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setLocalPhysInetComPort(long port) {
+        infoChanged(localPhysInetComPort, port);
         localPhysInetComPort = port;
     }
     
@@ -179,12 +212,14 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setRemotePhysInetAddr(String addr) {
+        String previous = remotePhysInetAddr;
         String[] addrArray = StringUtils.split(addr, V6_INTERFACE_SUFFIX_DELIMITER);
         if (addrArray != null) {
             remotePhysInetAddr = addrArray[0];
         } else {
             remotePhysInetAddr = addr;            
         }
+        infoChanged(previous, remotePhysInetAddr);
     }
     
     public String getRemotePhysInetAddr() {
@@ -192,6 +227,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setRemotePhysInetListenPort(long port) {
+        infoChanged(remotePhysInetListenPort, port);
         remotePhysInetListenPort = port;
     }
     
@@ -200,6 +236,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setRemotePhysInetComPort(long port) {
+        infoChanged(remotePhysInetComPort, port);
         remotePhysInetComPort = port;
     }
     
@@ -208,6 +245,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setLocalTunnelInetAddr(String addr) {
+        infoChanged(localTunnelInetAddr, addr);
         localTunnelInetAddr = addr;
     }
     
@@ -224,6 +262,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setRemoteTunnelInetAddr(String addr) {
+        infoChanged(remoteTunnelInetAddr, addr);
         remoteTunnelInetAddr = addr;
     }
     
@@ -272,6 +311,7 @@ public class PersistenceTunnel implements Serializable {
     }
     
     public void setLocalPublicKey(String key) {
+        infoChanged(localPublicKey, key);
         localPublicKey = key;
     }
     
@@ -280,6 +320,7 @@ public class PersistenceTunnel implements Serializable {
     }
    
     public void setRemotePublicKey(String key) {
+        infoChanged(remotePublicKey, key);
         remotePublicKey = key;
     }
     
@@ -352,6 +393,7 @@ public class PersistenceTunnel implements Serializable {
     }
 
     public void setState(String value) {
+        infoChanged(state, value);
         state = value;
     }
     
@@ -367,6 +409,81 @@ public class PersistenceTunnel implements Serializable {
         return isConfigured;
     }
     
+    public void setInfoVersion(long version) {
+        infoVersion = version;
+    }
+    
+    public long getInfoVersion() {
+        return infoVersion;
+    }
+    
+    public void setRemoteInfoVersion(long version) {
+        remoteInfoVersion = version;
+    }
+    
+    public long getRemoteInfoVersion() {
+        return remoteInfoVersion;
+    }
+    
+    public void setRemoteInfoEpoch(long epoch) {
+        remoteInfoEpoch = epoch;
+    }
+    
+    public long getRemoteInfoEpoch() {
+        return remoteInfoEpoch;
+    }
+    
+    /**
+     * Starts tracking the reply to a tunnel info request. Only the reply to the last request
+     * sent is tracked, so the records of an older reply are not counted.
+     * 
+     * @param transactionId the transaction id of the request
+     * @return the reply state
+     */
+    public synchronized InfoReply startInfoReply(long transactionId) {
+        infoReply = new InfoReply(transactionId);
+        return infoReply;
+    }
+    
+    public synchronized InfoReply getInfoReply() {
+        return infoReply;
+    }
+    
+    public synchronized void clearInfoReply() {
+        infoReply = null;
+    }
+    
+    /**
+     * Gets the tunnels of the peer, as last reported in its tunnel info replies, by tunnel id.
+     * 
+     * @return the peer tunnels
+     */
+    public Map<String, PersistenceTunnel> getPeerTunnels() {
+        return peerTunnels;
+    }
+    
+    public static long nextInfoVersion() {
+        return infoVersions.incrementAndGet();
+    }
+    
+    public static long getLastInfoVersion() {
+        return infoVersions.get();
+    }
+    
+    public static long getInfoEpoch() {
+        return INFO_EPOCH;
+    }
+    
+    /**
+     * Assigns the next tunnel info version when a field that is sent in a tunnel info reply
+     * changes, so that the version is kept current on the write path.
+     */
+    private void infoChanged(Object previous, Object value) {
+        if (!Objects.equals(previous, value)) {
+            infoVersion = infoVersions.incrementAndGet();
+        }
+    }
+    
     @Override
     public int hashCode() {
         int hash = 0;
@@ -393,4 +510,41 @@ public class PersistenceTunnel implements Serializable {
     public String toString() {
         return "PersistenceTunnel[ id=" + id + " ]";
     }
+
+    /**
+     * The records received so far in the reply to a tunnel info request, and the highest
+     * version among them.
+     */
+    public static class InfoReply {
+        private final long transactionId;
+        private final Set<String> tunnelIds = new HashSet<>();
+        private long version;
+        
+        InfoReply(long transactionId) {
+            this.transactionId = transactionId;
+        }
+        
+        public long getTransactionId() {
+            return transactionId;
+        }
+        
+        /**
+         * Records a received record of the reply.
+         * 
+         * @param tunnelId the tunnel id of the record, or null for an empty reply
+         * @param recordVersion the version of the record
+         * @return the number of distinct records received
+         */
+        public int add(String tunnelId, long recordVersion) {
+            if (tunnelId != null) {
+                tunnelIds.add(tunnelId);
+                version = Math.max(version, recordVersion);
+            }
+            return tunnelIds.size();
+        }
+        
+        public long getVersion() {
+            return version;
+        }
+    }
 }
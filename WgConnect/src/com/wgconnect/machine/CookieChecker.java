@@ -0,0 +1,138 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CookieChecker
+ *
+ * Stateless cookie challenge for Discover and Solicit messages. When a server is under load,
+ * a new server machine is only allocated for a remote that echoes a cookie, which is a MAC over
+ * the remote address and port keyed with a rotating secret. Cookies from the current and the
+ * previous secret are accepted.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class CookieChecker {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(CookieChecker.class);
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int SECRET_LENGTH = 32;
+
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC_ALGORITHM);
+        } catch (GeneralSecurityException ex) {
+            log.error("Unable to create the cookie MAC: " + ex);
+            return null;
+        }
+    });
+
+    private final SecureRandom random = new SecureRandom();
+
+    private byte[] currentSecret;
+    private byte[] previousSecret;
+    private long secretTimestamp;
+
+    public CookieChecker() {
+        currentSecret = newSecret();
+        previousSecret = currentSecret;
+        secretTimestamp = System.nanoTime();
+    }
+
+    public boolean isUnderLoad(int pendingMachines) {
+        return pendingMachines >= Constants.COOKIE_LOAD_THRESHOLD;
+    }
+
+    public synchronized String createCookie(InetSocketAddress remoteInetSockAddr) {
+        rotateSecret();
+
+        byte[] mac = computeMac(currentSecret, remoteInetSockAddr);
+
+        return mac != null ? Base64.getEncoder().encodeToString(mac) : null;
+    }
+
+    public synchronized boolean isValidCookie(String cookie, InetSocketAddress remoteInetSockAddr) {
+        if (cookie == null || remoteInetSockAddr == null) {
+            return false;
+        }
+
+        byte[] cookieBytes;
+        try {
+            cookieBytes = Base64.getDecoder().decode(cookie.trim());
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+
+        rotateSecret();
+
+        return MessageDigest.isEqual(cookieBytes, computeMac(currentSecret, remoteInetSockAddr)) ||
+            MessageDigest.isEqual(cookieBytes, computeMac(previousSecret, remoteInetSockAddr));
+    }
+
+    private void rotateSecret() {
+        long now = System.nanoTime();
+        if (now - secretTimestamp >= TimeUnit.SECONDS.toNanos(Constants.COOKIE_SECRET_ROTATION_TIME)) {
+            previousSecret = currentSecret;
+            currentSecret = newSecret();
+            secretTimestamp = now;
+        }
+    }
+
+    private byte[] newSecret() {
+        byte[] secret = new byte[SECRET_LENGTH];
+        random.nextBytes(secret);
+
+        return secret;
+    }
+
+    private byte[] computeMac(byte[] secret, InetSocketAddress remoteInetSockAddr) {
+        try {
+            byte[] addr = remoteInetSockAddr.getAddress().getAddress();
+            ByteBuffer buf = ByteBuffer.allocate(addr.length + Short.BYTES);
+            buf.put(addr);
+            buf.putShort((short) remoteInetSockAddr.getPort());
+
+            Mac mac = macs.get();
+            if (mac == null) {
+                return null;
+            }
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+
+            return Arrays.copyOf(mac.doFinal(buf.array()), Constants.COOKIE_LENGTH);
+        } catch (GeneralSecurityException ex) {
+            log.error("Unable to compute the cookie MAC: " + ex);
+            return null;
+        }
+    }
+}
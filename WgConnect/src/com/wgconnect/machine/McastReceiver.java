@@ -0,0 +1,210 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.WgConnect;
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * McastReceiver
+ *
+ * The single multicast receiver of the V4 Discover and V6 Solicit messages. There is one non-blocking
+ * datagram channel per multicast group and port, joined to the group on each of the configured
+ * network interfaces, and one thread selects over all of them. The datagrams of a ready channel are
+ * drained in a batch into a pool of reused buffers before they are handed to the machine, so the
+ * thread count and the allocations do not grow with the number of interfaces.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class McastReceiver implements Runnable {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(McastReceiver.class);
+
+    private static final String NAME = "McastReceiver";
+
+    private final Selector selector;
+    private final Map<InetSocketAddress, DatagramChannel> channels = new ConcurrentHashMap<>();
+    private final Map<DatagramChannel, IPVersion> pendingChannels = new ConcurrentHashMap<>();
+    private final List<MembershipKey> memberships = new ArrayList<>();
+
+    private final ByteBuffer[] buffers = new ByteBuffer[Constants.MCAST_RECEIVE_BATCH_SIZE];
+    private final InetSocketAddress[] sources = new InetSocketAddress[Constants.MCAST_RECEIVE_BATCH_SIZE];
+
+    public McastReceiver() throws IOException {
+        selector = Selector.open();
+
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocate(Constants.MCAST_RECEIVE_BUFFER_SIZE);
+        }
+    }
+
+    public static String getName() {
+        return NAME;
+    }
+
+    /**
+     * Joins a multicast group on a network interface. The channel of the group and port is opened
+     * on the first join and handed to the selector thread, which registers it.
+     *
+     * @param ipVersion the IP version of the group
+     * @param mcastInetAddr the multicast group address
+     * @param port the port number
+     * @param netIf the network interface
+     * @return true if the group was joined
+     */
+    public synchronized boolean join(IPVersion ipVersion, InetAddress mcastInetAddr, int port, NetworkInterface netIf) {
+        InetSocketAddress groupSockAddr = new InetSocketAddress(mcastInetAddr, port);
+
+        try {
+            DatagramChannel channel = channels.get(groupSockAddr);
+            if (channel == null) {
+                channel = DatagramChannel.open(ipVersion.isIPv4() ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(groupSockAddr);
+                channel.configureBlocking(false);
+
+                // The selector thread may be blocked in select(), so wake it up to register
+                channels.put(groupSockAddr, channel);
+                pendingChannels.put(channel, ipVersion);
+                selector.wakeup();
+            }
+
+            memberships.add(channel.join(mcastInetAddr, netIf));
+        } catch (IOException | IllegalStateException ex) {
+            log.error("Unable to join the multicast group {} on {}: {}", groupSockAddr, netIf.getName(), ex.getMessage());
+            return false;
+        }
+
+        log.info("Joined the multicast group {} on {}", groupSockAddr, netIf.getName());
+
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                registerPendingChannels();
+
+                if (selector.select() == 0) {
+                    continue;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isReadable()) {
+                        drain((DatagramChannel) key.channel(), (IPVersion) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            log.info(ex.getMessage());
+        }
+
+        log.info("Multicast receiver stopped");
+    }
+
+    private void registerPendingChannels() {
+        for (Map.Entry<DatagramChannel, IPVersion> pending : pendingChannels.entrySet()) {
+            pendingChannels.remove(pending.getKey());
+            try {
+                pending.getKey().register(selector, SelectionKey.OP_READ, pending.getValue());
+            } catch (ClosedChannelException ex) {
+                log.info(ex.getMessage());
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        memberships.forEach(MembershipKey::drop);
+        for (DatagramChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.info(ex.getMessage());
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            log.info(ex.getMessage());
+        }
+    }
+
+    private void drain(DatagramChannel channel, IPVersion ipVersion) {
+        int count = 0;
+
+        try {
+            while (count < buffers.length) {
+                ByteBuffer buf = buffers[count];
+                buf.clear();
+
+                InetSocketAddress source = (InetSocketAddress) channel.receive(buf);
+                if (source == null) {
+                    break;
+                }
+
+                buf.flip();
+                sources[count++] = source;
+            }
+        } catch (IOException ex) {
+            log.info(ex.getMessage());
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (ipVersion.isIPv4()) {
+                V4Machine v4Machine = WgConnect.getV4Machine();
+                if (v4Machine != null) {
+                    v4Machine.processMulticastDiscoverMessage(sources[i], buffers[i]);
+                }
+            } else {
+                V6Machine v6Machine = WgConnect.getV6Machine();
+                if (v6Machine != null) {
+                    v6Machine.processMulticastSolicitMessage(sources[i], buffers[i]);
+                }
+            }
+            sources[i] = null;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * McastSender
+ *
+ * Sends the multicast V4 Discover and V6 Solicit messages. Each local address has one long-lived
+ * datagram channel bound to it, with the multicast TTL, loop and outgoing interface configured
+ * once. The messages of all of the local addresses are queued and sent in one burst per tick.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class McastSender {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(McastSender.class);
+
+    private final IPVersion ipVersion;
+    private final Map<InetAddress, DatagramChannel> senders = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<McastMessage> queue = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService scheduler;
+
+    private static class McastMessage {
+        final InetAddress localInetAddr;
+        final InetSocketAddress groupSockAddr;
+        final ByteBuffer buf;
+
+        McastMessage(InetAddress localInetAddr, InetSocketAddress groupSockAddr, ByteBuffer buf) {
+            this.localInetAddr = localInetAddr;
+            this.groupSockAddr = groupSockAddr;
+            this.buf = buf;
+        }
+    }
+
+    public McastSender(IPVersion ipVersion) {
+        this.ipVersion = ipVersion;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "McastSender-" + ipVersion);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, Constants.MCAST_SEND_TICK, Constants.MCAST_SEND_TICK,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a message to be sent to a multicast group from a local address on the next tick.
+     *
+     * @param localInetAddr the local address
+     * @param groupSockAddr the multicast group address and port
+     * @param buf the encoded message
+     */
+    public void send(InetAddress localInetAddr, InetSocketAddress groupSockAddr, ByteBuffer buf) {
+        queue.add(new McastMessage(localInetAddr, groupSockAddr, buf));
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+
+        for (DatagramChannel sender : senders.values()) {
+            try {
+                sender.close();
+            } catch (IOException ex) {
+                log.info(ex.getMessage());
+            }
+        }
+        senders.clear();
+    }
+
+    private void flush() {
+        List<McastMessage> burst = new ArrayList<>();
+        queue.drainTo(burst);
+
+        for (McastMessage msg : burst) {
+            DatagramChannel sender = getSender(msg.localInetAddr);
+            if (sender == null) {
+                continue;
+            }
+
+            try {
+                sender.send(msg.buf, msg.groupSockAddr);
+            } catch (IOException ex) {
+                log.info("Multicast send from {} failed: {}", msg.localInetAddr.getHostAddress(), ex.getMessage());
+            }
+        }
+    }
+
+    private DatagramChannel getSender(InetAddress localInetAddr) {
+        DatagramChannel sender = senders.get(localInetAddr);
+        if (sender != null) {
+            return sender;
+        }
+
+        try {
+            NetworkInterface netIf = NetworkInterface.getByInetAddress(localInetAddr);
+            if (netIf == null) {
+                log.error("Could not find the network interface for address {}", localInetAddr.getHostAddress());
+                return null;
+            }
+
+            sender = DatagramChannel.open(ipVersion.isIPv4() ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+            sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, netIf);
+            sender.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Constants.MCAST_SEND_TTL);
+            sender.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, Constants.MCAST_SEND_LOOP);
+            sender.bind(new InetSocketAddress(localInetAddr, 0));
+
+            senders.put(localInetAddr, sender);
+        } catch (IOException ex) {
+            log.error("Unable to open the multicast sender for address {}: {}", localInetAddr.getHostAddress(), ex.getMessage());
+            if (sender != null) {
+                try {
+                    sender.close();
+                } catch (IOException e) {
+                    log.info(e.getMessage());
+                }
+            }
+            return null;
+        }
+
+        return sender;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.config.AccessControl;
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * PacketClassifier
+ *
+ * A cheap classifier that runs before a received packet is decoded. It peeks at the op (V4) or
+ * message type (V6) byte and walks the option headers for the message type and sender, and drops
+ * self-originated packets by checking the source against a precomputed set of the local addresses.
+ * Sources and Wireguard public keys that are not allowed by the access control lists are dropped
+ * here too, before any decoding or machine allocation.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class PacketClassifier {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(PacketClassifier.class);
+
+    // op(1) htype(1) padding(2) xid(4) clientAddr(4) clientPort(4) serverAddr(4) serverPort(4) magic cookie(4)
+    private static final int V4_OPTIONS_OFFSET = 28;
+    // msgType(1) padding(3) xid(4)
+    private static final int V6_OPTIONS_OFFSET = 8;
+
+    private static final int OPTION_HEADER_SIZE = 2 * Constants.INTEGER_SIZE;
+
+    private final IPVersion ipVersion;
+    private final Set<ByteBuffer> localInetAddrs = new HashSet<>();
+    private final AccessControl accessControl;
+
+    public PacketClassifier(IPVersion ipVersion, List<InetAddress> localInetAddrs) {
+        this.ipVersion = ipVersion;
+        this.accessControl = AccessControl.getInstance();
+
+        localInetAddrs.forEach(addr -> this.localInetAddrs.add(ByteBuffer.wrap(addr.getAddress())));
+    }
+
+    public boolean isLocalInetAddr(InetAddress inetAddr) {
+        return inetAddr != null && localInetAddrs.contains(ByteBuffer.wrap(inetAddr.getAddress()));
+    }
+
+    /**
+     * Classifies a received packet without decoding it.
+     *
+     * @param buf the received packet, positioned at the start of the message; the position is not changed
+     * @param sourceInetAddr the packet source address
+     * @param ignoreSelfPackets drop packets sent from a local address
+     * @param multicast the packet was received on the multicast group, where only client discovers
+     * and solicits are expected
+     * @return true if the packet should be decoded, false if it should be dropped
+     */
+    public boolean accept(ByteBuffer buf, InetAddress sourceInetAddr, boolean ignoreSelfPackets, boolean multicast) {
+        if (ignoreSelfPackets && isLocalInetAddr(sourceInetAddr)) {
+            return false;
+        }
+
+        if (!accessControl.isAllowedInetAddr(sourceInetAddr)) {
+            return false;
+        }
+
+        short msgType;
+        short msgSender;
+        int start = buf.position();
+
+        if (ipVersion == IPVersion.IPV4) {
+            if (buf.remaining() < V4_OPTIONS_OFFSET) {
+                return false;
+            }
+
+            short op = (short) (buf.get(start) & 0xff);
+            if (op != Constants.V4_OP_REQUEST && op != Constants.V4_OP_REPLY) {
+                return false;
+            }
+
+            msgType = peekUnsignedByteOption(buf, start + V4_OPTIONS_OFFSET, Constants.OPTION_MESSAGE_TYPE);
+            msgSender = peekUnsignedByteOption(buf, start + V4_OPTIONS_OFFSET, Constants.OPTION_MESSAGE_SENDER);
+
+            if (msgType < Constants.V4_MESSAGE_TYPE_DISCOVER || msgType >= Constants.V4_MESSAGE_TYPE_END) {
+                return false;
+            }
+
+            if (multicast) {
+                if (msgType != Constants.V4_MESSAGE_TYPE_DISCOVER || msgSender != Constants.V4_MESSAGE_SENDER_CLIENT) {
+                    return false;
+                }
+            } else if (msgSender != Constants.V4_MESSAGE_SENDER_CLIENT && msgSender != Constants.V4_MESSAGE_SENDER_SERVER &&
+                msgSender != 0) {
+                return false;
+            }
+
+            // Only the offers and requests carry the key of the peer to add
+            return !(msgType == Constants.V4_MESSAGE_TYPE_OFFER || msgType == Constants.V4_MESSAGE_TYPE_REQUEST) ||
+                isAllowedPublicKey(buf, start + V4_OPTIONS_OFFSET, msgType == Constants.V4_MESSAGE_TYPE_REQUEST);
+        } else {
+            if (buf.remaining() < V6_OPTIONS_OFFSET) {
+                return false;
+            }
+
+            msgType = (short) (buf.get(start) & 0xff);
+            if (msgType < Constants.V6_MESSAGE_TYPE_SOLICIT || msgType >= Constants.V6_MESSAGE_TYPE_END) {
+                return false;
+            }
+
+            msgSender = peekUnsignedByteOption(buf, start + V6_OPTIONS_OFFSET, Constants.OPTION_MESSAGE_SENDER);
+
+            if (multicast) {
+                if (msgType != Constants.V6_MESSAGE_TYPE_SOLICIT || msgSender != Constants.V6_MESSAGE_SENDER_CLIENT) {
+                    return false;
+                }
+            } else if (msgSender != Constants.V6_MESSAGE_SENDER_CLIENT && msgSender != Constants.V6_MESSAGE_SENDER_SERVER &&
+                msgSender != 0) {
+                return false;
+            }
+
+            // Only the advertises and requests carry the key of the peer to add
+            return !(msgType == Constants.V6_MESSAGE_TYPE_ADVERTISE || msgType == Constants.V6_MESSAGE_TYPE_REQUEST) ||
+                isAllowedPublicKey(buf, start + V6_OPTIONS_OFFSET, msgType == Constants.V6_MESSAGE_TYPE_REQUEST);
+        }
+    }
+
+    /**
+     * Checks the key of the peer to add. A packet without a key is only allowed if no key allow list
+     * is configured, or if it is a request that declines the offer and adds no peer.
+     */
+    private boolean isAllowedPublicKey(ByteBuffer buf, int offset, boolean request) {
+        if (!accessControl.hasPublicKeyRules()) {
+            return true;
+        }
+
+        String publicKey = StringUtils.trimToNull(peekStringOption(buf, offset, Constants.OPTION_REMOTE_WG_PUBLIC_KEY));
+        if (publicKey == null && request) {
+            long response = peekUnsignedIntOption(buf, offset, Constants.OPTION_GENERIC_RESPONSE);
+            if (response > 0 && response != Constants.RESPONSE_ACCEPT) {
+                return true;
+            }
+        }
+
+        return accessControl.isAllowedPublicKey(publicKey);
+    }
+
+    /**
+     * Walks the option headers, code(4) length(4) value(length), for an option.
+     *
+     * @return the position of the option value, or -1 if the option was not found
+     */
+    private int findOption(ByteBuffer buf, int offset, int optionCode) {
+        int pos = offset;
+        int limit = buf.limit();
+
+        while (pos + OPTION_HEADER_SIZE <= limit) {
+            int code = buf.getInt(pos);
+            int len = buf.getInt(pos + Constants.INTEGER_SIZE);
+            pos += OPTION_HEADER_SIZE;
+
+            if (len < 0 || pos + len > limit) {
+                break;
+            }
+
+            if (code == optionCode) {
+                return pos - Constants.INTEGER_SIZE;
+            }
+
+            pos += len;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Peeks at an unsigned byte option.
+     *
+     * @return the option value, or 0 if the option was not found
+     */
+    private short peekUnsignedByteOption(ByteBuffer buf, int offset, int optionCode) {
+        int pos = findOption(buf, offset, optionCode);
+        if (pos < 0) {
+            return 0;
+        }
+
+        int len = buf.getInt(pos);
+
+        return len > 0 ? (short) (buf.get(pos + Constants.INTEGER_SIZE) & 0xff) : 0;
+    }
+
+    /**
+     * Peeks at an unsigned int option.
+     *
+     * @return the option value, or -1 if the option was not found
+     */
+    private long peekUnsignedIntOption(ByteBuffer buf, int offset, int optionCode) {
+        int pos = findOption(buf, offset, optionCode);
+        if (pos < 0 || buf.getInt(pos) < Constants.INTEGER_SIZE) {
+            return -1;
+        }
+
+        return buf.getInt(pos + Constants.INTEGER_SIZE) & 0xffffffffL;
+    }
+
+    /**
+     * Peeks at a string option.
+     *
+     * @return the option value, or null if the option was not found
+     */
+    private String peekStringOption(ByteBuffer buf, int offset, int optionCode) {
+        int pos = findOption(buf, offset, optionCode);
+        if (pos < 0) {
+            return null;
+        }
+
+        byte[] value = new byte[buf.getInt(pos)];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = buf.get(pos + Constants.INTEGER_SIZE + i);
+        }
+
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
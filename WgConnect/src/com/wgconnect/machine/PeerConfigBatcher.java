@@ -0,0 +1,247 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.WgConnect;
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import com.wgtools.Wg;
+import com.wgtools.WgPeer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PeerConfigBatcher
+ *
+ * Queues the peer additions, updates and removals of each Wireguard interface and applies them as
+ * a single device update, either on the next tick of the batch interval or as soon as the batch of
+ * an interface reaches the size threshold. A peer queued again before its batch is flushed replaces
+ * the earlier specification, so only the latest one is sent. When a batch fails, its peers are
+ * applied again one at a time, so a single bad peer only fails its own tunnel.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class PeerConfigBatcher {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(PeerConfigBatcher.class);
+
+    private static PeerConfigBatcher INSTANCE;
+
+    private final long interval;
+    private final int batchSize;
+    private final Map<String, PeerBatch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private static class PendingPeer {
+        WgPeer peer;
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+    }
+
+    private static class PeerBatch {
+        final String ifName;
+        final Map<String, PendingPeer> peers = new LinkedHashMap<>();
+        // Set once the empty batch is pruned from the batches, a queue call then adds a new one
+        boolean removed;
+
+        PeerBatch(String ifName) {
+            this.ifName = ifName;
+        }
+    }
+
+    /**
+     * Gets the single instance of PeerConfigBatcher.
+     *
+     * @return single instance of PeerConfigBatcher
+     */
+    public static synchronized PeerConfigBatcher getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new PeerConfigBatcher(WgConnect.getPeerBatchInterval(), WgConnect.getPeerBatchSize());
+        }
+
+        return INSTANCE;
+    }
+
+    PeerConfigBatcher(long interval, int batchSize) {
+        this.interval = Math.max(0, interval);
+        this.batchSize = Math.max(1, batchSize);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "PeerConfigBatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (this.interval > 0) {
+            scheduler.scheduleWithFixedDelay(this::flush, this.interval, this.interval, TimeUnit.MILLISECONDS);
+        }
+
+        log.info("Peer config batcher: {} ms interval, {} peers per batch", this.interval, this.batchSize);
+    }
+
+    /**
+     * Queues a peer addition or update of an interface.
+     *
+     * @param ifName the interface name
+     * @param peer the peer specification
+     * @return the future command success or failure code of the batch the peer was applied in
+     */
+    public CompletableFuture<Integer> queue(String ifName, WgPeer peer) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        if (ifName == null || peer == null || peer.getPublicKey() == null) {
+            result.complete(Wg.getCommandFailureCode());
+            return result;
+        }
+
+        PeerBatch batch;
+        boolean full;
+        while (true) {
+            batch = batches.computeIfAbsent(ifName, PeerBatch::new);
+            synchronized (batch) {
+                if (batch.removed) {
+                    continue;
+                }
+                PendingPeer pending = batch.peers.computeIfAbsent(WgPeer.encodeKey(peer.getPublicKey()), k -> new PendingPeer());
+                pending.peer = peer;
+                pending.results.add(result);
+                full = batch.peers.size() >= batchSize;
+                break;
+            }
+        }
+
+        if (interval == 0 || full) {
+            PeerBatch fullBatch = batch;
+            try {
+                scheduler.execute(() -> flush(fullBatch));
+            } catch (RejectedExecutionException ex) {
+                flush(fullBatch);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Queues a peer removal of an interface.
+     *
+     * @param ifName the interface name
+     * @param publicKey the public key of the peer
+     * @return the future command success or failure code of the batch the peer was removed in
+     */
+    public CompletableFuture<Integer> removePeer(String ifName, byte[] publicKey) {
+        WgPeer peer = new WgPeer(publicKey);
+        peer.setRemove(true);
+
+        return queue(ifName, peer);
+    }
+
+    /**
+     * Queues a peer addition or update of an interface and waits for its batch to be applied. The
+     * machines use {@link #queue(String, WgPeer)} instead, so they do not wait on the machine executor.
+     *
+     * @param ifName the interface name
+     * @param peer the peer specification
+     * @return the command success or failure code
+     */
+    public int setPeer(String ifName, WgPeer peer) {
+        try {
+            return queue(ifName, peer).get(interval + Constants.PEER_BATCH_APPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            log.error("Unable to set the peer configuration for the device {}: {}", ifName, ex.getMessage());
+            return Wg.getCommandFailureCode();
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(interval + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void flush() {
+        batches.values().forEach(this::flush);
+    }
+
+    private void flush(PeerBatch batch) {
+        List<PendingPeer> pending;
+        synchronized (batch) {
+            if (batch.peers.isEmpty()) {
+                // An interface without peer updates since the last tick is pruned
+                batch.removed = true;
+                batches.remove(batch.ifName, batch);
+                return;
+            }
+            pending = new ArrayList<>(batch.peers.values());
+            batch.peers.clear();
+        }
+
+        // The flush runs on the scheduler, where an exception would cancel the periodic flushes
+        try {
+            List<WgPeer> peers = new ArrayList<>(pending.size());
+            pending.forEach(p -> peers.add(p.peer));
+
+            int exitCode = applyPeers(batch.ifName, peers);
+            if (exitCode == Wg.getCommandFailureCode() && pending.size() > 1) {
+                log.info("Applying the {} peer updates of the device {} one at a time", pending.size(), batch.ifName);
+                for (PendingPeer p : pending) {
+                    complete(p, applyPeers(batch.ifName, Collections.singletonList(p.peer)));
+                }
+            } else {
+                pending.forEach(p -> complete(p, exitCode));
+            }
+        } catch (Throwable t) {
+            log.error("Unable to apply the peer updates of the device {}: {}", batch.ifName, t.toString());
+            pending.forEach(p -> p.results.forEach(result -> result.completeExceptionally(t)));
+        }
+    }
+
+    private static void complete(PendingPeer pending, int exitCode) {
+        pending.results.forEach(result -> result.complete(exitCode));
+    }
+
+    /**
+     * Applies a batch of peer updates to an interface in one device update.
+     *
+     * @param ifName the interface name
+     * @param peers the peer specifications
+     * @return the command success or failure code
+     */
+    int applyPeers(String ifName, List<WgPeer> peers) {
+        Wg wg = new Wg();
+        int exitCode = wg.setInterfacePeers(ifName, peers);
+        if (exitCode == Wg.getCommandFailureCode()) {
+            log.error("Unable to apply {} peer updates to the device {}: {}", peers.size(), ifName,
+                wg.getCommandErrorString());
+        }
+
+        return exitCode;
+    }
+}
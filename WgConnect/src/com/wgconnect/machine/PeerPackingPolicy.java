@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.WgConnect;
+import com.wgconnect.db.persistence.PersistenceTunnel;
+
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddress.IPVersion;
+import inet.ipaddr.IPAddressString;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * PeerPackingPolicy
+ *
+ * Places the peers of the new tunnels on the WgConnect interfaces. The tunnels are grouped by their
+ * local physical address and tunnel network, and a new peer is packed onto the fullest interface of
+ * its group that has fewer than the configured number of peers. A new interface is created only when
+ * every interface of the group is full, so the number of interfaces follows the number of peers.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class PeerPackingPolicy {
+
+    private PeerPackingPolicy() {}
+
+    /**
+     * Checks if the peers are packed up to a number per interface.
+     *
+     * @return true if the number of peers per interface is limited
+     */
+    public static boolean isEnabled() {
+        return WgConnect.getPeersPerInterface() > 0;
+    }
+
+    /**
+     * Gets a tunnel of the group whose interface has room for another peer.
+     *
+     * @param localPhysInetAddr the local physical address of the group
+     * @param tunnelInetNet the tunnel network of the group
+     * @param ipVersion the IP version
+     * @return a tunnel on the fullest interface of the group with room for a peer, or null if there is none
+     */
+    public static PersistenceTunnel getHostTunnel(String localPhysInetAddr, String tunnelInetNet, IPVersion ipVersion) {
+        int peersPerInterface = WgConnect.getPeersPerInterface();
+        IPAddress tunnelNetAddr = new IPAddressString(tunnelInetNet).getAddress(ipVersion);
+        if (tunnelNetAddr == null) {
+            return null;
+        }
+
+        Map<String, Integer> peers = new HashMap<>();
+        Map<String, PersistenceTunnel> hosts = new HashMap<>();
+
+        List<PersistenceTunnel> tunnels = WgConnect.getAllTunnels();
+        synchronized (tunnels) {
+            for (PersistenceTunnel tunnel : tunnels) {
+                String ifName = tunnel.getLocalInterfaceName();
+                if (ifName == null) {
+                    continue;
+                }
+
+                peers.merge(ifName, 1, Integer::sum);
+
+                if (StringUtils.equals(tunnel.getLocalPhysInetAddr(), localPhysInetAddr) &&
+                    StringUtils.equalsIgnoreCase(tunnel.getInetType(), ipVersion.toString())) {
+                    IPAddress netAddr = new IPAddressString(tunnel.getTunnelInetNet()).getAddress(ipVersion);
+                    if (netAddr != null && netAddr.compareTo(tunnelNetAddr) == 0) {
+                        hosts.putIfAbsent(ifName, tunnel);
+                    }
+                }
+            }
+        }
+
+        PersistenceTunnel hostTunnel = null;
+        int hostPeers = -1;
+        for (Map.Entry<String, PersistenceTunnel> host : hosts.entrySet()) {
+            int count = peers.get(host.getKey());
+            if (count < peersPerInterface && count > hostPeers) {
+                hostTunnel = host.getValue();
+                hostPeers = count;
+            }
+        }
+
+        return hostTunnel;
+    }
+}
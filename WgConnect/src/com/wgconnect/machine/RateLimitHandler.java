@@ -0,0 +1,63 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * RateLimitHandler
+ *
+ * Drops received packets before they are decoded when the source prefix exceeds its rate limit.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+@ChannelHandler.Sharable
+public class RateLimitHandler extends SimpleChannelUpstreamHandler {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(RateLimitHandler.class);
+
+    protected final RateLimiter rateLimiter;
+
+    public RateLimitHandler(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived
+     * (org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        SocketAddress remoteAddr = e.getRemoteAddress();
+        if (remoteAddr instanceof InetSocketAddress &&
+            !rateLimiter.tryAcquire(((InetSocketAddress) remoteAddr).getAddress())) {
+            return;
+        }
+
+        super.messageReceived(ctx, e);
+    }
+}
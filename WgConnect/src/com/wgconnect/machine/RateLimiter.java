@@ -0,0 +1,253 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter
+ *
+ * A per-source-prefix token bucket rate limiter for the control ports. The buckets are kept in a
+ * bounded table of lock-striped slots keyed by the source prefix as a primitive long. Tokens are
+ * refilled lazily when a packet arrives. Slots idle for longer than RATE_LIMIT_IDLE_TIME are evicted
+ * while a stripe is scanned, and if a stripe is still full its least recently seen slot is reused.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class RateLimiter {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(RateLimiter.class);
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(Constants.RATE_LIMIT_IDLE_TIME);
+
+    private final String name;
+    private final int v4PrefixLen;
+    private final int v6PrefixLen;
+
+    // Token counts are kept in nanoseconds of refill time: one token == nanosPerToken
+    private final long nanosPerToken;
+    private final long burstNanos;
+
+    private final Stripe[] stripes;
+
+    private final AtomicLong packetsDropped = new AtomicLong();
+    private final AtomicLong packetsDroppedLogged = new AtomicLong();
+
+    private static final class Stripe {
+        final long[] keys = new long[Constants.RATE_LIMIT_STRIPE_SLOTS];
+        final long[] tokens = new long[Constants.RATE_LIMIT_STRIPE_SLOTS];
+        final long[] lastSeen = new long[Constants.RATE_LIMIT_STRIPE_SLOTS];
+        final long[] drops = new long[Constants.RATE_LIMIT_STRIPE_SLOTS];
+        final boolean[] used = new boolean[Constants.RATE_LIMIT_STRIPE_SLOTS];
+    }
+
+    /**
+     * Instantiate a RateLimiter.
+     *
+     * @param name the limiter name used in the log and the drop counters
+     * @param packetsPerSecond the sustained packet rate allowed per source prefix
+     * @param burst the number of packets a source prefix may send back to back
+     * @param v4PrefixLen the IPv4 source prefix length
+     * @param v6PrefixLen the IPv6 source prefix length, at most 64
+     */
+    public RateLimiter(String name, int packetsPerSecond, int burst, int v4PrefixLen, int v6PrefixLen) {
+        this.name = name;
+        this.v4PrefixLen = Math.max(0, Math.min(v4PrefixLen, Integer.SIZE));
+        this.v6PrefixLen = Math.max(0, Math.min(v6PrefixLen, Long.SIZE));
+
+        this.nanosPerToken = NANOS_PER_SECOND / Math.max(1, packetsPerSecond);
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+
+        stripes = new Stripe[Constants.RATE_LIMIT_STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes a token from the bucket of the source prefix of the given address.
+     *
+     * @param sourceInetAddr the packet source address
+     * @return true if the packet is allowed, false if it should be dropped
+     */
+    public boolean tryAcquire(InetAddress sourceInetAddr) {
+        if (sourceInetAddr == null) {
+            return true;
+        }
+
+        long key = getPrefixKey(sourceInetAddr.getAddress());
+        Stripe stripe = stripes[spread(key) & (stripes.length - 1)];
+        long now = System.nanoTime();
+
+        synchronized (stripe) {
+            int slot = findSlot(stripe, key, now);
+
+            // Lazy refill
+            long tokens = Math.min(burstNanos, stripe.tokens[slot] + (now - stripe.lastSeen[slot]));
+            stripe.lastSeen[slot] = now;
+
+            if (tokens >= nanosPerToken) {
+                stripe.tokens[slot] = tokens - nanosPerToken;
+                return true;
+            }
+
+            stripe.tokens[slot] = tokens;
+            if (stripe.drops[slot]++ == 0) {
+                log.info("{}: rate limiting source prefix {}", name, getPrefixString(key));
+            }
+        }
+
+        packetsDropped.getAndIncrement();
+
+        return false;
+    }
+
+    public long getPacketsDropped() {
+        return packetsDropped.get();
+    }
+
+    /**
+     * Gets the limiter metrics.
+     *
+     * @return the metric values by name
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> counters = getDropCounters();
+
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("packetsDropped", packetsDropped.get());
+        metrics.put("limitedPrefixes", (long) counters.size());
+        metrics.put("maxPrefixDrops", counters.values().stream().mapToLong(Long::longValue).max().orElse(0));
+
+        return metrics;
+    }
+
+    /**
+     * Logs the metrics and the drop counters per source prefix.
+     *
+     * @param all true to log even if no packet was dropped since the last time
+     */
+    public void logMetrics(boolean all) {
+        long dropped = packetsDropped.get();
+        if (packetsDroppedLogged.getAndSet(dropped) != dropped || all) {
+            log.info("{} metrics: {}, drops: {}", name, getMetrics(), getDropCounters());
+        }
+    }
+
+    /**
+     * Gets the drop counters of the source prefixes currently in the table that have dropped packets.
+     *
+     * @return the drop count per source prefix
+     */
+    public Map<String, Long> getDropCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.keys.length; i++) {
+                    if (stripe.used[i] && stripe.drops[i] > 0) {
+                        counters.put(getPrefixString(stripe.keys[i]), stripe.drops[i]);
+                    }
+                }
+            }
+        }
+
+        return counters;
+    }
+
+    private int findSlot(Stripe stripe, long key, long now) {
+        int victim = -1;
+        long victimSeen = Long.MAX_VALUE;
+
+        for (int i = 0; i < stripe.keys.length; i++) {
+            if (stripe.used[i]) {
+                if (stripe.keys[i] == key) {
+                    return i;
+                }
+
+                // Idle eviction
+                if ((now - stripe.lastSeen[i]) > IDLE_NANOS) {
+                    stripe.used[i] = false;
+                }
+            }
+
+            if (!stripe.used[i]) {
+                if (victim < 0 || stripe.used[victim]) {
+                    victim = i;
+                    victimSeen = Long.MIN_VALUE;
+                }
+            } else if (stripe.lastSeen[i] < victimSeen) {
+                victim = i;
+                victimSeen = stripe.lastSeen[i];
+            }
+        }
+
+        // Use a free slot, or evict the least recently seen one of a full stripe
+        stripe.used[victim] = true;
+        stripe.keys[victim] = key;
+        stripe.tokens[victim] = burstNanos;
+        stripe.lastSeen[victim] = now;
+        stripe.drops[victim] = 0;
+
+        return victim;
+    }
+
+    private long getPrefixKey(byte[] addr) {
+        long key = 0;
+
+        if (addr.length == 4) {
+            for (byte b : addr) {
+                key = (key << Byte.SIZE) | (b & 0xff);
+            }
+            key = v4PrefixLen == 0 ? 0 : key & (0xffffffffL << (Integer.SIZE - v4PrefixLen));
+            // Keep the IPv4 keys apart from the IPv6 keys
+            key |= 1L << Integer.SIZE;
+        } else {
+            for (int i = 0; i < Long.BYTES; i++) {
+                key = (key << Byte.SIZE) | (addr[i] & 0xff);
+            }
+            key = v6PrefixLen == 0 ? 0 : key & (-1L << (Long.SIZE - v6PrefixLen));
+        }
+
+        return key;
+    }
+
+    private String getPrefixString(long key) {
+        if ((key >>> Integer.SIZE) == 1) {
+            return String.format("%d.%d.%d.%d/%d", (key >> 24) & 0xff, (key >> 16) & 0xff, (key >> 8) & 0xff,
+                key & 0xff, v4PrefixLen);
+        }
+
+        return String.format("%x:%x:%x:%x::/%d", (key >>> 48) & 0xffff, (key >>> 32) & 0xffff, (key >>> 16) & 0xffff,
+            key & 0xffff, v6PrefixLen);
+    }
+
+    private static int spread(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (h ^ (h >>> 32));
+    }
+}
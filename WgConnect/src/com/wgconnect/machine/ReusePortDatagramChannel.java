@@ -0,0 +1,314 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelSink;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.socket.DatagramChannel;
+import org.jboss.netty.channel.socket.DatagramChannelConfig;
+import org.jboss.netty.channel.socket.DefaultDatagramChannelConfig;
+
+/**
+ * ReusePortDatagramChannel
+ *
+ * A datagram channel built on JDK NIO datagram channels instead of the Netty NIO transport. The
+ * channel binds several SO_REUSEPORT sockets to its local address, each served by its own receive
+ * thread with a reused receive buffer, so the kernel spreads the peers across the cores. Writes are
+ * queued and sent in batches by a single sender thread. Received datagrams go up the same channel
+ * pipeline as the Netty transport, so the encoder, rate limiter, decoder and executor are unchanged.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class ReusePortDatagramChannel extends AbstractChannel implements DatagramChannel {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(ReusePortDatagramChannel.class);
+
+    private final List<java.nio.channels.DatagramChannel> sockets = new ArrayList<>();
+    private final List<Thread> receivers = new ArrayList<>();
+    private final LinkedBlockingQueue<MessageEvent> sendQueue = new LinkedBlockingQueue<>();
+    private final ReusePortDatagramChannelConfig config;
+
+    private volatile InetSocketAddress localAddress = null;
+    private Thread sender = null;
+
+    ReusePortDatagramChannel(ReusePortDatagramChannelFactory factory, ChannelPipeline pipeline, ChannelSink sink,
+        ProtocolFamily family, int socketsPerAddr) {
+        super(null, factory, pipeline, sink);
+
+        int count = Math.max(1, socketsPerAddr);
+
+        try {
+            for (int i = 0; i < count; i++) {
+                java.nio.channels.DatagramChannel socket = java.nio.channels.DatagramChannel.open(family);
+                if (count > 1) {
+                    socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                sockets.add(socket);
+            }
+        } catch (IOException ex) {
+            closeSockets();
+            throw new ChannelException("Unable to open the datagram sockets", ex);
+        }
+
+        config = new ReusePortDatagramChannelConfig();
+
+        Channels.fireChannelOpen(this);
+    }
+
+    @Override
+    public DatagramChannelConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public boolean isBound() {
+        return isOpen() && localAddress != null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return false;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public ChannelFuture joinGroup(InetAddress multicastAddress) {
+        return getUnsupportedOperationFuture();
+    }
+
+    @Override
+    public ChannelFuture joinGroup(InetSocketAddress multicastAddress, NetworkInterface networkInterface) {
+        return getUnsupportedOperationFuture();
+    }
+
+    @Override
+    public ChannelFuture leaveGroup(InetAddress multicastAddress) {
+        return getUnsupportedOperationFuture();
+    }
+
+    @Override
+    public ChannelFuture leaveGroup(InetSocketAddress multicastAddress, NetworkInterface networkInterface) {
+        return getUnsupportedOperationFuture();
+    }
+
+    public int getSocketCount() {
+        return sockets.size();
+    }
+
+    void bindSockets(InetSocketAddress localSockAddr, ChannelFuture future) {
+        try {
+            for (java.nio.channels.DatagramChannel socket : sockets) {
+                socket.bind(localSockAddr);
+                // Bind the remaining sockets to the port actually chosen for the first one
+                localSockAddr = (InetSocketAddress) socket.getLocalAddress();
+            }
+            localAddress = localSockAddr;
+        } catch (IOException ex) {
+            future.setFailure(ex);
+            Channels.fireExceptionCaught(this, ex);
+            return;
+        }
+
+        for (int i = 0; i < sockets.size(); i++) {
+            java.nio.channels.DatagramChannel socket = sockets.get(i);
+            Thread receiver = new Thread(() -> receive(socket), "ReusePortReceiver-" + localAddress + "-" + (i + 1));
+            receiver.setDaemon(true);
+            receivers.add(receiver);
+        }
+
+        sender = new Thread(this::send, "ReusePortSender-" + localAddress);
+        sender.setDaemon(true);
+
+        future.setSuccess();
+        Channels.fireChannelBound(this, localAddress);
+
+        receivers.forEach(Thread::start);
+        sender.start();
+    }
+
+    void queueWrite(MessageEvent e) {
+        if (!isOpen()) {
+            e.getFuture().setFailure(new ClosedChannelException());
+            return;
+        }
+
+        sendQueue.add(e);
+    }
+
+    void closeChannel(ChannelFuture future) {
+        boolean bound = isBound();
+        closeSockets();
+
+        if (sender != null) {
+            sender.interrupt();
+        }
+
+        future.setSuccess();
+        if (setClosed()) {
+            if (bound) {
+                Channels.fireChannelUnbound(this);
+            }
+            Channels.fireChannelClosed(this);
+        }
+
+        MessageEvent e;
+        while ((e = sendQueue.poll()) != null) {
+            e.getFuture().setFailure(new ClosedChannelException());
+        }
+    }
+
+    // Receive into a reused buffer; the pipeline decodes the datagram before the buffer is reused
+    private void receive(java.nio.channels.DatagramChannel socket) {
+        ByteBuffer buf = ByteBuffer.allocate(Constants.REUSEPORT_MAX_DATAGRAM_SIZE);
+        ChannelBuffer channelBuf = ChannelBuffers.wrappedBuffer(buf.array());
+
+        while (socket.isOpen()) {
+            try {
+                buf.clear();
+                SocketAddress remoteAddr = socket.receive(buf);
+                if (remoteAddr == null) {
+                    continue;
+                }
+
+                channelBuf.setIndex(0, buf.position());
+                Channels.fireMessageReceived(this, channelBuf, remoteAddr);
+            } catch (IOException ex) {
+                if (socket.isOpen()) {
+                    log.error("Receive failed on " + localAddress + ": " + ex);
+                }
+            }
+        }
+    }
+
+    // Drain the send queue in batches and send the datagrams back to back
+    private void send() {
+        List<MessageEvent> batch = new ArrayList<>(Constants.REUSEPORT_SEND_BATCH_SIZE);
+        java.nio.channels.DatagramChannel socket = sockets.get(0);
+
+        while (isOpen()) {
+            try {
+                batch.add(sendQueue.take());
+            } catch (InterruptedException ex) {
+                break;
+            }
+            sendQueue.drainTo(batch, Constants.REUSEPORT_SEND_BATCH_SIZE - 1);
+
+            long bytesSent = 0;
+            for (MessageEvent e : batch) {
+                ChannelBuffer buf = (ChannelBuffer) e.getMessage();
+                try {
+                    bytesSent += socket.send(buf.toByteBuffer(), e.getRemoteAddress());
+                    e.getFuture().setSuccess();
+                } catch (IOException ex) {
+                    e.getFuture().setFailure(ex);
+                }
+            }
+            batch.clear();
+
+            if (bytesSent > 0) {
+                Channels.fireWriteComplete(this, bytesSent);
+            }
+        }
+    }
+
+    private void closeSockets() {
+        for (java.nio.channels.DatagramChannel socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                log.error("Unable to close a datagram socket: " + ex);
+            }
+        }
+    }
+
+    /**
+     * The channel configuration, which applies the socket options to all of the sockets.
+     */
+    private class ReusePortDatagramChannelConfig extends DefaultDatagramChannelConfig {
+
+        ReusePortDatagramChannelConfig() {
+            super(sockets.get(0).socket());
+        }
+
+        @Override
+        public void setReuseAddress(boolean reuseAddress) {
+            try {
+                for (java.nio.channels.DatagramChannel socket : sockets) {
+                    socket.socket().setReuseAddress(reuseAddress);
+                }
+            } catch (SocketException ex) {
+                throw new ChannelException(ex);
+            }
+        }
+
+        @Override
+        public void setReceiveBufferSize(int receiveBufferSize) {
+            try {
+                for (java.nio.channels.DatagramChannel socket : sockets) {
+                    socket.socket().setReceiveBufferSize(receiveBufferSize);
+                }
+            } catch (SocketException ex) {
+                throw new ChannelException(ex);
+            }
+        }
+
+        @Override
+        public void setSendBufferSize(int sendBufferSize) {
+            try {
+                for (java.nio.channels.DatagramChannel socket : sockets) {
+                    socket.socket().setSendBufferSize(sendBufferSize);
+                }
+            } catch (SocketException ex) {
+                throw new ChannelException(ex);
+            }
+        }
+    }
+}
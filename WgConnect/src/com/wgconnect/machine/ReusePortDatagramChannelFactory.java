@@ -0,0 +1,114 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.socket.DatagramChannel;
+import org.jboss.netty.channel.socket.DatagramChannelFactory;
+
+/**
+ * ReusePortDatagramChannelFactory
+ *
+ * Creates the SO_REUSEPORT sharded datagram channels, an alternative to the NioDatagramChannelFactory.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class ReusePortDatagramChannelFactory implements DatagramChannelFactory {
+
+    private final ProtocolFamily family;
+    private final int socketsPerAddr;
+    private final ReusePortDatagramSink sink = new ReusePortDatagramSink();
+    private final Set<ReusePortDatagramChannel> channels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Instantiate a ReusePortDatagramChannelFactory.
+     *
+     * @param family the protocol family of the sockets
+     * @param socketsPerAddr the number of sockets, and receive threads, per local address
+     */
+    public ReusePortDatagramChannelFactory(ProtocolFamily family, int socketsPerAddr) {
+        this.family = family;
+        this.socketsPerAddr = socketsPerAddr;
+    }
+
+    @Override
+    public DatagramChannel newChannel(ChannelPipeline pipeline) {
+        ReusePortDatagramChannel channel = new ReusePortDatagramChannel(this, pipeline, sink, family, socketsPerAddr);
+        channels.add(channel);
+        channel.getCloseFuture().addListener(future -> channels.remove(channel));
+
+        return channel;
+    }
+
+    @Override
+    public void shutdown() {
+        channels.forEach(ReusePortDatagramChannel::close);
+    }
+
+    @Override
+    public void releaseExternalResources() {
+        shutdown();
+    }
+
+    /**
+     * Handles the downstream events of the channels: bind, close and write.
+     */
+    private static class ReusePortDatagramSink extends AbstractChannelSink {
+
+        @Override
+        public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) throws Exception {
+            ReusePortDatagramChannel channel = (ReusePortDatagramChannel) e.getChannel();
+
+            if (e instanceof ChannelStateEvent) {
+                ChannelStateEvent stateEvent = (ChannelStateEvent) e;
+                ChannelState state = stateEvent.getState();
+                Object value = stateEvent.getValue();
+
+                switch (state) {
+                    case OPEN:
+                        if (Boolean.FALSE.equals(value)) {
+                            channel.closeChannel(e.getFuture());
+                        }
+                        break;
+                    case BOUND:
+                        if (value != null) {
+                            channel.bindSockets((InetSocketAddress) value, e.getFuture());
+                        } else {
+                            channel.closeChannel(e.getFuture());
+                        }
+                        break;
+                    default:
+                        e.getFuture().setFailure(new UnsupportedOperationException(state.toString()));
+                        break;
+                }
+            } else if (e instanceof MessageEvent) {
+                channel.queueWrite((MessageEvent) e);
+            }
+        }
+    }
+}
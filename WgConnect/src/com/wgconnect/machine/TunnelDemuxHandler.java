@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.core.message.V4Message;
+import com.wgconnect.core.message.V6Message;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * TunnelDemuxHandler
+ *
+ * Demultiplexes the messages received on the wildcard-bound tunnel socket to their tunnels. The
+ * remote tunnel address of a message identifies its tunnel, so the local tunnel address is found
+ * with a single hash lookup and set on the decoded message in place of the wildcard address.
+ * Messages from an unknown remote tunnel address are dropped.
+ *
+ * The source address is used instead of the IP_PKTINFO/IPV6_PKTINFO destination address, which the
+ * JDK channels cannot read. It identifies the tunnel in the interface layouts with one local address:
+ * - One tunnel per interface: the interface has one peer, whose only allowed address is the remote
+ *   tunnel address, so the source maps to one local tunnel address.
+ * - Server tunnels packed on one interface: the peers share the local tunnel address, so the
+ *   destination address could not tell them apart, but each peer has its own remote tunnel address.
+ * Wireguard only accepts a packet whose source is an allowed address of the peer it came from, and a
+ * reply to the source is routed to one interface and one peer. A remote tunnel address shared by two
+ * tunnels would already break the routing of one of them, so such a collision is logged and the
+ * first tunnel keeps the address.
+ *
+ * Client tunnels packed on another tunnel's interface add their own local tunnel addresses. The
+ * source of a reply from the wildcard socket is the address the route picks, not necessarily the one
+ * the peer allows, so the tunnels of such an interface are bound to their addresses instead.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+@ChannelHandler.Sharable
+public class TunnelDemuxHandler extends SimpleChannelUpstreamHandler {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(TunnelDemuxHandler.class);
+
+    private final Map<InetAddress, InetSocketAddress> localTunnelInetSockAddrs = new ConcurrentHashMap<>();
+
+    public void addTunnel(InetAddress remoteTunnelInetAddr, InetSocketAddress localTunnelInetSockAddr) {
+        InetSocketAddress previous = localTunnelInetSockAddrs.putIfAbsent(remoteTunnelInetAddr, localTunnelInetSockAddr);
+        if (previous != null && !previous.equals(localTunnelInetSockAddr)) {
+            log.error("Remote tunnel address {} is already used by the tunnel of local address {}, not by {}",
+                remoteTunnelInetAddr.getHostAddress(), previous, localTunnelInetSockAddr);
+        }
+    }
+
+    public void removeTunnel(InetAddress remoteTunnelInetAddr, InetSocketAddress localTunnelInetSockAddr) {
+        localTunnelInetSockAddrs.remove(remoteTunnelInetAddr, localTunnelInetSockAddr);
+    }
+
+    public InetSocketAddress getLocalTunnelInetSockAddr(InetAddress remoteTunnelInetAddr) {
+        return localTunnelInetSockAddrs.get(remoteTunnelInetAddr);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived
+     * (org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        SocketAddress remoteAddr = e.getRemoteAddress();
+        InetSocketAddress localAddr = remoteAddr instanceof InetSocketAddress ?
+            localTunnelInetSockAddrs.get(((InetSocketAddress) remoteAddr).getAddress()) : null;
+        if (localAddr == null) {
+            log.info("Dropping a tunnel message from an unknown remote tunnel address {}", remoteAddr);
+            return;
+        }
+
+        Object msg = e.getMessage();
+        if (msg instanceof V4Message) {
+            ((V4Message) msg).setLocalAddress(localAddr);
+        } else if (msg instanceof V6Message) {
+            ((V6Message) msg).setLocalAddress(localAddr);
+        }
+
+        super.messageReceived(ctx, e);
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.WgConnect;
+import com.wgconnect.config.ConnectConfig;
+import com.wgconnect.config.WgDeviceCache;
+import com.wgconnect.config.WgInterfaceInfo;
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.InterfaceNameAllocator;
+import com.wgconnect.core.util.WgConnectLogger;
+import com.wgconnect.db.persistence.PersistenceTunnel;
+import com.wgconnect.gui.Gui;
+
+import com.wgtools.Wg;
+import com.wgtools.WgPeer;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.validator.routines.InetAddressValidator;
+
+/**
+ * TunnelReaper
+ *
+ * Tears down and removes tunnels, and collects the WgConnect interfaces and peers that are left
+ * behind. A teardown sends a Teardown message through the tunnel and removes the tunnel when the
+ * peer replies, or after a timeout. A collection pass reads one snapshot of the devices and finds
+ * the interfaces without peers and the peers without tunnels that have stayed that way for the
+ * grace time, checked again against a fresh dump before they are deleted, and, with a handshake
+ * timeout, the tunnels whose latest handshake is too old. The removals are batched: the peers of
+ * an interface are removed in one device update, the channels of the tunnels are closed, the
+ * address of a tunnel packed onto an interface that keeps other tunnels is removed from it, and an
+ * interface left without tunnels is deleted with its addresses and its name is released.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class TunnelReaper {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(TunnelReaper.class);
+
+    private static TunnelReaper INSTANCE;
+
+    private final long handshakeTimeout;
+    private final ScheduledExecutorService scheduler;
+
+    private final Set<PersistenceTunnel> teardowns = ConcurrentHashMap.newKeySet();
+    private final Set<PersistenceTunnel> pendingReaps = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> firstSeen = new HashMap<>();
+
+    /**
+     * Gets the single instance of TunnelReaper.
+     *
+     * @return single instance of TunnelReaper
+     */
+    public static synchronized TunnelReaper getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new TunnelReaper(WgConnect.getReaperHandshakeTimeout());
+        }
+
+        return INSTANCE;
+    }
+
+    private TunnelReaper(long handshakeTimeout) {
+        this.handshakeTimeout = Math.max(0, handshakeTimeout);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "TunnelReaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::collect, Constants.REAPER_INTERVAL, Constants.REAPER_INTERVAL,
+            TimeUnit.MILLISECONDS);
+
+        log.info("Tunnel reaper: {} s grace time, {} s handshake timeout", Constants.REAPER_GRACE_TIME, handshakeTimeout);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Tears down a tunnel: the peer is sent a Teardown message through the tunnel, and the tunnel is
+     * removed when the peer replies or after the teardown timeout.
+     *
+     * @param tunnel the tunnel
+     */
+    public void teardown(PersistenceTunnel tunnel) {
+        if (!teardowns.add(tunnel)) {
+            return;
+        }
+
+        tunnel.setState(Constants.TUNNEL_STATUS_TEARDOWN);
+        WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS);
+
+        boolean sent = false;
+        if (isV4Tunnel(tunnel)) {
+            V4Machine v4Machine = WgConnect.getV4Machine();
+            sent = v4Machine != null && v4Machine.sendTeardownMessage(tunnel);
+        } else {
+            V6Machine v6Machine = WgConnect.getV6Machine();
+            sent = v6Machine != null && v6Machine.sendTeardownMessage(tunnel);
+        }
+
+        if (!sent) {
+            teardownComplete(tunnel);
+            return;
+        }
+
+        try {
+            scheduler.schedule(() -> teardownComplete(tunnel), Constants.REAPER_TEARDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            teardownComplete(tunnel);
+        }
+    }
+
+    /**
+     * Completes the teardown of a tunnel, on the teardown reply or the timeout, whichever is first.
+     *
+     * @param tunnel the tunnel
+     */
+    public void teardownComplete(PersistenceTunnel tunnel) {
+        if (teardowns.remove(tunnel)) {
+            reap(tunnel);
+        }
+    }
+
+    /**
+     * Queues the removal of a tunnel. The queued tunnels are removed together in one batch.
+     *
+     * @param tunnel the tunnel
+     */
+    public void reap(PersistenceTunnel tunnel) {
+        if (!pendingReaps.add(tunnel)) {
+            return;
+        }
+
+        try {
+            scheduler.execute(this::reapPending);
+        } catch (RejectedExecutionException ex) {
+            reapPending();
+        }
+    }
+
+    /**
+     * Finds the interfaces, peers and tunnels to collect in one snapshot of the devices, and removes
+     * at most one batch of each.
+     */
+    public synchronized void collect() {
+        long now = System.currentTimeMillis();
+
+        Map<String, PersistenceTunnel> tunnels = getTunnelsByKey();
+
+        Set<String> candidates = new HashSet<>();
+        List<String> emptyIfNames = new ArrayList<>();
+        Map<String, List<String>> orphanPeers = new HashMap<>();
+        List<PersistenceTunnel> staleTunnels = new ArrayList<>();
+
+        WgDeviceCache.Snapshot snapshot = WgDeviceCache.getInstance().getSnapshot();
+        for (IPVersion ipVersion : IPVersion.values()) {
+            for (WgInterfaceInfo info : snapshot.getByPrefix(Constants.getTunnelInterfacePrefix(ipVersion))) {
+                String ifName = info.getName();
+                if (WarmInterfacePool.getInstance().isSpare(ifName)) {
+                    continue;
+                }
+
+                if (info.getPeers().isEmpty()) {
+                    // A new interface has no peers until its tunnel is configured, so only collect it after the grace time
+                    if (WgConnect.getTunnelByLocalIfName(ifName) == null &&
+                        isOverdue(ifName, now, Constants.REAPER_GRACE_TIME, candidates)) {
+                        emptyIfNames.add(ifName);
+                    }
+                    continue;
+                }
+
+                for (WgInterfaceInfo.Peer peer : info.getPeers()) {
+                    String peerKey = ifName + " " + peer.getPublicKey();
+                    PersistenceTunnel tunnel = tunnels.get(tunnelKey(info.getLocalPublicKey(), peer.getPublicKey()));
+                    if (tunnel == null) {
+                        if (isOverdue(peerKey, now, Constants.REAPER_GRACE_TIME, candidates)) {
+                            orphanPeers.computeIfAbsent(ifName, k -> new ArrayList<>()).add(peer.getPublicKey());
+                        }
+                    } else if (handshakeTimeout > 0 && !teardowns.contains(tunnel)) {
+                        // A peer that never completed a handshake is timed out from when it was first seen
+                        boolean stale = peer.getLatestHandshake() > 0 ?
+                            now / 1000 - peer.getLatestHandshake() > handshakeTimeout :
+                            isOverdue(peerKey, now, handshakeTimeout, candidates);
+                        if (stale) {
+                            staleTunnels.add(tunnel);
+                        }
+                    }
+                }
+            }
+        }
+        firstSeen.keySet().retainAll(candidates);
+        
+        if (!orphanPeers.isEmpty() || !emptyIfNames.isEmpty()) {
+            recheck(orphanPeers, emptyIfNames);
+        }
+
+        int budget = Constants.REAPER_BATCH_SIZE;
+        for (PersistenceTunnel tunnel : staleTunnels) {
+            if (budget-- <= 0) {
+                break;
+            }
+            log.info("Tearing down the stale tunnel {} on {}", tunnel.getId(), tunnel.getLocalInterfaceName());
+            teardown(tunnel);
+        }
+
+        for (Map.Entry<String, List<String>> entry : orphanPeers.entrySet()) {
+            for (String publicKey : entry.getValue()) {
+                if (budget-- <= 0) {
+                    break;
+                }
+                log.info("Removing the peer {} without a tunnel from {}", publicKey, entry.getKey());
+                PeerConfigBatcher.getInstance().removePeer(entry.getKey(), WgPeer.decodeKey(publicKey));
+                firstSeen.remove(entry.getKey() + " " + publicKey);
+            }
+        }
+
+        for (String ifName : emptyIfNames) {
+            if (budget-- <= 0) {
+                break;
+            }
+            deleteInterface(ifName);
+            firstSeen.remove(ifName);
+        }
+    }
+
+    /**
+     * Checks the interfaces and peers overdue for deletion again against a fresh dump of the devices,
+     * since the snapshot they were found in may predate the tunnel that now uses them.
+     *
+     * @param orphanPeers the peers without tunnels, by interface name
+     * @param emptyIfNames the interfaces without peers
+     */
+    private void recheck(Map<String, List<String>> orphanPeers, List<String> emptyIfNames) {
+        WgDeviceCache.getInstance().invalidate();
+        WgDeviceCache.Snapshot snapshot = WgDeviceCache.getInstance().getSnapshot();
+        Map<String, PersistenceTunnel> tunnels = getTunnelsByKey();
+
+        emptyIfNames.removeIf(ifName -> {
+            WgInterfaceInfo info = snapshot.getByName(ifName);
+            return info == null || !info.getPeers().isEmpty() || WgConnect.getTunnelByLocalIfName(ifName) != null ||
+                WarmInterfacePool.getInstance().isSpare(ifName);
+        });
+
+        orphanPeers.entrySet().removeIf(entry -> {
+            WgInterfaceInfo info = snapshot.getByName(entry.getKey());
+            if (info == null) {
+                return true;
+            }
+
+            Set<String> peerKeys = new HashSet<>();
+            info.getPeers().forEach(peer -> peerKeys.add(peer.getPublicKey()));
+            entry.getValue().removeIf(publicKey -> !peerKeys.contains(publicKey) ||
+                tunnels.containsKey(tunnelKey(info.getLocalPublicKey(), publicKey)));
+
+            return entry.getValue().isEmpty();
+        });
+    }
+
+    private static Map<String, PersistenceTunnel> getTunnelsByKey() {
+        Map<String, PersistenceTunnel> tunnels = new HashMap<>();
+        List<PersistenceTunnel> allTunnels = WgConnect.getAllTunnels();
+        synchronized (allTunnels) {
+            allTunnels.forEach(t -> tunnels.put(tunnelKey(t.getLocalPublicKey(), t.getRemotePublicKey()), t));
+        }
+
+        return tunnels;
+    }
+
+    private synchronized void reapPending() {
+        List<PersistenceTunnel> batch = new ArrayList<>(pendingReaps);
+        pendingReaps.removeAll(batch);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Remove the tunnels first, so that the interfaces left without tunnels are known
+        List<PersistenceTunnel> reaped = new ArrayList<>(batch.size());
+        Set<String> ifNames = new LinkedHashSet<>();
+        for (PersistenceTunnel tunnel : batch) {
+            if (!WgConnect.removeTunnel(tunnel)) {
+                continue;
+            }
+            reaped.add(tunnel);
+
+            if (isV4Tunnel(tunnel)) {
+                V4Machine v4Machine = WgConnect.getV4Machine();
+                if (v4Machine != null) {
+                    v4Machine.removeTunnelDatagramChannel(tunnel);
+                }
+            } else {
+                V6Machine v6Machine = WgConnect.getV6Machine();
+                if (v6Machine != null) {
+                    v6Machine.removeTunnelDatagramChannel(tunnel);
+                }
+            }
+
+            try {
+                ConnectConfig.getInstance().getDatabaseMgr().deleteEntity(tunnel);
+            } catch (Exception ex) {
+                log.error("Unable to delete the tunnel {} from the database: {}", tunnel.getId(), ex.getMessage());
+            }
+
+            WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS);
+            if (tunnel.getLocalInterfaceName() != null) {
+                ifNames.add(tunnel.getLocalInterfaceName());
+            }
+        }
+
+        for (String ifName : ifNames) {
+            if (WgConnect.getTunnelByLocalIfName(ifName) == null) {
+                deleteInterface(ifName);
+            } else {
+                reaped.stream()
+                    .filter(t -> ifName.equals(t.getLocalInterfaceName()) && t.getRemotePublicKey() != null)
+                    .forEach(t -> PeerConfigBatcher.getInstance().removePeer(ifName, WgPeer.decodeKey(t.getRemotePublicKey())));
+                
+                // A tunnel packed onto the interface of another tunnel added its own address, which is removed with it
+                reaped.stream()
+                    .filter(t -> ifName.equals(t.getLocalInterfaceName()) && t.getLocalTunnelInetAddr() != null &&
+                        WgConnect.getTunnelByLocalTunnelInetAddr(t.getLocalTunnelInetAddr()) == null)
+                    .forEach(t -> deleteInterfaceAddr(ifName, t));
+            }
+        }
+
+        log.info("Removed {} tunnels", reaped.size());
+    }
+
+    private void deleteInterface(String ifName) {
+        if (WarmInterfacePool.getInstance().isSpare(ifName)) {
+            return;
+        }
+
+        Wg wg = new Wg();
+        if (wg.deleteDevice(ifName) == Wg.getCommandFailureCode()) {
+            log.error("Unable to delete the interface {}: {}", ifName, wg.getCommandErrorString());
+            return;
+        }
+
+        // The addresses of the interface are removed with it
+        for (IPVersion ipVersion : IPVersion.values()) {
+            String ifPrefix = Constants.getTunnelInterfacePrefix(ipVersion);
+            if (ifName.startsWith(ifPrefix)) {
+                InterfaceNameAllocator.getInstance().release(ifPrefix, ifName);
+            }
+        }
+
+        log.info("Deleted the interface {}", ifName);
+    }
+
+    private void deleteInterfaceAddr(String ifName, PersistenceTunnel tunnel) {
+        int prefixLen = isV4Tunnel(tunnel) ? Constants.V4_SUBNET_MASK_24 : Constants.V6_SUBNET_MASK_64;
+
+        Wg wg = new Wg();
+        if (wg.deleteDeviceInetAddr(ifName, tunnel.getLocalTunnelInetAddr(), Integer.toString(prefixLen)) == Wg.getCommandFailureCode()) {
+            log.error("Unable to remove the address {} from the interface {}: {}", tunnel.getLocalTunnelInetAddr(), ifName,
+                wg.getCommandErrorString());
+            return;
+        }
+
+        log.info("Removed the address {} from the interface {}", tunnel.getLocalTunnelInetAddr(), ifName);
+    }
+
+    private boolean isOverdue(String key, long now, long timeout, Set<String> candidates) {
+        candidates.add(key);
+        Long since = firstSeen.putIfAbsent(key, now);
+
+        return since != null && now - since >= timeout * 1000;
+    }
+
+    private static boolean isV4Tunnel(PersistenceTunnel tunnel) {
+        return InetAddressValidator.getInstance().isValidInet4Address(tunnel.getLocalPhysInetAddr());
+    }
+
+    private static String tunnelKey(String localPublicKey, String remotePublicKey) {
+        return localPublicKey + " " + remotePublicKey;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.WgConnect;
+import com.wgconnect.config.WgDeviceCache;
+import com.wgconnect.config.WgInterfaceInfo;
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+import com.wgconnect.db.persistence.PersistenceTunnel;
+
+import com.wgtools.Wg;
+import com.wgtools.WgDevice;
+import com.wgtools.WgPeer;
+
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressString;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.routines.InetAddressValidator;
+
+/**
+ * TunnelReconciler
+ *
+ * Converges the WireGuard devices on the tunnel registry. A pass computes the desired configuration
+ * of each interface from its tunnels, diffs it against one dump of the devices, and applies only the
+ * difference with one device update per interface, in the manner of syncconf. A peer endpoint is only
+ * set before the first handshake, so that the roaming of a peer is not undone, and the peers without
+ * tunnels are left to the TunnelReaper. A pass runs on a schedule, and shortly after a burst of new
+ * tunnels, which are then applied together.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class TunnelReconciler {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(TunnelReconciler.class);
+
+    private static TunnelReconciler INSTANCE;
+
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile boolean started;
+
+    /**
+     * Gets the single instance of TunnelReconciler.
+     *
+     * @return single instance of TunnelReconciler
+     */
+    public static synchronized TunnelReconciler getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new TunnelReconciler();
+        }
+
+        return INSTANCE;
+    }
+
+    private TunnelReconciler() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "TunnelReconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        started = true;
+        scheduler.scheduleWithFixedDelay(this::reconcile, Constants.RECONCILE_INTERVAL, Constants.RECONCILE_INTERVAL,
+            TimeUnit.MILLISECONDS);
+
+        log.info("Tunnel reconciler: {} ms interval", Constants.RECONCILE_INTERVAL);
+    }
+
+    public void shutdown() {
+        started = false;
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Requests a pass after the debounce delay. The requests made before the pass runs are coalesced
+     * into it, so a burst of new tunnels is reconciled once.
+     */
+    public void requestReconcile() {
+        if (!started || !pending.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            scheduler.schedule(() -> {
+                pending.set(false);
+                reconcile();
+            }, Constants.RECONCILE_DEBOUNCE, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            pending.set(false);
+        }
+    }
+
+    /**
+     * Reconciles the interfaces of the registered tunnels with one dump of the devices.
+     *
+     * @return the number of interfaces updated
+     */
+    public synchronized int reconcile() {
+        Map<String, Map<String, PersistenceTunnel>> desired = new LinkedHashMap<>();
+        List<PersistenceTunnel> allTunnels = WgConnect.getAllTunnels();
+        synchronized (allTunnels) {
+            for (PersistenceTunnel tunnel : allTunnels) {
+                if (tunnel.getLocalInterfaceName() == null || tunnel.getRemotePublicKey() == null ||
+                    StringUtils.equals(tunnel.getState(), Constants.TUNNEL_STATUS_TEARDOWN)) {
+                    continue;
+                }
+                desired.computeIfAbsent(tunnel.getLocalInterfaceName(), k -> new LinkedHashMap<>())
+                    .put(tunnel.getRemotePublicKey(), tunnel);
+            }
+        }
+
+        if (desired.isEmpty()) {
+            return 0;
+        }
+
+        // Reconcile against the current state, not a cached one
+        WgDeviceCache.getInstance().invalidate();
+        WgDeviceCache.Snapshot snapshot = WgDeviceCache.getInstance().getSnapshot();
+
+        int updates = 0;
+        for (Map.Entry<String, Map<String, PersistenceTunnel>> entry : desired.entrySet()) {
+            WgInterfaceInfo info = snapshot.getByName(entry.getKey());
+            if (info == null) {
+                continue;
+            }
+
+            WgDevice device = diff(info, entry.getValue());
+            if (device == null) {
+                continue;
+            }
+
+            Wg wg = new Wg();
+            if (wg.syncDevice(device) == Wg.getCommandFailureCode()) {
+                log.error("Unable to reconcile the interface {}: {}", device.getName(), wg.getCommandErrorString());
+            } else {
+                updates++;
+            }
+        }
+
+        if (updates > 0) {
+            WgDeviceCache.getInstance().invalidate();
+            log.info("Reconciled {} interfaces", updates);
+        }
+
+        return updates;
+    }
+
+    /**
+     * Diffs the desired configuration of an interface against its actual one.
+     *
+     * @param info the actual interface
+     * @param tunnels the tunnels of the interface by remote public key
+     * @return the device update, or null if the interface is up to date
+     */
+    private static WgDevice diff(WgInterfaceInfo info, Map<String, PersistenceTunnel> tunnels) {
+        WgDevice device = new WgDevice(info.getName());
+        boolean changed = false;
+
+        // The tunnels packed onto an interface share its key and listen port
+        PersistenceTunnel first = tunnels.values().iterator().next();
+        byte[] privateKey = WgPeer.decodeKey(first.getLocalPrivateKey());
+        if (privateKey != null && !StringUtils.equals(first.getLocalPrivateKey(), info.getLocalPrivateKey())) {
+            device.setPrivateKey(privateKey);
+            changed = true;
+        }
+        if (first.getLocalPhysInetListenPort() > 0 && first.getLocalPhysInetListenPort() != info.getLocalListenPort()) {
+            device.setListenPort((int) first.getLocalPhysInetListenPort());
+            changed = true;
+        }
+
+        Map<String, WgInterfaceInfo.Peer> actual = new HashMap<>();
+        info.getPeers().forEach(peer -> actual.put(peer.getPublicKey(), peer));
+
+        for (PersistenceTunnel tunnel : tunnels.values()) {
+            WgPeer peer = WgPeer.of(tunnel.getRemotePublicKey(), tunnel.getRemoteTunnelInetAddr(),
+                isV4Tunnel(tunnel) ? Constants.V4_SUBNET_MASK_32 : Constants.V6_SUBNET_MASK_128,
+                tunnel.getRemotePhysInetAddr(), tunnel.getRemotePhysInetListenPort(), WgConnect.getPersistentKeepalive());
+            if (peer == null) {
+                continue;
+            }
+
+            WgInterfaceInfo.Peer current = actual.get(tunnel.getRemotePublicKey());
+            WgPeer update = current != null ? diffPeer(peer, current) : peer;
+            if (update != null) {
+                device.addPeer(update);
+                changed = true;
+            }
+        }
+
+        return changed ? device : null;
+    }
+
+    private static WgPeer diffPeer(WgPeer peer, WgInterfaceInfo.Peer current) {
+        WgPeer update = new WgPeer(peer.getPublicKey());
+        boolean changed = false;
+
+        Set<String> allowedIps = new HashSet<>();
+        peer.getAllowedIps().forEach(a -> allowedIps.add(normalizePrefix(a.getInetAddr().getHostAddress() + "/" + a.getCidr())));
+        Set<String> currentAllowedIps = new HashSet<>();
+        // The allowed IPs of a peer are one comma separated field of the dump
+        for (String field : current.getAllowedIps()) {
+            for (String prefix : StringUtils.split(field, ',')) {
+                currentAllowedIps.add(normalizePrefix(prefix));
+            }
+        }
+        if (!allowedIps.equals(currentAllowedIps)) {
+            update.setReplaceAllowedIps(true);
+            peer.getAllowedIps().forEach(a -> update.addAllowedIp(a.getInetAddr(), a.getCidr()));
+            changed = true;
+        }
+
+        // A peer that has completed a handshake may have roamed, keep its endpoint
+        InetSocketAddress endpoint = peer.getEndpoint();
+        if (endpoint != null && current.getLatestHandshake() == 0 && !isEndpoint(current.getEndpoint(), endpoint)) {
+            update.setEndpoint(endpoint);
+            changed = true;
+        }
+
+        if (peer.getPersistentKeepalive() != WgPeer.PERSISTENT_KEEPALIVE_UNSET &&
+            peer.getPersistentKeepalive() != parseKeepalive(current.getKeepAlive())) {
+            update.setPersistentKeepalive(peer.getPersistentKeepalive());
+            changed = true;
+        }
+
+        return changed ? update : null;
+    }
+
+    private static boolean isEndpoint(WgInterfaceInfo.Endpoint current, InetSocketAddress endpoint) {
+        if (current == null || current.getPort() != endpoint.getPort()) {
+            return false;
+        }
+
+        IPAddress addr = new IPAddressString(current.getAddr()).getAddress();
+
+        return addr != null && addr.toInetAddress().equals(endpoint.getAddress());
+    }
+
+    private static String normalizePrefix(String prefix) {
+        IPAddress addr = new IPAddressString(prefix).getAddress();
+
+        return addr != null ? addr.toPrefixBlock().toCanonicalString() : prefix;
+    }
+
+    private static int parseKeepalive(String keepAlive) {
+        try {
+            return keepAlive != null ? Integer.parseInt(keepAlive.trim()) : 0;
+        } catch (NumberFormatException ex) {
+            // "off"
+            return 0;
+        }
+    }
+
+    private static boolean isV4Tunnel(PersistenceTunnel tunnel) {
+        return InetAddressValidator.getInstance().isValidInet4Address(tunnel.getLocalPhysInetAddr());
+    }
+}
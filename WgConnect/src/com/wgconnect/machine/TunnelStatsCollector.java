@@ -0,0 +1,229 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.WgConnect;
+import com.wgconnect.config.WgInterfaceInfo;
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.Utils;
+import com.wgconnect.core.util.WgConnectLogger;
+import com.wgconnect.db.persistence.PersistenceTunnel;
+import com.wgconnect.gui.Gui;
+
+import com.wgtools.Wg;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * TunnelStatsCollector
+ *
+ * Collects the transfer counters, latest handshakes and fwmarks of the tunnels. Each WgConnect
+ * interface has its own poll interval: an interface whose counters changed is polled again after the
+ * active interval, and the interval of an idle interface doubles up to the idle interval. The due
+ * interfaces are dumped in parallel on a small worker pool, their peers are matched to the tunnels
+ * through a hash index, and only the tunnels whose values changed are updated and refreshed.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class TunnelStatsCollector {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(TunnelStatsCollector.class);
+
+    private static TunnelStatsCollector INSTANCE;
+
+    private final Map<String, InterfaceStats> interfaces = new HashMap<>();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+
+    private static class InterfaceStats {
+        long interval = Constants.STATS_ACTIVE_INTERVAL;
+        long nextPoll;
+        long totals = -1;
+    }
+
+    /**
+     * Gets the single instance of TunnelStatsCollector.
+     *
+     * @return single instance of TunnelStatsCollector
+     */
+    public static synchronized TunnelStatsCollector getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new TunnelStatsCollector();
+        }
+
+        return INSTANCE;
+    }
+
+    private TunnelStatsCollector() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Constants.STATS_WORKER_THREADS, r -> {
+            Thread thread = new Thread(r, "TunnelStatsCollector-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "TunnelStatsCollector");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> collect(false), Constants.STATS_TICK, Constants.STATS_TICK,
+            TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Polls the interfaces that are due, or all of them, and updates their tunnels.
+     *
+     * @param all true to poll every interface regardless of its interval
+     * @return the number of tunnels whose values changed
+     */
+    public synchronized int collect(boolean all) {
+        long now = System.currentTimeMillis();
+
+        List<String> due = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        for (String ifName : listInterfaces()) {
+            present.add(ifName);
+            InterfaceStats stats = interfaces.computeIfAbsent(ifName, k -> new InterfaceStats());
+            if (all || now >= stats.nextPoll) {
+                due.add(ifName);
+            }
+        }
+        interfaces.keySet().retainAll(present);
+
+        if (due.isEmpty()) {
+            return 0;
+        }
+
+        List<Callable<WgInterfaceInfo>> dumps = new ArrayList<>(due.size());
+        due.forEach(ifName -> dumps.add(() -> Utils.getWgIfByName(ifName)));
+
+        List<WgInterfaceInfo> infos = new ArrayList<>(due.size());
+        try {
+            for (Future<WgInterfaceInfo> future : workers.invokeAll(dumps)) {
+                try {
+                    infos.add(future.get());
+                } catch (ExecutionException ex) {
+                    log.info("Unable to dump an interface: " + ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+
+        Map<String, PersistenceTunnel> tunnels = new HashMap<>();
+        List<PersistenceTunnel> allTunnels = WgConnect.getAllTunnels();
+        synchronized (allTunnels) {
+            allTunnels.forEach(t -> tunnels.put(tunnelKey(t.getLocalPublicKey(), t.getRemotePublicKey()), t));
+        }
+
+        int changed = 0;
+        for (WgInterfaceInfo info : infos) {
+            long totals = 0;
+            for (WgInterfaceInfo.Peer peer : info.getPeers()) {
+                totals += peer.getReceivedBandwidth() + peer.getSentBandwidth() + peer.getLatestHandshake();
+
+                PersistenceTunnel tunnel = tunnels.get(tunnelKey(info.getLocalPublicKey(), peer.getPublicKey()));
+                if (tunnel != null && update(tunnel, info, peer)) {
+                    WgConnect.updateTunnel(tunnel);
+                    WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_BANDWIDTHS, Gui.COLUMN_INDEX_MARKERS,
+                        Gui.COLUMN_INDEX_STATUS);
+                    changed++;
+                }
+            }
+
+            InterfaceStats stats = interfaces.get(info.getName());
+            if (stats != null) {
+                stats.interval = totals != stats.totals ? Constants.STATS_ACTIVE_INTERVAL :
+                    Math.min(stats.interval * 2, Constants.STATS_IDLE_INTERVAL);
+                stats.totals = totals;
+                stats.nextPoll = now + stats.interval;
+            }
+        }
+
+        return changed;
+    }
+
+    private static List<String> listInterfaces() {
+        List<String> ifNames = new ArrayList<>();
+
+        String names = new Wg().getInterfaces();
+        if (names != null) {
+            for (String ifName : StringUtils.split(names)) {
+                if (ifName.startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV4)) ||
+                    ifName.startsWith(Constants.getTunnelInterfacePrefix(IPVersion.IPV6))) {
+                    ifNames.add(ifName);
+                }
+            }
+        }
+
+        return ifNames;
+    }
+
+    private static String tunnelKey(String localPublicKey, String remotePublicKey) {
+        return localPublicKey + " " + remotePublicKey;
+    }
+
+    private static boolean update(PersistenceTunnel tunnel, WgInterfaceInfo info, WgInterfaceInfo.Peer peer) {
+        boolean changed = false;
+
+        if (!StringUtils.equals(tunnel.getFwmark(), info.getLocalFwmark())) {
+            tunnel.setFwmark(info.getLocalFwmark());
+            changed = true;
+        }
+        if (tunnel.getSentBandwidth() != peer.getSentBandwidth()) {
+            tunnel.setSentBandwidth(peer.getSentBandwidth());
+            changed = true;
+        }
+        if (tunnel.getReceivedBandwidth() != peer.getReceivedBandwidth()) {
+            tunnel.setReceivedBandwidth(peer.getReceivedBandwidth());
+            changed = true;
+        }
+        if (tunnel.getLatestHandshake() != peer.getLatestHandshake()) {
+            tunnel.setLatestHandshake(peer.getLatestHandshake());
+            changed = true;
+        }
+
+        return changed;
+    }
+}
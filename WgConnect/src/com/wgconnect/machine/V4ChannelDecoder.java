@@ -18,6 +18,7 @@
 package com.wgconnect.machine;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
@@ -46,13 +47,22 @@ public class V4ChannelDecoder extends OneToOneDecoder {
 
     protected InetSocketAddress localSocketAddress = null;
 
-    protected InetSocketAddress remoteSocketAddress = null;
+    // Kept per thread, the sharded transport delivers the datagrams of a channel on several receive threads
+    protected final ThreadLocal<InetSocketAddress> remoteSocketAddress = new ThreadLocal<>();
 
     protected boolean ignoreSelfPackets;
 
+    protected PacketClassifier packetClassifier;
+
     public V4ChannelDecoder(InetSocketAddress localSocketAddress, boolean ignoreSelfPackets) {
+        this(localSocketAddress, ignoreSelfPackets, null);
+    }
+
+    public V4ChannelDecoder(InetSocketAddress localSocketAddress, boolean ignoreSelfPackets,
+        PacketClassifier packetClassifier) {
         this.localSocketAddress = localSocketAddress;
         this.ignoreSelfPackets = ignoreSelfPackets;
+        this.packetClassifier = packetClassifier;
     }
 
     /*
@@ -64,8 +74,17 @@ public class V4ChannelDecoder extends OneToOneDecoder {
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
         if (msg instanceof ChannelBuffer) {
+            InetSocketAddress remoteSocketAddress = this.remoteSocketAddress.get();
             ChannelBuffer buf = (ChannelBuffer) msg;
-            V4Message dhcpMessage = V4Message.decode(buf.toByteBuffer(), localSocketAddress, remoteSocketAddress);
+            ByteBuffer byteBuf = buf.toByteBuffer();
+            
+            // Drop self-originated and irrelevant packets before decoding them
+            if (packetClassifier != null && !packetClassifier.accept(byteBuf,
+                remoteSocketAddress != null ? remoteSocketAddress.getAddress() : null, ignoreSelfPackets, false)) {
+                return null;
+            }
+            
+            V4Message dhcpMessage = V4Message.decode(byteBuf, localSocketAddress, remoteSocketAddress);
 
             return dhcpMessage;
         } else {
@@ -81,7 +100,7 @@ public class V4ChannelDecoder extends OneToOneDecoder {
     @Override
     public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent evt) throws Exception {
         if (evt instanceof MessageEvent) {
-            remoteSocketAddress = (InetSocketAddress) ((MessageEvent) evt).getRemoteAddress();
+            remoteSocketAddress.set((InetSocketAddress) ((MessageEvent) evt).getRemoteAddress());
         }
         
         super.handleUpstream(ctx, evt);
@@ -32,20 +32,21 @@ import com.wgconnect.machine.processor.V4DiscoverProcessor;
 import com.wgconnect.machine.processor.V4PingProcessor;
 
 import com.wgtools.Wg;
+import com.wgtools.WgPeer;
 
 import inet.ipaddr.AddressStringException;
+import inet.ipaddr.IPAddress;
 import inet.ipaddr.IPAddress.IPVersion;
 import inet.ipaddr.IPAddressString;
 import inet.ipaddr.ipv4.IPv4Address;
 import inet.ipaddr.ipv4.IPv4AddressSegment;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.sql.Timestamp;
@@ -57,12 +58,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -78,10 +82,7 @@ import org.jboss.netty.channel.socket.DatagramChannel;
 import org.jboss.netty.channel.socket.DatagramChannelFactory;
 import org.jboss.netty.channel.socket.InternetProtocolFamily;
 import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
-import org.jboss.netty.handler.execution.ExecutionHandler;
-import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.logging.LoggingHandler;
-import com.wgtools.DeviceManagerInterface;
 
 /**
  * V4Machine
@@ -123,6 +124,23 @@ public class V4Machine implements Runnable {
 
     protected String tunnelNetwork = null;
     
+    protected CookieChecker cookieChecker = new CookieChecker();
+    protected AtomicInteger pendingServerMachines = new AtomicInteger();
+    
+    protected RateLimiter unicastRateLimiter = new RateLimiter(NAME + "-unicast",
+        Constants.RATE_LIMIT_UNICAST_RATE, Constants.RATE_LIMIT_UNICAST_BURST,
+        Constants.RATE_LIMIT_V4_PREFIX_LEN, Constants.RATE_LIMIT_V6_PREFIX_LEN);
+    protected RateLimiter multicastRateLimiter = new RateLimiter(NAME + "-multicast",
+        Constants.RATE_LIMIT_MULTICAST_RATE, Constants.RATE_LIMIT_MULTICAST_BURST,
+        Constants.RATE_LIMIT_V4_PREFIX_LEN, Constants.RATE_LIMIT_V6_PREFIX_LEN);
+    protected RateLimitHandler rateLimitHandler = new RateLimitHandler(unicastRateLimiter);
+    
+    protected PacketClassifier packetClassifier = new PacketClassifier(IPVersion.IPV4, WgConnect.getAllV4InetAddrs());
+    
+    protected TunnelDemuxHandler tunnelDemuxHandler = new TunnelDemuxHandler();
+    
+    protected McastSender mcastSender = new McastSender(IPVersion.IPV4);
+    
     LinkedBlockingQueue<Integer> doneQueue = new LinkedBlockingQueue<>();
     
     private static V4Machine v4Machine;
@@ -171,7 +189,13 @@ public class V4Machine implements Runnable {
         
         log.info("Starting V4 machine on {}-{} at: {}", localPhysInetAddrs, localPort, LocalDateTime.now());
 
-        factory = new NioDatagramChannelFactory(Executors.newCachedThreadPool(), InternetProtocolFamily.IPv4);
+        if (Constants.TRANSPORT_REUSEPORT.equalsIgnoreCase(WgConnect.getTransport())) {
+            log.info("Using the {} transport with {} sockets per address", Constants.TRANSPORT_REUSEPORT,
+                WgConnect.getReusePortSockets());
+            factory = new ReusePortDatagramChannelFactory(StandardProtocolFamily.INET, WgConnect.getReusePortSockets());
+        } else {
+            factory = new NioDatagramChannelFactory(Executors.newCachedThreadPool(), InternetProtocolFamily.IPv4);
+        }
         
         machineDispatcher = new MachineDispatcher();
         machineDispatcher.start();
@@ -203,6 +227,7 @@ public class V4Machine implements Runnable {
         
         log.info("Closing channels...");
         channels.forEach((k, v) -> v.close());
+        mcastSender.shutdown();
         log.info("Done.");
     }
     
@@ -210,50 +235,49 @@ public class V4Machine implements Runnable {
         doneQueue.add(Constants.THREAD_MESSAGE_STOP);
     }
     
-    public void processMulticastDiscoverMessage(DatagramPacket packet, byte[] buffer, int len) {
+    public void processMulticastDiscoverMessage(InetSocketAddress remoteSockAddr, ByteBuffer buf) {
+        if (!multicastRateLimiter.tryAcquire(remoteSockAddr.getAddress())) {
+            return;
+        }
+        
+        // Classify before decoding: drop our own and irrelevant packets
+        if (!packetClassifier.accept(buf, remoteSockAddr.getAddress(), true, true)) {
+            return;
+        }
+        
         try {
+            // Decode once and fan out to the local addresses
+            V4Message discoverMsg = V4Message.decode(buf, null, remoteSockAddr);
+            if (discoverMsg == null || packetClassifier.isLocalInetAddr(discoverMsg.getClientAddr())) {
+                return;
+            }
+            
+            RemotePhysInetAddrOption remotePhysInetAddrOption =
+                (RemotePhysInetAddrOption) discoverMsg.getOption(Constants.OPTION_REMOTE_PHYS_INET_ADDR);
+            RemotePhysInetComPortOption remotePhysInetComPortOption =
+                (RemotePhysInetComPortOption) discoverMsg.getOption(Constants.OPTION_REMOTE_PHYS_INET_COM_PORT);
+            if (remotePhysInetAddrOption == null || remotePhysInetComPortOption == null) {
+                log.info("A received multicast message is missing required options");
+                return;
+            }
+            
+            if (packetClassifier.isLocalInetAddr(new IPAddressString(
+                remotePhysInetAddrOption.getIpAddress()).toAddress().toInetAddress())) {
+                return;
+            }
+            
+            InetSocketAddress remoteSockInetAddr = new InetSocketAddress(discoverMsg.getClientAddr(),
+                (int) discoverMsg.getClientPort());
+            
             for (InetAddress addr : localPhysInetAddrs) {
-                if (WgConnect.isLocalV4Addr(packet.getAddress().getHostAddress())) {
-                    continue;
-                }
-                
-                InetSocketAddress serverInetSockAddr = new InetSocketAddress(addr, localPort);
-                V4Message msg = V4Message.decode(ByteBuffer.wrap(buffer, 0, len),
-                    serverInetSockAddr, new InetSocketAddress(packet.getAddress().getHostAddress(), packet.getPort()));
-                
-                if (WgConnect.isLocalV4Addr(msg.getClientAddr().getHostAddress())) {
+                if (WgConnect.getTunnelByLocalAndRemotePhysInetAddr(addr.getHostAddress(),
+                    discoverMsg.getClientAddr().getHostAddress()) != null) {
                     continue;
                 }
                 
-                RemotePhysInetAddrOption remotePhysInetAddrOption =
-                    (RemotePhysInetAddrOption) msg.getOption(Constants.OPTION_REMOTE_PHYS_INET_ADDR);
-                RemotePhysInetComPortOption remotePhysInetComPortOption =
-                    (RemotePhysInetComPortOption) msg.getOption(Constants.OPTION_REMOTE_PHYS_INET_COM_PORT);
-                if (remotePhysInetAddrOption != null && remotePhysInetComPortOption != null) {
-                    if (WgConnect.isLocalV6Addr(msg.getRemoteAddress().getAddress().getHostAddress()) ||
-                        WgConnect.isLocalV6Addr(remotePhysInetAddrOption.getIpAddress())) {
-                        return;
-                    }
-                
-                    InetSocketAddress remotePhysInetSockAddr = new InetSocketAddress(new IPAddressString(
-                        remotePhysInetAddrOption.getIpAddress()).toAddress().toInetAddress(),
-                        (int) remotePhysInetComPortOption.getUnsignedInt());
-                    msg.setRemoteAddress(remotePhysInetSockAddr);
-                } else {
-                    log.info("A received multicast message is missing required options");
-                    return;
-                }
-                
-                msg.setServerAddr(serverInetSockAddr.getAddress());
-                msg.setServerPort(serverInetSockAddr.getPort());
-                
-                if (WgConnect.getTunnelByLocalAndRemotePhysInetAddr(msg.getServerAddr().getHostAddress(),
-                    msg.getClientAddr().getHostAddress()) != null) {
-                    continue;
-                }
-
-                InetSocketAddress remoteSockInetAddr = new InetSocketAddress(msg.getClientAddr(), (int) msg.getClientPort());
-                msg.setRemoteAddress(remoteSockInetAddr);
+                V4Message msg = discoverMsg.copy(new InetSocketAddress(addr, localPort), remoteSockInetAddr);
+                msg.setServerAddr(addr);
+                msg.setServerPort(localPort);
                 
                 machineDispatcher.dispatch(msg);
             }
@@ -262,6 +286,14 @@ public class V4Machine implements Runnable {
         }
     }
 
+    public RateLimiter getUnicastRateLimiter() {
+        return unicastRateLimiter;
+    }
+    
+    public RateLimiter getMulticastRateLimiter() {
+        return multicastRateLimiter;
+    }
+    
     public String getTunnelNetwork() {
         return tunnelNetwork;
     }
@@ -393,6 +425,29 @@ public class V4Machine implements Runnable {
             return match;
         }
         
+        private boolean checkDiscoverCookie(V4Message discoverMsg) {
+            if (!cookieChecker.isUnderLoad(pendingServerMachines.get())) {
+                return true;
+            }
+            
+            CookieOption cookieOption = (CookieOption) discoverMsg.getOption(Constants.OPTION_COOKIE);
+            if (cookieOption != null && cookieChecker.isValidCookie(cookieOption.getString(), discoverMsg.getRemoteAddress())) {
+                return true;
+            }
+            
+            V4Message msg = buildCookieReplyMessage(discoverMsg);
+            if (msg != null) {
+                DatagramChannel c = getDatagramChannelByInetAddr(discoverMsg.getServerAddr().getHostAddress());
+                if (c != null) {
+                    c.write(msg, msg.getRemoteAddress());
+                } else {
+                    log.error("Could not find a DatagramChannel for inet address {}", discoverMsg.getServerAddr().getHostAddress());
+                }
+            }
+            
+            return false;
+        }
+        
         @Override
         public void run() {
             while (true) {
@@ -408,10 +463,37 @@ public class V4Machine implements Runnable {
                         
                         short msgType = v4Msg.getMessageType();
                         short msgSender = v4Msg.getMessageSender();
+                        
+                        // The teardown messages are handled without a machine
+                        if (msgType == Constants.V4_MESSAGE_TYPE_TEARDOWN || msgType == Constants.V4_MESSAGE_TYPE_TEARDOWN_REPLY) {
+                            processTeardownMessage(v4Msg);
+                            continue;
+                        }
+                        
+                        // The tunnel info messages are exchanged through the tunnels without a machine
+                        if (msgType == Constants.V4_MESSAGE_TYPE_INFO_REQUEST) {
+                            processTunnelsInfoRequestMessage(v4Msg);
+                            continue;
+                        }
+                        if (msgType == Constants.V4_MESSAGE_TYPE_INFO_REQUEST_REPLY) {
+                            processTunnelsInfoReplyMessage(v4Msg);
+                            continue;
+                        }
+                        
                         switch (msgSender) {
                             case Constants.V4_MESSAGE_SENDER_CLIENT:
                                 ServerMachine sm;
                                 if (serverMachine == null || !machineMatchesV4Msg(serverMachine, v4Msg)) {
+                                    // Only a discover allocates a server machine, and under load only with a valid cookie
+                                    if (msgType != Constants.V4_MESSAGE_TYPE_DISCOVER) {
+                                        log.debug("Dropped client message type {} without a server machine", msgType);
+                                        break;
+                                    }
+                                    if (!checkDiscoverCookie(v4Msg)) {
+                                        break;
+                                    }
+                                    
+                                    pendingServerMachines.getAndIncrement();
                                     sm = new ServerMachine((int) v4Msg.getTransactionId(),
                                         new InetSocketAddress(v4Msg.getServerAddr(), (int) v4Msg.getServerPort()),
                                         v4Msg.getRemoteAddress(), tunnelNetwork);
@@ -438,12 +520,6 @@ public class V4Machine implements Runnable {
                                         sm.replySemaphore.release();
                                         break;
                                         
-                                    case Constants.V4_MESSAGE_TYPE_INFO_REQUEST:
-                                        if (!sm.configInfoMsgQueue.add(v4Msg)) {
-                                            log.error("Unable to add the message " + v4Msg + " to the config info message queue");
-                                        }
-                                        break;
-                                        
                                     default:
                                         log.info("Received unhandled client message type: " + v4Msg.getMessageType());
                                         break;
@@ -482,6 +558,11 @@ public class V4Machine implements Runnable {
                                         cm.replySemaphore.release();
                                         break;
                                         
+                                    case Constants.V4_MESSAGE_TYPE_COOKIE_REPLY:
+                                        cm.cookieMsg = v4Msg;
+                                        cm.replySemaphore.release();
+                                        break;
+                                        
                                     default:
                                         log.info("Received unhandled server message type: " + v4Msg.getMessageType());
                                         break;
@@ -556,6 +637,10 @@ public class V4Machine implements Runnable {
         
         int state = 0;
         
+        // The continuation of a machine suspended until a future completes
+        volatile Runnable continuation = null;
+        volatile boolean suspended = false;
+        
         public String getName() {
             return NAME + "-" + localPhysInetSockAddr.getAddress().getHostAddress() + "-" +
                 StringUtils.substringAfterLast(remotePhysInetSockAddr.getAddress().getHostAddress(), IPv4Address.SEGMENT_SEPARATOR);
@@ -628,6 +713,49 @@ public class V4Machine implements Runnable {
             this.persistenceTunnel = persistenceTunnel;
         }
         
+        /**
+         * Continues the machine with the result of a future. A pending future suspends the machine,
+         * so the machine executor serves the other machines, and the machine is dispatched again to
+         * run the continuation once the future completes.
+         *
+         * @param future the future
+         * @param next the continuation, which gets null if the future failed
+         */
+        <T> void continueWith(CompletableFuture<T> future, Consumer<T> next) {
+            if (future.isDone()) {
+                next.accept(future.handle((result, ex) -> ex == null ? result : null).join());
+                return;
+            }
+            
+            suspended = true;
+            future.whenComplete((result, ex) -> {
+                if (ex != null) {
+                    log.error("{} failed: {}", getName(), ex.toString());
+                }
+                continuation = () -> {
+                    suspended = false;
+                    next.accept(ex == null ? result : null);
+                };
+                machineDispatcher.dispatch(this);
+            });
+        }
+        
+        /**
+         * Runs the continuation of a suspended machine.
+         *
+         * @return true if the machine had a continuation
+         */
+        boolean runContinuation() {
+            Runnable next = continuation;
+            if (next == null) {
+                return false;
+            }
+            
+            continuation = null;
+            next.run();
+            return true;
+        }
+        
         public PersistenceTunnel getPersistenceTunnel() {
             return persistenceTunnel;
         }
@@ -674,6 +802,9 @@ public class V4Machine implements Runnable {
     	V4Message offerMsg;
     	V4Message ackMsg;
         V4Message pingReplyMsg;
+        V4Message cookieMsg;
+        
+        int cookieRetries = 0;
         
         public ClientMachine(Integer id, InetSocketAddress localInetSockAddr, InetSocketAddress remoteInetSockAddr, int state) {
             NAME = "ClientMachine";
@@ -699,34 +830,37 @@ public class V4Machine implements Runnable {
         public void run() {
             clientMachine = this;
             
-            switch (state) {
-                case Constants.V4_MESSAGE_TYPE_DISCOVER:
-                    discover();
-                    break;
+            if (!runContinuation()) {
+                switch (state) {
+                    case Constants.V4_MESSAGE_TYPE_DISCOVER:
+                        discover();
+                        break;
 
-                case Constants.V4_MESSAGE_TYPE_OFFER:
-                    waitForOffer();
-                    break;
+                    case Constants.V4_MESSAGE_TYPE_OFFER:
+                    case Constants.V4_MESSAGE_TYPE_COOKIE_REPLY:
+                        waitForOffer();
+                        break;
 
-                case Constants.V4_MESSAGE_TYPE_REQUEST:
-                    request();
-                    break;
+                    case Constants.V4_MESSAGE_TYPE_REQUEST:
+                        request();
+                        break;
 
-                case Constants.V4_MESSAGE_TYPE_ACK:
-                    waitForAck();
-                    break;
+                    case Constants.V4_MESSAGE_TYPE_ACK:
+                        waitForAck();
+                        break;
 
-                case Constants.V4_MESSAGE_TYPE_TUNNEL_PING:
-                    tunnelPing();
-                    break;
+                    case Constants.V4_MESSAGE_TYPE_TUNNEL_PING:
+                        tunnelPing();
+                        break;
 
-                case Constants.V4_MESSAGE_TYPE_TUNNEL_PING_REPLY:
-                    waitForTunnelPingReply();
-                    break;
+                    case Constants.V4_MESSAGE_TYPE_TUNNEL_PING_REPLY:
+                        waitForTunnelPingReply();
+                        break;
 
-                default:
-                    log.info("Unknown client state: " + state);
-                    break;
+                    default:
+                        log.info("Unknown client state: " + state);
+                        break;
+                }
             }
 
             clientMachine = null;
@@ -736,12 +870,9 @@ public class V4Machine implements Runnable {
             v4Msg = buildDiscoverMessage(this);
 
             if (Utils.isMulticastAddress(remotePhysInetSockAddr.getAddress().getHostAddress())) {
-                try {                    
-                    DatagramSocket dataSock = new DatagramSocket();
-
-                    byte[] msgBytes = v4Msg.encode().array();
-                    dataSock.send(new DatagramPacket(msgBytes, msgBytes.length,
-                        remotePhysInetSockAddr.getAddress(), remotePhysInetSockAddr.getPort()));
+                try {
+                    // Queued for the next multicast burst of the long-lived sender of the local address
+                    mcastSender.send(localPhysInetSockAddr.getAddress(), remotePhysInetSockAddr, v4Msg.encode());
                 } catch (IOException ex) {
                     log.info(ex.getMessage());
                 }
@@ -769,6 +900,13 @@ public class V4Machine implements Runnable {
                         log.info("Discover timeout after {} seconds, retrying...", WAIT_FOR_REPLY_TIME);
                         discover();
                     }
+                } else if (offerMsg == null && cookieMsg != null) {
+                    // The server is under load: repeat the discover with the cookie
+                    if (cookieRetries++ < Constants.MAX_COOKIE_RETRIES) {
+                        discover();
+                    } else {
+                        log.info("Discover cookie retries exceeded for {}", getRemotePhysInetAddr());
+                    }
                 } else {
                     state = Constants.V4_MESSAGE_TYPE_OFFER;
                     
@@ -786,36 +924,40 @@ public class V4Machine implements Runnable {
                         offerMsg.getRemoteAddress().getPort());
                 }
                 
-                MessageInfo info = buildRequestMessage(this, offerMsg);
-                if (info != null) {                    
-                    v4Msg = info.getMessage();
-                    
-                    DatagramChannel c = channels.get(localPhysInetSockAddr.getAddress().getHostAddress());
-                    if (c != null) {
-                        ChannelFuture future = c.write(v4Msg, remotePhysInetSockAddr);
-                        future.addListener(this);
-                    } else {
-                        log.error("Could not find a DatagramChannel for inet address {}", localPhysInetSockAddr.getAddress().getHostAddress());
-                    }
-                    
-                    GenericResponseOption offerResponseOption = (GenericResponseOption) v4Msg.getOption(Constants.OPTION_GENERIC_RESPONSE);
-                    switch ((int)offerResponseOption.getUnsignedInt()) {
-                        case Constants.RESPONSE_DECLINE_REDUNDANT_PUBLIC_KEY:
-                        case Constants.RESPONSE_DECLINE_TUNNEL_NETWORK:
-                            waitForOffer();
-                            break;
-                            
-                        case Constants.RESPONSE_ACCEPT:
-                        default:
-                            state = Constants.V4_MESSAGE_TYPE_REQUEST;
-                            waitForAck();
-                            break;
-                    }
+                // The tunnel peer is applied with the next peer batch before the request is sent
+                continueWith(buildRequestMessage(this, offerMsg), this::sendRequest);
+            } else {
+                log.error("Offer error");
+            }
+        }
+
+        private void sendRequest(MessageInfo info) {
+            if (info != null) {
+                v4Msg = info.getMessage();
+                
+                DatagramChannel c = channels.get(localPhysInetSockAddr.getAddress().getHostAddress());
+                if (c != null) {
+                    ChannelFuture future = c.write(v4Msg, remotePhysInetSockAddr);
+                    future.addListener(this);
                 } else {
-                    log.error("Request error");
+                    log.error("Could not find a DatagramChannel for inet address {}", localPhysInetSockAddr.getAddress().getHostAddress());
+                }
+                
+                GenericResponseOption offerResponseOption = (GenericResponseOption) v4Msg.getOption(Constants.OPTION_GENERIC_RESPONSE);
+                switch ((int)offerResponseOption.getUnsignedInt()) {
+                    case Constants.RESPONSE_DECLINE_REDUNDANT_PUBLIC_KEY:
+                    case Constants.RESPONSE_DECLINE_TUNNEL_NETWORK:
+                        waitForOffer();
+                        break;
+                        
+                    case Constants.RESPONSE_ACCEPT:
+                    default:
+                        state = Constants.V4_MESSAGE_TYPE_REQUEST;
+                        waitForAck();
+                        break;
                 }
             } else {
-                log.error("Offer error");
+                log.error("Request error");
             }
         }
 
@@ -841,7 +983,7 @@ public class V4Machine implements Runnable {
             if (ackMsg != null) {
                 MessageInfo info = buildTunnelPingMessage(this, ackMsg);
                 if (info != null) {
-                    DatagramChannel c = addDatagramChannel(info.getTunnel().getLocalTunnelInetSockAddr());
+                    DatagramChannel c = addTunnelDatagramChannel(info.getTunnel());
                     
                     v4Msg = info.getMessage();
                     ChannelFuture future = c.write(v4Msg, v4Msg.getRemoteAddress());
@@ -931,7 +1073,6 @@ public class V4Machine implements Runnable {
         AtomicInteger tunnelPingRepliesSent = new AtomicInteger();
 
         LinkedBlockingQueue<V4Message> discoverMsgQueue = new LinkedBlockingQueue<>();
-        LinkedBlockingQueue<V4Message> configInfoMsgQueue = new LinkedBlockingQueue<>();
 
         V4Message discoverMsg;
         V4Message requestMsg;
@@ -957,7 +1098,15 @@ public class V4Machine implements Runnable {
         public void run() {
             serverMachine = this;
             
-            waitForDiscover();
+            try {
+                if (!runContinuation()) {
+                    waitForDiscover();
+                }
+            } finally {
+                if (!suspended) {
+                    pendingServerMachines.getAndDecrement();
+                }
+            }
             
             serverMachine = null;
         }
@@ -1028,7 +1177,19 @@ public class V4Machine implements Runnable {
         }
 
         private void ack() {
-            v4Msg = new V4RequestProcessor(this, requestMsg, requestMsg.getRemoteAddress().getAddress()).processMessage();
+            V4RequestProcessor processor = new V4RequestProcessor(this, requestMsg, requestMsg.getRemoteAddress().getAddress());
+            v4Msg = processor.processMessage();
+            if (processor.getPeerResult() != null) {
+                // The ack of an accepted request is sent once the peer batch of its tunnel was applied
+                continueWith(processor.getPeerResult(), exitCode -> sendAck(processor.processPeerResult(exitCode)));
+                return;
+            }
+            
+            sendAck(v4Msg);
+        }
+        
+        private void sendAck(V4Message ackMsg) {
+            v4Msg = ackMsg;
             if (v4Msg != null) {
                 DatagramChannel c = channels.get(localPhysInetSockAddr.getAddress().getHostAddress());
                 if (c != null) {
@@ -1095,23 +1256,6 @@ public class V4Machine implements Runnable {
             state = Constants.V4_MESSAGE_TYPE_TUNNEL_PING_REPLY;
         }
         
-        private void tunnelsInfoRequestReply(V4Message infoRequestMsg) {
-            if (infoRequestMsg != null) {
-                List<MessageInfo> infoMsgs = buildPeerTunnelsInfoRequestReplyMessage(this, infoRequestMsg);
-                
-                if (!infoMsgs.isEmpty()) {
-                    for (MessageInfo info : infoMsgs) {
-                        state = Constants.V4_MESSAGE_TYPE_INFO_REQUEST;
-
-                        v4Msg = info.getMessage();
-                        ChannelFuture future = getDatagramChannelByInetAddr(info.getTunnel().getLocalPhysInetAddr())
-                            .write(v4Msg, v4Msg.getRemoteAddress());
-                        future.addListener(this);
-                    }
-                }
-            }
-        }
-    
         /* (non-Javadoc)
          * @see org.jboss.netty.channel.ChannelFutureListener#operationComplete(org.jboss.netty.channel.ChannelFuture)
          */
@@ -1145,9 +1289,10 @@ public class V4Machine implements Runnable {
     // end of ServerMachine
     
     /*
-     *  Create and initialize a tunnel element
+     *  Create and initialize a tunnel element. The future completes once the peer of the tunnel
+     *  was applied.
      */
-    public synchronized PersistenceTunnel createTunnelAsClient(String remoteEndpointType, String tunnelId, int clientId,
+    public synchronized CompletableFuture<PersistenceTunnel> createTunnelAsClient(String remoteEndpointType, String tunnelId, int clientId,
         String remotePhysInetAddr, String localPhysInetAddr, String remoteTunnelInetAddr, String localTunnelInetAddr,
         String remotePublicKey, long remoteListenPort, long remoteTunnelInetComPort, String tunnelNet, 
         String remoteInterfaceName, boolean force) {
@@ -1180,12 +1325,16 @@ public class V4Machine implements Runnable {
         
         Wg wg = new Wg();
         int exitCode;
+        WgPeer peer = null;
         
         PersistenceTunnel referenceTunnel = WgConnect.getTunnelByLocalTunnelInetAddr(localTunnelInetAddr);
+        if (referenceTunnel == null && PeerPackingPolicy.isEnabled()) {
+            referenceTunnel = PeerPackingPolicy.getHostTunnel(localPhysInetAddr, tunnelNet, IPVersion.IPV4);
+        }
         if (force || referenceTunnel == null) {
             // Check for an existing WgConnect V4 device that is not in wgConnectTunnels
             String ifName = Utils.getAnyExistingWgConnectIfByPrefix(Constants.getTunnelInterfacePrefix(IPVersion.IPV4));
-            if (WgConnect.getTunnelByLocalIfName(ifName) != null ||
+            if (WgConnect.getTunnelByLocalIfName(ifName) != null || WarmInterfacePool.getInstance().isSpare(ifName) ||
                 Utils.getWgConnectIfByPrefixAndEndpointAddr(Constants.getTunnelInterfacePrefix(IPVersion.IPV4), remotePhysInetAddr) != null) {
                 force = true;
             }
@@ -1208,76 +1357,38 @@ public class V4Machine implements Runnable {
                     tunnel.setLocalPhysInetListenPort(listenPort);
                 } else {
                     log.error("Unable to obtain the listen port for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
+                    return CompletableFuture.completedFuture(null);
                 }
             } else {
-                // Generate the v4 interface name
-                ifName = Utils.getNextAvailableNetIfName(Constants.getTunnelInterfacePrefix(IPVersion.IPV4), -1);
-                tunnel.setLocalInterfaceName(ifName);
-                tunnel.setLocalTunnelInetComPort(localPort);
-
-                if (!wg.generateKeys()) {
-                    log.error("Unable to generate WgConnectV4 cryptographic keys");
-                    return null;
+                // Take a spare v4 interface, already keyed and up, from the warm interface pool
+                WarmInterfacePool.Spare spare = WarmInterfacePool.getInstance().take(IPVersion.IPV4);
+                if (spare == null) {
+                    log.error("Unable to add a WgConnect V4 device");
+                    return CompletableFuture.completedFuture(null);
                 }
 
-                tunnel.setLocalPublicKey(wg.getPublicKey());
-                tunnel.setLocalPrivateKey(wg.getPrivateKey());
-
-                if (tunnel.getLocalPrivateKey() == null || tunnel.getLocalPublicKey() == null) {
-                    log.error("Unable to generate or retrieve WgConnect V4 crytographic keys");
-                    return null;
-                }
-
-                // Add, configure, and bring up the WgConnect network link device
-                exitCode = wg.addDevice(tunnel.getLocalInterfaceName());
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to add the WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
+                tunnel.setLocalInterfaceName(spare.getIfName());
+                tunnel.setLocalTunnelInetComPort(localPort);
+                tunnel.setLocalPublicKey(spare.getPublicKey());
+                tunnel.setLocalPrivateKey(spare.getPrivateKey());
+                tunnel.setLocalPhysInetListenPort(spare.getListenPort());
 
+                // Assign the tunnel address to the WgConnect network link device
                 exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(), tunnel.getLocalTunnelInetAddr(),
                     Integer.toString(Constants.V4_SUBNET_MASK_24));
                 if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the inet address for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                exitCode = wg.setInterfacePrivateKey(tunnel.getLocalInterfaceName(), tunnel.getLocalPrivateKey());
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set private key for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                wg.setDeviceState(tunnel.getLocalInterfaceName(), DeviceManagerInterface.InterfaceDeviceState.UP);
-                if (wg.getCommandExitCode() == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the link state for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                // Get the listen port for the new link
-                long listenPort = wg.getInterfaceListenPort(tunnel.getLocalInterfaceName());
-                if (listenPort > 0) {
-                    tunnel.setLocalPhysInetListenPort(listenPort);
-                } else {
-                    log.error("Unable to obtain the listen-port for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
+                    log.error("Unable to set the address of the WgConnect device " + tunnel.getLocalInterfaceName());
+                    WarmInterfacePool.getInstance().discard(spare);
+                    return CompletableFuture.completedFuture(null);
                 }
 
-                exitCode = wg.setInterfaceConfigParameters(tunnel.getLocalInterfaceName(),
-                    Wg.OPTION_PEER, tunnel.getRemotePublicKey(),
-                    Wg.OPTION_ALLOWED_IPS, tunnel.getRemoteTunnelInetAddr() + IPv4Address.PREFIX_LEN_SEPARATOR + Constants.V4_SUBNET_MASK_32,
-                    Wg.OPTION_ENDPOINT, tunnel.getRemotePhysInetAddr() + ":" + tunnel.getRemotePhysInetListenPort(),
-                    Wg.OPTION_PERSISTENT_KEEPALIVE, Integer.toString(WgConnect.getPersistentKeepalive()));
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the peer configuration for the device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
+                peer = WgPeer.of(tunnel.getRemotePublicKey(), tunnel.getRemoteTunnelInetAddr(), Constants.V4_SUBNET_MASK_32,
+                    tunnel.getRemotePhysInetAddr(), tunnel.getRemotePhysInetListenPort(), WgConnect.getPersistentKeepalive());
 
                 // Add the tunnel to the datachannels
                 tunnel.setLocalTunnelInetSockAddr(new InetSocketAddress(tunnel.getLocalTunnelInetAddr(),
                     (int) tunnel.getLocalTunnelInetComPort()));
-                addDatagramChannel(tunnel.getLocalTunnelInetSockAddr());
+                addTunnelDatagramChannel(tunnel);
                 
                 // Add the tunnel to the GUI
                 WgConnect.guiAddTunnel(tunnel);
@@ -1285,7 +1396,16 @@ public class V4Machine implements Runnable {
         } else {
             tunnel.setLocalInterfaceName(referenceTunnel.getLocalInterfaceName());
 
-            tunnel.setLocalTunnelInetAddr(referenceTunnel.getLocalTunnelInetAddr());
+            // A tunnel packed onto the interface of another tunnel of its group adds its own address
+            if (!StringUtils.equals(referenceTunnel.getLocalTunnelInetAddr(), localTunnelInetAddr)) {
+                exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(), localTunnelInetAddr,
+                    Integer.toString(Constants.V4_SUBNET_MASK_24));
+                if (exitCode == Wg.getCommandFailureCode()) {
+                    log.error("Unable to add the address " + localTunnelInetAddr + " to the WgConnect device " +
+                        tunnel.getLocalInterfaceName());
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
             tunnel.setLocalTunnelInetComPort(referenceTunnel.getLocalTunnelInetComPort());
             tunnel.setLocalTunnelInetSockAddr(referenceTunnel.getLocalTunnelInetSockAddr());
             
@@ -1295,29 +1415,32 @@ public class V4Machine implements Runnable {
             
             tunnel.setLocalPhysInetListenPort(referenceTunnel.getLocalPhysInetListenPort());
             
-            exitCode = wg.setInterfaceConfigParameters(tunnel.getLocalInterfaceName(),
-                Wg.OPTION_PEER, tunnel.getRemotePublicKey(),
-                Wg.OPTION_ALLOWED_IPS, tunnel.getRemoteTunnelInetAddr() + IPv4Address.PREFIX_LEN_SEPARATOR + Constants.V4_SUBNET_MASK_32,
-                Wg.OPTION_ENDPOINT, tunnel.getRemotePhysInetAddr() + ":" + tunnel.getRemotePhysInetListenPort(),
-                Wg.OPTION_PERSISTENT_KEEPALIVE,
-                Integer.toString(WgConnect.getPersistentKeepalive())
-            );
-            if (exitCode == Wg.getCommandFailureCode()) {
-                log.error("Unable to set the peer configuration for the device " + tunnel.getLocalInterfaceName());
-                return null;
-            }
+            peer = WgPeer.of(tunnel.getRemotePublicKey(), tunnel.getRemoteTunnelInetAddr(), Constants.V4_SUBNET_MASK_32,
+                tunnel.getRemotePhysInetAddr(), tunnel.getRemotePhysInetListenPort(), WgConnect.getPersistentKeepalive());
 
             // Add the tunnel to the datachannels
             tunnel.setLocalTunnelInetSockAddr(new InetSocketAddress(tunnel.getLocalTunnelInetAddr(), (int) tunnel.getLocalTunnelInetComPort()));
-            addDatagramChannel(tunnel.getLocalTunnelInetSockAddr());
+            addTunnelDatagramChannel(tunnel);
             
             // Add the tunnel to the GUI
             WgConnect.guiAddTunnel(tunnel);
         }
 
         WgConnect.addTunnel(tunnel);
+        if (peer == null) {
+            return CompletableFuture.completedFuture(tunnel);
+        }
 
-        return tunnel;
+        // The tunnel is registered before its peer is applied, so a failed batch reaps it with its channel and interface
+        return PeerConfigBatcher.getInstance().queue(tunnel.getLocalInterfaceName(), peer).handle((result, ex) -> {
+            if (ex != null || result == Wg.getCommandFailureCode()) {
+                log.error("Unable to set the peer configuration for the device " + tunnel.getLocalInterfaceName());
+                TunnelReaper.getInstance().reap(tunnel);
+                return null;
+            }
+
+            return tunnel;
+        });
     }
 
     public synchronized PersistenceTunnel createTunnelAsServer(ServerMachine v4ServerMachine, int remoteId,
@@ -1348,12 +1471,14 @@ public class V4Machine implements Runnable {
         
         Wg wg = new Wg();
         
-        PersistenceTunnel referenceTunnel = WgConnect.getTunnelByLocalPhysInetAddrAndTunnelInetNet(localPhysInetAddr, tunnelInetNet, IPVersion.IPV4);
+        PersistenceTunnel referenceTunnel = PeerPackingPolicy.isEnabled() ?
+            PeerPackingPolicy.getHostTunnel(localPhysInetAddr, tunnelInetNet, IPVersion.IPV4) :
+            WgConnect.getTunnelByLocalPhysInetAddrAndTunnelInetNet(localPhysInetAddr, tunnelInetNet, IPVersion.IPV4);
 
         if (force || referenceTunnel == null) {
             // Check for an existing WgConnect V4 device that is not in wgConnectTunnels
             String ifName = Utils.getAnyExistingWgConnectIfByPrefix(Constants.getTunnelInterfacePrefix(IPVersion.IPV4));
-            if (WgConnect.getTunnelByLocalIfName(ifName) != null ||
+            if (WgConnect.getTunnelByLocalIfName(ifName) != null || WarmInterfacePool.getInstance().isSpare(ifName) ||
                 Utils.getWgConnectIfByPrefixAndEndpointAddr(Constants.getTunnelInterfacePrefix(IPVersion.IPV4), remotePhysInetAddr) != null) {
                 force = true;
             }
@@ -1379,63 +1504,31 @@ public class V4Machine implements Runnable {
                     return null;
                 }
             } else {
-                // Generate the v4 interface name
-                ifName = Utils.getNextAvailableNetIfName(Constants.getTunnelInterfacePrefix(IPVersion.IPV4), -1);
-                tunnel.setLocalInterfaceName(ifName);
-
-                if (!wg.generateKeys()) {
-                    log.error("Unable to generate WgConnect cryptographic keys");
-                    return null;
-                }
-
-                tunnel.setLocalPublicKey(wg.getPublicKey());
-                tunnel.setLocalPrivateKey(wg.getPrivateKey());
-
-                if (tunnel.getLocalPrivateKey() == null || tunnel.getLocalPublicKey() == null) {
-                    log.error("Unable to generate or retrieve WgConnect crytographic keys");
-                    return null;
-                }
-
-                // Add, configure, and bring up the WgConnect network link device
-                int exitCode = wg.addDevice(tunnel.getLocalInterfaceName());
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to add the WgConnect device " + tunnel.getLocalInterfaceName());
+                // Take a spare v4 interface, already keyed and up, from the warm interface pool
+                WarmInterfacePool.Spare spare = WarmInterfacePool.getInstance().take(IPVersion.IPV4);
+                if (spare == null) {
+                    log.error("Unable to add a WgConnect V4 device");
                     return null;
                 }
 
-                exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(),
-                    tunnel.getLocalTunnelInetAddr(), Integer.toString(Constants.V4_SUBNET_MASK_24));
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the inet address for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
+                tunnel.setLocalInterfaceName(spare.getIfName());
+                tunnel.setLocalPublicKey(spare.getPublicKey());
+                tunnel.setLocalPrivateKey(spare.getPrivateKey());
+                tunnel.setLocalPhysInetListenPort(spare.getListenPort());
 
-                exitCode = wg.setInterfacePrivateKey(tunnel.getLocalInterfaceName(), tunnel.getLocalPrivateKey());
+                // Assign the tunnel address to the WgConnect network link device
+                int exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(), tunnel.getLocalTunnelInetAddr(),
+                    Integer.toString(Constants.V4_SUBNET_MASK_24));
                 if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set private key for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                wg.setDeviceState(tunnel.getLocalInterfaceName(),
-                    DeviceManagerInterface.InterfaceDeviceState.UP);
-                if (wg.getCommandExitCode() == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the link state for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                // Get the listen port for the new link
-                long listenPort = wg.getInterfaceListenPort(tunnel.getLocalInterfaceName());
-                if (listenPort > 0) {
-                    tunnel.setLocalPhysInetListenPort(listenPort);
-                } else {
-                    log.error("Unable to obtain the listen-port for WgConnect device " + tunnel.getLocalInterfaceName());
+                    log.error("Unable to set the address of the WgConnect device " + tunnel.getLocalInterfaceName());
+                    WarmInterfacePool.getInstance().discard(spare);
                     return null;
                 }
 
                 // Add the tunnel to the datachannels
                 tunnel.setLocalTunnelInetSockAddr(new InetSocketAddress(tunnel.getLocalTunnelInetAddr(),
                     (int) tunnel.getLocalTunnelInetComPort()));
-                addDatagramChannel(tunnel.getLocalTunnelInetSockAddr());
+                addTunnelDatagramChannel(tunnel);
             }
         } else {
             tunnel.setLocalInterfaceName(referenceTunnel.getLocalInterfaceName());
@@ -1495,11 +1588,17 @@ public class V4Machine implements Runnable {
             ChannelPipeline pipeline = Channels.pipeline();
             pipeline.addLast("logger", new LoggingHandler());
             pipeline.addLast("encoder", new V4ChannelEncoder());
-            pipeline.addLast("decoder", new V4ChannelDecoder(localSockAddr, false));
-            pipeline.addLast("executor", new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(Constants.MAX_CHANNEL_THREADS, 0, 0)));
+            pipeline.addLast("ratelimiter", rateLimitHandler);
+            pipeline.addLast("decoder", new V4ChannelDecoder(localSockAddr, false, packetClassifier));
+            if (localSockAddr.getAddress().isAnyLocalAddress()) {
+                pipeline.addLast("demux", tunnelDemuxHandler);
+            }
+            pipeline.addLast("executor", WorkerPool.getInstance().getExecutionHandler());
             pipeline.addLast("handler", new ChannelHandler());
 
             channel = factory.newChannel(pipeline);
+            // The specifically bound sockets share their ports with the wildcard tunnel socket
+            channel.getConfig().setReuseAddress(WgConnect.getTunnelWildcardSocket());
             channel.getConfig().setReceiveBufferSize(Constants.DEFAULT_RECEIVE_BUFFER_SIZE);
             channel.getConfig().setSendBufferSize(Constants.DEFAULT_SEND_BUFFER_SIZE);
             ChannelFuture future = channel.bind(localSockAddr);
@@ -1513,6 +1612,174 @@ public class V4Machine implements Runnable {
         return channel;
     }
 
+    /**
+     * Adds the datagram channel for the tunnel ping and info messages of a tunnel. Either a channel is
+     * bound to the local tunnel address, or, with the wildcard tunnel socket, the tunnel is added to the
+     * demultiplexer of the one wildcard-bound channel of the port, which also serves the lookups by the
+     * local tunnel address.
+     *
+     * The kernel picks the source address of a reply from the wildcard socket by the route to the peer,
+     * which is one address of the interface. The peer only accepts its tunnel's local address, so the
+     * tunnels of an interface with several local tunnel addresses, like client tunnels packed onto
+     * another tunnel's interface, get a channel bound to each of the addresses instead.
+     *
+     * @param tunnel the tunnel
+     * @return the datagram channel
+     */
+    public DatagramChannel addTunnelDatagramChannel(PersistenceTunnel tunnel) {
+        InetSocketAddress localTunnelInetSockAddr = tunnel.getLocalTunnelInetSockAddr();
+        if (!WgConnect.getTunnelWildcardSocket()) {
+            return addDatagramChannel(localTunnelInetSockAddr);
+        }
+
+        List<PersistenceTunnel> packedTunnels = WgConnect.getTunnelsByLocalIfName(tunnel.getLocalInterfaceName())
+            .stream()
+            .filter(t -> t != tunnel && !StringUtils.equals(t.getLocalTunnelInetAddr(), tunnel.getLocalTunnelInetAddr()))
+            .collect(Collectors.toList());
+        if (!packedTunnels.isEmpty()) {
+            packedTunnels.forEach(this::bindTunnelDatagramChannel);
+            return bindTunnelDatagramChannel(tunnel);
+        }
+
+        IPAddress remoteTunnelIPAddr = new IPAddressString(tunnel.getRemoteTunnelInetAddr()).getAddress();
+        if (remoteTunnelIPAddr == null) {
+            log.error("Invalid remote tunnel address {}, binding to the local tunnel address", tunnel.getRemoteTunnelInetAddr());
+            return addDatagramChannel(localTunnelInetSockAddr);
+        }
+
+        DatagramChannel channel = addDatagramChannel(new InetSocketAddress(Constants.V4_ZEROADDR,
+            localTunnelInetSockAddr.getPort()));
+        tunnelDemuxHandler.addTunnel(remoteTunnelIPAddr.toInetAddress(), localTunnelInetSockAddr);
+
+        String addrKey = new IPAddressString(localTunnelInetSockAddr.getAddress().getHostAddress())
+            .getAddress().getHostSection().toNormalizedString();
+        channels.putIfAbsent(addrKey, channel);
+
+        return channel;
+    }
+    
+    /**
+     * Moves a tunnel from the wildcard tunnel channel to a channel bound to its local tunnel address.
+     *
+     * @param tunnel the tunnel
+     * @return the datagram channel
+     */
+    private DatagramChannel bindTunnelDatagramChannel(PersistenceTunnel tunnel) {
+        InetSocketAddress localTunnelInetSockAddr = tunnel.getLocalTunnelInetSockAddr();
+        String addrKey = new IPAddressString(localTunnelInetSockAddr.getAddress().getHostAddress())
+            .getAddress().getHostSection().toNormalizedString();
+        
+        DatagramChannel channel = channels.get(addrKey);
+        if (channel != null && channel.getLocalAddress().getAddress().isAnyLocalAddress()) {
+            channels.remove(addrKey, channel);
+            
+            IPAddress remoteTunnelIPAddr = new IPAddressString(tunnel.getRemoteTunnelInetAddr()).getAddress();
+            if (remoteTunnelIPAddr != null) {
+                tunnelDemuxHandler.removeTunnel(remoteTunnelIPAddr.toInetAddress(), localTunnelInetSockAddr);
+            }
+        }
+        
+        return addDatagramChannel(localTunnelInetSockAddr);
+    }
+    
+    /**
+     * Removes a tunnel from the datagram channels after the tunnel was removed. The channel bound to
+     * the local tunnel address is closed once no other tunnel uses the address, while the wildcard
+     * tunnel channel is kept and only the tunnel is removed from its demultiplexer.
+     *
+     * @param tunnel the removed tunnel
+     */
+    public void removeTunnelDatagramChannel(PersistenceTunnel tunnel) {
+        IPAddress remoteTunnelIPAddr = new IPAddressString(tunnel.getRemoteTunnelInetAddr()).getAddress();
+        if (remoteTunnelIPAddr != null) {
+            tunnelDemuxHandler.removeTunnel(remoteTunnelIPAddr.toInetAddress(), tunnel.getLocalTunnelInetSockAddr());
+        }
+        
+        IPAddress localTunnelIPAddr = new IPAddressString(tunnel.getLocalTunnelInetAddr()).getAddress();
+        if (localTunnelIPAddr == null || WgConnect.getTunnelByLocalTunnelInetAddr(tunnel.getLocalTunnelInetAddr()) != null) {
+            return;
+        }
+        
+        DatagramChannel channel = channels.remove(localTunnelIPAddr.getHostSection().toNormalizedString());
+        if (channel != null && !channel.getLocalAddress().getAddress().isAnyLocalAddress()) {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Sends a teardown message for a tunnel through the tunnel itself.
+     *
+     * @param tunnel the tunnel
+     * @return true if the message was written
+     */
+    public boolean sendTeardownMessage(PersistenceTunnel tunnel) {
+        DatagramChannel c = getDatagramChannelByInetAddr(tunnel.getLocalTunnelInetAddr());
+        if (c == null) {
+            log.error("Could not find a DatagramChannel for inet address {}", tunnel.getLocalTunnelInetAddr());
+            return false;
+        }
+        
+        V4Message msg = buildTeardownMessage(tunnel, Constants.V4_MESSAGE_TYPE_TEARDOWN, random.nextInt() & Integer.MAX_VALUE);
+        c.write(msg, msg.getRemoteAddress());
+        
+        return true;
+    }
+    
+    /**
+     * Sends a tunnel info request for a tunnel through the tunnel itself. The request carries the
+     * last tunnel info version seen from the peer, so that only the changes since then are returned.
+     *
+     * @param tunnel the tunnel
+     * @return true if the message was written
+     */
+    public boolean sendTunnelsInfoRequestMessage(PersistenceTunnel tunnel) {
+        DatagramChannel c = getDatagramChannelByInetAddr(tunnel.getLocalTunnelInetAddr());
+        if (c == null) {
+            log.error("Could not find a DatagramChannel for inet address {}", tunnel.getLocalTunnelInetAddr());
+            return false;
+        }
+        
+        V4Message msg = ConnectConfig.getInstance().buildV4TunnelsInfoRequestMessage(tunnel,
+            new InetSocketAddress(tunnel.getRemoteTunnelInetAddr(), (int) tunnel.getRemoteTunnelInetComPort()));
+        c.write(msg, msg.getRemoteAddress());
+        
+        return true;
+    }
+    
+    /**
+     * Answers a tunnel info request with the tunnels that changed since the version in the request.
+     *
+     * @param requestMsg the tunnel info request message
+     */
+    private void processTunnelsInfoRequestMessage(V4Message requestMsg) {
+        for (MessageInfo info : buildPeerTunnelsInfoRequestReplyMessage(requestMsg)) {
+            DatagramChannel c = getDatagramChannelByInetAddr(info.getTunnel().getLocalTunnelInetAddr());
+            if (c == null) {
+                log.error("Could not find a DatagramChannel for inet address {}", info.getTunnel().getLocalTunnelInetAddr());
+                return;
+            }
+            
+            c.write(info.getMessage(), info.getMessage().getRemoteAddress());
+        }
+    }
+    
+    /**
+     * Applies a tunnel info reply to the peer tunnels of the tunnel it came through, and records
+     * its version as the last one seen from the peer.
+     *
+     * @param replyMsg the tunnel info reply message
+     */
+    private void processTunnelsInfoReplyMessage(V4Message replyMsg) {
+        PersistenceTunnel tunnel = replyMsg.getRemoteAddress() != null ?
+            WgConnect.getTunnelByRemoteTunnelInetAddr(replyMsg.getRemoteAddress().getAddress()) : null;
+        if (tunnel == null) {
+            log.info("Ignoring the tunnel info reply from {}: Could not find the associated tunnel", replyMsg.getRemoteAddress());
+            return;
+        }
+        
+        ConnectConfig.getInstance().applyTunnelsInfoReply(tunnel, replyMsg.getTransactionId(), replyMsg::getOption);
+    }
+    
     private V4Message buildDiscoverMessage(ClientMachine clientMachine) {
         V4Message msg = new V4Message(clientMachine.getLocalPhysInetSockAddr(), clientMachine.getRemotePhysInetSockAddr());
         msg.setOp((short) Constants.V4_OP_REQUEST);
@@ -1533,11 +1800,110 @@ public class V4Machine implements Runnable {
         msg.putOption(new RemoteTunnelInetAddrOption(clientMachine.getLocalTunnelInetAddr(), true));
         msg.putOption(new TunnelNetworkOption(clientMachine.getTunnelInetNet(), true));
         
+        if (clientMachine.cookieMsg != null) {
+            CookieOption cookieOption = (CookieOption) clientMachine.cookieMsg.getOption(Constants.OPTION_COOKIE);
+            if (cookieOption != null) {
+                msg.putOption(new CookieOption(cookieOption.getString(), true));
+            }
+        }
+        
+        return msg;
+    }
+    
+    private V4Message buildTeardownMessage(PersistenceTunnel tunnel, int msgType, long transactionId) {
+        InetSocketAddress localTunnelInetSockAddr = tunnel.getLocalTunnelInetSockAddr();
+        InetSocketAddress remoteTunnelInetSockAddr = new InetSocketAddress(tunnel.getRemoteTunnelInetAddr(),
+            (int) tunnel.getRemoteTunnelInetComPort());
+        boolean teardown = msgType == Constants.V4_MESSAGE_TYPE_TEARDOWN;
+        
+        V4Message msg = new V4Message(localTunnelInetSockAddr, remoteTunnelInetSockAddr);
+        msg.setOp((short) (teardown ? Constants.V4_OP_REQUEST : Constants.V4_OP_REPLY));
+        msg.setTransactionId(transactionId);
+        msg.setHtype((short) 1);
+        msg.setClientAddr(teardown ? localTunnelInetSockAddr.getAddress() : remoteTunnelInetSockAddr.getAddress());
+        msg.setClientPort(teardown ? localTunnelInetSockAddr.getPort() : remoteTunnelInetSockAddr.getPort());
+        msg.setServerAddr(teardown ? remoteTunnelInetSockAddr.getAddress() : localTunnelInetSockAddr.getAddress());
+        msg.setServerPort(teardown ? remoteTunnelInetSockAddr.getPort() : localTunnelInetSockAddr.getPort());
+        
+        msg.setMessageType((short) msgType);
+        msg.setMessageSender((short) (teardown ? Constants.V4_MESSAGE_SENDER_CLIENT : Constants.V4_MESSAGE_SENDER_SERVER));
+        
+        msg.putOption(new TunnelIdOption(tunnel.getId().toString(), true));
+        
+        return msg;
+    }
+    
+    /**
+     * Handles a teardown or teardown reply message. The message must come from the remote tunnel
+     * address of its tunnel and must have arrived on the channel bound to the local tunnel address.
+     * The wildcard tunnel channel sets the local address of a message from its source address, so a
+     * teardown it received could have been sent to any address of the host and is ignored. A teardown
+     * is not authenticated otherwise: a host that routes to the local tunnel address can still send
+     * one with a forged source address. A teardown is answered with a teardown reply before the
+     * tunnel is removed.
+     *
+     * @param teardownMsg the teardown or teardown reply message
+     */
+    private void processTeardownMessage(V4Message teardownMsg) {
+        TunnelIdOption tunnelIdOption = (TunnelIdOption) teardownMsg.getOption(Constants.OPTION_TUNNEL_ID);
+        PersistenceTunnel tunnel = tunnelIdOption != null ? WgConnect.getTunnelByTunnelId(tunnelIdOption.getString()) : null;
+        if (tunnel == null) {
+            log.info("Ignoring the teardown message: Could not find the associated tunnel");
+            return;
+        }
+        
+        IPAddress remoteTunnelIPAddr = new IPAddressString(tunnel.getRemoteTunnelInetAddr()).getAddress();
+        if (remoteTunnelIPAddr == null || teardownMsg.getRemoteAddress() == null ||
+            !remoteTunnelIPAddr.toInetAddress().equals(teardownMsg.getRemoteAddress().getAddress())) {
+            log.info("Ignoring the teardown message for tunnel {} from {}", tunnel.getId(), teardownMsg.getRemoteAddress());
+            return;
+        }
+        
+        DatagramChannel c = getDatagramChannelByInetAddr(tunnel.getLocalTunnelInetAddr());
+        if (c == null || c.getLocalAddress().getAddress().isAnyLocalAddress() ||
+            !tunnel.getLocalTunnelInetSockAddr().equals(teardownMsg.getLocalAddress())) {
+            log.info("Ignoring the teardown message for tunnel {}: It was not received on the local tunnel address {}",
+                tunnel.getId(), tunnel.getLocalTunnelInetAddr());
+            return;
+        }
+        
+        if (teardownMsg.getMessageType() == Constants.V4_MESSAGE_TYPE_TEARDOWN_REPLY) {
+            TunnelReaper.getInstance().teardownComplete(tunnel);
+            return;
+        }
+        
+        log.info("Tunnel {} torn down by the peer {}", tunnel.getId(), tunnel.getRemoteTunnelInetAddr());
+        
+        V4Message msg = buildTeardownMessage(tunnel, Constants.V4_MESSAGE_TYPE_TEARDOWN_REPLY, teardownMsg.getTransactionId());
+        c.write(msg, msg.getRemoteAddress()).addListener(future -> TunnelReaper.getInstance().reap(tunnel));
+    }
+    
+    private V4Message buildCookieReplyMessage(V4Message discoverMsg) {
+        String cookie = cookieChecker.createCookie(discoverMsg.getRemoteAddress());
+        if (cookie == null) {
+            return null;
+        }
+        
+        V4Message msg = new V4Message(new InetSocketAddress(discoverMsg.getServerAddr(), (int) discoverMsg.getServerPort()),
+            discoverMsg.getRemoteAddress());
+        msg.setOp((short) Constants.V4_OP_REPLY);
+        msg.setTransactionId(discoverMsg.getTransactionId());
+        msg.setHtype((short) 1);
+        msg.setClientAddr(discoverMsg.getClientAddr());
+        msg.setClientPort(discoverMsg.getClientPort());
+        msg.setServerAddr(discoverMsg.getServerAddr());
+        msg.setServerPort(discoverMsg.getServerPort());
+        
+        msg.setMessageType((short) Constants.V4_MESSAGE_TYPE_COOKIE_REPLY);
+        msg.setMessageSender((short) Constants.V4_MESSAGE_SENDER_SERVER);
+        
+        msg.putOption(new CookieOption(cookie, true));
+        
         return msg;
     }
 
-    private MessageInfo buildRequestMessage(ClientMachine clientMachine, V4Message offerMsg) {
-        MessageInfo info = null;
+    private CompletableFuture<MessageInfo> buildRequestMessage(ClientMachine clientMachine, V4Message offerMsg) {
+        CompletableFuture<MessageInfo> info = CompletableFuture.completedFuture(null);
 
         GenericIdOption localIdOption = (GenericIdOption) offerMsg.getOption(Constants.OPTION_GENERIC_ID);
         TunnelIdOption tunnelIdOption = (TunnelIdOption) offerMsg.getOption(Constants.OPTION_TUNNEL_ID);
@@ -1575,7 +1941,6 @@ public class V4Machine implements Runnable {
                 msg.setServerPort(offerMsg.getServerPort());
                 
                 // Check for an existing tunnel with the offered remote public key
-                PersistenceTunnel tunnel = null;
                 if (Utils.getWgConnectIfByPrefixAndRemotePublicKey(Constants.getTunnelInterfacePrefix(IPVersion.IPV4),
                     remoteWgPublicKeyOption.getString()) != null) {
                     
@@ -1612,6 +1977,7 @@ public class V4Machine implements Runnable {
                     
                     msg.putOption(new TunnelNetworkOption(clientMachine.getTunnelInetNet(), true));
 
+                    info = CompletableFuture.completedFuture(new MessageInfo(null, msg));
                 } else {
                     // Check the compatibility of the remoteTunnelNetwork and the localTunnelNetwork
                     if (!StringUtils.equals(clientMachine.getLocalTunnelInetAddr(), localTunnelInetAddrOption.getIpAddress())) {
@@ -1634,38 +2000,38 @@ public class V4Machine implements Runnable {
                             break;
                     }
                     
-                    tunnel = createTunnelAsClient(Constants.TUNNEL_ENDPOINT_TYPE_SERVER,
+                    info = createTunnelAsClient(Constants.TUNNEL_ENDPOINT_TYPE_SERVER,
                         tunnelIdOption.getString(), clientMachine.getMachineId(),
                         remotePhysInetAddrOption.getIpAddress(), clientMachine.getLocalPhysInetAddr(),
                         remoteTunnelInetAddrOption.getIpAddress(), clientMachine.getLocalTunnelInetAddr(),
                         remoteWgPublicKeyOption.getString(), remotePhysInetListenPortOption.getUnsignedInt(),
                         remoteTunnelInetComPortOption.getUnsignedInt(), clientMachine.getTunnelInetNet(), 
-                        remoteInterfaceNameOption.getString(), force);
-
-                    if (tunnel != null) {
-                        clientMachine.setPersistenceTunnel(tunnel);
+                        remoteInterfaceNameOption.getString(), force).thenApply(tunnel -> {
+                        if (tunnel != null) {
+                            clientMachine.setPersistenceTunnel(tunnel);
                         
-                        msg.setMessageType((short) Constants.V4_MESSAGE_TYPE_REQUEST);
-                        msg.setMessageSender((short) Constants.V4_MESSAGE_SENDER_CLIENT);
-
-                        msg.putOption(localIdOption);
-                        msg.putOption(new TunnelIdOption(tunnel.getId().toString(), true));
-                        msg.putOption(new GenericResponseOption(Constants.RESPONSE_ACCEPT, true));
-
-                        msg.putOption(new RemotePhysInetListenPortOption(tunnel.getLocalPhysInetListenPort(), true));
-                        msg.putOption(new RemoteTunnelInetComPortOption(tunnel.getLocalTunnelInetComPort(), true));
-                        msg.putOption(new RemoteWgPublicKeyOption(tunnel.getLocalPublicKey(), true));
-                        msg.putOption(new InterfaceNameOption(tunnel.getLocalInterfaceName(), true));
-                        msg.putOption(new TunnelNetworkOption(clientMachine.getTunnelInetNet(), true));
+                            msg.setMessageType((short) Constants.V4_MESSAGE_TYPE_REQUEST);
+                            msg.setMessageSender((short) Constants.V4_MESSAGE_SENDER_CLIENT);
+
+                            msg.putOption(localIdOption);
+                            msg.putOption(new TunnelIdOption(tunnel.getId().toString(), true));
+                            msg.putOption(new GenericResponseOption(Constants.RESPONSE_ACCEPT, true));
+
+                            msg.putOption(new RemotePhysInetListenPortOption(tunnel.getLocalPhysInetListenPort(), true));
+                            msg.putOption(new RemoteTunnelInetComPortOption(tunnel.getLocalTunnelInetComPort(), true));
+                            msg.putOption(new RemoteWgPublicKeyOption(tunnel.getLocalPublicKey(), true));
+                            msg.putOption(new InterfaceNameOption(tunnel.getLocalInterfaceName(), true));
+                            msg.putOption(new TunnelNetworkOption(clientMachine.getTunnelInetNet(), true));
                         
-                        tunnel.setState(Constants.V4_TUNNEL_STATUS_REQUEST);
-                        WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS);
-                    } else {
-                        log.info("Unable to create a V4 tunnel");
-                    }
+                            tunnel.setState(Constants.V4_TUNNEL_STATUS_REQUEST);
+                            WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS);
+                        } else {
+                            log.info("Unable to create a V4 tunnel");
+                        }
+                        
+                        return new MessageInfo(tunnel, msg);
+                    });
                 }
-
-                info = new MessageInfo(tunnel, msg);
             } else {
                 log.info("Ignoring the Offer message: A required option was not sent");
             }
@@ -1738,19 +2104,33 @@ public class V4Machine implements Runnable {
         return tunnel;
     }
 
-    private List<MessageInfo> buildPeerTunnelsInfoRequestReplyMessage(Machine machine, V4Message requestMsg) {
+    private List<MessageInfo> buildPeerTunnelsInfoRequestReplyMessage(V4Message requestMsg) {
         List <MessageInfo> infoMsgs = new ArrayList<>();
         
-        LocalTunnelInetAddrOption localTunnelInetAddrOption =
-            (LocalTunnelInetAddrOption) requestMsg.getOption(Constants.OPTION_LOCAL_TUNNEL_INET_ADDR);
-        RemoteTunnelInetAddrOption remoteTunnelInetAddrOption =
-            (RemoteTunnelInetAddrOption) requestMsg.getOption(Constants.OPTION_REMOTE_TUNNEL_INET_ADDR);
+        TunnelInfoVersionOption tunnelInfoVersionOption =
+            (TunnelInfoVersionOption) requestMsg.getOption(Constants.OPTION_TUNNEL_INFO_VERSION);
         
-        PersistenceTunnel tunnel = WgConnect.getTunnelByLocalAndRemoteTunnelInetAddrs(
-            localTunnelInetAddrOption.getIpAddress(), remoteTunnelInetAddrOption.getIpAddress());
+        // The request comes through its tunnel, so only the peer of the tunnel can send it
+        PersistenceTunnel tunnel = requestMsg.getRemoteAddress() != null ?
+            WgConnect.getTunnelByRemoteTunnelInetAddr(requestMsg.getRemoteAddress().getAddress()) : null;
 
         if (tunnel != null) {
-            for (PersistenceTunnel t : WgConnect.getV4Tunnels()) {
+            // Only reply with the tunnels that changed since the version last seen by the requester.
+            // A version from another epoch means nothing here, so that requester gets the full list.
+            TunnelInfoEpochOption tunnelInfoEpochOption =
+                (TunnelInfoEpochOption) requestMsg.getOption(Constants.OPTION_TUNNEL_INFO_EPOCH);
+            long lastSeenVersion = tunnelInfoVersionOption != null && tunnelInfoEpochOption != null &&
+                tunnelInfoEpochOption.getUnsignedInt() == PersistenceTunnel.getInfoEpoch() ?
+                tunnelInfoVersionOption.getUnsignedInt() : 0;
+            
+            List<PersistenceTunnel> records = new ArrayList<>(WgConnect.getV4TunnelsChangedSince(lastSeenVersion));
+            int recordCount = records.size();
+            if (records.isEmpty() && lastSeenVersion == 0) {
+                // An empty full list still tells the requester the epoch, so it drops what it had
+                records.add(null);
+            }
+            
+            for (PersistenceTunnel t : records) {
 
                 V4Message msg = new V4Message(tunnel.getLocalTunnelInetSockAddr(),
                     new InetSocketAddress(tunnel.getRemoteTunnelInetAddr(), (int) tunnel.getRemoteTunnelInetComPort()));
@@ -1766,8 +2146,24 @@ public class V4Machine implements Runnable {
                 msg.setMessageType((short) Constants.V4_MESSAGE_TYPE_INFO_REQUEST_REPLY);
                 msg.setMessageSender((short) Constants.V4_MESSAGE_SENDER_SERVER);
                 
+                // Every message carries the size of the whole reply, so the requester knows when it has all of them
+                msg.putOption(new TunnelInfoEpochOption(PersistenceTunnel.getInfoEpoch(), true));
+                msg.putOption(new TunnelInfoCountOption(recordCount, true));
+                
+                if (t == null) {
+                    infoMsgs.add(new MessageInfo(tunnel, msg));
+                    continue;
+                }
+                
                 msg.putOption(new TunnelIdOption(t.getId().toString(), true));
                 msg.putOption(new TunnelStatusOption(t.getState(), true));
+                msg.putOption(new TunnelInfoVersionOption(t.getInfoVersion(), true));
+                
+                if (StringUtils.equals(t.getState(), Constants.TUNNEL_STATUS_REMOVED)) {
+                    // A tombstone only needs the tunnel id
+                    infoMsgs.add(new MessageInfo(tunnel, msg));
+                    continue;
+                }
                 
                 msg.putOption(new RemoteEndpointTypeOption(t.getRemoteEndpointType(), true));
                 msg.putOption(new LocalEndpointTypeOption(t.getLocalEndpointType(), true));
@@ -32,20 +32,21 @@ import com.wgconnect.gui.Gui;
 import com.wgconnect.machine.processor.V6PingProcessor;
 
 import com.wgtools.Wg;
+import com.wgtools.WgPeer;
 
 import inet.ipaddr.AddressStringException;
+import inet.ipaddr.IPAddress;
 import inet.ipaddr.IPAddress.IPVersion;
 import inet.ipaddr.IPAddressString;
 import inet.ipaddr.ipv6.IPv6Address;
 import inet.ipaddr.ipv6.IPv6AddressSegment;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.sql.Timestamp;
@@ -57,12 +58,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -78,10 +82,7 @@ import org.jboss.netty.channel.socket.DatagramChannel;
 import org.jboss.netty.channel.socket.DatagramChannelFactory;
 import org.jboss.netty.channel.socket.InternetProtocolFamily;
 import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
-import org.jboss.netty.handler.execution.ExecutionHandler;
-import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.logging.LoggingHandler;
-import com.wgtools.DeviceManagerInterface;
 
 /**
  * V6Machine
@@ -123,6 +124,23 @@ public class V6Machine implements Runnable {
 
     protected String tunnelNetwork = null;
     
+    protected CookieChecker cookieChecker = new CookieChecker();
+    protected AtomicInteger pendingServerMachines = new AtomicInteger();
+    
+    protected RateLimiter unicastRateLimiter = new RateLimiter(NAME + "-unicast",
+        Constants.RATE_LIMIT_UNICAST_RATE, Constants.RATE_LIMIT_UNICAST_BURST,
+        Constants.RATE_LIMIT_V4_PREFIX_LEN, Constants.RATE_LIMIT_V6_PREFIX_LEN);
+    protected RateLimiter multicastRateLimiter = new RateLimiter(NAME + "-multicast",
+        Constants.RATE_LIMIT_MULTICAST_RATE, Constants.RATE_LIMIT_MULTICAST_BURST,
+        Constants.RATE_LIMIT_V4_PREFIX_LEN, Constants.RATE_LIMIT_V6_PREFIX_LEN);
+    protected RateLimitHandler rateLimitHandler = new RateLimitHandler(unicastRateLimiter);
+    
+    protected PacketClassifier packetClassifier = new PacketClassifier(IPVersion.IPV6, WgConnect.getAllV6InetAddrs());
+    
+    protected TunnelDemuxHandler tunnelDemuxHandler = new TunnelDemuxHandler();
+    
+    protected McastSender mcastSender = new McastSender(IPVersion.IPV6);
+    
     LinkedBlockingQueue<Integer> doneQueue = new LinkedBlockingQueue<>();
     
     private static V6Machine v6Machine;
@@ -171,7 +189,13 @@ public class V6Machine implements Runnable {
         
         log.info("Starting V6 machine on {}-{} at: {}", localPhysInetAddrs, localPort, LocalDateTime.now());
 
-        factory = new NioDatagramChannelFactory(Executors.newCachedThreadPool(), InternetProtocolFamily.IPv6);
+        if (Constants.TRANSPORT_REUSEPORT.equalsIgnoreCase(WgConnect.getTransport())) {
+            log.info("Using the {} transport with {} sockets per address", Constants.TRANSPORT_REUSEPORT,
+                WgConnect.getReusePortSockets());
+            factory = new ReusePortDatagramChannelFactory(StandardProtocolFamily.INET6, WgConnect.getReusePortSockets());
+        } else {
+            factory = new NioDatagramChannelFactory(Executors.newCachedThreadPool(), InternetProtocolFamily.IPv6);
+        }
         
         machineDispatcher = new MachineDispatcher();
         machineDispatcher.start();
@@ -203,6 +227,7 @@ public class V6Machine implements Runnable {
         
         log.info("Closing channels...");
         channels.forEach((k, v) -> v.close());
+        mcastSender.shutdown();
         log.info("Done.");
     }
 
@@ -210,54 +235,60 @@ public class V6Machine implements Runnable {
         doneQueue.add(Constants.THREAD_MESSAGE_STOP);
     }
     
-    public void processMulticastSolicitMessage(DatagramPacket packet, byte[] buffer, int len) {
+    public void processMulticastSolicitMessage(InetSocketAddress remoteSockAddr, ByteBuffer buf) {
+        if (!multicastRateLimiter.tryAcquire(remoteSockAddr.getAddress())) {
+            return;
+        }
+        
+        // Classify before decoding: drop our own and irrelevant packets
+        if (!packetClassifier.accept(buf, remoteSockAddr.getAddress(), true, true)) {
+            return;
+        }
+        
         try {
+            // Decode once and fan out to the local addresses
+            V6Message solicitMsg = V6Message.decode(buf, null, remoteSockAddr);
+            if (solicitMsg == null) {
+                return;
+            }
+            
+            RemotePhysInetAddrOption remotePhysInetAddrOption =
+                (RemotePhysInetAddrOption) solicitMsg.getOption(Constants.OPTION_REMOTE_PHYS_INET_ADDR);
+            RemotePhysInetComPortOption remotePhysInetComPortOption =
+                (RemotePhysInetComPortOption) solicitMsg.getOption(Constants.OPTION_REMOTE_PHYS_INET_COM_PORT);
+            if (remotePhysInetAddrOption == null || remotePhysInetComPortOption == null) {
+                log.info("A received multicast message is missing required options");
+                return;
+            }
+            
+            InetSocketAddress remotePhysInetSockAddr = new InetSocketAddress(new IPAddressString(
+                remotePhysInetAddrOption.getIpAddress()).toAddress().toInetAddress(),
+                (int) remotePhysInetComPortOption.getUnsignedInt());
+            if (packetClassifier.isLocalInetAddr(remotePhysInetSockAddr.getAddress())) {
+                return;
+            }
+            
             for (InetAddress addr : localPhysInetAddrs) {
-                if (WgConnect.isLocalV6Addr(packet.getAddress().getHostAddress())) {
+                if (WgConnect.getTunnelByLocalAndRemotePhysInetAddr(addr.getHostAddress(),
+                    remotePhysInetSockAddr.getAddress().getHostAddress()) != null) {
                     continue;
                 }
                 
-                InetSocketAddress serverInetSockAddr = new InetSocketAddress(addr, localPort);
-                V6Message msg = V6Message.decode(ByteBuffer.wrap(buffer, 0, len),
-                    serverInetSockAddr, new InetSocketAddress(packet.getAddress().getHostAddress(), packet.getPort()));
-                
-                if (WgConnect.isLocalV6Addr(msg.getRemoteAddress().getAddress().getHostAddress())) {
-                    continue;
-                }
-                
-                RemotePhysInetAddrOption remotePhysInetAddrOption =
-                    (RemotePhysInetAddrOption) msg.getOption(Constants.OPTION_REMOTE_PHYS_INET_ADDR);
-                RemotePhysInetComPortOption remotePhysInetComPortOption =
-                    (RemotePhysInetComPortOption) msg.getOption(Constants.OPTION_REMOTE_PHYS_INET_COM_PORT);
-                if (remotePhysInetAddrOption != null && remotePhysInetComPortOption != null) {
-                    if (WgConnect.isLocalV6Addr(msg.getRemoteAddress().getAddress().getHostAddress()) ||
-                        WgConnect.isLocalV6Addr(remotePhysInetAddrOption.getIpAddress())) {
-                        return;
-                    }
-                
-                    InetSocketAddress remotePhysInetSockAddr = new InetSocketAddress(new IPAddressString(
-                        remotePhysInetAddrOption.getIpAddress()).toAddress().toInetAddress(),
-                        (int) remotePhysInetComPortOption.getUnsignedInt());
-                    msg.setRemoteAddress(remotePhysInetSockAddr);
-                } else {
-                    log.info("A received multicast message is missing required options");
-                    return;
-                }
-                
-                msg.setLocalAddress(serverInetSockAddr);
-                
-                if (WgConnect.getTunnelByLocalAndRemotePhysInetAddr(msg.getLocalAddress().getAddress().getHostAddress(),
-                    msg.getRemoteAddress().getAddress().getHostAddress()) != null) {
-                    continue;
-                }
-
-                machineDispatcher.dispatch(msg);
+                machineDispatcher.dispatch(solicitMsg.copy(new InetSocketAddress(addr, localPort), remotePhysInetSockAddr));
             }
         } catch (IOException | AddressStringException ex) {
             log.info(ex.getMessage());
         }
     }
     
+    public RateLimiter getUnicastRateLimiter() {
+        return unicastRateLimiter;
+    }
+    
+    public RateLimiter getMulticastRateLimiter() {
+        return multicastRateLimiter;
+    }
+    
     public String getTunnelNetwork() {
         return tunnelNetwork;
     }
@@ -373,6 +404,29 @@ public class V6Machine implements Runnable {
             }
         }
         
+        private boolean checkSolicitCookie(V6Message solicitMsg) {
+            if (!cookieChecker.isUnderLoad(pendingServerMachines.get())) {
+                return true;
+            }
+            
+            CookieOption cookieOption = (CookieOption) solicitMsg.getOption(Constants.OPTION_COOKIE);
+            if (cookieOption != null && cookieChecker.isValidCookie(cookieOption.getString(), solicitMsg.getRemoteAddress())) {
+                return true;
+            }
+            
+            V6Message msg = buildCookieReplyMessage(solicitMsg);
+            if (msg != null) {
+                DatagramChannel c = getDatagramChannelByInetAddr(solicitMsg.getLocalAddress().getAddress().getHostAddress());
+                if (c != null) {
+                    c.write(msg, msg.getRemoteAddress());
+                } else {
+                    log.error("Could not find a DatagramChannel for inet address {}", solicitMsg.getLocalAddress().getAddress().getHostAddress());
+                }
+            }
+            
+            return false;
+        }
+        
         @Override
         public void run() {
             while (true) {
@@ -387,6 +441,23 @@ public class V6Machine implements Runnable {
                         
                         short msgType = v6Msg.getMessageType();
                         short msgSender = v6Msg.getMessageSender();
+                        
+                        // The teardown messages are handled without a machine
+                        if (msgType == Constants.V6_MESSAGE_TYPE_TEARDOWN || msgType == Constants.V6_MESSAGE_TYPE_TEARDOWN_REPLY) {
+                            processTeardownMessage(v6Msg);
+                            continue;
+                        }
+                        
+                        // The tunnel info messages are exchanged through the tunnels without a machine
+                        if (msgType == Constants.V6_MESSAGE_TYPE_INFO_REQUEST) {
+                            processTunnelsInfoRequestMessage(v6Msg);
+                            continue;
+                        }
+                        if (msgType == Constants.V6_MESSAGE_TYPE_INFO_REQUEST_REPLY) {
+                            processTunnelsInfoReplyMessage(v6Msg);
+                            continue;
+                        }
+                        
                         switch (msgSender) {
                             case Constants.V6_MESSAGE_SENDER_CLIENT:
                                 ServerMachine sm;
@@ -394,6 +465,16 @@ public class V6Machine implements Runnable {
                                     serverMachine.getMachineId() != v6Msg.getTransactionId() ||
                                     (!serverMachine.getLocalPhysInetAddr().equalsIgnoreCase(v6Msg.getLocalAddress().getAddress().getHostAddress()) &&
                                     !serverMachine.getLocalTunnelInetAddr().equalsIgnoreCase(v6Msg.getLocalAddress().getAddress().getHostAddress()))) {
+                                    // Only a solicit allocates a server machine, and under load only with a valid cookie
+                                    if (msgType != Constants.V6_MESSAGE_TYPE_SOLICIT) {
+                                        log.debug("Dropped client message type {} without a server machine", msgType);
+                                        break;
+                                    }
+                                    if (!checkSolicitCookie(v6Msg)) {
+                                        break;
+                                    }
+                                    
+                                    pendingServerMachines.getAndIncrement();
                                     sm = new ServerMachine((int) v6Msg.getTransactionId(),
                                         new InetSocketAddress(v6Msg.getLocalAddress().getAddress(), (int) v6Msg.getLocalAddress().getPort()),
                                         v6Msg.getRemoteAddress(), tunnelNetwork);
@@ -420,12 +501,6 @@ public class V6Machine implements Runnable {
                                         sm.replySemaphore.release();
                                         break;
 
-                                    case Constants.V6_MESSAGE_TYPE_INFO_REQUEST:
-                                        if (!sm.configInfoMsgQueue.add(v6Msg)) {
-                                            log.error("Unable to add the message " + v6Msg + " to the config info message queue");
-                                        }
-                                        break;
-
                                     default:
                                         log.info("Received unhandled message type: " + v6Msg.getMessageType());
                                         break;
@@ -466,6 +541,11 @@ public class V6Machine implements Runnable {
                                         cm.pingReplyMsg = v6Msg;
                                         cm.replySemaphore.release();
                                         break;
+                                        
+                                    case Constants.V6_MESSAGE_TYPE_COOKIE_REPLY:
+                                        cm.cookieMsg = v6Msg;
+                                        cm.replySemaphore.release();
+                                        break;
 
                                     default:
                                         log.info("Received unhandled message type: " + v6Msg.getMessageType());
@@ -541,6 +621,10 @@ public class V6Machine implements Runnable {
         
         int state = 0;
         
+        // The continuation of a machine suspended until a future completes
+        volatile Runnable continuation = null;
+        volatile boolean suspended = false;
+        
         public String getName() {
             return NAME + "-" + localPhysInetSockAddr.getAddress().getHostAddress() + "-" +
                 StringUtils.substringAfterLast(remotePhysInetSockAddr.getAddress().getHostAddress(), IPv6Address.SEGMENT_SEPARATOR);
@@ -613,6 +697,49 @@ public class V6Machine implements Runnable {
             this.persistenceTunnel = persistenceTunnel;
         }
         
+        /**
+         * Continues the machine with the result of a future. A pending future suspends the machine,
+         * so the machine executor serves the other machines, and the machine is dispatched again to
+         * run the continuation once the future completes.
+         *
+         * @param future the future
+         * @param next the continuation, which gets null if the future failed
+         */
+        <T> void continueWith(CompletableFuture<T> future, Consumer<T> next) {
+            if (future.isDone()) {
+                next.accept(future.handle((result, ex) -> ex == null ? result : null).join());
+                return;
+            }
+            
+            suspended = true;
+            future.whenComplete((result, ex) -> {
+                if (ex != null) {
+                    log.error("{} failed: {}", getName(), ex.toString());
+                }
+                continuation = () -> {
+                    suspended = false;
+                    next.accept(ex == null ? result : null);
+                };
+                machineDispatcher.dispatch(this);
+            });
+        }
+        
+        /**
+         * Runs the continuation of a suspended machine.
+         *
+         * @return true if the machine had a continuation
+         */
+        boolean runContinuation() {
+            Runnable next = continuation;
+            if (next == null) {
+                return false;
+            }
+            
+            continuation = null;
+            next.run();
+            return true;
+        }
+        
         public PersistenceTunnel getPersistenceTunnel() {
             return persistenceTunnel;
         }
@@ -659,6 +786,9 @@ public class V6Machine implements Runnable {
         V6Message advertiseMsg;
         V6Message replyMsg;
         V6Message pingReplyMsg;
+        V6Message cookieMsg;
+        
+        int cookieRetries = 0;
                 
         public ClientMachine(Integer id, InetSocketAddress localInetSockAddr, InetSocketAddress remoteInetSockAddr, int state) {
             NAME = "ClientMachine";
@@ -684,34 +814,37 @@ public class V6Machine implements Runnable {
         public void run() {
             clientMachine = this;
             
-            switch (state) {
-                case Constants.V6_MESSAGE_TYPE_SOLICIT:
-                    solicit();
-                    break;
+            if (!runContinuation()) {
+                switch (state) {
+                    case Constants.V6_MESSAGE_TYPE_SOLICIT:
+                        solicit();
+                        break;
 
-                case Constants.V6_MESSAGE_TYPE_ADVERTISE:
-                    waitForAdvertise();
-                    break;
+                    case Constants.V6_MESSAGE_TYPE_ADVERTISE:
+                    case Constants.V6_MESSAGE_TYPE_COOKIE_REPLY:
+                        waitForAdvertise();
+                        break;
 
-                case Constants.V6_MESSAGE_TYPE_REQUEST:
-                    request();
-                    break;
+                    case Constants.V6_MESSAGE_TYPE_REQUEST:
+                        request();
+                        break;
 
-                case Constants.V6_MESSAGE_TYPE_REPLY:
-                    waitForReply();
-                    break;
+                    case Constants.V6_MESSAGE_TYPE_REPLY:
+                        waitForReply();
+                        break;
 
-                case Constants.V6_MESSAGE_TYPE_TUNNEL_PING:
-                    tunnelPing();
-                    break;
+                    case Constants.V6_MESSAGE_TYPE_TUNNEL_PING:
+                        tunnelPing();
+                        break;
 
-                case Constants.V6_MESSAGE_TYPE_TUNNEL_PING_REPLY:
-                    waitForTunnelPingReply();
-                    break;
+                    case Constants.V6_MESSAGE_TYPE_TUNNEL_PING_REPLY:
+                        waitForTunnelPingReply();
+                        break;
 
-                default:
-                    log.info("Unknown client state: " + state);
-                    break;
+                    default:
+                        log.info("Unknown client state: " + state);
+                        break;
+                }
             }
             
             clientMachine = null;
@@ -722,11 +855,8 @@ public class V6Machine implements Runnable {
             
             if (Utils.isMulticastAddress(remotePhysInetSockAddr.getAddress().getHostAddress())) {
                 try {
-                    DatagramSocket dataSock = new DatagramSocket();
-
-                    byte[] msgBytes = v6Msg.encode().array();
-                    dataSock.send(new DatagramPacket(msgBytes, msgBytes.length,
-                        remotePhysInetSockAddr.getAddress(), remotePhysInetSockAddr.getPort()));
+                    // Queued for the next multicast burst of the long-lived sender of the local address
+                    mcastSender.send(localPhysInetSockAddr.getAddress(), remotePhysInetSockAddr, v6Msg.encode());
                 } catch (IOException ex) {
                     log.info(ex.getMessage());
                 }
@@ -754,6 +884,13 @@ public class V6Machine implements Runnable {
                         log.warn("Advertise timeout after {} seconds, retrying...", WAIT_FOR_REPLY_TIME);
                         solicit();
                     }
+                } else if (advertiseMsg == null && cookieMsg != null) {
+                    // The server is under load: repeat the solicit with the cookie
+                    if (cookieRetries++ < Constants.MAX_COOKIE_RETRIES) {
+                        solicit();
+                    } else {
+                        log.info("Solicit cookie retries exceeded for {}", getRemotePhysInetAddr());
+                    }
                 } else {
                     state = Constants.V6_MESSAGE_TYPE_ADVERTISE;
                         
@@ -771,33 +908,37 @@ public class V6Machine implements Runnable {
                         advertiseMsg.getRemoteAddress().getPort());
                 }
                 
-                MessageInfo info = buildRequestMessage(this, advertiseMsg);
-                if (info != null) {
-                    v6Msg = info.getMessage();
-                    
-                    DatagramChannel c = channels.get(localPhysInetSockAddr.getAddress().getHostAddress());
-                    if (c != null) {
-                        ChannelFuture future = c.write(v6Msg, remotePhysInetSockAddr);
-                        future.addListener(this);
-                    } else {
-                        log.error("Could not find a DatagramChannel for inet address {}", localPhysInetSockAddr.getAddress().getHostAddress());
-                    }
-                    
-                    GenericResponseOption advertiseResponseOption = (GenericResponseOption) v6Msg.getOption(Constants.OPTION_GENERIC_RESPONSE);
-                    switch ((int)advertiseResponseOption.getUnsignedInt()) {
-                        case Constants.RESPONSE_DECLINE_REDUNDANT_PUBLIC_KEY:
-                        case Constants.RESPONSE_DECLINE_TUNNEL_NETWORK:
-                            waitForAdvertise();
-                            break;
-                            
-                        case Constants.RESPONSE_ACCEPT:
-                        default:
-                            state = Constants.V6_MESSAGE_TYPE_REQUEST;
-                            waitForReply();
-                            break;
-                    }
+                // The tunnel peer is applied with the next peer batch before the request is sent
+                continueWith(buildRequestMessage(this, advertiseMsg), this::sendRequest);
+            } else {
+                log.error("Advertise error");
+            }
+        }
+
+        private void sendRequest(MessageInfo info) {
+            if (info != null) {
+                v6Msg = info.getMessage();
+                
+                DatagramChannel c = channels.get(localPhysInetSockAddr.getAddress().getHostAddress());
+                if (c != null) {
+                    ChannelFuture future = c.write(v6Msg, remotePhysInetSockAddr);
+                    future.addListener(this);
                 } else {
-                    log.error("Request error");
+                    log.error("Could not find a DatagramChannel for inet address {}", localPhysInetSockAddr.getAddress().getHostAddress());
+                }
+                
+                GenericResponseOption advertiseResponseOption = (GenericResponseOption) v6Msg.getOption(Constants.OPTION_GENERIC_RESPONSE);
+                switch ((int)advertiseResponseOption.getUnsignedInt()) {
+                    case Constants.RESPONSE_DECLINE_REDUNDANT_PUBLIC_KEY:
+                    case Constants.RESPONSE_DECLINE_TUNNEL_NETWORK:
+                        waitForAdvertise();
+                        break;
+                        
+                    case Constants.RESPONSE_ACCEPT:
+                    default:
+                        state = Constants.V6_MESSAGE_TYPE_REQUEST;
+                        waitForReply();
+                        break;
                 }
             } else {
                 log.error("Request error");
@@ -826,7 +967,7 @@ public class V6Machine implements Runnable {
             if (replyMsg != null) {
                 MessageInfo info = buildTunnelPingMessage(this, replyMsg);
                 if (info != null) {
-                    DatagramChannel c = addDatagramChannel(info.getTunnel().getLocalTunnelInetSockAddr());
+                    DatagramChannel c = addTunnelDatagramChannel(info.getTunnel());
                                        
                     v6Msg = info.getMessage();
                     ChannelFuture future = c.write(v6Msg, v6Msg.getRemoteAddress());
@@ -916,7 +1057,6 @@ public class V6Machine implements Runnable {
         AtomicInteger tunnelPingRepliesSent = new AtomicInteger();
 
     	LinkedBlockingQueue<V6Message> solicitMsgQueue = new LinkedBlockingQueue<>();
-        LinkedBlockingQueue<V6Message> configInfoMsgQueue = new LinkedBlockingQueue<>();
 
         V6Message solicitMsg;
         V6Message requestMsg;
@@ -953,7 +1093,15 @@ public class V6Machine implements Runnable {
                 tunnelInetNet = referenceTunnel.getTunnelInetNet();
             }
             
-            waitForSolicit();
+            try {
+                if (!runContinuation()) {
+                    waitForSolicit();
+                }
+            } finally {
+                if (!suspended) {
+                    pendingServerMachines.getAndDecrement();
+                }
+            }
             
             serverMachine = null;
         }
@@ -1023,7 +1171,19 @@ public class V6Machine implements Runnable {
         }
 
         private void reply() {
-            v6Msg = new V6RequestProcessor(this, requestMsg, requestMsg.getRemoteAddress().getAddress()).processMessage();
+            V6RequestProcessor processor = new V6RequestProcessor(this, requestMsg, requestMsg.getRemoteAddress().getAddress());
+            v6Msg = processor.processMessage();
+            if (processor.getPeerResult() != null) {
+                // The reply to an accepted request is sent once the peer batch of its tunnel was applied
+                continueWith(processor.getPeerResult(), exitCode -> sendReply(processor.processPeerResult(exitCode)));
+                return;
+            }
+            
+            sendReply(v6Msg);
+        }
+        
+        private void sendReply(V6Message replyMsg) {
+            v6Msg = replyMsg;
             if (v6Msg != null) {
                 DatagramChannel c = channels.get(localPhysInetSockAddr.getAddress().getHostAddress());
                 if (c != null) {
@@ -1090,23 +1250,6 @@ public class V6Machine implements Runnable {
             state = Constants.V6_MESSAGE_TYPE_TUNNEL_PING_REPLY;
         }
         
-        private void tunnelsInfoRequestReply(V6Message infoRequestMsg) {
-            if (infoRequestMsg != null) {
-                List<V6Machine.MessageInfo> infoMsgs = buildPeerTunnelsInfoRequestReplyMessage(this, infoRequestMsg);
-                
-                if (!infoMsgs.isEmpty()) {
-                    for (V6Machine.MessageInfo info : infoMsgs) {
-                        state = Constants.V6_MESSAGE_TYPE_INFO_REQUEST;
-
-                        v6Msg = info.getMessage();
-                        ChannelFuture future = getDatagramChannelByInetAddr(info.getTunnel().getLocalPhysInetAddr())
-                            .write(v6Msg, v6Msg.getRemoteAddress());
-                        future.addListener(this);
-                    }
-                }
-            }
-        }
-    
         /* (non-Javadoc)
          * @see org.jboss.netty.channel.ChannelFutureListener#operationComplete(org.jboss.netty.channel.ChannelFuture)
          */
@@ -1141,9 +1284,10 @@ public class V6Machine implements Runnable {
     // end of ServerMachine
     
     /*
-     *  Create and initialize a tunnel element
+     *  Create and initialize a tunnel element. The future completes once the peer of the tunnel
+     *  was applied.
      */
-    public synchronized PersistenceTunnel createTunnelAsClient(String remoteEndpointType, String tunnelId, int clientId,
+    public synchronized CompletableFuture<PersistenceTunnel> createTunnelAsClient(String remoteEndpointType, String tunnelId, int clientId,
         String remotePhysInetAddr, String localPhysInetAddr, String remoteTunnelInetAddr, String localTunnelInetAddr,
         String remotePublicKey, long remoteListenPort, long remoteTunnelInetComPort, String tunnelNet, 
         String remoteInterfaceName, boolean force) {
@@ -1174,12 +1318,16 @@ public class V6Machine implements Runnable {
                 
         Wg wg = new Wg();
         int exitCode;
+        WgPeer peer = null;
         
         PersistenceTunnel referenceTunnel = WgConnect.getTunnelByLocalTunnelInetAddr(localTunnelInetAddr);
+        if (referenceTunnel == null && PeerPackingPolicy.isEnabled()) {
+            referenceTunnel = PeerPackingPolicy.getHostTunnel(localPhysInetAddr, tunnelNet, IPVersion.IPV6);
+        }
         if (force || referenceTunnel == null) {
             // Check for an existing WgConnect V6 device that is not in wgConnectTunnels
             String ifName = Utils.getAnyExistingWgConnectIfByPrefix(Constants.getTunnelInterfacePrefix(IPVersion.IPV6));
-            if (WgConnect.getTunnelByLocalIfName(ifName) != null ||
+            if (WgConnect.getTunnelByLocalIfName(ifName) != null || WarmInterfacePool.getInstance().isSpare(ifName) ||
                 Utils.getWgConnectIfByPrefixAndEndpointAddr(Constants.getTunnelInterfacePrefix(IPVersion.IPV6), remotePhysInetAddr) != null) {
                 force = true;
             }
@@ -1202,78 +1350,38 @@ public class V6Machine implements Runnable {
                     tunnel.setLocalPhysInetListenPort(listenPort);
                 } else {
                     log.error("Unable to obtain the listen port for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
+                    return CompletableFuture.completedFuture(null);
                 }
             } else {
-                // Generate the v6 interface name
-                ifName = Utils.getNextAvailableNetIfName(Constants.getTunnelInterfacePrefix(IPVersion.IPV6), -1);
-                tunnel.setLocalInterfaceName(ifName);
-                tunnel.setLocalTunnelInetComPort(localPort);
-
-                if (!wg.generateKeys()) {
-                    log.error("Unable to generate WgConnect cryptographic keys");
-                    return null;
-                }
-
-                tunnel.setLocalPublicKey(wg.getPublicKey());
-                tunnel.setLocalPrivateKey(wg.getPrivateKey());
-
-                if (tunnel.getLocalPrivateKey() == null || tunnel.getLocalPublicKey() == null) {
-                    log.error("Unable to generate or retrieve WgConnect crytographic keys");
-                    return null;
+                // Take a spare v6 interface, already keyed and up, from the warm interface pool
+                WarmInterfacePool.Spare spare = WarmInterfacePool.getInstance().take(IPVersion.IPV6);
+                if (spare == null) {
+                    log.error("Unable to add a WgConnect V6 device");
+                    return CompletableFuture.completedFuture(null);
                 }
 
-                // Add, configure, and bring up the WgConnect network link device
-                exitCode = wg.addDevice(tunnel.getLocalInterfaceName());
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to add the WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(),
-                    tunnel.getLocalTunnelInetAddr(), Integer.toString(Constants.V6_SUBNET_MASK_64));
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the inet address for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
+                tunnel.setLocalInterfaceName(spare.getIfName());
+                tunnel.setLocalTunnelInetComPort(localPort);
+                tunnel.setLocalPublicKey(spare.getPublicKey());
+                tunnel.setLocalPrivateKey(spare.getPrivateKey());
+                tunnel.setLocalPhysInetListenPort(spare.getListenPort());
 
-                exitCode = wg.setInterfacePrivateKey(tunnel.getLocalInterfaceName(), tunnel.getLocalPrivateKey());
+                // Assign the tunnel address to the WgConnect network link device
+                exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(), tunnel.getLocalTunnelInetAddr(),
+                    Integer.toString(Constants.V6_SUBNET_MASK_64));
                 if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set private key for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
+                    log.error("Unable to set the address of the WgConnect device " + tunnel.getLocalInterfaceName());
+                    WarmInterfacePool.getInstance().discard(spare);
+                    return CompletableFuture.completedFuture(null);
                 }
 
-                wg.setDeviceState(tunnel.getLocalInterfaceName(),
-                    DeviceManagerInterface.InterfaceDeviceState.UP);
-                if (wg.getCommandExitCode() == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the link state for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                // Get the listen port for the new link
-                long listenPort = wg.getInterfaceListenPort(tunnel.getLocalInterfaceName());
-                if (listenPort > 0) {
-                    tunnel.setLocalPhysInetListenPort(listenPort);
-                } else {
-                    log.error("Unable to obtain the listen-port for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                exitCode = wg.setInterfaceConfigParameters(tunnel.getLocalInterfaceName(),
-                    Wg.OPTION_PEER, tunnel.getRemotePublicKey(),
-                    Wg.OPTION_ALLOWED_IPS, tunnel.getRemoteTunnelInetAddr() + IPv6Address.PREFIX_LEN_SEPARATOR + Constants.V6_SUBNET_MASK_64,
-                    Wg.OPTION_ENDPOINT, tunnel.getRemotePhysInetAddr() + ":" + tunnel.getRemotePhysInetListenPort(),
-                    Wg.OPTION_PERSISTENT_KEEPALIVE, Integer.toString(WgConnect.getPersistentKeepalive())
-                );
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the peer configuration for the device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
+                peer = WgPeer.of(tunnel.getRemotePublicKey(), tunnel.getRemoteTunnelInetAddr(), Constants.V6_SUBNET_MASK_128,
+                    tunnel.getRemotePhysInetAddr(), tunnel.getRemotePhysInetListenPort(), WgConnect.getPersistentKeepalive());
 
                 // Add the tunnel to the datachannels
                 tunnel.setLocalTunnelInetSockAddr(new InetSocketAddress(tunnel.getLocalTunnelInetAddr(),
                     (int) tunnel.getLocalTunnelInetComPort()));
-                addDatagramChannel(tunnel.getLocalTunnelInetSockAddr());
+                addTunnelDatagramChannel(tunnel);
                 
                 // Add the tunnel to the GUI
                 WgConnect.guiAddTunnel(tunnel);
@@ -1281,7 +1389,16 @@ public class V6Machine implements Runnable {
         } else {
             tunnel.setLocalInterfaceName(referenceTunnel.getLocalInterfaceName());
 
-            tunnel.setLocalTunnelInetAddr(referenceTunnel.getLocalTunnelInetAddr());
+            // A tunnel packed onto the interface of another tunnel of its group adds its own address
+            if (!StringUtils.equals(referenceTunnel.getLocalTunnelInetAddr(), localTunnelInetAddr)) {
+                exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(), localTunnelInetAddr,
+                    Integer.toString(Constants.V6_SUBNET_MASK_64));
+                if (exitCode == Wg.getCommandFailureCode()) {
+                    log.error("Unable to add the address " + localTunnelInetAddr + " to the WgConnect device " +
+                        tunnel.getLocalInterfaceName());
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
             tunnel.setLocalTunnelInetComPort(referenceTunnel.getLocalTunnelInetComPort());
             tunnel.setLocalTunnelInetSockAddr(referenceTunnel.getLocalTunnelInetSockAddr());
             
@@ -1291,30 +1408,33 @@ public class V6Machine implements Runnable {
             
             tunnel.setLocalPhysInetListenPort(referenceTunnel.getLocalPhysInetListenPort());
             
-            exitCode = wg.setInterfaceConfigParameters(tunnel.getLocalInterfaceName(),
-                Wg.OPTION_PEER, tunnel.getRemotePublicKey(),
-                Wg.OPTION_ALLOWED_IPS, tunnel.getRemoteTunnelInetAddr() + IPv6Address.PREFIX_LEN_SEPARATOR + Constants.V6_SUBNET_MASK_64,
-                Wg.OPTION_ENDPOINT, tunnel.getRemotePhysInetAddr() + ":" + tunnel.getRemotePhysInetListenPort(),
-                Wg.OPTION_PERSISTENT_KEEPALIVE,
-                Integer.toString(WgConnect.getPersistentKeepalive())
-            );
-            if (exitCode == Wg.getCommandFailureCode()) {
-                log.error("Unable to set the peer configuration for the device " + tunnel.getLocalInterfaceName());
-                return null;
-            }
+            peer = WgPeer.of(tunnel.getRemotePublicKey(), tunnel.getRemoteTunnelInetAddr(), Constants.V6_SUBNET_MASK_128,
+                tunnel.getRemotePhysInetAddr(), tunnel.getRemotePhysInetListenPort(), WgConnect.getPersistentKeepalive());
 
             // Add the tunnel to the datachannels
             tunnel.setLocalTunnelInetSockAddr(new InetSocketAddress(tunnel.getLocalTunnelInetAddr(),
                 (int) tunnel.getLocalTunnelInetComPort()));
-            addDatagramChannel(tunnel.getLocalTunnelInetSockAddr());
+            addTunnelDatagramChannel(tunnel);
             
             // Add the tunnel to the GUI
             WgConnect.guiAddTunnel(tunnel);
         }
 
         WgConnect.addTunnel(tunnel);
-        
-        return tunnel;
+        if (peer == null) {
+            return CompletableFuture.completedFuture(tunnel);
+        }
+
+        // The tunnel is registered before its peer is applied, so a failed batch reaps it with its channel and interface
+        return PeerConfigBatcher.getInstance().queue(tunnel.getLocalInterfaceName(), peer).handle((result, ex) -> {
+            if (ex != null || result == Wg.getCommandFailureCode()) {
+                log.error("Unable to set the peer configuration for the device " + tunnel.getLocalInterfaceName());
+                TunnelReaper.getInstance().reap(tunnel);
+                return null;
+            }
+
+            return tunnel;
+        });
     }
     
     public synchronized PersistenceTunnel createTunnelAsServer(ServerMachine v6ServerMachine, int remoteId,
@@ -1346,12 +1466,14 @@ public class V6Machine implements Runnable {
         
         Wg wg = new Wg();
         
-        PersistenceTunnel referenceTunnel = WgConnect.getTunnelByLocalPhysInetAddrAndTunnelInetNet(localPhysInetAddr, tunnelInetNet, IPVersion.IPV6);
+        PersistenceTunnel referenceTunnel = PeerPackingPolicy.isEnabled() ?
+            PeerPackingPolicy.getHostTunnel(localPhysInetAddr, tunnelInetNet, IPVersion.IPV6) :
+            WgConnect.getTunnelByLocalPhysInetAddrAndTunnelInetNet(localPhysInetAddr, tunnelInetNet, IPVersion.IPV6);
 
         if (force || referenceTunnel == null) {
             // Check for an existing WgConnect V6 device that is not in wgConnectTunnels
             String ifName = Utils.getAnyExistingWgConnectIfByPrefix(Constants.getTunnelInterfacePrefix(IPVersion.IPV6));
-            if (WgConnect.getTunnelByLocalIfName(ifName) != null ||
+            if (WgConnect.getTunnelByLocalIfName(ifName) != null || WarmInterfacePool.getInstance().isSpare(ifName) ||
                 Utils.getWgConnectIfByPrefixAndEndpointAddr(Constants.getTunnelInterfacePrefix(IPVersion.IPV6), remotePhysInetAddr) != null) {
                 force = true;
             }
@@ -1377,63 +1499,31 @@ public class V6Machine implements Runnable {
                     return null;
                 }
             } else {
-                // Generate the v6 interface name
-                ifName = Utils.getNextAvailableNetIfName(Constants.getTunnelInterfacePrefix(IPVersion.IPV6), -1);
-                tunnel.setLocalInterfaceName(ifName);
-
-                if (!wg.generateKeys()) {
-                    log.error("Unable to generate WgConnect cryptographic keys");
+                // Take a spare v6 interface, already keyed and up, from the warm interface pool
+                WarmInterfacePool.Spare spare = WarmInterfacePool.getInstance().take(IPVersion.IPV6);
+                if (spare == null) {
+                    log.error("Unable to add a WgConnect V6 device");
                     return null;
                 }
 
-                tunnel.setLocalPublicKey(wg.getPublicKey());
-                tunnel.setLocalPrivateKey(wg.getPrivateKey());
-
-                if (tunnel.getLocalPrivateKey() == null || tunnel.getLocalPublicKey() == null) {
-                    log.error("Unable to generate or retrieve WgConnect crytographic keys");
-                    return null;
-                }
-
-                // Add, configure, and bring up the WgConnect network link device
-                int exitCode = wg.addDevice(tunnel.getLocalInterfaceName());
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to add the WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
+                tunnel.setLocalInterfaceName(spare.getIfName());
+                tunnel.setLocalPublicKey(spare.getPublicKey());
+                tunnel.setLocalPrivateKey(spare.getPrivateKey());
+                tunnel.setLocalPhysInetListenPort(spare.getListenPort());
 
-                exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(),
-                    tunnel.getLocalTunnelInetAddr(), Integer.toString(Constants.V6_SUBNET_MASK_64));
+                // Assign the tunnel address to the WgConnect network link device
+                int exitCode = wg.setDeviceInetAddr(tunnel.getLocalInterfaceName(), tunnel.getLocalTunnelInetAddr(),
+                    Integer.toString(Constants.V6_SUBNET_MASK_64));
                 if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the inet address for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                exitCode = wg.setInterfacePrivateKey(tunnel.getLocalInterfaceName(), tunnel.getLocalPrivateKey());
-                if (exitCode == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set private key for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                wg.setDeviceState(tunnel.getLocalInterfaceName(),
-                    DeviceManagerInterface.InterfaceDeviceState.UP);
-                if (wg.getCommandExitCode() == Wg.getCommandFailureCode()) {
-                    log.error("Unable to set the link state for WgConnect device " + tunnel.getLocalInterfaceName());
-                    return null;
-                }
-
-                // Get the listen port for the new link
-                long listenPort = wg.getInterfaceListenPort(tunnel.getLocalInterfaceName());
-                if (listenPort > 0) {
-                    tunnel.setLocalPhysInetListenPort(listenPort);
-                } else {
-                    log.error("Unable to obtain the listen-port for WgConnect device " + tunnel.getLocalInterfaceName());
+                    log.error("Unable to set the address of the WgConnect device " + tunnel.getLocalInterfaceName());
+                    WarmInterfacePool.getInstance().discard(spare);
                     return null;
                 }
 
                 // Add the tunnel to the datachannels
                 tunnel.setLocalTunnelInetSockAddr(new InetSocketAddress(tunnel.getLocalTunnelInetAddr(),
                     (int) tunnel.getLocalTunnelInetComPort()));
-                addDatagramChannel(tunnel.getLocalTunnelInetSockAddr());
+                addTunnelDatagramChannel(tunnel);
             }
         } else {
             tunnel.setLocalInterfaceName(referenceTunnel.getLocalInterfaceName());
@@ -1493,11 +1583,17 @@ public class V6Machine implements Runnable {
             ChannelPipeline pipeline = Channels.pipeline();
             pipeline.addLast("logger", new LoggingHandler());
             pipeline.addLast("encoder", new V6ChannelEncoder());
-            pipeline.addLast("decoder", new V6ChannelDecoder(localSockAddr, false));
-            pipeline.addLast("executor", new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576)));
+            pipeline.addLast("ratelimiter", rateLimitHandler);
+            pipeline.addLast("decoder", new V6ChannelDecoder(localSockAddr, false, packetClassifier));
+            if (localSockAddr.getAddress().isAnyLocalAddress()) {
+                pipeline.addLast("demux", tunnelDemuxHandler);
+            }
+            pipeline.addLast("executor", WorkerPool.getInstance().getExecutionHandler());
             pipeline.addLast("handler", new ChannelHandler());
 
             channel = factory.newChannel(pipeline);
+            // The specifically bound sockets share their ports with the wildcard tunnel socket
+            channel.getConfig().setReuseAddress(WgConnect.getTunnelWildcardSocket());
             channel.getConfig().setReceiveBufferSize(Constants.DEFAULT_RECEIVE_BUFFER_SIZE);
             channel.getConfig().setSendBufferSize(Constants.DEFAULT_SEND_BUFFER_SIZE);
             ChannelFuture future = channel.bind(localSockAddr);
@@ -1510,6 +1606,173 @@ public class V6Machine implements Runnable {
 
         return channel;
     }
+
+    /**
+     * Adds the datagram channel for the tunnel ping and info messages of a tunnel. Either a channel is
+     * bound to the local tunnel address, or, with the wildcard tunnel socket, the tunnel is added to the
+     * demultiplexer of the one wildcard-bound channel of the port, which also serves the lookups by the
+     * local tunnel address.
+     *
+     * The kernel picks the source address of a reply from the wildcard socket by the route to the peer,
+     * which is one address of the interface. The peer only accepts its tunnel's local address, so the
+     * tunnels of an interface with several local tunnel addresses, like client tunnels packed onto
+     * another tunnel's interface, get a channel bound to each of the addresses instead.
+     *
+     * @param tunnel the tunnel
+     * @return the datagram channel
+     */
+    public DatagramChannel addTunnelDatagramChannel(PersistenceTunnel tunnel) {
+        InetSocketAddress localTunnelInetSockAddr = tunnel.getLocalTunnelInetSockAddr();
+        if (!WgConnect.getTunnelWildcardSocket()) {
+            return addDatagramChannel(localTunnelInetSockAddr);
+        }
+
+        List<PersistenceTunnel> packedTunnels = WgConnect.getTunnelsByLocalIfName(tunnel.getLocalInterfaceName())
+            .stream()
+            .filter(t -> t != tunnel && !StringUtils.equals(t.getLocalTunnelInetAddr(), tunnel.getLocalTunnelInetAddr()))
+            .collect(Collectors.toList());
+        if (!packedTunnels.isEmpty()) {
+            packedTunnels.forEach(this::bindTunnelDatagramChannel);
+            return bindTunnelDatagramChannel(tunnel);
+        }
+
+        IPAddress remoteTunnelIPAddr = new IPAddressString(tunnel.getRemoteTunnelInetAddr()).getAddress();
+        if (remoteTunnelIPAddr == null) {
+            log.error("Invalid remote tunnel address {}, binding to the local tunnel address", tunnel.getRemoteTunnelInetAddr());
+            return addDatagramChannel(localTunnelInetSockAddr);
+        }
+
+        DatagramChannel channel = addDatagramChannel(new InetSocketAddress(Constants.V6_ZEROADDR,
+            localTunnelInetSockAddr.getPort()));
+        tunnelDemuxHandler.addTunnel(remoteTunnelIPAddr.toInetAddress(), localTunnelInetSockAddr);
+
+        String addrKey = new IPAddressString(localTunnelInetSockAddr.getAddress().getHostAddress())
+            .getAddress().getHostSection().toNormalizedString();
+        channels.putIfAbsent(addrKey, channel);
+
+        return channel;
+    }
+    
+    /**
+     * Moves a tunnel from the wildcard tunnel channel to a channel bound to its local tunnel address.
+     *
+     * @param tunnel the tunnel
+     * @return the datagram channel
+     */
+    private DatagramChannel bindTunnelDatagramChannel(PersistenceTunnel tunnel) {
+        InetSocketAddress localTunnelInetSockAddr = tunnel.getLocalTunnelInetSockAddr();
+        String addrKey = new IPAddressString(localTunnelInetSockAddr.getAddress().getHostAddress())
+            .getAddress().getHostSection().toNormalizedString();
+        
+        DatagramChannel channel = channels.get(addrKey);
+        if (channel != null && channel.getLocalAddress().getAddress().isAnyLocalAddress()) {
+            channels.remove(addrKey, channel);
+            
+            IPAddress remoteTunnelIPAddr = new IPAddressString(tunnel.getRemoteTunnelInetAddr()).getAddress();
+            if (remoteTunnelIPAddr != null) {
+                tunnelDemuxHandler.removeTunnel(remoteTunnelIPAddr.toInetAddress(), localTunnelInetSockAddr);
+            }
+        }
+        
+        return addDatagramChannel(localTunnelInetSockAddr);
+    }
+    
+    /**
+     * Removes a tunnel from the datagram channels after the tunnel was removed. The channel bound to
+     * the local tunnel address is closed once no other tunnel uses the address, while the wildcard
+     * tunnel channel is kept and only the tunnel is removed from its demultiplexer.
+     *
+     * @param tunnel the removed tunnel
+     */
+    public void removeTunnelDatagramChannel(PersistenceTunnel tunnel) {
+        IPAddress remoteTunnelIPAddr = new IPAddressString(tunnel.getRemoteTunnelInetAddr()).getAddress();
+        if (remoteTunnelIPAddr != null) {
+            tunnelDemuxHandler.removeTunnel(remoteTunnelIPAddr.toInetAddress(), tunnel.getLocalTunnelInetSockAddr());
+        }
+        
+        IPAddress localTunnelIPAddr = new IPAddressString(tunnel.getLocalTunnelInetAddr()).getAddress();
+        if (localTunnelIPAddr == null || WgConnect.getTunnelByLocalTunnelInetAddr(tunnel.getLocalTunnelInetAddr()) != null) {
+            return;
+        }
+        
+        DatagramChannel channel = channels.remove(localTunnelIPAddr.getHostSection().toNormalizedString());
+        if (channel != null && !channel.getLocalAddress().getAddress().isAnyLocalAddress()) {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Sends a teardown message for a tunnel through the tunnel itself.
+     *
+     * @param tunnel the tunnel
+     * @return true if the message was written
+     */
+    public boolean sendTeardownMessage(PersistenceTunnel tunnel) {
+        DatagramChannel c = getDatagramChannelByInetAddr(tunnel.getLocalTunnelInetAddr());
+        if (c == null) {
+            log.error("Could not find a DatagramChannel for inet address {}", tunnel.getLocalTunnelInetAddr());
+            return false;
+        }
+        
+        V6Message msg = buildTeardownMessage(tunnel, Constants.V6_MESSAGE_TYPE_TEARDOWN, random.nextInt() & Integer.MAX_VALUE);
+        c.write(msg, msg.getRemoteAddress());
+        
+        return true;
+    }
+    
+    /**
+     * Sends a tunnel info request for a tunnel through the tunnel itself. The request carries the
+     * last tunnel info version seen from the peer, so that only the changes since then are returned.
+     *
+     * @param tunnel the tunnel
+     * @return true if the message was written
+     */
+    public boolean sendTunnelsInfoRequestMessage(PersistenceTunnel tunnel) {
+        DatagramChannel c = getDatagramChannelByInetAddr(tunnel.getLocalTunnelInetAddr());
+        if (c == null) {
+            log.error("Could not find a DatagramChannel for inet address {}", tunnel.getLocalTunnelInetAddr());
+            return false;
+        }
+        
+        V6Message msg = ConnectConfig.getInstance().buildV6TunnelsInfoRequestMessage(tunnel);
+        c.write(msg, msg.getRemoteAddress());
+        
+        return true;
+    }
+    
+    /**
+     * Answers a tunnel info request with the tunnels that changed since the version in the request.
+     *
+     * @param requestMsg the tunnel info request message
+     */
+    private void processTunnelsInfoRequestMessage(V6Message requestMsg) {
+        for (MessageInfo info : buildPeerTunnelsInfoRequestReplyMessage(requestMsg)) {
+            DatagramChannel c = getDatagramChannelByInetAddr(info.getTunnel().getLocalTunnelInetAddr());
+            if (c == null) {
+                log.error("Could not find a DatagramChannel for inet address {}", info.getTunnel().getLocalTunnelInetAddr());
+                return;
+            }
+            
+            c.write(info.getMessage(), info.getMessage().getRemoteAddress());
+        }
+    }
+    
+    /**
+     * Applies a tunnel info reply to the peer tunnels of the tunnel it came through, and records
+     * its version as the last one seen from the peer.
+     *
+     * @param replyMsg the tunnel info reply message
+     */
+    private void processTunnelsInfoReplyMessage(V6Message replyMsg) {
+        PersistenceTunnel tunnel = replyMsg.getRemoteAddress() != null ?
+            WgConnect.getTunnelByRemoteTunnelInetAddr(replyMsg.getRemoteAddress().getAddress()) : null;
+        if (tunnel == null) {
+            log.info("Ignoring the tunnel info reply from {}: Could not find the associated tunnel", replyMsg.getRemoteAddress());
+            return;
+        }
+        
+        ConnectConfig.getInstance().applyTunnelsInfoReply(tunnel, replyMsg.getTransactionId(), replyMsg::getOption);
+    }
     
     private V6Message buildSolicitMessage(ClientMachine clientMachine) {
         V6Message msg = new V6Message(clientMachine.getLocalPhysInetSockAddr(), clientMachine.getRemotePhysInetSockAddr());
@@ -1525,11 +1788,94 @@ public class V6Machine implements Runnable {
         msg.putOption(new RemoteTunnelInetAddrOption(clientMachine.getLocalTunnelInetAddr(), false));
         msg.putOption(new TunnelNetworkOption(clientMachine.getTunnelInetNet(), false));
         
+        if (clientMachine.cookieMsg != null) {
+            CookieOption cookieOption = (CookieOption) clientMachine.cookieMsg.getOption(Constants.OPTION_COOKIE);
+            if (cookieOption != null) {
+                msg.putOption(new CookieOption(cookieOption.getString(), false));
+            }
+        }
+        
+        return msg;
+    }
+    
+    private V6Message buildTeardownMessage(PersistenceTunnel tunnel, short msgType, long transactionId) {
+        V6Message msg = new V6Message(tunnel.getLocalTunnelInetSockAddr(),
+            new InetSocketAddress(tunnel.getRemoteTunnelInetAddr(), (int) tunnel.getRemoteTunnelInetComPort()));
+        msg.setTransactionId(transactionId);
+        
+        msg.setMessageType(msgType);
+        msg.setMessageSender(msgType == Constants.V6_MESSAGE_TYPE_TEARDOWN ?
+            Constants.V6_MESSAGE_SENDER_CLIENT : Constants.V6_MESSAGE_SENDER_SERVER);
+        
+        msg.putOption(new TunnelIdOption(tunnel.getId().toString(), false));
+        
+        return msg;
+    }
+    
+    /**
+     * Handles a teardown or teardown reply message. The message must come from the remote tunnel
+     * address of its tunnel and must have arrived on the channel bound to the local tunnel address.
+     * The wildcard tunnel channel sets the local address of a message from its source address, so a
+     * teardown it received could have been sent to any address of the host and is ignored. A teardown
+     * is not authenticated otherwise: a host that routes to the local tunnel address can still send
+     * one with a forged source address. A teardown is answered with a teardown reply before the
+     * tunnel is removed.
+     *
+     * @param teardownMsg the teardown or teardown reply message
+     */
+    private void processTeardownMessage(V6Message teardownMsg) {
+        TunnelIdOption tunnelIdOption = (TunnelIdOption) teardownMsg.getOption(Constants.OPTION_TUNNEL_ID);
+        PersistenceTunnel tunnel = tunnelIdOption != null ? WgConnect.getTunnelByTunnelId(tunnelIdOption.getString()) : null;
+        if (tunnel == null) {
+            log.info("Ignoring the teardown message: Could not find the associated tunnel");
+            return;
+        }
+        
+        IPAddress remoteTunnelIPAddr = new IPAddressString(tunnel.getRemoteTunnelInetAddr()).getAddress();
+        if (remoteTunnelIPAddr == null || teardownMsg.getRemoteAddress() == null ||
+            !remoteTunnelIPAddr.toInetAddress().equals(teardownMsg.getRemoteAddress().getAddress())) {
+            log.info("Ignoring the teardown message for tunnel {} from {}", tunnel.getId(), teardownMsg.getRemoteAddress());
+            return;
+        }
+        
+        DatagramChannel c = getDatagramChannelByInetAddr(tunnel.getLocalTunnelInetAddr());
+        if (c == null || c.getLocalAddress().getAddress().isAnyLocalAddress() ||
+            !tunnel.getLocalTunnelInetSockAddr().equals(teardownMsg.getLocalAddress())) {
+            log.info("Ignoring the teardown message for tunnel {}: It was not received on the local tunnel address {}",
+                tunnel.getId(), tunnel.getLocalTunnelInetAddr());
+            return;
+        }
+        
+        if (teardownMsg.getMessageType() == Constants.V6_MESSAGE_TYPE_TEARDOWN_REPLY) {
+            TunnelReaper.getInstance().teardownComplete(tunnel);
+            return;
+        }
+        
+        log.info("Tunnel {} torn down by the peer {}", tunnel.getId(), tunnel.getRemoteTunnelInetAddr());
+        
+        V6Message msg = buildTeardownMessage(tunnel, Constants.V6_MESSAGE_TYPE_TEARDOWN_REPLY, teardownMsg.getTransactionId());
+        c.write(msg, msg.getRemoteAddress()).addListener(future -> TunnelReaper.getInstance().reap(tunnel));
+    }
+    
+    private V6Message buildCookieReplyMessage(V6Message solicitMsg) {
+        String cookie = cookieChecker.createCookie(solicitMsg.getRemoteAddress());
+        if (cookie == null) {
+            return null;
+        }
+        
+        V6Message msg = new V6Message(solicitMsg.getLocalAddress(), solicitMsg.getRemoteAddress());
+        msg.setTransactionId(solicitMsg.getTransactionId());
+        
+        msg.setMessageType(Constants.V6_MESSAGE_TYPE_COOKIE_REPLY);
+        msg.setMessageSender(Constants.V6_MESSAGE_SENDER_SERVER);
+        
+        msg.putOption(new CookieOption(cookie, false));
+        
         return msg;
     }
 
-    private MessageInfo buildRequestMessage(ClientMachine clientMachine, V6Message advertiseMsg) {
-        MessageInfo info = null;
+    private CompletableFuture<MessageInfo> buildRequestMessage(ClientMachine clientMachine, V6Message advertiseMsg) {
+        CompletableFuture<MessageInfo> info = CompletableFuture.completedFuture(null);
         
         GenericIdOption localIdOption = (GenericIdOption) advertiseMsg.getOption(Constants.OPTION_GENERIC_ID);
         TunnelIdOption tunnelIdOption = (TunnelIdOption) advertiseMsg.getOption(Constants.OPTION_TUNNEL_ID);
@@ -1561,7 +1907,6 @@ public class V6Machine implements Runnable {
                 msg.setTransactionId(advertiseMsg.getTransactionId());
                 
                 // Check for an existing tunnel with the offered remote public key
-                PersistenceTunnel tunnel = null;
                 if (Utils.getWgConnectIfByPrefixAndRemotePublicKey(Constants.getTunnelInterfacePrefix(IPVersion.IPV6),
                     remoteWgPublicKeyOption.getString()) != null) {
                     
@@ -1599,6 +1944,7 @@ public class V6Machine implements Runnable {
                     
                     msg.putOption(new TunnelNetworkOption(clientMachine.getTunnelInetNet(), true));
                     
+                    info = CompletableFuture.completedFuture(new MessageInfo(null, msg));
                 } else {
                     // Check the compatibility of the remoteTunnelNetwork and the localTunnelNetwork
                     if (!StringUtils.equals(clientMachine.getLocalTunnelInetAddr(), localTunnelInetAddrOption.getIpAddress())) {
@@ -1621,38 +1967,38 @@ public class V6Machine implements Runnable {
                             break;
                     }
                     
-                    tunnel = createTunnelAsClient(Constants.TUNNEL_ENDPOINT_TYPE_SERVER,
+                    info = createTunnelAsClient(Constants.TUNNEL_ENDPOINT_TYPE_SERVER,
                         tunnelIdOption.getString(), clientMachine.getMachineId(),
                         remotePhysInetAddrOption.getIpAddress(), clientMachine.getLocalPhysInetAddr(),
                         remoteTunnelInetAddrOption.getIpAddress(), clientMachine.getLocalTunnelInetAddr(),
                         remoteWgPublicKeyOption.getString(), remotePhysInetListenPortOption.getUnsignedInt(),
                         remoteTunnelInetComPortOption.getUnsignedInt(), clientMachine.getTunnelInetNet(),
-                        remoteInterfaceNameOption.getString(), force);
-
-                    if (tunnel != null) {
-                        clientMachine.setPersistenceTunnel(tunnel);
+                        remoteInterfaceNameOption.getString(), force).thenApply(tunnel -> {
+                        if (tunnel != null) {
+                            clientMachine.setPersistenceTunnel(tunnel);
                         
-                        msg.setMessageType(Constants.V6_MESSAGE_TYPE_REQUEST);
-                        msg.setMessageSender(Constants.V6_MESSAGE_SENDER_CLIENT);
+                            msg.setMessageType(Constants.V6_MESSAGE_TYPE_REQUEST);
+                            msg.setMessageSender(Constants.V6_MESSAGE_SENDER_CLIENT);
 
-                        msg.putOption(localIdOption);
-                        msg.putOption(new TunnelIdOption(tunnel.getId().toString(), false));
-                        msg.putOption(new GenericResponseOption(Constants.RESPONSE_ACCEPT, false));
+                            msg.putOption(localIdOption);
+                            msg.putOption(new TunnelIdOption(tunnel.getId().toString(), false));
+                            msg.putOption(new GenericResponseOption(Constants.RESPONSE_ACCEPT, false));
                         
-                        msg.putOption(new RemotePhysInetListenPortOption(tunnel.getLocalPhysInetListenPort(), false));
-                        msg.putOption(new RemoteTunnelInetComPortOption(tunnel.getLocalTunnelInetComPort(), false));
-                        msg.putOption(new RemoteWgPublicKeyOption(tunnel.getLocalPublicKey(), false));
-                        msg.putOption(new InterfaceNameOption(tunnel.getLocalInterfaceName(), false));
-                        msg.putOption(new TunnelNetworkOption(clientMachine.getTunnelInetNet(), false));
+                            msg.putOption(new RemotePhysInetListenPortOption(tunnel.getLocalPhysInetListenPort(), false));
+                            msg.putOption(new RemoteTunnelInetComPortOption(tunnel.getLocalTunnelInetComPort(), false));
+                            msg.putOption(new RemoteWgPublicKeyOption(tunnel.getLocalPublicKey(), false));
+                            msg.putOption(new InterfaceNameOption(tunnel.getLocalInterfaceName(), false));
+                            msg.putOption(new TunnelNetworkOption(clientMachine.getTunnelInetNet(), false));
                         
-                        tunnel.setState(Constants.V6_TUNNEL_STATUS_REQUEST);
-                        WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS);
-                    } else {
-                        log.info("Unable to create a V6 tunnel");
-                    }
+                            tunnel.setState(Constants.V6_TUNNEL_STATUS_REQUEST);
+                            WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS);
+                        } else {
+                            log.info("Unable to create a V6 tunnel");
+                        }
+                        
+                        return new MessageInfo(tunnel, msg);
+                    });
                 }
-
-                info = new MessageInfo(tunnel, msg);
             } else {
                 log.info("Ignoring the Advertisement message: A required option was not sent");
             }
@@ -1720,29 +2066,58 @@ public class V6Machine implements Runnable {
     }
     
     
-    private List<MessageInfo> buildPeerTunnelsInfoRequestReplyMessage(Machine machine, V6Message requestMsg) {
+    private List<MessageInfo> buildPeerTunnelsInfoRequestReplyMessage(V6Message requestMsg) {
         List <MessageInfo> infoMsgs = new ArrayList<>();
         
-        LocalTunnelInetAddrOption localTunnelInetAddrOption =
-            (LocalTunnelInetAddrOption) requestMsg.getOption(Constants.OPTION_LOCAL_TUNNEL_INET_ADDR);
-        RemoteTunnelInetAddrOption remoteTunnelInetAddrOption =
-            (RemoteTunnelInetAddrOption) requestMsg.getOption(Constants.OPTION_REMOTE_TUNNEL_INET_ADDR);
+        TunnelInfoVersionOption tunnelInfoVersionOption =
+            (TunnelInfoVersionOption) requestMsg.getOption(Constants.OPTION_TUNNEL_INFO_VERSION);
         
-        PersistenceTunnel tunnel = WgConnect.getTunnelByLocalAndRemoteTunnelInetAddrs(
-            localTunnelInetAddrOption.getIpAddress(), remoteTunnelInetAddrOption.getIpAddress());
+        // The request comes through its tunnel, so only the peer of the tunnel can send it
+        PersistenceTunnel tunnel = requestMsg.getRemoteAddress() != null ?
+            WgConnect.getTunnelByRemoteTunnelInetAddr(requestMsg.getRemoteAddress().getAddress()) : null;
 
         if (tunnel != null) {
-            for (PersistenceTunnel t : WgConnect.getV6Tunnels()) {
+            // Only reply with the tunnels that changed since the version last seen by the requester.
+            // A version from another epoch means nothing here, so that requester gets the full list.
+            TunnelInfoEpochOption tunnelInfoEpochOption =
+                (TunnelInfoEpochOption) requestMsg.getOption(Constants.OPTION_TUNNEL_INFO_EPOCH);
+            long lastSeenVersion = tunnelInfoVersionOption != null && tunnelInfoEpochOption != null &&
+                tunnelInfoEpochOption.getUnsignedInt() == PersistenceTunnel.getInfoEpoch() ?
+                tunnelInfoVersionOption.getUnsignedInt() : 0;
+            
+            List<PersistenceTunnel> records = new ArrayList<>(WgConnect.getV6TunnelsChangedSince(lastSeenVersion));
+            int recordCount = records.size();
+            if (records.isEmpty() && lastSeenVersion == 0) {
+                // An empty full list still tells the requester the epoch, so it drops what it had
+                records.add(null);
+            }
+            
+            for (PersistenceTunnel t : records) {
 
                 V6Message msg = new V6Message(tunnel.getLocalTunnelInetSockAddr(),
                     new InetSocketAddress(tunnel.getRemoteTunnelInetAddr(), (int) tunnel.getRemoteTunnelInetComPort()));
                 msg.setTransactionId(requestMsg.getTransactionId());
-                msg.setMessageType(Constants.V6_MESSAGE_TYPE_REPLY);
-
-                msg.putOption(new MsgTypeOption((short) Constants.V6_MESSAGE_TYPE_INFO_REQUEST_REPLY, false));
+                msg.setMessageType(Constants.V6_MESSAGE_TYPE_INFO_REQUEST_REPLY);
+                msg.setMessageSender(Constants.V6_MESSAGE_SENDER_SERVER);
+                
+                // Every message carries the size of the whole reply, so the requester knows when it has all of them
+                msg.putOption(new TunnelInfoEpochOption(PersistenceTunnel.getInfoEpoch(), false));
+                msg.putOption(new TunnelInfoCountOption(recordCount, false));
+                
+                if (t == null) {
+                    infoMsgs.add(new MessageInfo(tunnel, msg));
+                    continue;
+                }
                 
                 msg.putOption(new TunnelIdOption(t.getId().toString(), false));
                 msg.putOption(new TunnelStatusOption(t.getState(), false));
+                msg.putOption(new TunnelInfoVersionOption(t.getInfoVersion(), false));
+                
+                if (StringUtils.equals(t.getState(), Constants.TUNNEL_STATUS_REMOVED)) {
+                    // A tombstone only needs the tunnel id
+                    infoMsgs.add(new MessageInfo(tunnel, msg));
+                    continue;
+                }
                 
                 msg.putOption(new RemoteEndpointTypeOption(t.getRemoteEndpointType(), false));
                 msg.putOption(new LocalEndpointTypeOption(t.getLocalEndpointType(), false));
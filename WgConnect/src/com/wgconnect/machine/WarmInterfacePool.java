@@ -0,0 +1,287 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.InterfaceNameAllocator;
+import com.wgconnect.core.util.Utils;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import com.wgtools.DeviceManagerInterface;
+import com.wgtools.Wg;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * WarmInterfacePool
+ *
+ * A pool of spare WgConnect interfaces per IP version. A spare is created, keyed and brought up, and
+ * its listen port is captured, in the background, so a new tunnel only assigns its address and adds
+ * its peer. The pool is refilled after each take and its spares are deleted at shutdown. When the
+ * pool is empty, or has not been started, the spare is created in place. The interface names are
+ * taken from the InterfaceNameAllocator and given back when a spare is deleted.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class WarmInterfacePool {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(WarmInterfacePool.class);
+
+    private static WarmInterfacePool INSTANCE;
+
+    private final Map<IPVersion, ConcurrentLinkedQueue<Spare>> spares = new EnumMap<>(IPVersion.class);
+    private final Map<IPVersion, Integer> sizes = new ConcurrentHashMap<>();
+    private final Set<String> spareNames = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refiller;
+
+    private volatile boolean shutdown;
+
+    /**
+     * An interface that is up and keyed, with its listen port, but without an address or peers.
+     */
+    public static class Spare {
+        private final String ifName;
+        private final String privateKey;
+        private final String publicKey;
+        private final long listenPort;
+
+        Spare(String ifName, String privateKey, String publicKey, long listenPort) {
+            this.ifName = ifName;
+            this.privateKey = privateKey;
+            this.publicKey = publicKey;
+            this.listenPort = listenPort;
+        }
+
+        public String getIfName() {
+            return ifName;
+        }
+
+        public String getPrivateKey() {
+            return privateKey;
+        }
+
+        public String getPublicKey() {
+            return publicKey;
+        }
+
+        public long getListenPort() {
+            return listenPort;
+        }
+    }
+
+    /**
+     * Gets the single instance of WarmInterfacePool.
+     *
+     * @return single instance of WarmInterfacePool
+     */
+    public static synchronized WarmInterfacePool getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new WarmInterfacePool();
+        }
+
+        return INSTANCE;
+    }
+
+    private WarmInterfacePool() {
+        for (IPVersion ipVersion : IPVersion.values()) {
+            spares.put(ipVersion, new ConcurrentLinkedQueue<>());
+        }
+
+        refiller = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "WarmInterfacePool");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts keeping a number of spare interfaces of an IP version.
+     *
+     * @param ipVersion the IP version
+     * @param size the number of spares, 0 to create each interface when it is needed
+     */
+    public void start(IPVersion ipVersion, int size) {
+        if (size <= 0) {
+            return;
+        }
+
+        sizes.put(ipVersion, size);
+        refill(ipVersion);
+
+        log.info("Warm interface pool: {} {} spares", size, ipVersion);
+    }
+
+    /**
+     * Takes a spare interface, or creates one in place when there is none.
+     *
+     * @param ipVersion the IP version
+     * @return the spare, or null if an interface could not be created
+     */
+    public Spare take(IPVersion ipVersion) {
+        Spare spare;
+        while ((spare = spares.get(ipVersion).poll()) != null) {
+            spareNames.remove(spare.getIfName());
+            if (Utils.isWgConnectInterface(spare.getIfName())) {
+                break;
+            }
+            log.info("Dropping the spare interface {}, it no longer exists", spare.getIfName());
+        }
+
+        refill(ipVersion);
+
+        if (spare == null && (spare = create(ipVersion)) != null) {
+            spareNames.remove(spare.getIfName());
+        }
+
+        return spare;
+    }
+
+    /**
+     * Discards a taken spare that could not be set up for its tunnel: the interface is deleted and
+     * its name is released.
+     *
+     * @param spare the spare
+     */
+    public void discard(Spare spare) {
+        Wg wg = new Wg();
+        if (wg.deleteDevice(spare.getIfName()) == Wg.getCommandFailureCode()) {
+            log.error("Unable to delete the spare interface " + spare.getIfName());
+        }
+        release(spare.getIfName());
+    }
+
+    /**
+     * Checks if an interface is a spare of the pool, or is being created as one.
+     *
+     * @param ifName the interface name
+     * @return true if the interface is a spare
+     */
+    public boolean isSpare(String ifName) {
+        return ifName != null && spareNames.contains(ifName);
+    }
+
+    /**
+     * Stops the refills and deletes the spare interfaces.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+        }
+        refiller.shutdownNow();
+
+        Wg wg = new Wg();
+        for (ConcurrentLinkedQueue<Spare> queue : spares.values()) {
+            Spare spare;
+            while ((spare = queue.poll()) != null) {
+                if (wg.deleteDevice(spare.getIfName()) == Wg.getCommandFailureCode()) {
+                    log.error("Unable to delete the spare interface " + spare.getIfName());
+                }
+                release(spare.getIfName());
+            }
+        }
+    }
+
+    private void refill(IPVersion ipVersion) {
+        if (shutdown || !sizes.containsKey(ipVersion)) {
+            return;
+        }
+
+        try {
+            refiller.execute(() -> {
+                ConcurrentLinkedQueue<Spare> queue = spares.get(ipVersion);
+                while (!shutdown && queue.size() < sizes.get(ipVersion)) {
+                    Spare spare = create(ipVersion);
+                    if (spare == null) {
+                        // Retried on the next take
+                        break;
+                    }
+
+                    synchronized (this) {
+                        if (!shutdown) {
+                            queue.add(spare);
+                            continue;
+                        }
+                    }
+
+                    // Shut down while the spare was being created
+                    discard(spare);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            log.info(ex.getMessage());
+        }
+    }
+
+    private Spare create(IPVersion ipVersion) {
+        Wg wg = new Wg();
+
+        if (!wg.generateKeys()) {
+            log.error("Unable to generate WgConnect " + ipVersion + " cryptographic keys");
+            return null;
+        }
+
+        String privateKey = wg.getPrivateKey();
+        String publicKey = wg.getPublicKey();
+        if (privateKey == null || publicKey == null) {
+            log.error("Unable to generate or retrieve WgConnect " + ipVersion + " cryptographic keys");
+            return null;
+        }
+
+        String ifName = InterfaceNameAllocator.getInstance().allocate(Constants.getTunnelInterfacePrefix(ipVersion));
+        spareNames.add(ifName);
+        if (wg.addDevice(ifName, DeviceManagerInterface.InterfaceDeviceState.UP) == Wg.getCommandFailureCode()) {
+            // Keep the name allocated, it may be taken by a device of another kind
+            log.error("Unable to add the WgConnect device " + ifName);
+            spareNames.remove(ifName);
+            return null;
+        }
+
+        int exitCode = wg.setInterfacePrivateKey(ifName, privateKey);
+
+        // Get the listen port for the new link
+        long listenPort = exitCode != Wg.getCommandFailureCode() ? wg.getInterfaceListenPort(ifName) : 0;
+        if (listenPort <= 0) {
+            log.error("Unable to set up the WgConnect device " + ifName);
+            wg.deleteDevice(ifName);
+            release(ifName);
+            return null;
+        }
+
+        return new Spare(ifName, privateKey, publicKey, listenPort);
+    }
+
+    private void release(String ifName) {
+        spareNames.remove(ifName);
+        for (IPVersion ipVersion : IPVersion.values()) {
+            String ifPrefix = Constants.getTunnelInterfacePrefix(ipVersion);
+            if (ifName.startsWith(ifPrefix)) {
+                InterfaceNameAllocator.getInstance().release(ifPrefix, ifName);
+            }
+        }
+    }
+}
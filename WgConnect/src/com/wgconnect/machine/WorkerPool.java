@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgconnect.WgConnect;
+import com.wgconnect.core.util.Constants;
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+
+/**
+ * WorkerPool
+ *
+ * The single bounded worker pool shared by the pipelines of all of the V4 and V6 datagram channels.
+ * Received messages are ordered per peer rather than per channel: the remote address is hashed onto
+ * a fixed set of ordering lanes, so the messages of a peer run in order while different peers run in
+ * parallel, and the number of child executors stays bounded. The queued events are bounded by memory
+ * per channel and in total, which applies back pressure to the receive threads.
+ *
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class WorkerPool extends OrderedMemoryAwareThreadPoolExecutor {
+
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(WorkerPool.class);
+
+    private static WorkerPool INSTANCE;
+
+    private final Integer[] lanes;
+    private final ExecutionHandler executionHandler;
+
+    private final AtomicLong pendingEvents = new AtomicLong();
+    private final AtomicLong executedEvents = new AtomicLong();
+
+    /**
+     * Gets the single instance of WorkerPool.
+     *
+     * @return single instance of WorkerPool
+     */
+    public static synchronized WorkerPool getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new WorkerPool(WgConnect.getWorkerThreads());
+        }
+
+        return INSTANCE;
+    }
+
+    private WorkerPool(int threads) {
+        super(Math.max(1, threads), Constants.WORKER_POOL_MAX_CHANNEL_MEMORY, Constants.WORKER_POOL_MAX_TOTAL_MEMORY,
+            Constants.WORKER_POOL_KEEP_ALIVE_TIME, TimeUnit.SECONDS, new WorkerThreadFactory());
+
+        // Keep the lane keys strongly referenced, the child executor map has weak identity keys
+        lanes = new Integer[Math.max(1, threads) * Constants.WORKER_POOL_LANES_PER_THREAD];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = i;
+        }
+
+        executionHandler = new ExecutionHandler(this);
+
+        log.info("Worker pool: {} threads, {} ordering lanes", getCorePoolSize(), lanes.length);
+    }
+
+    /**
+     * Gets the execution handler of the pool, shared by all of the channel pipelines.
+     *
+     * @return the execution handler
+     */
+    public ExecutionHandler getExecutionHandler() {
+        return executionHandler;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor#getChildExecutorKey
+     * (org.jboss.netty.channel.ChannelEvent)
+     */
+    @Override
+    protected Object getChildExecutorKey(ChannelEvent e) {
+        if (e instanceof MessageEvent) {
+            SocketAddress remoteAddr = ((MessageEvent) e).getRemoteAddress();
+            if (remoteAddr != null) {
+                return lanes[(remoteAddr.hashCode() & Integer.MAX_VALUE) % lanes.length];
+            }
+        }
+
+        return super.getChildExecutorKey(e);
+    }
+
+    @Override
+    protected void increaseCounter(Runnable task) {
+        super.increaseCounter(task);
+        pendingEvents.getAndIncrement();
+    }
+
+    @Override
+    protected void decreaseCounter(Runnable task) {
+        super.decreaseCounter(task);
+        pendingEvents.getAndDecrement();
+        executedEvents.getAndIncrement();
+    }
+
+    /**
+     * Gets the pool metrics.
+     *
+     * @return the metric values by name
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("threads", (long) getPoolSize());
+        metrics.put("activeThreads", (long) getActiveCount());
+        metrics.put("largestThreads", (long) getLargestPoolSize());
+        metrics.put("pendingEvents", pendingEvents.get());
+        metrics.put("executedEvents", executedEvents.get());
+        metrics.put("maxChannelMemory", getMaxChannelMemorySize());
+        metrics.put("maxTotalMemory", getMaxTotalMemorySize());
+
+        return metrics;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "WorkerPool-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
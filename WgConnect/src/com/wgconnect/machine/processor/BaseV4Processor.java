@@ -86,7 +86,10 @@ public abstract class BaseV4Processor implements V4MessageProcessor {
                 log.warn("Message dropped by processor");
             }
 
-            if (log.isDebugEnabled()) {
+            if (replyMsg == null) {
+                // An accepted request is answered once its peer batch was applied
+                log.debug("Returning no reply yet");
+            } else if (log.isDebugEnabled()) {
                 log.info("Returning: " + replyMsg.toStringWithOptions(Constants.V4_MESSAGE_SENDER_SERVER));
             } else if (log.isInfoEnabled()) {
                 log.info("Returning: " + replyMsg.toString(Constants.V4_MESSAGE_SENDER_SERVER));
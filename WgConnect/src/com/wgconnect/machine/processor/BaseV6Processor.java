@@ -82,7 +82,10 @@ public abstract class BaseV6Processor implements V6MessageProcessor {
                 return null;
             }
 
-            if (log.isDebugEnabled()) {
+            if (replyMsg == null) {
+                // An accepted request is answered once its peer batch was applied
+                log.debug("Returning no reply yet");
+            } else if (log.isDebugEnabled()) {
                 log.info("Returning: " + replyMsg.toStringWithOptions(Constants.V6_MESSAGE_SENDER_SERVER));
                 
             } else if (log.isInfoEnabled()) {
@@ -35,14 +35,17 @@ import com.wgconnect.core.util.Constants;
 import com.wgconnect.core.util.WgConnectLogger;
 import com.wgconnect.db.persistence.PersistenceTunnel;
 import com.wgconnect.gui.Gui;
+import com.wgconnect.machine.PeerConfigBatcher;
 import com.wgconnect.machine.V4Machine;
 import static com.wgconnect.machine.processor.BaseV4Processor.connectConfig;
 
 import com.wgtools.Wg;
+import com.wgtools.WgPeer;
 
 import inet.ipaddr.ipv4.IPv4Address;
 
 import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -70,6 +73,8 @@ public class V4RequestProcessor extends BaseV4Processor {
     protected RemoteWgPublicKeyOption remoteWgPublicKeyOption;
     protected InterfaceNameOption remoteInterfaceNameOption;
     protected TunnelNetworkOption tunnelNetworkOption;
+    
+    protected CompletableFuture<Integer> peerResult;
 
     /**
      * Instantiate a V4RequestProcessor.
@@ -130,44 +135,11 @@ public class V4RequestProcessor extends BaseV4Processor {
             tunnel.setRemotePublicKey(remoteWgPublicKeyOption.getString());
             tunnel.setRemoteInterfaceName(remoteInterfaceNameOption.getString());
 
-            Wg wg = new Wg();
-            wg.setInterfaceConfigParameters(tunnel.getLocalInterfaceName(),
-                Wg.OPTION_PEER, tunnel.getRemotePublicKey(),
-                Wg.OPTION_ALLOWED_IPS, tunnel.getRemoteTunnelInetAddr() + IPv4Address.PREFIX_LEN_SEPARATOR + Constants.V4_SUBNET_MASK_32,
-                Wg.OPTION_ENDPOINT, tunnel.getRemotePhysInetAddr() + ":" + tunnel.getRemotePhysInetListenPort(),
-                Wg.OPTION_PERSISTENT_KEEPALIVE,
-                Integer.toString(WgConnect.getPersistentKeepalive())
-            );
-            
-            if (wg.getCommandExitCode() == Wg.getCommandSuccessCode()) {
-                try {
-                    tunnel.setState(Constants.V4_TUNNEL_STATUS_REQUEST);
-                    WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS, Gui.COLUMN_INDEX_ENDPOINTS, Gui.COLUMN_INDEX_PUBLIC_KEYS);
-
-                    connectConfig.updatePersistenceDatabase(tunnel);
-
-                    replyMsg = new V4Message(requestMsg.getLocalAddress(), requestMsg.getRemoteAddress());
-                    replyMsg.setOp((short) Constants.V4_OP_REPLY);
-                    replyMsg.setHtype(requestMsg.getHtype());
-                    replyMsg.setTransactionId(requestMsg.getTransactionId());
-                    replyMsg.setClientAddr(requestMsg.getClientAddr());
-                    replyMsg.setClientPort(requestMsg.getClientPort());
-                    replyMsg.setServerAddr(requestMsg.getServerAddr());
-                    replyMsg.setServerPort(requestMsg.getServerPort());
-                    
-                    replyMsg.setMessageType((short) Constants.V4_MESSAGE_TYPE_ACK);
-                    replyMsg.setMessageSender((short) Constants.V4_MESSAGE_SENDER_SERVER);
-
-                    replyMsg.putOption(new TunnelIdOption(tunnel.getId().toString(), true));
-                    
-                    sendReply = true;
-                } catch (Exception ex) {
-                    log.error("Exception: " + ex);
-                }
-                
-                // Add the tunnel to the GUI
-                WgConnect.guiAddTunnel(tunnel);
-            }
+            // The peer is applied with the next peer batch, the ack is built once the batch was applied
+            peerResult = PeerConfigBatcher.getInstance().queue(tunnel.getLocalInterfaceName(),
+                WgPeer.of(tunnel.getRemotePublicKey(), tunnel.getRemoteTunnelInetAddr(), Constants.V4_SUBNET_MASK_32,
+                tunnel.getRemotePhysInetAddr(), tunnel.getRemotePhysInetListenPort(), WgConnect.getPersistentKeepalive()));
+            sendReply = true;
         } else {
             switch ((int) offerResponseOption.getUnsignedInt()) {
                 case Constants.RESPONSE_DECLINE_REDUNDANT_PUBLIC_KEY:
@@ -249,4 +221,49 @@ public class V4RequestProcessor extends BaseV4Processor {
         
         return sendReply;
     }
+
+    /**
+     * Completes an accepted request once the peer batch of the tunnel was applied, the machine
+     * executor serves the other machines in the meantime.
+     *
+     * @param exitCode the command success or failure code of the peer batch, or null if it failed
+     * @return the reply message, or null if the peer could not be set
+     */
+    public V4Message processPeerResult(Integer exitCode) {
+        if (exitCode != null && exitCode == Wg.getCommandSuccessCode()) {
+            try {
+                tunnel.setState(Constants.V4_TUNNEL_STATUS_REQUEST);
+                WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS, Gui.COLUMN_INDEX_ENDPOINTS, Gui.COLUMN_INDEX_PUBLIC_KEYS);
+
+                connectConfig.updatePersistenceDatabase(tunnel);
+
+                replyMsg = new V4Message(requestMsg.getLocalAddress(), requestMsg.getRemoteAddress());
+                replyMsg.setOp((short) Constants.V4_OP_REPLY);
+                replyMsg.setHtype(requestMsg.getHtype());
+                replyMsg.setTransactionId(requestMsg.getTransactionId());
+                replyMsg.setClientAddr(requestMsg.getClientAddr());
+                replyMsg.setClientPort(requestMsg.getClientPort());
+                replyMsg.setServerAddr(requestMsg.getServerAddr());
+                replyMsg.setServerPort(requestMsg.getServerPort());
+                
+                replyMsg.setMessageType((short) Constants.V4_MESSAGE_TYPE_ACK);
+                replyMsg.setMessageSender((short) Constants.V4_MESSAGE_SENDER_SERVER);
+
+                replyMsg.putOption(new TunnelIdOption(tunnel.getId().toString(), true));
+            } catch (Exception ex) {
+                log.error("Exception: " + ex);
+            }
+            
+            // Add the tunnel to the GUI
+            WgConnect.guiAddTunnel(tunnel);
+        } else {
+            log.error("Unable to set the peer configuration for the device {}", tunnel.getLocalInterfaceName());
+        }
+        
+        return replyMsg;
+    }
+    
+    public CompletableFuture<Integer> getPeerResult() {
+        return peerResult;
+    }
 }
@@ -20,6 +20,7 @@ package com.wgconnect.machine.processor;
 import com.wgconnect.WgConnect;
 
 import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
 
 import com.wgconnect.core.message.V6Message;
 import com.wgconnect.core.option.machine.GenericIdOption;
@@ -38,9 +39,11 @@ import com.wgconnect.core.util.Constants;
 import com.wgconnect.core.util.WgConnectLogger;
 import com.wgconnect.db.persistence.PersistenceTunnel;
 import com.wgconnect.gui.Gui;
+import com.wgconnect.machine.PeerConfigBatcher;
 import com.wgconnect.machine.V6Machine;
 
 import com.wgtools.Wg;
+import com.wgtools.WgPeer;
 
 import inet.ipaddr.ipv6.IPv6Address;
 
@@ -70,6 +73,8 @@ public class V6RequestProcessor extends BaseV6Processor {
     protected RemoteWgPublicKeyOption remoteWgPublicKeyOption;
     protected InterfaceNameOption remoteInterfaceNameOption;
     protected TunnelNetworkOption tunnelNetworkOption;
+    
+    protected CompletableFuture<Integer> peerResult;
 
     /**
      * Instantiate a V6RequestProcessor
@@ -130,38 +135,11 @@ public class V6RequestProcessor extends BaseV6Processor {
             tunnel.setRemotePublicKey(remoteWgPublicKeyOption.getString());
             tunnel.setRemoteInterfaceName(remoteInterfaceNameOption.getString());
 
-            Wg wg = new Wg();
-            wg.setInterfaceConfigParameters(tunnel.getLocalInterfaceName(),
-                Wg.OPTION_PEER, tunnel.getRemotePublicKey(),
-                Wg.OPTION_ALLOWED_IPS, tunnel.getRemoteTunnelInetAddr() + IPv6Address.PREFIX_LEN_SEPARATOR + Constants.V6_SUBNET_MASK_64,
-                Wg.OPTION_ENDPOINT, tunnel.getRemotePhysInetAddr() + ":" + tunnel.getRemotePhysInetListenPort(),
-                Wg.OPTION_PERSISTENT_KEEPALIVE,
-                Integer.toString(WgConnect.getPersistentKeepalive())
-            );
-
-            if (wg.getCommandExitCode() == Wg.getCommandSuccessCode()) {
-                try {
-                    tunnel.setState(Constants.V6_TUNNEL_STATUS_REQUEST);
-                    WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS, Gui.COLUMN_INDEX_ENDPOINTS, Gui.COLUMN_INDEX_PUBLIC_KEYS);
-
-                    connectConfig.updatePersistenceDatabase(tunnel);
-
-                    replyMsg = new V6Message(requestMsg.getLocalAddress(), requestMsg.getRemoteAddress());
-                    replyMsg.setMessageType(Constants.V6_MESSAGE_TYPE_REPLY);
-                    replyMsg.setMessageSender(Constants.V6_MESSAGE_SENDER_SERVER);
-                    
-                    replyMsg.setTransactionId(requestMsg.getTransactionId());
-                    
-                    replyMsg.putOption(new TunnelIdOption(tunnel.getId().toString(), false));
-                    
-                    sendReply = true;
-                } catch (Exception ex) {
-                    log.error("Exception: " + ex);
-                }
-                
-                // Add the tunnel to the GUI
-                WgConnect.guiAddTunnel(tunnel);
-            }
+            // The peer is applied with the next peer batch, the reply is built once the batch was applied
+            peerResult = PeerConfigBatcher.getInstance().queue(tunnel.getLocalInterfaceName(),
+                WgPeer.of(tunnel.getRemotePublicKey(), tunnel.getRemoteTunnelInetAddr(), Constants.V6_SUBNET_MASK_128,
+                tunnel.getRemotePhysInetAddr(), tunnel.getRemotePhysInetListenPort(), WgConnect.getPersistentKeepalive()));
+            sendReply = true;
         } else {
             switch ((int) offerResponseOption.getUnsignedInt()) {
                 case Constants.RESPONSE_DECLINE_REDUNDANT_PUBLIC_KEY:
@@ -237,4 +215,43 @@ public class V6RequestProcessor extends BaseV6Processor {
         
         return sendReply;
     }
+
+    /**
+     * Completes an accepted request once the peer batch of the tunnel was applied, the machine
+     * executor serves the other machines in the meantime.
+     *
+     * @param exitCode the command success or failure code of the peer batch, or null if it failed
+     * @return the reply message, or null if the peer could not be set
+     */
+    public V6Message processPeerResult(Integer exitCode) {
+        if (exitCode != null && exitCode == Wg.getCommandSuccessCode()) {
+            try {
+                tunnel.setState(Constants.V6_TUNNEL_STATUS_REQUEST);
+                WgConnect.guiRefreshTunnelRowColumns(tunnel, Gui.COLUMN_INDEX_STATUS, Gui.COLUMN_INDEX_ENDPOINTS, Gui.COLUMN_INDEX_PUBLIC_KEYS);
+
+                connectConfig.updatePersistenceDatabase(tunnel);
+
+                replyMsg = new V6Message(requestMsg.getLocalAddress(), requestMsg.getRemoteAddress());
+                replyMsg.setMessageType(Constants.V6_MESSAGE_TYPE_REPLY);
+                replyMsg.setMessageSender(Constants.V6_MESSAGE_SENDER_SERVER);
+                
+                replyMsg.setTransactionId(requestMsg.getTransactionId());
+                
+                replyMsg.putOption(new TunnelIdOption(tunnel.getId().toString(), false));
+            } catch (Exception ex) {
+                log.error("Exception: " + ex);
+            }
+            
+            // Add the tunnel to the GUI
+            WgConnect.guiAddTunnel(tunnel);
+        } else {
+            log.error("Unable to set the peer configuration for the device {}", tunnel.getLocalInterfaceName());
+        }
+        
+        return replyMsg;
+    }
+    
+    public CompletableFuture<Integer> getPeerResult() {
+        return peerResult;
+    }
 }
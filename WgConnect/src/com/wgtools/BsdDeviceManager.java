@@ -49,7 +49,9 @@ public class BsdDeviceManager implements DeviceManagerInterface {
     protected static final String COMMAND_DIR = "/usr/bin/";
     
     private static final String ARGS_ADD_DEVICE = "%s create";
+    private static final String ARGS_DELETE_DEVICE = "%s destroy";
     private static final String ARGS_SET_DEVICE_INET_ADDR = "%s inet %s/%s";
+    private static final String ARGS_DELETE_DEVICE_INET_ADDR = "%s inet %s/%s -alias";
     private static final String ARGS_SET_DEVICE_STATE = "%s %s";
     private String commandOutputString;
     private String commandErrorString;
@@ -77,12 +79,24 @@ public class BsdDeviceManager implements DeviceManagerInterface {
         return commandExitCode;
     }
 
+    @Override
+    public int deleteDevice(String deviceName) {
+        executeCommand(COMMAND_IFCONFIG + StringUtils.SPACE + String.format(ARGS_DELETE_DEVICE, deviceName));
+        return commandExitCode;
+    }
+
     @Override
     public int setDeviceInetAddr(String deviceName, String inetAddr, String subnetMask) {
         executeCommand(COMMAND_IFCONFIG + StringUtils.SPACE + String.format(ARGS_SET_DEVICE_INET_ADDR, deviceName, inetAddr, subnetMask));
         return commandExitCode;
     }
 
+    @Override
+    public int deleteDeviceInetAddr(String deviceName, String inetAddr, String subnetMask) {
+        executeCommand(COMMAND_IFCONFIG + StringUtils.SPACE + String.format(ARGS_DELETE_DEVICE_INET_ADDR, deviceName, inetAddr, subnetMask));
+        return commandExitCode;
+    }
+
     @Override
     public int setDeviceState(String deviceName, InterfaceDeviceState state) {
         executeCommand(COMMAND_IFCONFIG + StringUtils.SPACE + String.format(ARGS_SET_DEVICE_STATE, deviceName, state.toString()));
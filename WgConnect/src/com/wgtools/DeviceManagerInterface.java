@@ -47,8 +47,28 @@ public interface DeviceManagerInterface {
         
     public int addDevice(String deviceName);
     
+    /**
+     * Adds a device and sets its state.
+     * 
+     * @param deviceName the device name
+     * @param state the device state
+     * @return the command exit code
+     */
+    public default int addDevice(String deviceName, InterfaceDeviceState state) {
+        int exitCode = addDevice(deviceName);
+        if (exitCode == 0) {
+            exitCode = setDeviceState(deviceName, state);
+        }
+        
+        return exitCode;
+    }
+    
+    public int deleteDevice(String deviceName);
+    
     public int setDeviceInetAddr(String deviceName, String inetAddr, String networkMask);
     
+    public int deleteDeviceInetAddr(String deviceName, String inetAddr, String networkMask);
+    
     public int setDeviceState(String deviceName, InterfaceDeviceState state);
     
     public String getDeviceInfo(String deviceName, IPVersion ipVersion);
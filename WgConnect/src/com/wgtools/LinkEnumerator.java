@@ -0,0 +1,214 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * LinkEnumerator
+ * 
+ * Lists the network interfaces by name prefix without the address enumeration of every interface
+ * that NetworkInterface.getNetworkInterfaces() does. The link names are read from /sys/class/net, or
+ * from an rtnetlink link dump, and filtered by prefix first. The addresses of the matching links only
+ * are then read with one rtnetlink address dump. NetworkInterface is the fallback elsewhere.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public final class LinkEnumerator {
+    
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(LinkEnumerator.class);
+    
+    private static final File SYS_CLASS_NET = new File("/sys/class/net");
+    private static final String IFINDEX = "ifindex";
+    
+    private LinkEnumerator() {}
+    
+    /**
+     * Gets the names of the links that start with a prefix.
+     * 
+     * @param prefix the name prefix
+     * @return the sorted link names
+     */
+    public static List<String> getLinkNames(String prefix) {
+        List<String> names = new ArrayList<>();
+        
+        String[] sysNames = SYS_CLASS_NET.list();
+        if (sysNames != null) {
+            for (String name : sysNames) {
+                if (name.startsWith(prefix)) {
+                    names.add(name);
+                }
+            }
+        } else if (NetlinkSocket.isAvailable()) {
+            names.addAll(dumpLinks(prefix).keySet());
+        } else {
+            try {
+                for (NetworkInterface netIf : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                    if (netIf.getName().startsWith(prefix)) {
+                        names.add(netIf.getName());
+                    }
+                }
+            } catch (SocketException ex) {
+                log.error("SocketException: " + ex);
+            }
+        }
+        
+        Collections.sort(names);
+        
+        return names;
+    }
+    
+    /**
+     * Gets the index of a link.
+     * 
+     * @param name the link name
+     * @return the link index, or -1 if there is no such link
+     */
+    public static int getIfIndex(String name) {
+        if (StringUtils.isEmpty(name) || name.contains(File.separator)) {
+            return -1;
+        }
+        
+        File ifIndexFile = new File(new File(SYS_CLASS_NET, name), IFINDEX);
+        if (SYS_CLASS_NET.isDirectory()) {
+            try {
+                return Integer.parseInt(new String(Files.readAllBytes(ifIndexFile.toPath()), StandardCharsets.US_ASCII).trim());
+            } catch (IOException | NumberFormatException ex) {
+                return -1;
+            }
+        }
+        
+        if (NetlinkSocket.isAvailable()) {
+            Integer ifIndex = dumpLinks(name).get(name);
+            return ifIndex != null ? ifIndex : -1;
+        }
+        
+        try {
+            NetworkInterface netIf = NetworkInterface.getByName(name);
+            return netIf != null ? netIf.getIndex() : -1;
+        } catch (SocketException ex) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Gets the addresses of an IP version of some links.
+     * 
+     * @param names the link names
+     * @param ipVersion the IP version
+     * @return the addresses of each link that has any, in the order of the links
+     */
+    public static Map<String, List<InetAddress>> getInetAddrs(Collection<String> names, IPVersion ipVersion) {
+        Map<String, List<InetAddress>> inetAddrs = new LinkedHashMap<>();
+        if (names.isEmpty()) {
+            return inetAddrs;
+        }
+        
+        if (NetlinkSocket.isAvailable()) {
+            Map<Integer, String> byIndex = new HashMap<>();
+            for (String name : names) {
+                int ifIndex = getIfIndex(name);
+                if (ifIndex > 0) {
+                    byIndex.put(ifIndex, name);
+                    inetAddrs.put(name, new ArrayList<>());
+                }
+            }
+            
+            try (NetlinkSocket socket = new NetlinkSocket()) {
+                RtNetlink request = NetlinkSocket.newRequest();
+                request.getAddrs(ipVersion.isIPv4() ? RtNetlink.AF_INET : RtNetlink.AF_INET6);
+                
+                for (RtNetlink.Message msg : socket.execute(request).getMessages()) {
+                    int ifIndex = RtNetlink.getAddrIfIndex(msg);
+                    String name = byIndex.get(ifIndex);
+                    InetAddress addr = name != null ? RtNetlink.getAddr(msg, ifIndex) : null;
+                    if (addr != null) {
+                        inetAddrs.get(name).add(addr);
+                    }
+                }
+            } catch (IOException ex) {
+                log.error("Netlink exception: " + ex);
+            }
+            
+            inetAddrs.values().removeIf(List::isEmpty);
+        } else {
+            for (String name : names) {
+                try {
+                    NetworkInterface netIf = NetworkInterface.getByName(name);
+                    if (netIf == null) {
+                        continue;
+                    }
+                    
+                    List<InetAddress> addrs = new ArrayList<>();
+                    for (InetAddress addr : Collections.list(netIf.getInetAddresses())) {
+                        if ((addr instanceof Inet4Address) == ipVersion.isIPv4()) {
+                            addrs.add(addr);
+                        }
+                    }
+                    if (!addrs.isEmpty()) {
+                        inetAddrs.put(name, addrs);
+                    }
+                } catch (SocketException ex) {
+                    log.error("SocketException: " + ex);
+                }
+            }
+        }
+        
+        return inetAddrs;
+    }
+    
+    private static Map<String, Integer> dumpLinks(String prefix) {
+        Map<String, Integer> links = new LinkedHashMap<>();
+        
+        try (NetlinkSocket socket = new NetlinkSocket()) {
+            RtNetlink request = NetlinkSocket.newRequest();
+            request.getLinks();
+            
+            for (RtNetlink.Message msg : socket.execute(request).getMessages()) {
+                String name = RtNetlink.getLinkName(msg);
+                if (name != null && name.startsWith(prefix)) {
+                    links.put(name, RtNetlink.getLinkIndex(msg));
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Netlink exception: " + ex);
+        }
+        
+        return links;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * LinkMonitor
+ * 
+ * Listens to the rtnetlink link notifications and reports the name of every network interface that
+ * is added, changed or deleted. A null name is reported when notifications were lost, so that the
+ * listener re-reads the state of all of the interfaces.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class LinkMonitor implements Runnable {
+    
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(LinkMonitor.class);
+    
+    private static final String NAME = "LinkMonitor";
+    
+    private final Consumer<String> listener;
+    private final NetlinkSocket socket;
+    private volatile boolean running = true;
+    
+    /**
+     * Checks that the link notifications are available on this platform.
+     * 
+     * @return true if a link monitor can be started
+     */
+    public static boolean isAvailable() {
+        return NetlinkSocket.isAvailable();
+    }
+    
+    /**
+     * Starts a link monitor on a daemon thread.
+     * 
+     * @param listener the listener of the changed interface names
+     * @return the link monitor, or null if it could not be started
+     */
+    public static LinkMonitor start(Consumer<String> listener) {
+        if (!isAvailable()) {
+            return null;
+        }
+        
+        try {
+            LinkMonitor monitor = new LinkMonitor(listener, new NetlinkSocket(RtNetlink.RTMGRP_LINK));
+            Thread thread = new Thread(monitor, NAME);
+            thread.setDaemon(true);
+            thread.start();
+            
+            return monitor;
+        } catch (IOException ex) {
+            log.error("Unable to start the link monitor: " + ex.getMessage());
+            return null;
+        }
+    }
+    
+    private LinkMonitor(Consumer<String> listener, NetlinkSocket socket) {
+        this.listener = listener;
+        this.socket = socket;
+    }
+    
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                List<RtNetlink.Message> messages = socket.receive();
+                if (messages == null) {
+                    listener.accept(null);
+                    continue;
+                }
+                
+                for (RtNetlink.Message msg : messages) {
+                    if (msg.type == RtNetlink.RTM_NEWLINK || msg.type == RtNetlink.RTM_DELLINK) {
+                        listener.accept(RtNetlink.getLinkName(msg));
+                    }
+                }
+            } catch (IOException ex) {
+                if (running) {
+                    log.error("Link monitor stopped: " + ex.getMessage());
+                    listener.accept(null);
+                }
+                break;
+            }
+        }
+    }
+    
+    public void stop() {
+        running = false;
+        socket.close();
+    }
+}
@@ -48,7 +48,9 @@ class LinuxDeviceManager implements DeviceManagerInterface {
     protected static final String COMMAND_DIR = "/usr/bin/";
     
     private static final String ARGS_ADD_DEVICE = "link add %s type wireguard";
+    private static final String ARGS_DELETE_DEVICE = "link del %s";
     private static final String ARGS_SET_DEVICE_INET_ADDR = "addr add %s/%s dev %s";
+    private static final String ARGS_DELETE_DEVICE_INET_ADDR = "addr del %s/%s dev %s";
     private static final String ARGS_SET_DEVICE_STATE = "link set %s %s";
     private static final String ARGS_GET_V4_DEVICE_INFO = "-4 link show %s";
     private static final String ARGS_GET_V6_DEVICE_INFO = "-6 link show %s";
@@ -85,12 +87,24 @@ class LinuxDeviceManager implements DeviceManagerInterface {
         return commandExitCode;
     }
 
+    @Override
+    public int deleteDevice(String deviceName) {
+        executeCommand(COMMAND_IP + StringUtils.SPACE + String.format(ARGS_DELETE_DEVICE, deviceName));
+        return commandExitCode;
+    }
+
     @Override
     public int setDeviceInetAddr(String deviceName, String inetAddr, String subnetMask) {
         executeCommand(COMMAND_IP + StringUtils.SPACE + String.format(ARGS_SET_DEVICE_INET_ADDR, inetAddr, subnetMask, deviceName));
         return commandExitCode;
     }
 
+    @Override
+    public int deleteDeviceInetAddr(String deviceName, String inetAddr, String subnetMask) {
+        executeCommand(COMMAND_IP + StringUtils.SPACE + String.format(ARGS_DELETE_DEVICE_INET_ADDR, inetAddr, subnetMask, deviceName));
+        return commandExitCode;
+    }
+
     @Override
     public int setDeviceState(String deviceName, InterfaceDeviceState state) {
         executeCommand(COMMAND_IP + StringUtils.SPACE + String.format(ARGS_SET_DEVICE_STATE, deviceName, state.toString()));
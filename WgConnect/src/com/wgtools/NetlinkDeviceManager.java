@@ -0,0 +1,310 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+import inet.ipaddr.IPAddress.IPVersion;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.routines.InetAddressValidator;
+
+/**
+ * NetlinkDeviceManager
+ * 
+ * Manages the Linux link devices and their addresses over rtnetlink, in place of the ip commands of
+ * the LinuxDeviceManager. The operations of a Batch are sent together: the link requests in one
+ * send, then the address requests, which need the indexes of the links, in a second send.
+ * 
+ * @author: wgconnect@proton.me
+ */
+class NetlinkDeviceManager implements DeviceManagerInterface {
+    
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(NetlinkDeviceManager.class);
+    
+    private static final int COMMAND_SUCCESS_CODE = 0;
+    private static final int COMMAND_FAILURE_CODE = 1;
+    
+    private static final InetAddressValidator validator = InetAddressValidator.getInstance();
+    
+    private String commandOutputString;
+    private String commandErrorString;
+    
+    /**
+     * A batch of link and address operations.
+     */
+    class Batch {
+        
+        private final List<AddrOp> addrOps = new ArrayList<>();
+        private final RtNetlink linkRequest = NetlinkSocket.newRequest();
+        
+        private class AddrOp {
+            final String deviceName;
+            final InetAddress inetAddr;
+            final int prefixLen;
+            final boolean delete;
+            
+            AddrOp(String deviceName, InetAddress inetAddr, int prefixLen, boolean delete) {
+                this.deviceName = deviceName;
+                this.inetAddr = inetAddr;
+                this.prefixLen = prefixLen;
+                this.delete = delete;
+            }
+        }
+        
+        Batch addDevice(String deviceName, boolean up) {
+            linkRequest.newLink(deviceName, RtNetlink.LINK_KIND_WIREGUARD, up);
+            return this;
+        }
+        
+        Batch deleteDevice(String deviceName) {
+            linkRequest.delLink(deviceName);
+            return this;
+        }
+        
+        Batch setDeviceState(String deviceName, InterfaceDeviceState state) {
+            linkRequest.setLinkState(deviceName, state == InterfaceDeviceState.UP);
+            return this;
+        }
+        
+        Batch setDeviceInetAddr(String deviceName, InetAddress inetAddr, int prefixLen) {
+            addrOps.add(new AddrOp(deviceName, inetAddr, prefixLen, false));
+            return this;
+        }
+        
+        Batch deleteDeviceInetAddr(String deviceName, InetAddress inetAddr, int prefixLen) {
+            addrOps.add(new AddrOp(deviceName, inetAddr, prefixLen, true));
+            return this;
+        }
+        
+        /**
+         * Sends the operations of the batch.
+         * 
+         * @return the command success or failure code
+         */
+        int commit() {
+            commandOutputString = null;
+            commandErrorString = null;
+            
+            try (NetlinkSocket socket = new NetlinkSocket()) {
+                NetlinkSocket.Response response = socket.execute(linkRequest);
+                if (response.getError() != 0) {
+                    return fail("RTNETLINK answers: " + RtNetlink.strerror(response.getError()));
+                }
+                
+                RtNetlink addrRequest = NetlinkSocket.newRequest();
+                for (AddrOp op : addrOps) {
+                    int ifIndex = getIfIndex(op.deviceName);
+                    if (ifIndex <= 0) {
+                        return fail("Cannot find device \"" + op.deviceName + "\"");
+                    }
+                    if (op.delete) {
+                        addrRequest.delAddr(ifIndex, op.inetAddr, op.prefixLen);
+                    } else {
+                        addrRequest.newAddr(ifIndex, op.inetAddr, op.prefixLen);
+                    }
+                }
+                
+                response = socket.execute(addrRequest);
+                if (response.getError() != 0) {
+                    return fail("RTNETLINK answers: " + RtNetlink.strerror(response.getError()));
+                }
+            } catch (IOException ex) {
+                log.error("Netlink exception: " + ex);
+                return fail(ex.getMessage());
+            }
+            
+            return COMMAND_SUCCESS_CODE;
+        }
+    }
+    
+    NetlinkDeviceManager() {}
+    
+    /**
+     * Creates a new batch of operations.
+     * 
+     * @return the batch
+     */
+    Batch newBatch() {
+        return new Batch();
+    }
+    
+    @Override
+    public int addDevice(String deviceName) {
+        return newBatch().addDevice(deviceName, false).commit();
+    }
+    
+    @Override
+    public int addDevice(String deviceName, InterfaceDeviceState state) {
+        return newBatch().addDevice(deviceName, state == InterfaceDeviceState.UP).commit();
+    }
+
+    @Override
+    public int deleteDevice(String deviceName) {
+        return newBatch().deleteDevice(deviceName).commit();
+    }
+
+    @Override
+    public int setDeviceInetAddr(String deviceName, String inetAddr, String subnetMask) {
+        InetAddress addr = parseInetAddr(inetAddr);
+        int prefixLen = parsePrefixLen(subnetMask);
+        if (addr == null || prefixLen < 0) {
+            return fail("Invalid address " + inetAddr + "/" + subnetMask);
+        }
+        
+        return newBatch().setDeviceInetAddr(deviceName, addr, prefixLen).commit();
+    }
+
+    @Override
+    public int deleteDeviceInetAddr(String deviceName, String inetAddr, String subnetMask) {
+        InetAddress addr = parseInetAddr(inetAddr);
+        int prefixLen = parsePrefixLen(subnetMask);
+        if (addr == null || prefixLen < 0) {
+            return fail("Invalid address " + inetAddr + "/" + subnetMask);
+        }
+        
+        return newBatch().deleteDeviceInetAddr(deviceName, addr, prefixLen).commit();
+    }
+
+    @Override
+    public int setDeviceState(String deviceName, InterfaceDeviceState state) {
+        return newBatch().setDeviceState(deviceName, state).commit();
+    }
+    
+    @Override
+    public String getDeviceInfo(String deviceName, IPVersion ipVersion) {
+        commandOutputString = null;
+        
+        try {
+            NetworkInterface netIf = NetworkInterface.getByName(deviceName);
+            if (netIf != null) {
+                StringBuilder info = new StringBuilder();
+                info.append(netIf.getIndex()).append(": ").append(netIf.getName()).append(": <")
+                    .append(netIf.isUp() ? "UP" : "DOWN").append("> mtu ").append(netIf.getMTU());
+                for (InetAddress addr : Collections.list(netIf.getInetAddresses())) {
+                    if ((addr instanceof Inet4Address) == ipVersion.isIPv4()) {
+                        info.append(ipVersion.isIPv4() ? " inet " : " inet6 ").append(addr.getHostAddress());
+                    }
+                }
+                commandOutputString = info.append("\n").toString();
+            }
+        } catch (SocketException ex) {
+            log.error("Device info exception: " + ex);
+        }
+        
+        return commandOutputString;
+    }
+    
+    @Override
+    public String getDeviceInetAddr(String deviceName, IPVersion ipVersion) {
+        int ifIndex = getIfIndex(deviceName);
+        if (ifIndex <= 0) {
+            return null;
+        }
+        
+        try (NetlinkSocket socket = new NetlinkSocket()) {
+            RtNetlink request = NetlinkSocket.newRequest();
+            request.getAddrs(ipVersion.isIPv4() ? RtNetlink.AF_INET : RtNetlink.AF_INET6);
+            
+            for (RtNetlink.Message msg : socket.execute(request).getMessages()) {
+                InetAddress addr = RtNetlink.getAddr(msg, ifIndex);
+                if (addr != null) {
+                    return addr.getHostAddress();
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Netlink exception: " + ex);
+        }
+        
+        return null;
+    }
+    
+    @Override
+    public String getLocalEndpointByInetAddr(String inetAddr) {
+        InetAddress dst = parseInetAddr(inetAddr);
+        if (dst == null) {
+            return null;
+        }
+        
+        try (NetlinkSocket socket = new NetlinkSocket()) {
+            RtNetlink request = NetlinkSocket.newRequest();
+            request.getRoute(dst);
+            
+            for (RtNetlink.Message msg : socket.execute(request).getMessages()) {
+                InetAddress src = RtNetlink.getPrefSrc(msg);
+                if (src != null) {
+                    return src.getHostAddress();
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Netlink exception: " + ex);
+        }
+        
+        return null;
+    }
+    
+    @Override
+    public String getCommandOutputString() {
+        return commandOutputString;
+    }
+
+    @Override
+    public String getCommandErrorString() {
+        return commandErrorString;
+    }
+    
+    private int fail(String error) {
+        commandErrorString = error;
+        return COMMAND_FAILURE_CODE;
+    }
+    
+    private static int getIfIndex(String deviceName) {
+        return LinkEnumerator.getIfIndex(deviceName);
+    }
+    
+    static InetAddress parseInetAddr(String inetAddr) {
+        // Only address literals, never a name lookup
+        if (inetAddr == null || !validator.isValid(StringUtils.substringBefore(inetAddr, "%"))) {
+            return null;
+        }
+        
+        try {
+            return InetAddress.getByName(inetAddr);
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+    
+    private static int parsePrefixLen(String subnetMask) {
+        try {
+            return Integer.parseInt(subnetMask.trim());
+        } catch (NumberFormatException | NullPointerException ex) {
+            return -1;
+        }
+    }
+}
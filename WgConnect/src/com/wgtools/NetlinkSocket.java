@@ -0,0 +1,204 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NetlinkSocket
+ * 
+ * An rtnetlink socket over the small native shim in the wg library. A batch of requests is sent
+ * with a single send and the replies are collected until every request is acknowledged or, for a
+ * dump, done.
+ * 
+ * @author: wgconnect@proton.me
+ */
+class NetlinkSocket implements Closeable {
+    
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(NetlinkSocket.class);
+    
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private static final int ENOBUFS = 105;
+    
+    private static final AtomicInteger nextSeq = new AtomicInteger((int) (System.currentTimeMillis() / 1000));
+    
+    private static volatile Boolean available;
+    
+    private final int fd;
+    private final byte[] receiveBuf = new byte[RECEIVE_BUFFER_SIZE];
+    
+    private static native int socketOpen(int groups);
+    private static native int socketSend(int fd, byte[] buf, int len);
+    private static native int socketRecv(int fd, byte[] buf);
+    private static native void socketClose(int fd);
+    
+    /**
+     * The replies to a batch of requests.
+     */
+    static class Response {
+        private int error;
+        private final List<RtNetlink.Message> messages = new ArrayList<>();
+        
+        /**
+         * Gets the first error of the batch.
+         * 
+         * @return the negative errno value, or 0 if every request succeeded
+         */
+        int getError() {
+            return error;
+        }
+        
+        List<RtNetlink.Message> getMessages() {
+            return messages;
+        }
+    }
+    
+    /**
+     * Checks that the native library is loaded and has the netlink shim, and that a netlink socket can be opened.
+     * 
+     * @return true if netlink sockets can be used
+     */
+    static boolean isAvailable() {
+        Boolean isAvailable = available;
+        if (isAvailable == null) {
+            synchronized (NetlinkSocket.class) {
+                if (available == null) {
+                    boolean usable = false;
+                    if (Wg.loadNativeLibraryFile()) {
+                        try {
+                            int testFd = socketOpen(0);
+                            if (testFd >= 0) {
+                                socketClose(testFd);
+                                usable = true;
+                            }
+                        } catch (UnsatisfiedLinkError ex) {
+                            log.info("The native library has no netlink shim");
+                        }
+                    }
+                    available = usable;
+                }
+                isAvailable = available;
+            }
+        }
+        
+        return isAvailable;
+    }
+    
+    NetlinkSocket() throws IOException {
+        this(0);
+    }
+    
+    /**
+     * Opens a netlink socket subscribed to multicast groups.
+     * 
+     * @param groups the RTMGRP bit mask of the groups, 0 for none
+     * @throws IOException if the socket could not be opened
+     */
+    NetlinkSocket(int groups) throws IOException {
+        fd = socketOpen(groups);
+        if (fd < 0) {
+            throw new IOException("Unable to open the netlink socket: " + fd);
+        }
+    }
+    
+    /**
+     * Creates an empty request batch with unique sequence numbers.
+     * 
+     * @return the request batch
+     */
+    static RtNetlink newRequest() {
+        return new RtNetlink(nextSeq.getAndAdd(1 << 16));
+    }
+    
+    /**
+     * Sends a batch of requests in one send and collects the replies.
+     * 
+     * @param request the request batch
+     * @return the replies
+     * @throws IOException if the batch could not be sent or the replies received
+     */
+    Response execute(RtNetlink request) throws IOException {
+        Response response = new Response();
+        if (request.isEmpty()) {
+            return response;
+        }
+        
+        int sent = socketSend(fd, request.array(), request.length());
+        if (sent != request.length()) {
+            throw new IOException("Netlink send failed: " + sent);
+        }
+        
+        Set<Integer> pending = new HashSet<>(request.getSeqs());
+        while (!pending.isEmpty()) {
+            int len = socketRecv(fd, receiveBuf);
+            if (len <= 0) {
+                throw new IOException("Netlink receive failed: " + len);
+            }
+            
+            for (RtNetlink.Message msg : RtNetlink.parse(receiveBuf, len)) {
+                if (!pending.contains(msg.seq)) {
+                    continue;
+                }
+                
+                if (msg.type == RtNetlink.NLMSG_ERROR) {
+                    if (msg.getError() != 0 && response.error == 0) {
+                        response.error = msg.getError();
+                    }
+                    pending.remove(msg.seq);
+                } else if (msg.type == RtNetlink.NLMSG_DONE) {
+                    pending.remove(msg.seq);
+                } else {
+                    response.messages.add(msg);
+                }
+            }
+        }
+        
+        return response;
+    }
+    
+    /**
+     * Receives the next notifications of the subscribed groups, blocking until there are some.
+     * 
+     * @return the notifications, or null if the socket buffer overran and notifications were lost
+     * @throws IOException if the receive failed
+     */
+    List<RtNetlink.Message> receive() throws IOException {
+        int len = socketRecv(fd, receiveBuf);
+        if (len == -ENOBUFS) {
+            return null;
+        }
+        if (len <= 0) {
+            throw new IOException("Netlink receive failed: " + len);
+        }
+        
+        return RtNetlink.parse(receiveBuf, len);
+    }
+    
+    @Override
+    public void close() {
+        socketClose(fd);
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RouteTable
+ * 
+ * Selects the local source address towards a destination from an in-memory copy of the kernel
+ * routing tables. The routes, the addresses and the routing rules are dumped once over rtnetlink
+ * and the local, main and default tables are searched by longest prefix match. A daemon thread
+ * listens to the route, address and rule notifications and marks the copy stale, so that it is
+ * dumped again on the next lookup. Destinations that the copy cannot answer exactly, such as with
+ * policy routing rules or IPv6 routes without a preferred source, are resolved by a single
+ * RTM_GETROUTE query to the kernel. Every answer is memoized with the generation of the copy it was
+ * selected from, and is only used while that copy is current.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class RouteTable implements Runnable {
+    
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(RouteTable.class);
+    
+    private static final String NAME = "RouteTable";
+    
+    private static final int MAX_ANSWERS = 4096;
+    private static final int DUMPS = 5;
+    
+    private static final int[] LOOKUP_TABLES = {
+        RtNetlink.RT_TABLE_LOCAL, RtNetlink.RT_TABLE_MAIN, RtNetlink.RT_TABLE_DEFAULT
+    };
+    
+    private static final int[] DEFAULT_RULE_PRIORITIES = { 0, 32766, 32767 };
+    
+    private static RouteTable INSTANCE;
+    
+    private final NetlinkSocket monitorSocket;
+    private volatile boolean monitored;
+    private volatile boolean stale = true;
+    private volatile Snapshot snapshot;
+    private long generation;
+    
+    private final Map<String, Answer> answers = new ConcurrentHashMap<>();
+    
+    /**
+     * A memoized source address, with the generation of the copy it was selected from.
+     */
+    private static class Answer {
+        final long generation;
+        final String addr;
+        
+        Answer(long generation, String addr) {
+            this.generation = generation;
+            this.addr = addr;
+        }
+    }
+    
+    /**
+     * A route of the copy.
+     */
+    private static class Route {
+        final int type;
+        final int scope;
+        final int priority;
+        final int oif;
+        final boolean multipath;
+        final byte[] gateway;
+        final InetAddress prefSrc;
+        
+        Route(int type, int scope, int priority, int oif, boolean multipath, byte[] gateway, InetAddress prefSrc) {
+            this.type = type;
+            this.scope = scope;
+            this.priority = priority;
+            this.oif = oif;
+            this.multipath = multipath;
+            this.gateway = gateway;
+            this.prefSrc = prefSrc;
+        }
+    }
+    
+    /**
+     * An address of the copy.
+     */
+    private static class Addr {
+        final byte[] addr;
+        final int prefixLen;
+        final int scope;
+        final boolean secondary;
+        
+        Addr(byte[] addr, int prefixLen, int scope, boolean secondary) {
+            this.addr = addr;
+            this.prefixLen = prefixLen;
+            this.scope = scope;
+            this.secondary = secondary;
+        }
+    }
+    
+    /**
+     * The routes of one table and family, by prefix length, longest first.
+     */
+    private static class Table {
+        final TreeMap<Integer, Map<ByteBuffer, Route>> prefixes = new TreeMap<>((a, b) -> b - a);
+        
+        void add(byte[] dst, int dstLen, Route route) {
+            Map<ByteBuffer, Route> routes = prefixes.computeIfAbsent(dstLen, len -> new HashMap<>());
+            ByteBuffer key = ByteBuffer.wrap(mask(dst, dstLen));
+            Route existing = routes.get(key);
+            if (existing == null || route.priority < existing.priority) {
+                routes.put(key, route);
+            }
+        }
+        
+        Route lookup(byte[] dst) {
+            for (Map.Entry<Integer, Map<ByteBuffer, Route>> entry : prefixes.entrySet()) {
+                Route route = entry.getValue().get(ByteBuffer.wrap(mask(dst, entry.getKey())));
+                if (route != null) {
+                    return route;
+                }
+            }
+            
+            return null;
+        }
+    }
+    
+    /**
+     * A consistent copy of the routing state. A copy that could not be dumped is empty, so that
+     * every lookup goes to the kernel.
+     */
+    private static class Snapshot {
+        final long generation;
+        final Map<Integer, Table> v4Tables = new HashMap<>();
+        final Map<Integer, Table> v6Tables = new HashMap<>();
+        final Map<Integer, List<Addr>> v4Addrs = new HashMap<>();
+        boolean v4PolicyRouting;
+        boolean v6PolicyRouting;
+        
+        Snapshot(long generation) {
+            this.generation = generation;
+        }
+    }
+    
+    /**
+     * Checks that the routing tables can be read over rtnetlink on this platform.
+     * 
+     * @return true if the route table can be used
+     */
+    public static boolean isAvailable() {
+        return NetlinkSocket.isAvailable();
+    }
+    
+    /**
+     * Gets the single instance of RouteTable.
+     * 
+     * @return single instance of RouteTable, or null if rtnetlink is not available
+     */
+    public static synchronized RouteTable getInstance() {
+        if (INSTANCE == null && isAvailable()) {
+            INSTANCE = new RouteTable();
+        }
+        
+        return INSTANCE;
+    }
+    
+    private RouteTable() {
+        NetlinkSocket socket = null;
+        try {
+            socket = new NetlinkSocket(RtNetlink.RTMGRP_IPV4_IFADDR | RtNetlink.RTMGRP_IPV4_ROUTE | RtNetlink.RTMGRP_IPV4_RULE
+                | RtNetlink.RTMGRP_IPV6_IFADDR | RtNetlink.RTMGRP_IPV6_ROUTE | RtNetlink.RTMGRP_IPV6_RULE);
+        } catch (IOException ex) {
+            log.error("Unable to start the route monitor: " + ex.getMessage());
+        }
+        
+        monitorSocket = socket;
+        if (monitorSocket != null) {
+            monitored = true;
+            Thread thread = new Thread(this, NAME);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    @Override
+    public void run() {
+        while (monitored) {
+            try {
+                // Lost notifications come back as null, so any receive marks the copy stale
+                monitorSocket.receive();
+                stale = true;
+            } catch (IOException ex) {
+                log.error("Route monitor stopped: " + ex.getMessage());
+                monitored = false;
+                stale = true;
+            }
+        }
+    }
+    
+    /**
+     * Gets the local source address that the kernel would select towards a destination.
+     * 
+     * @param inetAddr the destination address
+     * @return the local source address, or null if it could not be selected
+     */
+    public String getLocalEndpoint(String inetAddr) {
+        if (inetAddr == null) {
+            return null;
+        }
+        
+        Snapshot current = getSnapshot();
+        Answer answer = answers.get(inetAddr);
+        if (answer == null || answer.generation != current.generation) {
+            InetAddress dst = NetlinkDeviceManager.parseInetAddr(inetAddr);
+            if (dst == null) {
+                return null;
+            }
+            
+            InetAddress src = select(current, dst);
+            if (src == null) {
+                src = query(dst);
+            }
+            answer = new Answer(current.generation, src != null ? src.getHostAddress() : null);
+            
+            if (answers.size() >= MAX_ANSWERS) {
+                answers.clear();
+            }
+            // A lookup that raced with a rebuild must not replace the answer of a newer copy
+            answers.merge(inetAddr, answer, (previous, selected) -> previous.generation > selected.generation ? previous : selected);
+        }
+        
+        return answer.addr;
+    }
+    
+    private Snapshot getSnapshot() {
+        if (!stale && monitored) {
+            return snapshot;
+        }
+        
+        synchronized (this) {
+            if (stale || !monitored) {
+                // Clear the flag first, a change during the dump marks the copy stale again
+                stale = false;
+                answers.clear();
+                Snapshot dumped = dump(++generation);
+                snapshot = dumped != null ? dumped : new Snapshot(generation);
+            }
+            
+            return snapshot;
+        }
+    }
+    
+    private static Snapshot dump(long generation) {
+        Snapshot dumped = new Snapshot(generation);
+        
+        try (NetlinkSocket socket = new NetlinkSocket()) {
+            // The kernel runs one dump at a time per socket, so the dumps are not batched
+            for (int i = 0; i < DUMPS; i++) {
+                RtNetlink request = NetlinkSocket.newRequest();
+                switch (i) {
+                    case 0: request.getRoutes(RtNetlink.AF_INET); break;
+                    case 1: request.getRoutes(RtNetlink.AF_INET6); break;
+                    case 2: request.getAddrs(RtNetlink.AF_INET); break;
+                    case 3: request.getRules(RtNetlink.AF_INET); break;
+                    default: request.getRules(RtNetlink.AF_INET6); break;
+                }
+                
+                NetlinkSocket.Response response = socket.execute(request);
+                if (response.getError() != 0) {
+                    log.error("Unable to dump the routing tables: " + RtNetlink.strerror(response.getError()));
+                    return null;
+                }
+                
+                for (RtNetlink.Message msg : response.getMessages()) {
+                    if (msg.type == RtNetlink.RTM_NEWROUTE) {
+                        addRoute(dumped, msg);
+                    } else if (msg.type == RtNetlink.RTM_NEWADDR) {
+                        addAddr(dumped, msg);
+                    } else if (msg.type == RtNetlink.RTM_NEWRULE) {
+                        addRule(dumped, msg);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Netlink exception: " + ex);
+            return null;
+        }
+        
+        return dumped;
+    }
+    
+    private static void addRoute(Snapshot dumped, RtNetlink.Message msg) {
+        ByteBuffer payload = msg.payload;
+        if (payload.limit() < RtNetlink.RTMSG_LEN) {
+            return;
+        }
+        
+        int family = payload.get(0);
+        int dstLen = payload.get(1) & 0xff;
+        int srcLen = payload.get(2) & 0xff;
+        int tos = payload.get(3) & 0xff;
+        int scope = payload.get(6) & 0xff;
+        int type = payload.get(7) & 0xff;
+        if ((payload.getInt(8) & RtNetlink.RTM_F_CLONED) != 0) {
+            return;
+        }
+        
+        boolean v4 = family == RtNetlink.AF_INET;
+        if (srcLen != 0 || tos != 0) {
+            // Source specific and TOS routes are not modelled, leave the family to the kernel
+            setPolicyRouting(dumped, v4);
+            return;
+        }
+        
+        int table = getU32(msg, RtNetlink.RTA_TABLE, payload.get(4) & 0xff);
+        byte[] dst = msg.getAttr(RtNetlink.RTMSG_LEN, RtNetlink.RTA_DST);
+        if (dst == null) {
+            dst = new byte[v4 ? 4 : 16];
+        }
+        
+        Route route = new Route(type, scope, getU32(msg, RtNetlink.RTA_PRIORITY, 0), getU32(msg, RtNetlink.RTA_OIF, 0),
+            msg.getAttr(RtNetlink.RTMSG_LEN, RtNetlink.RTA_MULTIPATH) != null, msg.getAttr(RtNetlink.RTMSG_LEN, RtNetlink.RTA_GATEWAY),
+            toInetAddress(msg.getAttr(RtNetlink.RTMSG_LEN, RtNetlink.RTA_PREFSRC)));
+        
+        (v4 ? dumped.v4Tables : dumped.v6Tables).computeIfAbsent(table, t -> new Table()).add(dst, dstLen, route);
+    }
+    
+    private static void addAddr(Snapshot dumped, RtNetlink.Message msg) {
+        ByteBuffer payload = msg.payload;
+        if (payload.limit() < RtNetlink.IFADDRMSG_LEN || payload.get(0) != RtNetlink.AF_INET) {
+            return;
+        }
+        
+        byte[] addr = msg.getAttr(RtNetlink.IFADDRMSG_LEN, RtNetlink.IFA_LOCAL);
+        if (addr == null) {
+            addr = msg.getAttr(RtNetlink.IFADDRMSG_LEN, RtNetlink.IFA_ADDRESS);
+        }
+        if (addr == null) {
+            return;
+        }
+        
+        int flags = payload.get(2) & 0xff;
+        byte[] extFlags = msg.getAttr(RtNetlink.IFADDRMSG_LEN, RtNetlink.IFA_FLAGS);
+        if (extFlags != null && extFlags.length >= 4) {
+            flags = ByteBuffer.wrap(extFlags).order(ByteOrder.nativeOrder()).getInt();
+        }
+        
+        dumped.v4Addrs.computeIfAbsent(payload.getInt(4), index -> new ArrayList<>())
+            .add(new Addr(addr, payload.get(1) & 0xff, payload.get(3) & 0xff, (flags & RtNetlink.IFA_F_SECONDARY) != 0));
+    }
+    
+    private static void addRule(Snapshot dumped, RtNetlink.Message msg) {
+        ByteBuffer payload = msg.payload;
+        if (payload.limit() < RtNetlink.RTMSG_LEN) {
+            return;
+        }
+        
+        int table = getU32(msg, RtNetlink.FRA_TABLE, payload.get(4) & 0xff);
+        int priority = getU32(msg, RtNetlink.FRA_PRIORITY, 0);
+        int action = payload.get(7) & 0xff;
+        
+        boolean isDefault = false;
+        for (int i = 0; i < LOOKUP_TABLES.length; i++) {
+            if (table == LOOKUP_TABLES[i] && priority == DEFAULT_RULE_PRIORITIES[i] && action == RtNetlink.FR_ACT_TO_TBL) {
+                isDefault = true;
+            }
+        }
+        
+        if (!isDefault) {
+            setPolicyRouting(dumped, payload.get(0) == RtNetlink.AF_INET);
+        }
+    }
+    
+    private static void setPolicyRouting(Snapshot dumped, boolean v4) {
+        if (v4) {
+            dumped.v4PolicyRouting = true;
+        } else {
+            dumped.v6PolicyRouting = true;
+        }
+    }
+    
+    /**
+     * Selects the source address from the copy, following the kernel's fib lookup and inet_select_addr.
+     * 
+     * @return the source address, or null if the copy cannot answer exactly
+     */
+    private static InetAddress select(Snapshot current, InetAddress dst) {
+        boolean v4 = dst.getAddress().length == 4;
+        if (v4 ? current.v4PolicyRouting : current.v6PolicyRouting) {
+            return null;
+        }
+        
+        byte[] dstBytes = dst.getAddress();
+        Map<Integer, Table> tables = v4 ? current.v4Tables : current.v6Tables;
+        for (int tableId : LOOKUP_TABLES) {
+            Table table = tables.get(tableId);
+            Route route = table != null ? table.lookup(dstBytes) : null;
+            if (route == null || route.type == RtNetlink.RTN_THROW) {
+                continue;
+            }
+            
+            if (route.type == RtNetlink.RTN_LOCAL) {
+                return dst;
+            }
+            if (route.type != RtNetlink.RTN_UNICAST) {
+                // Unreachable, blackhole or prohibit
+                return null;
+            }
+            if (route.prefSrc != null) {
+                return route.prefSrc;
+            }
+            if (!v4 || route.multipath || route.oif == 0) {
+                return null;
+            }
+            
+            // The kernel selects the address within the scope of the route, as fib_info_update_nhc_saddr
+            return selectV4Addr(current.v4Addrs.get(route.oif), route.gateway, route.scope);
+        }
+        
+        return null;
+    }
+    
+    private static InetAddress selectV4Addr(List<Addr> addrs, byte[] gateway, int scope) {
+        if (addrs == null) {
+            return null;
+        }
+        
+        byte[] selected = null;
+        for (Addr addr : addrs) {
+            if (addr.secondary || addr.scope > scope) {
+                continue;
+            }
+            if (gateway == null || ByteBuffer.wrap(mask(gateway, addr.prefixLen)).equals(ByteBuffer.wrap(mask(addr.addr, addr.prefixLen)))) {
+                selected = addr.addr;
+                break;
+            }
+            if (selected == null) {
+                selected = addr.addr;
+            }
+        }
+        
+        return toInetAddress(selected);
+    }
+    
+    private static InetAddress query(InetAddress dst) {
+        try (NetlinkSocket socket = new NetlinkSocket()) {
+            RtNetlink request = NetlinkSocket.newRequest();
+            request.getRoute(dst);
+            
+            for (RtNetlink.Message msg : socket.execute(request).getMessages()) {
+                InetAddress src = RtNetlink.getPrefSrc(msg);
+                if (src != null) {
+                    return src;
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Netlink exception: " + ex);
+        }
+        
+        return null;
+    }
+    
+    private static int getU32(RtNetlink.Message msg, int attrType, int defaultValue) {
+        byte[] value = msg.getAttr(RtNetlink.RTMSG_LEN, attrType);
+        return value != null && value.length >= 4 ? ByteBuffer.wrap(value).order(ByteOrder.nativeOrder()).getInt() : defaultValue;
+    }
+    
+    private static byte[] mask(byte[] addr, int prefixLen) {
+        byte[] masked = new byte[addr.length];
+        int bytes = Math.min(prefixLen / 8, addr.length);
+        System.arraycopy(addr, 0, masked, 0, bytes);
+        if (bytes < addr.length && prefixLen % 8 != 0) {
+            masked[bytes] = (byte) (addr[bytes] & (0xff << (8 - prefixLen % 8)));
+        }
+        
+        return masked;
+    }
+    
+    private static InetAddress toInetAddress(byte[] addr) {
+        try {
+            return addr != null ? InetAddress.getByAddress(addr) : null;
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+}
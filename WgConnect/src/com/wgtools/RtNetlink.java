@@ -0,0 +1,602 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RtNetlink
+ * 
+ * Builds a batch of rtnetlink request messages in one buffer, to be sent with a single send, and
+ * parses the reply messages. The encoding and decoding are pure Java over byte buffers in the host
+ * byte order, so they can be checked against recorded netlink messages without a socket.
+ * 
+ * @author: wgconnect@proton.me
+ */
+class RtNetlink {
+    
+    static final int NLMSG_HDRLEN = 16;
+    static final int NLA_HDRLEN = 4;
+    
+    static final int NLM_F_REQUEST = 0x01;
+    static final int NLM_F_MULTI = 0x02;
+    static final int NLM_F_ACK = 0x04;
+    static final int NLM_F_EXCL = 0x200;
+    static final int NLM_F_CREATE = 0x400;
+    static final int NLM_F_DUMP = 0x300;
+    
+    static final int NLMSG_ERROR = 2;
+    static final int NLMSG_DONE = 3;
+    
+    static final int RTM_NEWLINK = 16;
+    static final int RTM_DELLINK = 17;
+    static final int RTM_GETLINK = 18;
+    static final int RTM_NEWADDR = 20;
+    static final int RTM_DELADDR = 21;
+    static final int RTM_GETADDR = 22;
+    static final int RTM_NEWROUTE = 24;
+    static final int RTM_DELROUTE = 25;
+    static final int RTM_GETROUTE = 26;
+    static final int RTM_NEWRULE = 32;
+    static final int RTM_GETRULE = 34;
+    
+    static final int RTMGRP_LINK = 0x1;
+    static final int RTMGRP_IPV4_IFADDR = 0x10;
+    static final int RTMGRP_IPV4_ROUTE = 0x40;
+    static final int RTMGRP_IPV4_RULE = 0x80;
+    static final int RTMGRP_IPV6_IFADDR = 0x100;
+    static final int RTMGRP_IPV6_ROUTE = 0x400;
+    static final int RTMGRP_IPV6_RULE = 0x40000;
+    
+    static final int AF_UNSPEC = 0;
+    static final int AF_INET = 2;
+    static final int AF_INET6 = 10;
+    
+    static final int IFF_UP = 0x1;
+    
+    static final int IFLA_IFNAME = 3;
+    static final int IFLA_LINKINFO = 18;
+    static final int IFLA_INFO_KIND = 1;
+    
+    static final int IFA_ADDRESS = 1;
+    static final int IFA_LOCAL = 2;
+    static final int IFA_FLAGS = 8;
+    
+    static final int IFA_F_SECONDARY = 0x01;
+    
+    static final int RTA_DST = 1;
+    static final int RTA_OIF = 4;
+    static final int RTA_GATEWAY = 5;
+    static final int RTA_PRIORITY = 6;
+    static final int RTA_PREFSRC = 7;
+    static final int RTA_MULTIPATH = 9;
+    static final int RTA_TABLE = 15;
+    
+    static final int RTM_F_CLONED = 0x200;
+    
+    static final int RTN_UNICAST = 1;
+    static final int RTN_LOCAL = 2;
+    static final int RTN_THROW = 9;
+    
+    static final int RT_SCOPE_LINK = 253;
+    static final int RT_SCOPE_HOST = 254;
+    
+    static final int RT_TABLE_DEFAULT = 253;
+    static final int RT_TABLE_MAIN = 254;
+    static final int RT_TABLE_LOCAL = 255;
+    
+    static final int FRA_PRIORITY = 6;
+    static final int FRA_TABLE = 15;
+    static final int FR_ACT_TO_TBL = 1;
+    
+    static final int IFINFOMSG_LEN = 16;
+    static final int IFADDRMSG_LEN = 8;
+    static final int RTMSG_LEN = 12;
+    
+    static final String LINK_KIND_WIREGUARD = "wireguard";
+    
+    private static final int DEFAULT_BUFFER_SIZE = 4096;
+    
+    private ByteBuffer buf;
+    private int seq;
+    private final List<Integer> seqs = new ArrayList<>();
+    
+    /**
+     * A received netlink message.
+     */
+    static class Message {
+        final int type;
+        final int flags;
+        final int seq;
+        final ByteBuffer payload;
+        
+        Message(int type, int flags, int seq, ByteBuffer payload) {
+            this.type = type;
+            this.flags = flags;
+            this.seq = seq;
+            this.payload = payload;
+        }
+        
+        /**
+         * Gets the error code of an NLMSG_ERROR message, 0 for an acknowledgement.
+         * 
+         * @return the negative errno value, or 0
+         */
+        int getError() {
+            return payload.getInt(0);
+        }
+        
+        /**
+         * Finds an attribute following the fixed length header of the message payload.
+         * 
+         * @param headerLen the length of the fixed header
+         * @param attrType the attribute type
+         * @return the attribute value, or null if not found
+         */
+        byte[] getAttr(int headerLen, int attrType) {
+            int offset = align(headerLen);
+            while (offset + NLA_HDRLEN <= payload.limit()) {
+                int len = payload.getShort(offset) & 0xffff;
+                int type = payload.getShort(offset + 2) & 0x3fff;
+                if (len < NLA_HDRLEN || offset + len > payload.limit()) {
+                    break;
+                }
+                if (type == attrType) {
+                    byte[] value = new byte[len - NLA_HDRLEN];
+                    for (int i = 0; i < value.length; i++) {
+                        value[i] = payload.get(offset + NLA_HDRLEN + i);
+                    }
+                    return value;
+                }
+                offset += align(len);
+            }
+            
+            return null;
+        }
+    }
+    
+    RtNetlink(int firstSeq) {
+        buf = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        seq = firstSeq;
+    }
+    
+    static int align(int len) {
+        return (len + 3) & ~3;
+    }
+    
+    static int family(InetAddress addr) {
+        return addr instanceof Inet4Address ? AF_INET : AF_INET6;
+    }
+    
+    /**
+     * Adds a request to create a link, optionally up.
+     * 
+     * @param name the link name
+     * @param kind the link kind
+     * @param up true to bring the link up on creation
+     * @return the sequence number of the request
+     */
+    int newLink(String name, String kind, boolean up) {
+        int start = beginMessage(RTM_NEWLINK, NLM_F_REQUEST | NLM_F_ACK | NLM_F_CREATE | NLM_F_EXCL);
+        putIfInfoMsg(AF_UNSPEC, 0, up ? IFF_UP : 0, up ? IFF_UP : 0);
+        putStringAttr(IFLA_IFNAME, name);
+        int linkInfo = beginNestedAttr(IFLA_LINKINFO);
+        putStringAttr(IFLA_INFO_KIND, kind);
+        endNestedAttr(linkInfo);
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to delete a link by name.
+     * 
+     * @param name the link name
+     * @return the sequence number of the request
+     */
+    int delLink(String name) {
+        int start = beginMessage(RTM_DELLINK, NLM_F_REQUEST | NLM_F_ACK);
+        putIfInfoMsg(AF_UNSPEC, 0, 0, 0);
+        putStringAttr(IFLA_IFNAME, name);
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to set a link up or down by name.
+     * 
+     * @param name the link name
+     * @param up true to bring the link up, false to bring it down
+     * @return the sequence number of the request
+     */
+    int setLinkState(String name, boolean up) {
+        int start = beginMessage(RTM_NEWLINK, NLM_F_REQUEST | NLM_F_ACK);
+        putIfInfoMsg(AF_UNSPEC, 0, up ? IFF_UP : 0, IFF_UP);
+        putStringAttr(IFLA_IFNAME, name);
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to add an address to a link.
+     * 
+     * @param ifIndex the link index
+     * @param addr the address
+     * @param prefixLen the prefix length
+     * @return the sequence number of the request
+     */
+    int newAddr(int ifIndex, InetAddress addr, int prefixLen) {
+        int start = beginMessage(RTM_NEWADDR, NLM_F_REQUEST | NLM_F_ACK | NLM_F_CREATE | NLM_F_EXCL);
+        ensureCapacity(IFADDRMSG_LEN);
+        buf.put((byte) family(addr));
+        buf.put((byte) prefixLen);
+        buf.put((byte) 0);
+        buf.put((byte) 0);
+        buf.putInt(ifIndex);
+        putAttr(IFA_LOCAL, addr.getAddress());
+        putAttr(IFA_ADDRESS, addr.getAddress());
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to remove an address from a link.
+     * 
+     * @param ifIndex the link index
+     * @param addr the address
+     * @param prefixLen the prefix length the address was added with
+     * @return the sequence number of the request
+     */
+    int delAddr(int ifIndex, InetAddress addr, int prefixLen) {
+        int start = beginMessage(RTM_DELADDR, NLM_F_REQUEST | NLM_F_ACK);
+        ensureCapacity(IFADDRMSG_LEN);
+        buf.put((byte) family(addr));
+        buf.put((byte) prefixLen);
+        buf.put((byte) 0);
+        buf.put((byte) 0);
+        buf.putInt(ifIndex);
+        putAttr(IFA_LOCAL, addr.getAddress());
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to dump the links.
+     * 
+     * @return the sequence number of the request
+     */
+    int getLinks() {
+        int start = beginMessage(RTM_GETLINK, NLM_F_REQUEST | NLM_F_DUMP);
+        putIfInfoMsg(AF_UNSPEC, 0, 0, 0);
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to dump the addresses of a family.
+     * 
+     * @param family the address family
+     * @return the sequence number of the request
+     */
+    int getAddrs(int family) {
+        int start = beginMessage(RTM_GETADDR, NLM_F_REQUEST | NLM_F_DUMP);
+        ensureCapacity(IFADDRMSG_LEN);
+        buf.put((byte) family);
+        buf.put(new byte[IFADDRMSG_LEN - 1]);
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to dump the routes of a family.
+     * 
+     * @param family the address family
+     * @return the sequence number of the request
+     */
+    int getRoutes(int family) {
+        int start = beginMessage(RTM_GETROUTE, NLM_F_REQUEST | NLM_F_DUMP);
+        ensureCapacity(RTMSG_LEN);
+        buf.put((byte) family);
+        buf.put(new byte[RTMSG_LEN - 1]);
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to dump the routing rules of a family.
+     * 
+     * @param family the address family
+     * @return the sequence number of the request
+     */
+    int getRules(int family) {
+        int start = beginMessage(RTM_GETRULE, NLM_F_REQUEST | NLM_F_DUMP);
+        ensureCapacity(RTMSG_LEN);
+        buf.put((byte) family);
+        buf.put(new byte[RTMSG_LEN - 1]);
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Adds a request to get the route to a destination.
+     * 
+     * @param dst the destination address
+     * @return the sequence number of the request
+     */
+    int getRoute(InetAddress dst) {
+        int start = beginMessage(RTM_GETROUTE, NLM_F_REQUEST | NLM_F_ACK);
+        ensureCapacity(RTMSG_LEN);
+        buf.put((byte) family(dst));
+        buf.put((byte) (dst.getAddress().length * 8));
+        buf.put(new byte[RTMSG_LEN - 2]);
+        putAttr(RTA_DST, dst.getAddress());
+        
+        return endMessage(start);
+    }
+    
+    /**
+     * Gets the sequence numbers of the requests in the batch, in order.
+     * 
+     * @return the sequence numbers
+     */
+    List<Integer> getSeqs() {
+        return seqs;
+    }
+    
+    int getNextSeq() {
+        return seq;
+    }
+    
+    boolean isEmpty() {
+        return seqs.isEmpty();
+    }
+    
+    int length() {
+        return buf.position();
+    }
+    
+    byte[] array() {
+        return buf.array();
+    }
+    
+    /**
+     * Parses the netlink messages in a received buffer.
+     * 
+     * @param bytes the received bytes
+     * @param len the number of received bytes
+     * @return the messages
+     */
+    static List<Message> parse(byte[] bytes, int len) {
+        List<Message> messages = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(bytes, 0, len).order(ByteOrder.nativeOrder());
+        
+        int offset = 0;
+        while (offset + NLMSG_HDRLEN <= len) {
+            int msgLen = in.getInt(offset);
+            if (msgLen < NLMSG_HDRLEN || offset + msgLen > len) {
+                break;
+            }
+            
+            int type = in.getShort(offset + 4) & 0xffff;
+            int flags = in.getShort(offset + 6) & 0xffff;
+            int msgSeq = in.getInt(offset + 8);
+            
+            // Copy the payload, the receive buffer is reused
+            ByteBuffer payload = ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset + NLMSG_HDRLEN, offset + msgLen))
+                .order(ByteOrder.nativeOrder());
+            messages.add(new Message(type, flags, msgSeq, payload));
+            
+            offset += align(msgLen);
+        }
+        
+        return messages;
+    }
+    
+    /**
+     * Gets the address of an RTM_NEWADDR message if it belongs to a link.
+     * 
+     * @param msg the message
+     * @param ifIndex the link index
+     * @return the address, or null
+     */
+    static InetAddress getAddr(Message msg, int ifIndex) {
+        if (msg.type != RTM_NEWADDR || msg.payload.limit() < IFADDRMSG_LEN || msg.payload.getInt(4) != ifIndex) {
+            return null;
+        }
+        
+        byte[] addr = msg.getAttr(IFADDRMSG_LEN, IFA_LOCAL);
+        if (addr == null) {
+            addr = msg.getAttr(IFADDRMSG_LEN, IFA_ADDRESS);
+        }
+        
+        return toInetAddress(addr);
+    }
+    
+    /**
+     * Gets the link index of an RTM_NEWADDR message.
+     * 
+     * @param msg the message
+     * @return the link index, or -1
+     */
+    static int getAddrIfIndex(Message msg) {
+        return msg.type == RTM_NEWADDR && msg.payload.limit() >= IFADDRMSG_LEN ? msg.payload.getInt(4) : -1;
+    }
+    
+    /**
+     * Gets the link index of an RTM_NEWLINK or RTM_DELLINK message.
+     * 
+     * @param msg the message
+     * @return the link index, or -1
+     */
+    static int getLinkIndex(Message msg) {
+        return (msg.type == RTM_NEWLINK || msg.type == RTM_DELLINK) && msg.payload.limit() >= IFINFOMSG_LEN ?
+            msg.payload.getInt(4) : -1;
+    }
+    
+    /**
+     * Gets the link name of an RTM_NEWLINK or RTM_DELLINK message.
+     * 
+     * @param msg the message
+     * @return the link name, or null
+     */
+    static String getLinkName(Message msg) {
+        byte[] name = msg.getAttr(IFINFOMSG_LEN, IFLA_IFNAME);
+        if (name == null) {
+            return null;
+        }
+        
+        int len = 0;
+        while (len < name.length && name[len] != 0) {
+            len++;
+        }
+        
+        return new String(name, 0, len, StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * Gets the preferred source address of an RTM_NEWROUTE message.
+     * 
+     * @param msg the message
+     * @return the address, or null
+     */
+    static InetAddress getPrefSrc(Message msg) {
+        return msg.type == RTM_NEWROUTE ? toInetAddress(msg.getAttr(RTMSG_LEN, RTA_PREFSRC)) : null;
+    }
+
+    /**
+     * Gets the message of a netlink error code, worded as the C library strerror.
+     *
+     * @param error the negative errno value of an NLMSG_ERROR message
+     * @return the error message
+     */
+    static String strerror(int error) {
+        switch (-error) {
+            case 0: return "Success";
+            case 1: return "Operation not permitted";
+            case 2: return "No such file or directory";
+            case 3: return "No such process";
+            case 12: return "Cannot allocate memory";
+            case 13: return "Permission denied";
+            case 16: return "Device or resource busy";
+            case 17: return "File exists";
+            case 19: return "No such device";
+            case 22: return "Invalid argument";
+            case 28: return "No space left on device";
+            case 34: return "Numerical result out of range";
+            case 71: return "Protocol error";
+            case 90: return "Message too long";
+            case 93: return "Protocol not supported";
+            case 95: return "Operation not supported";
+            case 97: return "Address family not supported by protocol";
+            case 99: return "Cannot assign requested address";
+            case 101: return "Network is unreachable";
+            case 105: return "No buffer space available";
+            case 113: return "No route to host";
+            default: return "Unknown error " + -error;
+        }
+    }
+
+    private static InetAddress toInetAddress(byte[] addr) {
+        try {
+            return addr != null ? InetAddress.getByAddress(addr) : null;
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+    
+    private int beginMessage(int type, int flags) {
+        ensureCapacity(NLMSG_HDRLEN);
+        int start = buf.position();
+        buf.putInt(0);
+        buf.putShort((short) type);
+        buf.putShort((short) flags);
+        buf.putInt(seq);
+        buf.putInt(0);
+        
+        return start;
+    }
+    
+    private int endMessage(int start) {
+        buf.putInt(start, buf.position() - start);
+        seqs.add(seq);
+        
+        return seq++;
+    }
+    
+    private void putIfInfoMsg(int family, int index, int flags, int change) {
+        ensureCapacity(IFINFOMSG_LEN);
+        buf.put((byte) family);
+        buf.put((byte) 0);
+        buf.putShort((short) 0);
+        buf.putInt(index);
+        buf.putInt(flags);
+        buf.putInt(change);
+    }
+    
+    private void putAttr(int type, byte[] value) {
+        int len = NLA_HDRLEN + value.length;
+        ensureCapacity(align(len));
+        buf.putShort((short) len);
+        buf.putShort((short) type);
+        buf.put(value);
+        pad();
+    }
+    
+    private void putStringAttr(int type, String value) {
+        byte[] str = value.getBytes(StandardCharsets.US_ASCII);
+        byte[] value0 = new byte[str.length + 1];
+        System.arraycopy(str, 0, value0, 0, str.length);
+        putAttr(type, value0);
+    }
+    
+    private int beginNestedAttr(int type) {
+        ensureCapacity(NLA_HDRLEN);
+        int start = buf.position();
+        buf.putShort((short) 0);
+        buf.putShort((short) type);
+        
+        return start;
+    }
+    
+    private void endNestedAttr(int start) {
+        buf.putShort(start, (short) (buf.position() - start));
+    }
+    
+    private void pad() {
+        while ((buf.position() & 3) != 0) {
+            buf.put((byte) 0);
+        }
+    }
+    
+    private void ensureCapacity(int len) {
+        if (buf.remaining() < len + 3) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + len + 3))
+                .order(ByteOrder.nativeOrder());
+            buf.flip();
+            larger.put(buf);
+            buf = larger;
+        }
+    }
+}
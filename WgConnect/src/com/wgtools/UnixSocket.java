@@ -0,0 +1,79 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * UnixSocket
+ * 
+ * A blocking Unix domain stream socket channel, used to reach the UAPI sockets of the userspace
+ * Wireguard implementations.
+ * 
+ * @author: wgconnect@proton.me
+ */
+class UnixSocket implements Closeable {
+    
+    private final SocketChannel channel;
+    
+    UnixSocket(String path) throws IOException {
+        channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(path));
+        } catch (IOException ex) {
+            channel.close();
+            throw new IOException("Unable to connect to " + path + ": " + ex.getMessage(), ex);
+        }
+    }
+    
+    void send(byte[] buf, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, len);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    /**
+     * Receives the next bytes into a part of a buffer, blocking until there are some.
+     * 
+     * @param buf the receive buffer
+     * @param off the offset in the buffer
+     * @param len the maximum number of bytes
+     * @return the number of bytes received, 0 at the end of the stream
+     * @throws IOException if the receive failed
+     */
+    int receive(byte[] buf, int off, int len) throws IOException {
+        int received = channel.read(ByteBuffer.wrap(buf, off, len));
+        
+        return Math.max(received, 0);
+    }
+    
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // The socket is discarded either way
+        }
+    }
+}
@@ -23,6 +23,8 @@ import com.wgconnect.core.util.WgConnectLogger;
 import com.wgtools.DeviceManagerInterface.InterfaceDeviceState;
 
 import inet.ipaddr.IPAddress.IPVersion;
+import inet.ipaddr.ipv4.IPv4Address;
+import inet.ipaddr.ipv6.IPv6Address;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
@@ -31,11 +33,20 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
@@ -82,18 +93,16 @@ public class Wg implements Runnable {
     private static final int COMMAND_SUCCESS_CODE = 0;
     private static final int CODE_COMMAND_FAILURE = 1;
 
-    private static boolean libraryFileLoaded = false;
+    private static volatile boolean libraryFileLoaded = false;
 
-    private String privateKey;
-    private String publicKey;
-    private String preSharedKey;
+    private static final AtomicLong configGeneration = new AtomicLong();
     
-    private ByteArrayOutputStream commandOutputByteArrayStream;
-    private OutputStream commandOutputStream;
-    private String commandOutputString;
-    private String commandErrorString;
+    private volatile String privateKey;
+    private volatile String publicKey;
+    private volatile String preSharedKey;
     
-    private int commandExitCode;
+    // The output and result of the subcommand last executed by each thread
+    private final ThreadLocal<CommandResult> commandResult = ThreadLocal.withInitial(CommandResult::new);
 
     private static final DeviceManagerInterface linuxDeviceMgr = new LinuxDeviceManager();
     private static final DeviceManagerInterface freeBsdDeviceMgr = new BsdDeviceManager();
@@ -118,6 +127,9 @@ public class Wg implements Runnable {
     public static final String OPTION_PRESHARED_KEY = "preshared-key";
     public static final String OPTION_ENDPOINT = "endpoint";
     
+    private static final String NONE = "(none)";
+    private static final String OFF = "off";
+    
     @Option(names = {"-h", "--help"}, defaultValue = "false")
     private boolean helpRequested;
 
@@ -126,29 +138,46 @@ public class Wg implements Runnable {
 
     @Spec CommandSpec spec;
 
+    /**
+     * The output and result of a subcommand. Each thread executing subcommands has its own, so
+     * concurrent calls never interleave their outputs.
+     */
+    private static class CommandResult {
+        private ByteArrayOutputStream outputByteArrayStream;
+        private OutputStream outputStream;
+        private String outputString;
+        private String errorString;
+        private int exitCode;
+
+        private CommandResult() {
+            outputByteArrayStream = new ByteArrayOutputStream();
+            try {
+                outputStream = new PrintStream(outputByteArrayStream, true, StandardCharsets.UTF_8.name());
+            } catch (UnsupportedEncodingException ex) {
+                log.error("Encoding exception: " + ex);
+            }
+        }
+
+        private void reset() {
+            outputByteArrayStream.reset();
+            outputString = null;
+            errorString = null;
+            exitCode = CODE_COMMAND_FAILURE;
+        }
+    }
+
     public Wg(DeviceManagerInterface deviceMgr) {
         this.deviceMgr = deviceMgr;
-        
-        init();
     }
     
     public Wg() {
         if (SystemUtils.IS_OS_FREE_BSD || SystemUtils.IS_OS_NET_BSD || SystemUtils.IS_OS_OPEN_BSD) {
             deviceMgr = new BsdDeviceManager();
+        } else if (SystemUtils.IS_OS_LINUX && NetlinkSocket.isAvailable()) {
+            deviceMgr = new NetlinkDeviceManager();
         } else {
             deviceMgr = new LinuxDeviceManager();
         }
-        
-        init();
-    }
-    
-    private void init() {
-        try {
-            commandOutputByteArrayStream = new ByteArrayOutputStream();
-            commandOutputStream = new PrintStream(commandOutputByteArrayStream, true, StandardCharsets.UTF_8.name());
-        } catch (UnsupportedEncodingException ex) {
-            log.error("Encoding exception: " + ex);
-        }
     }
     
     public void setDeviceManager(DeviceManagerInterface deviceMgr) {
@@ -180,43 +209,62 @@ public class Wg implements Runnable {
     }
     
     public ByteArrayOutputStream getCommandOutputByteArrayStream() {
-        return commandOutputByteArrayStream;
+        return commandResult.get().outputByteArrayStream;
     }
     
     public void setCommandOutputByteArrayStream(ByteArrayOutputStream stream) {
-        commandOutputByteArrayStream = stream;
+        commandResult.get().outputByteArrayStream = stream;
     }
     
     public OutputStream getCommandOutputStream() {
-        return commandOutputStream;
+        return commandResult.get().outputStream;
     }
     
     public void setCommandOutputStream(OutputStream stream) {
-        commandOutputStream = stream;
+        commandResult.get().outputStream = stream;
     }
     
     public String getCommandOutputString() {
-        return commandOutputString;
+        return commandResult.get().outputString;
     }
     
     public void setCommandOutputString(String str) {
-        commandOutputString = str;
+        commandResult.get().outputString = str;
     }
 
     public String getCommandErrorString() {
-        return commandErrorString;
+        return commandResult.get().errorString;
     }
     
     public void setCommandErrorString(String str) {
-        commandErrorString = str;
+        commandResult.get().errorString = str;
     }
     
     public int getCommandExitCode() {
-        return commandExitCode;
+        return commandResult.get().exitCode;
     }
     
     public void setCommandExitCode(int code) {
-        commandExitCode = code;
+        commandResult.get().exitCode = code;
+    }
+    
+    /**
+     * Gets the generation of the device configurations, incremented by every change made through Wg.
+     * A reader that caches the device state compares the generations to know when to re-read it.
+     * 
+     * @return the configuration generation
+     */
+    public static long getConfigGeneration() {
+        return configGeneration.get();
+    }
+    
+    private static void configChanged() {
+        configGeneration.incrementAndGet();
+    }
+    
+    private static int configChanged(int exitCode) {
+        configChanged();
+        return exitCode;
     }
     
     public static int getCommandSuccessCode() {
@@ -240,6 +288,7 @@ public class Wg implements Runnable {
     }
 
     public void commandOutputStreamWrite(String str) {
+        OutputStream commandOutputStream = getCommandOutputStream();
         if (commandOutputStream != null) {
             try {
                 commandOutputStream.write(str.getBytes());
@@ -253,7 +302,7 @@ public class Wg implements Runnable {
     public String commandOutputStreamRead() {
         String output = "";
         try {
-            output = commandOutputByteArrayStream.toString(StandardCharsets.UTF_8.name());
+            output = getCommandOutputByteArrayStream().toString(StandardCharsets.UTF_8.name());
         } catch (UnsupportedEncodingException ex) {
             log.error("Encoding exception: " + ex);
         }
@@ -261,10 +310,17 @@ public class Wg implements Runnable {
         return output;
     } 
 
-    public boolean generateKeys() {
-        executeSubcommand(GenKey.COMMAND);
-        executeSubcommand(PubKey.COMMAND, privateKey);
-        executeSubcommand(GenPsk.COMMAND);
+    /**
+     * Takes a new private key, its public key and a preshared key from the key pool. The keys are
+     * generated in process and are the same as the ones of the genkey, pubkey and genpsk subcommands.
+     * 
+     * @return true if the keys are valid
+     */
+    public synchronized boolean generateKeys() {
+        WgKeyPool.KeySet keys = WgKeyPool.getInstance().take();
+        privateKey = WgPeer.encodeKey(keys.getPrivateKey());
+        publicKey = WgPeer.encodeKey(keys.getPublicKey());
+        preSharedKey = WgPeer.encodeKey(keys.getPresharedKey());
 
         return (privateKey != null && publicKey != null && preSharedKey != null);
     }
@@ -274,49 +330,102 @@ public class Wg implements Runnable {
     }
     
     public int setInterfacePrivateKey(String ifName, String privateKey) {
+        if (isStructured(ifName)) {
+            WgDevice device = new WgDevice(ifName);
+            device.setPrivateKey(WgPeer.decodeKey(privateKey));
+            return device.getPrivateKey() != null ? setDevice(device) : CODE_COMMAND_FAILURE;
+        }
+        
         executeSubcommand(Set.COMMAND, ifName, Wg.OPTION_PRIVATE_KEY, privateKey);
-        return commandExitCode;
+        configChanged();
+        return getCommandExitCode();
     }
     
     public String getInterfaces() {
-        executeSubcommand(Show.COMMAND, Wg.OPTION_INTERFACES);
-        return commandOutputString;
+        java.util.Set<String> names = new LinkedHashSet<>();
+        
+        if (WgNative.isAvailable()) {
+            String[] nativeNames = WgNative.listDevices();
+            if (nativeNames != null) {
+                names.addAll(Arrays.asList(nativeNames));
+            }
+        } else {
+            executeSubcommand(Show.COMMAND, Wg.OPTION_INTERFACES);
+            String output = getCommandOutputString();
+            if (output != null) {
+                names.addAll(Arrays.asList(StringUtils.split(output)));
+            }
+        }
+        names.addAll(WgUapi.listDevices());
+        
+        return !names.isEmpty() ? String.join(" ", names) + "\n" : "";
     }
     
     public String getInterfacePrivateKey(String ifName) {
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            return device != null ? maybeKey(device.getPrivateKey()) : null;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_PRIVATE_KEY);
-        return commandExitCode == Wg.getCommandSuccessCode() && commandOutputString != null ? commandOutputString.trim() : null;
+        return getCommandResultString();
     }
     
     public String getInterfacePublicKey(String ifName) {
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            return device != null ? maybeKey(device.getPublicKey()) : null;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_PUBLIC_KEY);
-        return commandExitCode == Wg.getCommandSuccessCode() && commandOutputString != null ? commandOutputString.trim() : null;
+        return getCommandResultString();
     }
     
     public String getInterfacePresharedKey(String ifName) {
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_PRESHARED_KEY);
-        return commandExitCode == Wg.getCommandSuccessCode() && commandOutputString != null ? commandOutputString.trim() : null;
+        return getCommandResultString();
     }
     
     public long getInterfaceListenPort(String ifName) {
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            return device != null ? device.getListenPort() : -1;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_LISTEN_PORT);
-        return commandExitCode == Wg.getCommandSuccessCode() && commandOutputString != null ? Integer.parseInt(commandOutputString.trim()) : -1;
+        String listenPort = getCommandResultString();
+        return listenPort != null ? Integer.parseInt(listenPort) : -1;
     }
     
     public String getInterfaceFwmark(String ifName) {
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            return device != null ? formatFwmark(device.getFwmark()) : null;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_FWMARK);
-        return commandExitCode == Wg.getCommandSuccessCode() && commandOutputString != null ? commandOutputString.trim() : null;
+        return getCommandResultString();
     }
     
     public int setInterfaceConfigParameters(String ifName, String... parameters) {
         executeSubcommand(ObjectArrays.concat(Set.COMMAND, ObjectArrays.concat(ifName, parameters)));
-        return commandExitCode;
+        configChanged();
+        return getCommandExitCode();
     }
     
     public List<String> getInterfacePeers(String ifName) {
         List<String> peers = new ArrayList<>();
         
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            if (device != null) {
+                device.getPeers().forEach(peer -> peers.add(WgPeer.encodeKey(peer.getPublicKey())));
+            }
+            return peers;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_PEERS);
+        String commandOutputString = getCommandOutputString();
         if (commandOutputString != null) {
             try {
                 BufferedReader reader = new BufferedReader(new StringReader(commandOutputString));
@@ -333,11 +442,23 @@ public class Wg implements Runnable {
     }
     
     public int addDevice(String deviceName) {
-        return deviceMgr.addDevice(deviceName);
+        return configChanged(deviceMgr.addDevice(deviceName));
+    }
+    
+    public int addDevice(String deviceName, InterfaceDeviceState state) {
+        return configChanged(deviceMgr.addDevice(deviceName, state));
+    }
+    
+    public int deleteDevice(String deviceName) {
+        return configChanged(deviceMgr.deleteDevice(deviceName));
     }
     
     public int setDeviceInetAddr(String deviceName, String inetAddr, String subnetMask) {
-        return deviceMgr.setDeviceInetAddr(deviceName, inetAddr, subnetMask);
+        return configChanged(deviceMgr.setDeviceInetAddr(deviceName, inetAddr, subnetMask));
+    }
+    
+    public int deleteDeviceInetAddr(String deviceName, String inetAddr, String subnetMask) {
+        return configChanged(deviceMgr.deleteDeviceInetAddr(deviceName, inetAddr, subnetMask));
     }
 
     public String getDeviceInetAddr(String deviceName, IPVersion ipVersion) {
@@ -345,17 +466,29 @@ public class Wg implements Runnable {
     }
     
     public int setDeviceState(String deviceName, InterfaceDeviceState state) {
-        return deviceMgr.setDeviceState(deviceName, state);
+        return configChanged(deviceMgr.setDeviceState(deviceName, state));
     }
     
     public String getLocalEndpointByInetAddr(String inetAddr) {
-        return deviceMgr.getLocalEndpointByInetAddr(inetAddr);
+        RouteTable routeTable = RouteTable.getInstance();
+        String localEndpoint = routeTable != null ? routeTable.getLocalEndpoint(inetAddr) : null;
+        
+        return localEndpoint != null ? localEndpoint : deviceMgr.getLocalEndpointByInetAddr(inetAddr);
     }
     
     public Map<String, String> getInterfaceEndpointsAsMap(String ifName) {
         Map<String, String> endpoints = new LinkedHashMap<>();
         
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            if (device != null) {
+                device.getPeers().forEach(peer -> endpoints.put(WgPeer.encodeKey(peer.getPublicKey()), formatEndpoint(peer)));
+            }
+            return endpoints;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_ENDPOINTS);
+        String commandOutputString = getCommandOutputString();
         if (commandOutputString != null) {
             try {
                 BufferedReader reader = new BufferedReader(new StringReader(commandOutputString));
@@ -377,7 +510,16 @@ public class Wg implements Runnable {
     public List<String> getInterfaceEndpointsAsList(String ifName) {
         List<String> endpoints = new ArrayList<>();
         
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            if (device != null) {
+                device.getPeers().forEach(peer -> endpoints.add(WgPeer.encodeKey(peer.getPublicKey()) + "\t" + formatEndpoint(peer)));
+            }
+            return endpoints;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_ENDPOINTS);
+        String commandOutputString = getCommandOutputString();
         if (commandOutputString != null) {
             try {
                 BufferedReader reader = new BufferedReader(new StringReader(commandOutputString));
@@ -396,7 +538,17 @@ public class Wg implements Runnable {
     public Map<String, String> getInterfaceAllowedIpsAsMap(String ifName) {
         Map<String, String> allowedIps = new LinkedHashMap<>();
         
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            if (device != null) {
+                device.getPeers().forEach(peer -> allowedIps.put(WgPeer.encodeKey(peer.getPublicKey()),
+                    peer.getAllowedIps().isEmpty() ? NONE : formatAllowedIp(peer.getAllowedIps().get(0))));
+            }
+            return allowedIps;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_ALLOWED_IPS);
+        String commandOutputString = getCommandOutputString();
         if (commandOutputString != null) {
             try {
                 BufferedReader reader = new BufferedReader(new StringReader(commandOutputString));
@@ -416,7 +568,16 @@ public class Wg implements Runnable {
     public List<String> getInterfaceAllowedIpsAsList(String ifName) {
         List<String> allowedIps = new ArrayList<>();
         
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            if (device != null) {
+                device.getPeers().forEach(peer -> allowedIps.add(WgPeer.encodeKey(peer.getPublicKey()) + "\t" + formatAllowedIps(peer, " ")));
+            }
+            return allowedIps;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_ALLOWED_IPS);
+        String commandOutputString = getCommandOutputString();
         if (commandOutputString != null) {
             try {
                 BufferedReader reader = new BufferedReader(new StringReader(commandOutputString));
@@ -435,7 +596,17 @@ public class Wg implements Runnable {
     public Map<String, String> getInterfacePersistentKeepalivesAsMap(String ifName) {
         Map<String, String> persistentKeepalives = new LinkedHashMap<>();
         
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            if (device != null) {
+                device.getPeers().forEach(peer -> persistentKeepalives.put(WgPeer.encodeKey(peer.getPublicKey()),
+                    Integer.toString(peer.getPersistentKeepalive())));
+            }
+            return persistentKeepalives;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_PERSISTENT_KEEPALIVE);
+        String commandOutputString = getCommandOutputString();
         if (commandOutputString != null) {
             try {
                 BufferedReader reader = new BufferedReader(new StringReader(commandOutputString));
@@ -455,7 +626,17 @@ public class Wg implements Runnable {
     public List<String> getInterfacePersistentKeepalivesAsList(String ifName) {
         List<String> persistentKeepalives = new ArrayList<>();
         
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            if (device != null) {
+                device.getPeers().forEach(peer -> persistentKeepalives.add(WgPeer.encodeKey(peer.getPublicKey()) + "\t" +
+                    formatPersistentKeepalive(peer.getPersistentKeepalive())));
+            }
+            return persistentKeepalives;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_PERSISTENT_KEEPALIVE);
+        String commandOutputString = getCommandOutputString();
         if (commandOutputString != null) {
             try {
                 BufferedReader reader = new BufferedReader(new StringReader(commandOutputString));
@@ -474,7 +655,21 @@ public class Wg implements Runnable {
     public List<String> getInterfaceDump(String ifName) {
         List<String> lines = new ArrayList<>();
         
+        if (isStructured(ifName)) {
+            WgDevice device = getDevice(ifName);
+            if (device != null) {
+                lines.add(String.join("\t", maybeKey(device.getPrivateKey()), maybeKey(device.getPublicKey()),
+                    Integer.toString(device.getListenPort()), formatFwmark(device.getFwmark())));
+                device.getPeers().forEach(peer -> lines.add(String.join("\t", WgPeer.encodeKey(peer.getPublicKey()),
+                    maybeKey(peer.getPresharedKey()), formatEndpoint(peer), formatAllowedIps(peer, ","),
+                    Long.toString(peer.getLastHandshakeTime()), Long.toUnsignedString(peer.getRxBytes()),
+                    Long.toUnsignedString(peer.getTxBytes()), formatPersistentKeepalive(peer.getPersistentKeepalive()))));
+            }
+            return lines;
+        }
+        
         executeSubcommand(Show.COMMAND, ifName, Wg.OPTION_DUMP);
+        String commandOutputString = getCommandOutputString();
         if (commandOutputString != null) {
             try {
                 BufferedReader reader = new BufferedReader(new StringReader(commandOutputString));
@@ -490,11 +685,236 @@ public class Wg implements Runnable {
         return lines;
     }
     
+    /**
+     * Gets the structured configuration and state of a Wireguard device and its peers.
+     * 
+     * @param ifName the device name
+     * @return the device, or null on error
+     */
+    public WgDevice getDevice(String ifName) {
+        commandResult.get().reset();
+        
+        WgDevice device = WgUapi.hasDevice(ifName) ? WgUapi.getDevice(ifName) :
+            WgNative.isAvailable() ? WgNative.getDevice(ifName) : null;
+        if (device != null) {
+            setCommandExitCode(COMMAND_SUCCESS_CODE);
+        } else {
+            setCommandErrorString("Unable to access interface " + ifName);
+        }
+        
+        return device;
+    }
+    
+    /**
+     * Applies a structured device configuration, with the specifications of the peers to add, update or remove.
+     * 
+     * @param device the device configuration
+     * @return the command success or failure code
+     */
+    public int setDevice(WgDevice device) {
+        commandResult.get().reset();
+        
+        int ret = WgUapi.hasDevice(device.getName()) ? WgUapi.setDevice(device) :
+            WgNative.isAvailable() ? WgNative.setDevice(device) : CODE_COMMAND_FAILURE;
+        configChanged();
+        if (ret == 0) {
+            setCommandExitCode(COMMAND_SUCCESS_CODE);
+        } else {
+            setCommandErrorString("Unable to modify interface " + device.getName() + ": " + ret);
+        }
+        
+        return getCommandExitCode();
+    }
+    
+    /**
+     * Adds or updates a peer of a Wireguard device.
+     * 
+     * @param ifName the device name
+     * @param peer the peer specification
+     * @return the command success or failure code
+     */
+    public int setInterfacePeer(String ifName, WgPeer peer) {
+        if (peer == null) {
+            commandResult.get().reset();
+            setCommandErrorString("Invalid peer for interface " + ifName);
+            return CODE_COMMAND_FAILURE;
+        }
+        
+        return setInterfacePeers(ifName, Collections.singletonList(peer));
+    }
+    
+    /**
+     * Adds, updates or removes the peers of a Wireguard device in one device update.
+     * 
+     * @param ifName the device name
+     * @param peers the peer specifications, in the order they are applied
+     * @return the command success or failure code
+     */
+    public int setInterfacePeers(String ifName, List<WgPeer> peers) {
+        if (peers == null || peers.isEmpty()) {
+            commandResult.get().reset();
+            setCommandErrorString("No peers for interface " + ifName);
+            return CODE_COMMAND_FAILURE;
+        }
+        
+        if (isStructured(ifName)) {
+            WgDevice device = new WgDevice(ifName);
+            peers.forEach(device::addPeer);
+            return setDevice(device);
+        }
+        
+        List<String> parameters = new ArrayList<>();
+        peers.forEach(peer -> addPeerParameters(parameters, peer));
+        
+        return setInterfaceConfigParameters(ifName, parameters.toArray(new String[0]));
+    }
+    
+    /**
+     * Applies only the differences between a Wireguard device and its desired configuration, in
+     * one update in the manner of syncconf: the private key and the listen port when they are set,
+     * and the peers to add, update or remove.
+     * 
+     * @param device the differences to apply
+     * @return the command success or failure code
+     */
+    public int syncDevice(WgDevice device) {
+        if (isStructured(device.getName())) {
+            return setDevice(device);
+        }
+        
+        List<String> parameters = new ArrayList<>();
+        if (device.getPrivateKey() != null) {
+            parameters.add(OPTION_PRIVATE_KEY);
+            parameters.add(WgPeer.encodeKey(device.getPrivateKey()));
+        }
+        if (device.getListenPort() >= 0) {
+            parameters.add(OPTION_LISTEN_PORT);
+            parameters.add(Integer.toString(device.getListenPort()));
+        }
+        device.getPeers().forEach(peer -> addPeerParameters(parameters, peer));
+        
+        if (parameters.isEmpty()) {
+            commandResult.get().reset();
+            setCommandExitCode(COMMAND_SUCCESS_CODE);
+            return getCommandExitCode();
+        }
+        
+        return setInterfaceConfigParameters(device.getName(), parameters.toArray(new String[0]));
+    }
+    
+    private static void addPeerParameters(List<String> parameters, WgPeer peer) {
+        parameters.add(OPTION_PEER);
+        parameters.add(WgPeer.encodeKey(peer.getPublicKey()));
+        if (peer.isRemove()) {
+            parameters.add(OPTION_REMOVE);
+            return;
+        }
+        if (!peer.getAllowedIps().isEmpty()) {
+            parameters.add(OPTION_ALLOWED_IPS);
+            parameters.add(formatAllowedIps(peer, ","));
+        }
+        if (peer.getEndpoint() != null) {
+            parameters.add(OPTION_ENDPOINT);
+            parameters.add(formatEndpoint(peer));
+        }
+        if (peer.getPersistentKeepalive() >= 0) {
+            parameters.add(OPTION_PERSISTENT_KEEPALIVE);
+            parameters.add(Integer.toString(peer.getPersistentKeepalive()));
+        }
+    }
+    
+    private static boolean isStructured(String ifName) {
+        return WgUapi.hasDevice(ifName) || WgNative.isAvailable();
+    }
+    
+    private static String maybeKey(byte[] key) {
+        return key != null ? WgPeer.encodeKey(key) : NONE;
+    }
+    
+    private static String formatFwmark(long fwmark) {
+        return fwmark > 0 ? "0x" + Long.toHexString(fwmark) : OFF;
+    }
+    
+    private static String formatPersistentKeepalive(int interval) {
+        return interval > 0 ? Integer.toString(interval) : OFF;
+    }
+    
+    private static String formatInetAddr(byte[] addr) {
+        return addr.length == IPv4Address.BYTE_COUNT ? new IPv4Address(addr).toNormalizedString() :
+            new IPv6Address(addr).toCompressedString();
+    }
+    
+    private static String formatAllowedIp(WgPeer.AllowedIp allowedIp) {
+        return formatInetAddr(allowedIp.getAddr()) + "/" + allowedIp.getCidr();
+    }
+    
+    private static String formatAllowedIps(WgPeer peer, String separator) {
+        if (peer.getAllowedIps().isEmpty()) {
+            return NONE;
+        }
+        
+        StringBuilder allowedIps = new StringBuilder();
+        for (WgPeer.AllowedIp allowedIp : peer.getAllowedIps()) {
+            if (allowedIps.length() > 0) {
+                allowedIps.append(separator);
+            }
+            allowedIps.append(formatAllowedIp(allowedIp));
+        }
+        
+        return allowedIps.toString();
+    }
+    
+    private static String formatEndpoint(WgPeer peer) {
+        InetSocketAddress endpoint = peer.getEndpoint();
+        if (endpoint == null) {
+            return NONE;
+        }
+        
+        InetAddress addr = endpoint.getAddress();
+        if (addr instanceof Inet6Address) {
+            StringBuilder host = new StringBuilder(formatInetAddr(addr.getAddress()));
+            int scopeId = ((Inet6Address) addr).getScopeId();
+            if (scopeId != 0) {
+                NetworkInterface netIf = null;
+                try {
+                    netIf = NetworkInterface.getByIndex(scopeId);
+                } catch (SocketException ex) {
+                    log.info("Scope id " + scopeId + " exception: " + ex);
+                }
+                host.append('%').append(netIf != null ? netIf.getName() : Integer.toString(scopeId));
+            }
+            return "[" + host + "]:" + endpoint.getPort();
+        }
+        
+        return formatInetAddr(addr.getAddress()) + ":" + endpoint.getPort();
+    }
+    
     public synchronized DeviceManagerInterface getInterfaceDeviceManager() {
         return deviceMgr;
     }
     
+    private String getCommandResultString() {
+        String commandOutputString = getCommandOutputString();
+        return getCommandExitCode() == Wg.getCommandSuccessCode() && commandOutputString != null ? commandOutputString.trim() : null;
+    }
+    
     public void loadNativeLibrary() {
+        if (!loadNativeLibraryFile()) {
+            setCommandErrorString("Native code library failed to load.");
+            setCommandExitCode(CODE_COMMAND_FAILURE);
+        }
+    }
+    
+    /**
+     * Loads the native library once per process.
+     * 
+     * @return true if the native library is loaded
+     */
+    public static synchronized boolean loadNativeLibraryFile() {
+        if (libraryFileLoaded) {
+            return true;
+        }
+        
         try {
             StringBuilder nativeLibraryPathname = new StringBuilder(WG_NATIVE_LIBRARY_BASE_PATH);
             String osArch = System.getProperty("os.arch");
@@ -527,16 +947,16 @@ public class Wg implements Runnable {
         } catch (IOException ex) {
             log.error("Load library exception: " + ex);
             System.err.println("Native code library failed to load.\n");
-            commandErrorString = "Native code library failed to load.";
-            commandExitCode = 1;
         }
+        
+        return libraryFileLoaded;
     }
     
     /**
      * @param args the command line arguments
      */
     private void executeSubcommand(String... args) {
-        commandOutputByteArrayStream.reset();
+        commandResult.get().reset();
         
         CommandLine commandLine = new CommandLine(this);
         
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * WgDevice
+ * 
+ * The structured configuration and state of a Wireguard device, as returned by and passed to the
+ * WgNative and WgUapi entry points. When a device is set, a null private key, and a negative listen
+ * port or fwmark, leave the current values unchanged.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class WgDevice {
+    
+    public static final int UNSET = -1;
+    
+    private final String name;
+    private byte[] publicKey;
+    private byte[] privateKey;
+    private int listenPort = UNSET;
+    private long fwmark = UNSET;
+    private boolean replacePeers;
+    private final List<WgPeer> peers = new ArrayList<>();
+    
+    public WgDevice(String name) {
+        this.name = name;
+    }
+    
+    // Called by the native layer
+    WgDevice(String name, byte[] publicKey, byte[] privateKey, int listenPort, long fwmark, WgPeer[] peers) {
+        this.name = name;
+        this.publicKey = publicKey;
+        this.privateKey = privateKey;
+        this.listenPort = listenPort;
+        this.fwmark = fwmark;
+        for (WgPeer peer : peers) {
+            this.peers.add(peer);
+        }
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+    
+    // Called by the UAPI parser
+    void setPublicKey(byte[] key) {
+        publicKey = key;
+    }
+    
+    public byte[] getPrivateKey() {
+        return privateKey;
+    }
+    
+    public void setPrivateKey(byte[] key) {
+        privateKey = key;
+    }
+    
+    public int getListenPort() {
+        return listenPort;
+    }
+    
+    public void setListenPort(int port) {
+        listenPort = port;
+    }
+    
+    public long getFwmark() {
+        return fwmark;
+    }
+    
+    public void setFwmark(long mark) {
+        fwmark = mark;
+    }
+    
+    public boolean isReplacePeers() {
+        return replacePeers;
+    }
+    
+    public void setReplacePeers(boolean replace) {
+        replacePeers = replace;
+    }
+    
+    public List<WgPeer> getPeers() {
+        return peers;
+    }
+    
+    public WgPeer getPeer(byte[] publicKey) {
+        for (WgPeer peer : peers) {
+            if (Arrays.equals(peer.getPublicKey(), publicKey)) {
+                return peer;
+            }
+        }
+        
+        return null;
+    }
+    
+    public void addPeer(WgPeer peer) {
+        peers.add(peer);
+    }
+    
+    // Called by the native layer
+    WgPeer[] getPeerArray() {
+        return peers.toArray(new WgPeer[0]);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.XECPrivateKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPrivateKeySpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * WgKeyPool
+ * 
+ * A pool of pre-generated Wireguard key sets, each a private key, its public key and a preshared key.
+ * A background thread keeps the pool filled to its depth, so a burst of new tunnels takes its keys
+ * from the pool. When the pool is empty, or has not been started, the keys are generated in place.
+ * The key pairs come from the X25519 function of the JDK XDH provider and are the same as the ones of
+ * the genkey and pubkey subcommands: the private key is clamped as a Curve25519 scalar, and both keys
+ * are 32 bytes little-endian.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class WgKeyPool {
+    
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(WgKeyPool.class);
+    
+    private static WgKeyPool INSTANCE;
+    
+    private static final String XDH = "XDH";
+    private static final BigInteger BASE_POINT = BigInteger.valueOf(9);
+    
+    private final SecureRandom random = new SecureRandom();
+    
+    private volatile BlockingQueue<KeySet> pool;
+    private Thread refillThread;
+    
+    /**
+     * A private key, its public key and a preshared key.
+     */
+    public static class KeySet {
+        private final byte[] privateKey;
+        private final byte[] publicKey;
+        private final byte[] presharedKey;
+        
+        KeySet(byte[] privateKey, byte[] publicKey, byte[] presharedKey) {
+            this.privateKey = privateKey;
+            this.publicKey = publicKey;
+            this.presharedKey = presharedKey;
+        }
+        
+        public byte[] getPrivateKey() {
+            return privateKey;
+        }
+        
+        public byte[] getPublicKey() {
+            return publicKey;
+        }
+        
+        public byte[] getPresharedKey() {
+            return presharedKey;
+        }
+    }
+    
+    /**
+     * Gets the single instance of WgKeyPool.
+     * 
+     * @return single instance of WgKeyPool
+     */
+    public static synchronized WgKeyPool getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new WgKeyPool();
+        }
+        
+        return INSTANCE;
+    }
+    
+    private WgKeyPool() {
+    }
+    
+    /**
+     * Starts filling the pool in the background.
+     * 
+     * @param depth the number of key sets kept ready, 0 to generate every key set in place
+     */
+    public synchronized void start(int depth) {
+        if (refillThread != null || depth <= 0) {
+            return;
+        }
+        
+        BlockingQueue<KeySet> queue = new ArrayBlockingQueue<>(depth);
+        refillThread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    queue.put(generate());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "WgKeyPool");
+        refillThread.setDaemon(true);
+        refillThread.setPriority(Thread.MIN_PRIORITY);
+        refillThread.start();
+        pool = queue;
+        
+        log.info("Key pool depth: {} key sets", depth);
+    }
+    
+    public synchronized void stop() {
+        if (refillThread != null) {
+            refillThread.interrupt();
+            refillThread = null;
+        }
+        pool = null;
+    }
+    
+    /**
+     * Takes a key set from the pool, or generates one if the pool is empty.
+     * 
+     * @return the key set
+     */
+    public KeySet take() {
+        BlockingQueue<KeySet> queue = pool;
+        KeySet keys = queue != null ? queue.poll() : null;
+        
+        return keys != null ? keys : generate();
+    }
+    
+    /**
+     * Gets the number of key sets ready in the pool.
+     * 
+     * @return the number of key sets
+     */
+    public int size() {
+        BlockingQueue<KeySet> queue = pool;
+        return queue != null ? queue.size() : 0;
+    }
+    
+    private KeySet generate() {
+        KeyPair keyPair = generateKeyPair(random);
+        
+        return new KeySet(privateKey(keyPair), publicKey(keyPair), generatePresharedKey(random));
+    }
+    
+    /**
+     * Generates a new clamped private key.
+     * 
+     * @param random the source of randomness
+     * @return the private key
+     */
+    public static byte[] generatePrivateKey(SecureRandom random) {
+        return privateKey(generateKeyPair(random));
+    }
+    
+    /**
+     * Generates a new preshared key.
+     * 
+     * @param random the source of randomness
+     * @return the preshared key
+     */
+    public static byte[] generatePresharedKey(SecureRandom random) {
+        byte[] key = new byte[WgPeer.KEY_LENGTH];
+        random.nextBytes(key);
+        
+        return key;
+    }
+    
+    /**
+     * Derives the public key of a private key, the X25519 function of the private key and the base point.
+     * 
+     * @param privateKey the private key
+     * @return the public key
+     */
+    public static byte[] publicKey(byte[] privateKey) {
+        if (privateKey == null || privateKey.length != WgPeer.KEY_LENGTH) {
+            throw new IllegalArgumentException("Wireguard keys are " + WgPeer.KEY_LENGTH + " bytes");
+        }
+        
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance(XDH);
+            PublicKey basePoint = keyFactory.generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, BASE_POINT));
+            
+            KeyAgreement keyAgreement = KeyAgreement.getInstance(XDH);
+            keyAgreement.init(keyFactory.generatePrivate(new XECPrivateKeySpec(NamedParameterSpec.X25519, privateKey)));
+            keyAgreement.doPhase(basePoint, true);
+            
+            return keyAgreement.generateSecret();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("X25519 is not available: " + ex.getMessage(), ex);
+        }
+    }
+    
+    private static KeyPair generateKeyPair(SecureRandom random) {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(XDH);
+            generator.initialize(NamedParameterSpec.X25519, random);
+            
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("X25519 is not available: " + ex.getMessage(), ex);
+        }
+    }
+    
+    private static byte[] privateKey(KeyPair keyPair) {
+        // The provider clamps the scalar when it uses it, the key is clamped as the genkey subcommand does
+        byte[] key = ((XECPrivateKey) keyPair.getPrivate()).getScalar().orElseThrow(IllegalStateException::new);
+        key[0] &= (byte) 248;
+        key[31] = (byte) ((key[31] & 127) | 64);
+        
+        return key;
+    }
+    
+    private static byte[] publicKey(KeyPair keyPair) {
+        // The u-coordinate is little-endian on the wire
+        byte[] u = ((XECPublicKey) keyPair.getPublic()).getU().toByteArray();
+        byte[] key = new byte[WgPeer.KEY_LENGTH];
+        for (int i = 0; i < key.length && i < u.length; i++) {
+            key[i] = u[u.length - 1 - i];
+        }
+        
+        return key;
+    }
+}
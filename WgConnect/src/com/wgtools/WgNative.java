@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+/**
+ * WgNative
+ * 
+ * The structured entry points to the native Wireguard device interface. Devices and peers are read
+ * and written directly as WgDevice and WgPeer objects, without going through a subcommand, its text
+ * output and its parsing. If the loaded native library predates these entry points, isAvailable
+ * returns false and the callers fall back to the subcommands.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public final class WgNative {
+    
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(WgNative.class);
+    
+    private static volatile Boolean available;
+    
+    private WgNative() {
+    }
+    
+    /**
+     * Checks that the native library is loaded and has the structured entry points.
+     * 
+     * @return true if the structured entry points can be called
+     */
+    public static boolean isAvailable() {
+        Boolean isAvailable = available;
+        if (isAvailable == null) {
+            synchronized (WgNative.class) {
+                if (available == null) {
+                    boolean loaded = Wg.loadNativeLibraryFile();
+                    if (loaded) {
+                        try {
+                            listDevices();
+                        } catch (UnsatisfiedLinkError ex) {
+                            log.info("The native library has no structured entry points, using the subcommands");
+                            loaded = false;
+                        }
+                    }
+                    available = loaded;
+                }
+                isAvailable = available;
+            }
+        }
+        
+        return isAvailable;
+    }
+    
+    /**
+     * Lists the names of the Wireguard devices.
+     * 
+     * @return the device names, or null on error
+     */
+    public static native String[] listDevices();
+    
+    /**
+     * Gets the configuration and state of a Wireguard device and its peers.
+     * 
+     * @param name the device name
+     * @return the device, or null on error
+     */
+    public static native WgDevice getDevice(String name);
+    
+    /**
+     * Applies a device configuration and the peer specifications it contains.
+     * 
+     * @param device the device configuration
+     * @return 0 on success, else a negative errno value
+     */
+    public static native int setDevice(WgDevice device);
+}
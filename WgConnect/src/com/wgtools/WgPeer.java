@@ -0,0 +1,243 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * WgPeer
+ * 
+ * The structured configuration and state of a Wireguard peer, as returned by and passed to the
+ * WgNative entry points. Keys are raw 32 byte arrays. When a peer is set, a null preshared key and
+ * endpoint, and a negative persistent keepalive, leave the current values unchanged.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class WgPeer {
+    
+    public static final int KEY_LENGTH = 32;
+    public static final int PERSISTENT_KEEPALIVE_UNSET = -1;
+    
+    private byte[] publicKey;
+    private byte[] presharedKey;
+    private byte[] endpointAddr;
+    private int endpointPort;
+    private int endpointScopeId;
+    private long lastHandshakeTime;
+    private long rxBytes;
+    private long txBytes;
+    private int persistentKeepalive = PERSISTENT_KEEPALIVE_UNSET;
+    private final List<AllowedIp> allowedIps = new ArrayList<>();
+    private boolean remove;
+    private boolean replaceAllowedIps;
+    
+    /**
+     * An allowed IP prefix of a peer.
+     */
+    public static class AllowedIp {
+        private final byte[] addr;
+        private final int cidr;
+        
+        public AllowedIp(byte[] addr, int cidr) {
+            this.addr = addr;
+            this.cidr = cidr;
+        }
+        
+        public byte[] getAddr() {
+            return addr;
+        }
+        
+        public int getCidr() {
+            return cidr;
+        }
+        
+        public InetAddress getInetAddr() {
+            try {
+                return InetAddress.getByAddress(addr);
+            } catch (UnknownHostException ex) {
+                return null;
+            }
+        }
+    }
+    
+    public WgPeer() {
+    }
+    
+    public WgPeer(byte[] publicKey) {
+        this.publicKey = publicKey;
+    }
+    
+    // Called by the native layer
+    WgPeer(byte[] publicKey, byte[] presharedKey, byte[] endpointAddr, int endpointPort, int endpointScopeId,
+        long lastHandshakeTime, long rxBytes, long txBytes, int persistentKeepalive, AllowedIp[] allowedIps) {
+        this.publicKey = publicKey;
+        this.presharedKey = presharedKey;
+        this.endpointAddr = endpointAddr;
+        this.endpointPort = endpointPort;
+        this.endpointScopeId = endpointScopeId;
+        this.lastHandshakeTime = lastHandshakeTime;
+        this.rxBytes = rxBytes;
+        this.txBytes = txBytes;
+        this.persistentKeepalive = persistentKeepalive;
+        for (AllowedIp allowedIp : allowedIps) {
+            this.allowedIps.add(allowedIp);
+        }
+    }
+    
+    /**
+     * Creates the specification of a peer with one allowed IP prefix, an endpoint and a persistent keepalive.
+     * 
+     * @param publicKey the base64 public key
+     * @param allowedIp the allowed IP address
+     * @param cidr the allowed IP prefix length
+     * @param endpointAddr the endpoint address
+     * @param endpointPort the endpoint port
+     * @param persistentKeepalive the persistent keepalive interval in seconds, or 0 for off
+     * @return the peer, or null if a key or address is invalid
+     */
+    public static WgPeer of(String publicKey, String allowedIp, int cidr, String endpointAddr, long endpointPort,
+        int persistentKeepalive) {
+        byte[] key = decodeKey(publicKey);
+        if (key == null) {
+            return null;
+        }
+        
+        WgPeer peer = new WgPeer(key);
+        try {
+            peer.addAllowedIp(InetAddress.getByName(allowedIp), cidr);
+            peer.setEndpoint(new InetSocketAddress(InetAddress.getByName(endpointAddr), (int) endpointPort));
+        } catch (UnknownHostException | IllegalArgumentException ex) {
+            return null;
+        }
+        peer.setPersistentKeepalive(persistentKeepalive);
+        
+        return peer;
+    }
+    
+    public static byte[] decodeKey(String key) {
+        try {
+            byte[] decoded = key != null ? Base64.getDecoder().decode(key.trim()) : null;
+            return decoded != null && decoded.length == KEY_LENGTH ? decoded : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+    
+    public static String encodeKey(byte[] key) {
+        return key != null ? Base64.getEncoder().encodeToString(key) : null;
+    }
+    
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+    
+    public void setPublicKey(byte[] key) {
+        publicKey = key;
+    }
+    
+    public byte[] getPresharedKey() {
+        return presharedKey;
+    }
+    
+    public void setPresharedKey(byte[] key) {
+        presharedKey = key;
+    }
+    
+    public InetSocketAddress getEndpoint() {
+        if (endpointAddr == null) {
+            return null;
+        }
+        
+        try {
+            InetAddress addr = endpointScopeId != 0 ? Inet6Address.getByAddress(null, endpointAddr, endpointScopeId) :
+                InetAddress.getByAddress(endpointAddr);
+            return new InetSocketAddress(addr, endpointPort);
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+    
+    public void setEndpoint(InetSocketAddress endpoint) {
+        endpointAddr = endpoint != null ? endpoint.getAddress().getAddress() : null;
+        endpointPort = endpoint != null ? endpoint.getPort() : 0;
+        endpointScopeId = endpoint != null && endpoint.getAddress() instanceof Inet6Address ?
+            ((Inet6Address) endpoint.getAddress()).getScopeId() : 0;
+    }
+    
+    public long getLastHandshakeTime() {
+        return lastHandshakeTime;
+    }
+    
+    public long getRxBytes() {
+        return rxBytes;
+    }
+    
+    public long getTxBytes() {
+        return txBytes;
+    }
+    
+    public int getPersistentKeepalive() {
+        return persistentKeepalive;
+    }
+    
+    public void setPersistentKeepalive(int interval) {
+        persistentKeepalive = interval;
+    }
+    
+    public List<AllowedIp> getAllowedIps() {
+        return allowedIps;
+    }
+    
+    public void addAllowedIp(InetAddress addr, int cidr) {
+        allowedIps.add(new AllowedIp(addr.getAddress(), cidr));
+    }
+    
+    public boolean isRemove() {
+        return remove;
+    }
+    
+    public void setRemove(boolean remove) {
+        this.remove = remove;
+    }
+    
+    public boolean isReplaceAllowedIps() {
+        return replaceAllowedIps;
+    }
+    
+    public void setReplaceAllowedIps(boolean replace) {
+        replaceAllowedIps = replace;
+    }
+    
+    // Called by the UAPI parser
+    void setStats(long lastHandshakeTime, long rxBytes, long txBytes) {
+        this.lastHandshakeTime = lastHandshakeTime;
+        this.rxBytes = rxBytes;
+        this.txBytes = txBytes;
+    }
+    
+    // Called by the native layer
+    AllowedIp[] getAllowedIpArray() {
+        return allowedIps.toArray(new AllowedIp[0]);
+    }
+}
@@ -0,0 +1,605 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import com.wgconnect.core.util.WgConnectLogger;
+
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressString;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WgUapi
+ * 
+ * The structured entry points to the Wireguard devices of the userspace implementations, such as
+ * wireguard-go, which serve the UAPI text protocol on a Unix socket per device. One connection per
+ * device is kept open and reused. The replies are parsed line by line in place in the receive buffer,
+ * keys and numbers without creating strings, and a broken connection is reopened once per request.
+ * The names of the served devices are listed once per Wg configuration generation, or again after
+ * an invalidation, rather than checking the socket file on every call.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public final class WgUapi {
+    
+    private static final WgConnectLogger log = WgConnectLogger.getLogger(WgUapi.class);
+    
+    public static final String DEFAULT_SOCKET_DIRECTORY = "/var/run/wireguard";
+    public static final String SOCKET_SUFFIX = ".sock";
+    
+    private static final int BUFFER_SIZE = 8192;
+    
+    private static final byte[] GET = bytes("get=1\n\n");
+    private static final byte[] SET = bytes("set=1\n");
+    
+    private static final byte[] PRIVATE_KEY = bytes("private_key");
+    private static final byte[] LISTEN_PORT = bytes("listen_port");
+    private static final byte[] FWMARK = bytes("fwmark");
+    private static final byte[] REPLACE_PEERS = bytes("replace_peers");
+    private static final byte[] PUBLIC_KEY = bytes("public_key");
+    private static final byte[] REMOVE = bytes("remove");
+    private static final byte[] PRESHARED_KEY = bytes("preshared_key");
+    private static final byte[] ENDPOINT = bytes("endpoint");
+    private static final byte[] LAST_HANDSHAKE_TIME_SEC = bytes("last_handshake_time_sec");
+    private static final byte[] RX_BYTES = bytes("rx_bytes");
+    private static final byte[] TX_BYTES = bytes("tx_bytes");
+    private static final byte[] PERSISTENT_KEEPALIVE_INTERVAL = bytes("persistent_keepalive_interval");
+    private static final byte[] REPLACE_ALLOWED_IPS = bytes("replace_allowed_ips");
+    private static final byte[] ALLOWED_IP = bytes("allowed_ip");
+    private static final byte[] ERRNO = bytes("errno");
+    private static final byte[] TRUE = bytes("true");
+    
+    private static final int EPROTO = 71;
+    
+    private static volatile String socketDirectory = DEFAULT_SOCKET_DIRECTORY;
+    
+    private static final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    
+    private static volatile DeviceNames deviceNames;
+    
+    /**
+     * The names of the served devices, with the configuration generation they were listed at.
+     */
+    private static class DeviceNames {
+        final long generation;
+        final Set<String> names;
+        
+        DeviceNames(long generation, Set<String> names) {
+            this.generation = generation;
+            this.names = names;
+        }
+    }
+    
+    private WgUapi() {
+    }
+    
+    /**
+     * Sets the directory of the UAPI sockets, closing the connections to the previous directory.
+     * 
+     * @param directory the socket directory
+     */
+    public static void setSocketDirectory(String directory) {
+        socketDirectory = directory;
+        invalidate();
+        closeAll();
+    }
+    
+    public static String getSocketDirectory() {
+        return socketDirectory;
+    }
+    
+    /**
+     * Checks whether a device is served by a userspace implementation.
+     * 
+     * @param name the device name
+     * @return true if the device has a UAPI socket
+     */
+    public static boolean hasDevice(String name) {
+        if (name == null) {
+            return false;
+        }
+        
+        DeviceNames current = deviceNames;
+        if (current == null || current.generation != Wg.getConfigGeneration()) {
+            listDevices();
+            current = deviceNames;
+        }
+        
+        return current.names.contains(name);
+    }
+    
+    /**
+     * Forces the next device check to list the served devices again.
+     */
+    public static void invalidate() {
+        deviceNames = null;
+    }
+    
+    /**
+     * Lists the names of the devices served by the userspace implementations.
+     * 
+     * @return the device names
+     */
+    public static List<String> listDevices() {
+        long generation = Wg.getConfigGeneration();
+        List<String> names = new ArrayList<>();
+        
+        String[] files = new File(socketDirectory).list();
+        if (files != null) {
+            Arrays.sort(files);
+            for (String file : files) {
+                if (file.endsWith(SOCKET_SUFFIX) && file.length() > SOCKET_SUFFIX.length()) {
+                    names.add(file.substring(0, file.length() - SOCKET_SUFFIX.length()));
+                }
+            }
+        }
+        deviceNames = new DeviceNames(generation, Collections.unmodifiableSet(new HashSet<>(names)));
+        
+        return names;
+    }
+    
+    /**
+     * Gets the configuration and state of a device and its peers.
+     * 
+     * @param name the device name
+     * @return the device, or null on error
+     */
+    public static WgDevice getDevice(String name) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Connection connection = getConnection(name);
+            if (connection == null) {
+                return null;
+            }
+            
+            try {
+                return connection.get(name);
+            } catch (IOException ex) {
+                log.info("UAPI get of " + name + " failed: " + ex.getMessage());
+                closeConnection(name, connection);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Applies a device configuration, with the specifications of the peers to add, update or remove.
+     * 
+     * @param device the device configuration
+     * @return 0 on success, or a negative errno value
+     */
+    public static int setDevice(WgDevice device) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Connection connection = getConnection(device.getName());
+            if (connection == null) {
+                return -EPROTO;
+            }
+            
+            try {
+                return connection.set(device);
+            } catch (IOException ex) {
+                log.info("UAPI set of " + device.getName() + " failed: " + ex.getMessage());
+                closeConnection(device.getName(), connection);
+            }
+        }
+        
+        return -EPROTO;
+    }
+    
+    /**
+     * Closes all of the open connections.
+     */
+    public static void closeAll() {
+        connections.keySet().forEach(name -> closeConnection(name, connections.get(name)));
+    }
+    
+    private static File getSocketFile(String name) {
+        return new File(socketDirectory, name + SOCKET_SUFFIX);
+    }
+    
+    private static Connection getConnection(String name) {
+        try {
+            return connections.computeIfAbsent(name, n -> {
+                try {
+                    return new Connection(new UnixSocket(getSocketFile(n).getPath()));
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex.getMessage());
+                }
+            });
+        } catch (IllegalStateException ex) {
+            log.error("Unable to open the UAPI socket of " + name + ": " + ex.getMessage());
+            return null;
+        }
+    }
+    
+    private static void closeConnection(String name, Connection connection) {
+        if (connection != null && connections.remove(name, connection)) {
+            connection.close();
+        }
+    }
+    
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * A persistent connection to the UAPI socket of one device, with its reused buffers.
+     */
+    private static class Connection {
+        private final UnixSocket socket;
+        
+        private final byte[] in = new byte[BUFFER_SIZE];
+        private int pos;
+        private int limit;
+        private int lineStart;
+        private int keyEnd;
+        private int lineEnd;
+        
+        private byte[] out = new byte[BUFFER_SIZE];
+        private int outLen;
+        
+        Connection(UnixSocket socket) {
+            this.socket = socket;
+        }
+        
+        synchronized WgDevice get(String name) throws IOException {
+            pos = limit = 0;
+            socket.send(GET, GET.length);
+            
+            WgDevice device = new WgDevice(name);
+            WgPeer peer = null;
+            long lastHandshakeTime = 0;
+            long rxBytes = 0;
+            long txBytes = 0;
+            int errno = -1;
+            
+            while (readLine()) {
+                if (lineEnd == lineStart) {
+                    break;
+                }
+                
+                if (isKey(PUBLIC_KEY)) {
+                    if (peer != null) {
+                        peer.setStats(lastHandshakeTime, rxBytes, txBytes);
+                    }
+                    peer = new WgPeer(hexValue());
+                    device.addPeer(peer);
+                    lastHandshakeTime = rxBytes = txBytes = 0;
+                } else if (peer == null && isKey(PRIVATE_KEY)) {
+                    byte[] privateKey = hexValue();
+                    device.setPrivateKey(privateKey);
+                    device.setPublicKey(privateKey != null ? WgKeyPool.publicKey(privateKey) : null);
+                } else if (peer == null && isKey(LISTEN_PORT)) {
+                    device.setListenPort((int) numberValue());
+                } else if (peer == null && isKey(FWMARK)) {
+                    device.setFwmark(numberValue());
+                } else if (peer != null && isKey(PRESHARED_KEY)) {
+                    byte[] presharedKey = hexValue();
+                    peer.setPresharedKey(presharedKey != null && !isZero(presharedKey) ? presharedKey : null);
+                } else if (peer != null && isKey(ENDPOINT)) {
+                    peer.setEndpoint(endpointValue());
+                } else if (peer != null && isKey(LAST_HANDSHAKE_TIME_SEC)) {
+                    lastHandshakeTime = numberValue();
+                } else if (peer != null && isKey(RX_BYTES)) {
+                    rxBytes = numberValue();
+                } else if (peer != null && isKey(TX_BYTES)) {
+                    txBytes = numberValue();
+                } else if (peer != null && isKey(PERSISTENT_KEEPALIVE_INTERVAL)) {
+                    peer.setPersistentKeepalive((int) numberValue());
+                } else if (peer != null && isKey(ALLOWED_IP)) {
+                    addAllowedIp(peer);
+                } else if (isKey(ERRNO)) {
+                    errno = (int) numberValue();
+                }
+            }
+            if (peer != null) {
+                peer.setStats(lastHandshakeTime, rxBytes, txBytes);
+            }
+            
+            if (errno != 0) {
+                log.info("UAPI get of " + name + " returned errno " + errno);
+                return null;
+            }
+            
+            return device;
+        }
+        
+        synchronized int set(WgDevice device) throws IOException {
+            pos = limit = 0;
+            outLen = 0;
+            
+            append(SET);
+            if (device.getPrivateKey() != null) {
+                appendHex(PRIVATE_KEY, device.getPrivateKey());
+            }
+            if (device.getListenPort() >= 0) {
+                appendNumber(LISTEN_PORT, device.getListenPort());
+            }
+            if (device.getFwmark() >= 0) {
+                appendNumber(FWMARK, device.getFwmark());
+            }
+            if (device.isReplacePeers()) {
+                appendValue(REPLACE_PEERS, TRUE);
+            }
+            
+            for (WgPeer peer : device.getPeers()) {
+                appendHex(PUBLIC_KEY, peer.getPublicKey());
+                if (peer.isRemove()) {
+                    appendValue(REMOVE, TRUE);
+                    continue;
+                }
+                if (peer.getPresharedKey() != null) {
+                    appendHex(PRESHARED_KEY, peer.getPresharedKey());
+                }
+                InetSocketAddress endpoint = peer.getEndpoint();
+                if (endpoint != null) {
+                    String addr = endpoint.getAddress().getHostAddress();
+                    appendValue(ENDPOINT, bytes((endpoint.getAddress() instanceof Inet6Address ? "[" + addr + "]" : addr) +
+                        ":" + endpoint.getPort()));
+                }
+                if (peer.getPersistentKeepalive() >= 0) {
+                    appendNumber(PERSISTENT_KEEPALIVE_INTERVAL, peer.getPersistentKeepalive());
+                }
+                if (peer.isReplaceAllowedIps()) {
+                    appendValue(REPLACE_ALLOWED_IPS, TRUE);
+                }
+                for (WgPeer.AllowedIp allowedIp : peer.getAllowedIps()) {
+                    InetAddress addr = allowedIp.getInetAddr();
+                    if (addr != null) {
+                        appendValue(ALLOWED_IP, bytes(addr.getHostAddress() + "/" + allowedIp.getCidr()));
+                    }
+                }
+            }
+            append((byte) '\n');
+            
+            socket.send(out, outLen);
+            
+            int errno = -1;
+            while (readLine()) {
+                if (lineEnd == lineStart) {
+                    break;
+                }
+                if (isKey(ERRNO)) {
+                    errno = (int) numberValue();
+                }
+            }
+            
+            return errno > 0 ? -errno : errno == 0 ? 0 : -EPROTO;
+        }
+        
+        void close() {
+            socket.close();
+        }
+        
+        /**
+         * Finds the next line in the receive buffer, receiving more bytes as needed. The line is
+         * in[lineStart, lineEnd), without its newline, and keyEnd is the index of its '=' or lineEnd.
+         * 
+         * @return true if a line was found
+         */
+        private boolean readLine() throws IOException {
+            while (true) {
+                for (int i = pos; i < limit; i++) {
+                    if (in[i] == '\n') {
+                        lineStart = pos;
+                        lineEnd = i;
+                        pos = i + 1;
+                        
+                        keyEnd = lineStart;
+                        while (keyEnd < lineEnd && in[keyEnd] != '=') {
+                            keyEnd++;
+                        }
+                        return true;
+                    }
+                }
+                
+                if (pos > 0) {
+                    System.arraycopy(in, pos, in, 0, limit - pos);
+                    limit -= pos;
+                    pos = 0;
+                }
+                if (limit == in.length) {
+                    throw new IOException("UAPI line too long");
+                }
+                
+                int len = socket.receive(in, limit, in.length - limit);
+                if (len == 0) {
+                    throw new IOException("UAPI connection closed");
+                }
+                limit += len;
+            }
+        }
+        
+        private boolean isKey(byte[] key) {
+            if (keyEnd - lineStart != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (in[lineStart + i] != key[i]) {
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+        
+        private long numberValue() {
+            long value = 0;
+            for (int i = keyEnd + 1; i < lineEnd; i++) {
+                int digit = in[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+            }
+            
+            return value;
+        }
+        
+        private byte[] hexValue() {
+            if (lineEnd - keyEnd - 1 != WgPeer.KEY_LENGTH * 2) {
+                return null;
+            }
+            
+            byte[] key = new byte[WgPeer.KEY_LENGTH];
+            for (int i = 0; i < key.length; i++) {
+                int hi = Character.digit(in[keyEnd + 1 + 2 * i], 16);
+                int lo = Character.digit(in[keyEnd + 2 + 2 * i], 16);
+                if (hi < 0 || lo < 0) {
+                    return null;
+                }
+                key[i] = (byte) ((hi << 4) | lo);
+            }
+            
+            return key;
+        }
+        
+        private InetSocketAddress endpointValue() {
+            String value = new String(in, keyEnd + 1, lineEnd - keyEnd - 1, StandardCharsets.US_ASCII);
+            int colon = value.lastIndexOf(':');
+            if (colon <= 0) {
+                return null;
+            }
+            
+            String host = value.substring(0, colon);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            try {
+                return new InetSocketAddress(parseInetAddr(host), Integer.parseInt(value.substring(colon + 1)));
+            } catch (UnknownHostException | IllegalArgumentException ex) {
+                return null;
+            }
+        }
+        
+        private void addAllowedIp(WgPeer peer) {
+            int slash = lineEnd;
+            while (slash > keyEnd && in[slash - 1] != '/') {
+                slash--;
+            }
+            if (slash <= keyEnd + 1) {
+                return;
+            }
+            
+            try {
+                InetAddress addr = parseInetAddr(new String(in, keyEnd + 1, slash - keyEnd - 2, StandardCharsets.US_ASCII));
+                int cidr = cidrValue(slash, addr instanceof Inet6Address ? 128 : 32);
+                if (cidr < 0) {
+                    log.info("Invalid UAPI allowed IP: " + new String(in, keyEnd + 1, lineEnd - keyEnd - 1, StandardCharsets.US_ASCII));
+                    return;
+                }
+                peer.addAllowedIp(addr, cidr);
+            } catch (UnknownHostException ex) {
+                log.info("Invalid UAPI allowed IP: " + ex.getMessage());
+            }
+        }
+        
+        private int cidrValue(int start, int maxCidr) {
+            if (start == lineEnd) {
+                return -1;
+            }
+            
+            int cidr = 0;
+            for (int i = start; i < lineEnd; i++) {
+                int digit = in[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                cidr = cidr * 10 + digit;
+                if (cidr > maxCidr) {
+                    return -1;
+                }
+            }
+            
+            return cidr;
+        }
+        
+        private static InetAddress parseInetAddr(String literal) throws UnknownHostException {
+            // Only address literals are accepted, so that a reply never causes a name lookup
+            IPAddress addr = new IPAddressString(literal).getAddress();
+            if (addr == null) {
+                throw new UnknownHostException(literal);
+            }
+            
+            return addr.isIPv6() ? addr.toIPv6().removeZone().toInetAddress() : addr.toInetAddress();
+        }
+        
+        private static boolean isZero(byte[] key) {
+            int bits = 0;
+            for (byte b : key) {
+                bits |= b;
+            }
+            
+            return bits == 0;
+        }
+        
+        private void append(byte b) {
+            ensure(1);
+            out[outLen++] = b;
+        }
+        
+        private void append(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, out, outLen, b.length);
+            outLen += b.length;
+        }
+        
+        private void appendValue(byte[] key, byte[] value) {
+            append(key);
+            append((byte) '=');
+            append(value);
+            append((byte) '\n');
+        }
+        
+        private void appendNumber(byte[] key, long value) {
+            appendValue(key, bytes(Long.toString(value)));
+        }
+        
+        private void appendHex(byte[] key, byte[] value) {
+            append(key);
+            append((byte) '=');
+            ensure(value.length * 2);
+            for (byte b : value) {
+                out[outLen++] = (byte) Character.forDigit((b >> 4) & 0xf, 16);
+                out[outLen++] = (byte) Character.forDigit(b & 0xf, 16);
+            }
+            append((byte) '\n');
+        }
+        
+        private void ensure(int len) {
+            if (outLen + len > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, outLen + len));
+            }
+        }
+    }
+}
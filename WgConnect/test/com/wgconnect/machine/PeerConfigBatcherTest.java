@@ -0,0 +1,240 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgconnect.machine;
+
+import com.wgtools.Wg;
+import com.wgtools.WgPeer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * PeerConfigBatcherTest
+ * 
+ * Checks that the queued peers of an interface are applied together in one device update, that a
+ * peer queued again replaces its earlier specification, that the callers get the result of the
+ * batch without blocking while it is pending, and that a failed batch neither fails the peers that
+ * apply on their own nor stops the later batches.
+ * 
+ * @author WgConnect version: wgconnect@proton.me
+ */
+public class PeerConfigBatcherTest {
+    
+    private static final long LONG_INTERVAL = 60000;
+    private static final long TIMEOUT = 5000;
+    
+    private RecordingBatcher batcher;
+    
+    private static class Update {
+        final String ifName;
+        final List<WgPeer> peers;
+        
+        Update(String ifName, List<WgPeer> peers) {
+            this.ifName = ifName;
+            this.peers = peers;
+        }
+    }
+    
+    private static class RecordingBatcher extends PeerConfigBatcher {
+        
+        final List<Update> updates = Collections.synchronizedList(new ArrayList<>());
+        volatile int exitCode = Wg.getCommandSuccessCode();
+        volatile WgPeer badPeer;
+        volatile RuntimeException error;
+        
+        RecordingBatcher(long interval, int batchSize) {
+            super(interval, batchSize);
+        }
+        
+        @Override
+        int applyPeers(String ifName, List<WgPeer> peers) {
+            updates.add(new Update(ifName, new ArrayList<>(peers)));
+            if (error != null) {
+                throw error;
+            }
+            if (badPeer != null && peers.contains(badPeer)) {
+                return Wg.getCommandFailureCode();
+            }
+            return exitCode;
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+    }
+    
+    @Test
+    public void appliesFullBatchInOneUpdate() throws Exception {
+        batcher = new RecordingBatcher(LONG_INTERVAL, 3);
+        
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            results.add(batcher.queue("wgc4-0", peer(i)));
+        }
+        
+        for (CompletableFuture<Integer> result : results) {
+            assertEquals(Wg.getCommandSuccessCode(), (int) result.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(1, batcher.updates.size());
+        assertEquals("wgc4-0", batcher.updates.get(0).ifName);
+        assertEquals(3, batcher.updates.get(0).peers.size());
+    }
+    
+    @Test
+    public void replacesRequeuedPeer() throws Exception {
+        batcher = new RecordingBatcher(LONG_INTERVAL, 2);
+        
+        WgPeer first = peer(1);
+        WgPeer second = peer(1);
+        CompletableFuture<Integer> firstResult = batcher.queue("wgc4-0", first);
+        CompletableFuture<Integer> secondResult = batcher.queue("wgc4-0", second);
+        assertFalse(firstResult.isDone());
+        
+        CompletableFuture<Integer> otherResult = batcher.queue("wgc4-0", peer(2));
+        otherResult.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        
+        assertTrue(firstResult.isDone());
+        assertTrue(secondResult.isDone());
+        assertEquals(1, batcher.updates.size());
+        assertEquals(2, batcher.updates.get(0).peers.size());
+        assertSame(second, batcher.updates.get(0).peers.get(0));
+    }
+    
+    @Test
+    public void keepsInterfacesApart() throws Exception {
+        batcher = new RecordingBatcher(LONG_INTERVAL, 2);
+        
+        CompletableFuture<Integer> v4Result = batcher.queue("wgc4-0", peer(1));
+        CompletableFuture<Integer> v6Result = batcher.queue("wgc6-0", peer(2));
+        assertFalse(v4Result.isDone());
+        assertFalse(v6Result.isDone());
+        
+        batcher.shutdown();
+        
+        assertTrue(v4Result.isDone());
+        assertTrue(v6Result.isDone());
+        assertEquals(2, batcher.updates.size());
+    }
+    
+    @Test
+    public void flushesOnInterval() throws Exception {
+        batcher = new RecordingBatcher(50, 100);
+        
+        CompletableFuture<Integer> first = batcher.queue("wgc4-0", peer(1));
+        CompletableFuture<Integer> second = batcher.queue("wgc4-0", peer(2));
+        
+        first.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        second.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(1, batcher.updates.size());
+        assertEquals(2, batcher.updates.get(0).peers.size());
+    }
+    
+    @Test
+    public void reportsFailureToEveryPeer() throws Exception {
+        batcher = new RecordingBatcher(LONG_INTERVAL, 2);
+        batcher.exitCode = Wg.getCommandFailureCode();
+        
+        CompletableFuture<Integer> first = batcher.queue("wgc4-0", peer(1));
+        CompletableFuture<Integer> second = batcher.queue("wgc4-0", peer(2));
+        
+        assertEquals(Wg.getCommandFailureCode(), (int) first.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Wg.getCommandFailureCode(), (int) second.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void appliesPeersOfFailedBatchOneAtATime() throws Exception {
+        batcher = new RecordingBatcher(LONG_INTERVAL, 3);
+        batcher.badPeer = peer(2);
+        
+        CompletableFuture<Integer> first = batcher.queue("wgc4-0", peer(1));
+        CompletableFuture<Integer> second = batcher.queue("wgc4-0", batcher.badPeer);
+        CompletableFuture<Integer> third = batcher.queue("wgc4-0", peer(3));
+        
+        assertEquals(Wg.getCommandSuccessCode(), (int) first.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Wg.getCommandFailureCode(), (int) second.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Wg.getCommandSuccessCode(), (int) third.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(4, batcher.updates.size());
+        assertEquals(3, batcher.updates.get(0).peers.size());
+    }
+    
+    @Test
+    public void survivesFailingFlush() throws Exception {
+        batcher = new RecordingBatcher(50, 100);
+        batcher.error = new IllegalStateException("device gone");
+        
+        CompletableFuture<Integer> failed = batcher.queue("wgc4-0", peer(1));
+        try {
+            failed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("The flush error was not reported");
+        } catch (ExecutionException ex) {
+            assertSame(batcher.error, ex.getCause());
+        }
+        
+        batcher.error = null;
+        CompletableFuture<Integer> next = batcher.queue("wgc4-0", peer(2));
+        assertEquals(Wg.getCommandSuccessCode(), (int) next.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void queueDoesNotBlockWhileHoldingMonitor() throws Exception {
+        batcher = new RecordingBatcher(LONG_INTERVAL, 100);
+        
+        Object monitor = new Object();
+        CompletableFuture<Integer> result;
+        synchronized (monitor) {
+            result = batcher.queue("wgc4-0", peer(1));
+        }
+        assertFalse(result.isDone());
+        assertTrue(batcher.updates.isEmpty());
+        
+        batcher.shutdown();
+        assertEquals(Wg.getCommandSuccessCode(), (int) result.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void rejectsPeerWithoutKey() throws Exception {
+        batcher = new RecordingBatcher(LONG_INTERVAL, 1);
+        
+        assertEquals(Wg.getCommandFailureCode(), (int) batcher.queue("wgc4-0", new WgPeer()).get());
+        assertEquals(Wg.getCommandFailureCode(), (int) batcher.queue(null, peer(1)).get());
+        assertTrue(batcher.updates.isEmpty());
+    }
+    
+    private static WgPeer peer(int id) {
+        byte[] publicKey = new byte[32];
+        publicKey[0] = (byte) id;
+        
+        return new WgPeer(publicKey);
+    }
+}
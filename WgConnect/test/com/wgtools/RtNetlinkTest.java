@@ -0,0 +1,151 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * RtNetlinkTest
+ * 
+ * Checks the rtnetlink codec against an RTM_NEWLINK exchange recorded from a kernel: the encoded
+ * requests must match the recorded bytes, and the recorded replies must decode to the acks, errors
+ * and link that the kernel sent.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class RtNetlinkTest {
+    
+    private static final String FIXTURE = "rtnetlink-newlink.txt";
+    private static final String LINK_NAME = "wgc4-rec0";
+    private static final String LINK_KIND = "bridge";
+    private static final int LINK_INDEX = 14;
+    
+    private static final Map<String, byte[]> records = new HashMap<>();
+    
+    @BeforeClass
+    public static void loadFixture() throws IOException {
+        // The recorded bytes are in the little endian host order of the recording kernel
+        assumeTrue(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+        
+        InputStream in = RtNetlinkTest.class.getResourceAsStream(FIXTURE);
+        assertNotNull("Missing fixture " + FIXTURE, in);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] record = line.split(" ");
+                records.put(record[0], fromHex(record[1]));
+            }
+        }
+    }
+    
+    @Test
+    public void encodesNewLink() {
+        RtNetlink request = new RtNetlink(1000);
+        request.newLink(LINK_NAME, LINK_KIND, true);
+        
+        assertArrayEquals(records.get("newlink.request"), Arrays.copyOf(request.array(), request.length()));
+        assertEquals(Arrays.asList(1000), request.getSeqs());
+    }
+    
+    @Test
+    public void encodesDelLink() {
+        RtNetlink request = new RtNetlink(1003);
+        request.delLink(LINK_NAME);
+        
+        assertArrayEquals(records.get("dellink.request"), Arrays.copyOf(request.array(), request.length()));
+    }
+    
+    @Test
+    public void decodesAck() {
+        RtNetlink.Message ack = parseOne("newlink.ack");
+        
+        assertEquals(RtNetlink.NLMSG_ERROR, ack.type);
+        assertEquals(1000, ack.seq);
+        assertEquals(0, ack.getError());
+        
+        ack = parseOne("dellink.ack");
+        assertEquals(1003, ack.seq);
+        assertEquals(0, ack.getError());
+    }
+    
+    @Test
+    public void decodesError() {
+        RtNetlink.Message error = parseOne("newlink.eexist");
+        
+        assertEquals(RtNetlink.NLMSG_ERROR, error.type);
+        assertEquals(1001, error.seq);
+        assertEquals(-17, error.getError());
+        assertEquals("File exists", RtNetlink.strerror(error.getError()));
+    }
+    
+    @Test
+    public void decodesLink() {
+        RtNetlink.Message link = parseOne("getlink.newlink");
+        
+        assertEquals(RtNetlink.RTM_NEWLINK, link.type);
+        assertEquals(RtNetlink.NLM_F_MULTI, link.flags);
+        assertEquals(LINK_INDEX, RtNetlink.getLinkIndex(link));
+        assertEquals(LINK_NAME, RtNetlink.getLinkName(link));
+        assertEquals(-1, RtNetlink.getAddrIfIndex(link));
+    }
+    
+    @Test
+    public void mapsErrors() {
+        assertEquals("Operation not permitted", RtNetlink.strerror(-1));
+        assertEquals("No such device", RtNetlink.strerror(-19));
+        assertEquals("Operation not supported", RtNetlink.strerror(-95));
+        assertEquals("Unknown error 4095", RtNetlink.strerror(-4095));
+    }
+    
+    private static RtNetlink.Message parseOne(String name) {
+        byte[] bytes = records.get(name);
+        List<RtNetlink.Message> messages = RtNetlink.parse(bytes, bytes.length);
+        assertEquals(1, messages.size());
+        
+        return messages.get(0);
+    }
+    
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        
+        return bytes;
+    }
+}
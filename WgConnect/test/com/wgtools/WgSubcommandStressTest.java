@@ -0,0 +1,114 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * WgSubcommandStressTest
+ * 
+ * Runs the native subcommands from many threads at once. Each call has its own output and error
+ * streams on the thread that runs it, so a thread must only ever see the output of its own calls.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class WgSubcommandStressTest {
+    
+    private static final int THREADS = 16;
+    private static final int CALLS_PER_THREAD = 500;
+    
+    private ExecutorService executor;
+    
+    private static class Subcommand extends WgSubcommand {
+        
+        Object[] call(String... args) {
+            return wgCommand(args);
+        }
+    }
+    
+    @Before
+    public void setUp() {
+        assumeTrue("The native library is not available", Wg.loadNativeLibraryFile());
+        
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+    
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testConcurrentSubcommandsKeepTheirOwnStreams() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            tasks.add(() -> {
+                Subcommand subcommand = new Subcommand();
+                SecureRandom random = new SecureRandom();
+                start.await();
+                
+                for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                    byte[] privateKey = WgKeyPool.generatePrivateKey(random);
+                    String expected = Base64.getEncoder().encodeToString(WgKeyPool.publicKey(privateKey));
+                    
+                    Object[] results = subcommand.call(PubKey.COMMAND, Base64.getEncoder().encodeToString(privateKey));
+                    assertEquals(0, ((Integer) results[0]).intValue());
+                    assertEquals(expected, ((String) results[1]).trim());
+                    assertEquals("", results[2]);
+                    
+                    // An error must only reach the error stream of the failing call
+                    String invalid = "invalid-" + Thread.currentThread().getId() + "-" + i;
+                    results = subcommand.call(invalid);
+                    assertEquals("", results[1]);
+                    assertTrue((String) results[2], ((String) results[2]).contains("`" + invalid + "'"));
+                }
+                
+                return CALLS_PER_THREAD;
+            });
+        }
+        
+        List<Future<Integer>> futures = new ArrayList<>();
+        tasks.forEach(task -> futures.add(executor.submit(task)));
+        start.countDown();
+        
+        for (Future<Integer> future : futures) {
+            assertEquals(CALLS_PER_THREAD, future.get(2, TimeUnit.MINUTES).intValue());
+        }
+    }
+}
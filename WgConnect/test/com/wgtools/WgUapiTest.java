@@ -0,0 +1,292 @@
+/*
+ * Copyright 2024 wgconnect@proton.me. All Rights Reserved.
+ *
+ * WgConnect is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WgConnect is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WgConnect.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.wgtools;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * WgUapiTest
+ * 
+ * Runs the UAPI client against a stand-in userspace implementation that serves a device on a Unix
+ * socket: the replies must be parsed into the device and its peers, the set requests must be
+ * written in the UAPI text format, and a connection closed by the server must be reopened.
+ * 
+ * @author: wgconnect@proton.me
+ */
+public class WgUapiTest {
+    
+    private static final String DEVICE = "wgt0";
+    
+    private static final String PRIVATE_KEY = repeat("01", 32);
+    private static final String PEER_KEY = repeat("02", 32);
+    private static final String OTHER_PEER_KEY = repeat("03", 32);
+    
+    private static final String GET_REPLY =
+        "private_key=" + PRIVATE_KEY + "\n" +
+        "listen_port=51820\n" +
+        "fwmark=0\n" +
+        "public_key=" + PEER_KEY + "\n" +
+        "preshared_key=" + repeat("00", 32) + "\n" +
+        "endpoint=[fd00::2]:51821\n" +
+        "last_handshake_time_sec=1700000000\n" +
+        "last_handshake_time_nsec=0\n" +
+        "rx_bytes=1024\n" +
+        "tx_bytes=2048\n" +
+        "persistent_keepalive_interval=25\n" +
+        "allowed_ip=10.0.0.2/32\n" +
+        "allowed_ip=10.0.0.3/33\n" +
+        "allowed_ip=10.0.0.4/\n" +
+        "allowed_ip=10.0.0.5/3x\n" +
+        "allowed_ip=10.0.0.6/-1\n" +
+        "allowed_ip=fd00::2/128\n" +
+        "allowed_ip=fd00::3/129\n" +
+        "public_key=" + OTHER_PEER_KEY + "\n" +
+        "endpoint=192.0.2.1:51822\n" +
+        "allowed_ip=10.0.1.0/24\n" +
+        "protocol_version=1\n" +
+        "errno=0\n" +
+        "\n";
+    
+    private Path directory;
+    private StandInServer server;
+    
+    /**
+     * A stand-in UAPI server, which answers the get requests with a fixed reply, records the set
+     * requests and can close a connection after its next reply.
+     */
+    private static class StandInServer extends Thread {
+        
+        final ServerSocketChannel serverChannel;
+        final List<String> setRequests = Collections.synchronizedList(new ArrayList<>());
+        volatile String setReply = "errno=0\n\n";
+        volatile boolean closeAfterReply;
+        volatile int connections;
+        
+        StandInServer(ServerSocketChannel serverChannel) {
+            super("StandInUapiServer");
+            this.serverChannel = serverChannel;
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            while (serverChannel.isOpen()) {
+                try (SocketChannel channel = serverChannel.accept()) {
+                    connections++;
+                    serve(channel);
+                } catch (IOException ex) {
+                    // The server channel is closed, or the client went away
+                }
+            }
+        }
+        
+        private void serve(SocketChannel channel) throws IOException {
+            StringBuilder request = new StringBuilder();
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            while (channel.read(buf) > 0) {
+                request.append(new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII));
+                buf.clear();
+                
+                int end;
+                while ((end = request.indexOf("\n\n")) >= 0) {
+                    String command = request.substring(0, end + 2);
+                    request.delete(0, end + 2);
+                    
+                    String reply;
+                    if (command.startsWith("get=1\n")) {
+                        reply = GET_REPLY;
+                    } else {
+                        setRequests.add(command);
+                        reply = setReply;
+                    }
+                    channel.write(ByteBuffer.wrap(reply.getBytes(StandardCharsets.US_ASCII)));
+                    
+                    if (closeAfterReply) {
+                        closeAfterReply = false;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("uapi");
+        ServerSocketChannel serverChannel = openServer(directory.resolve(DEVICE + WgUapi.SOCKET_SUFFIX));
+        
+        server = new StandInServer(serverChannel);
+        server.start();
+        WgUapi.setSocketDirectory(directory.toString());
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        WgUapi.setSocketDirectory(WgUapi.DEFAULT_SOCKET_DIRECTORY);
+        if (server != null) {
+            server.serverChannel.close();
+            server.join(1000);
+        }
+        if (directory != null) {
+            try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.delete(directory);
+        }
+    }
+    
+    @Test
+    public void parsesDevice() {
+        assertTrue(WgUapi.hasDevice(DEVICE));
+        
+        WgDevice device = WgUapi.getDevice(DEVICE);
+        assertNotNull(device);
+        
+        assertArrayEquals(fromHex(PRIVATE_KEY), device.getPrivateKey());
+        assertArrayEquals(WgKeyPool.publicKey(fromHex(PRIVATE_KEY)), device.getPublicKey());
+        assertEquals(51820, device.getListenPort());
+        assertEquals(2, device.getPeers().size());
+        
+        WgPeer peer = device.getPeer(fromHex(PEER_KEY));
+        assertNotNull(peer);
+        assertEquals(null, peer.getPresharedKey());
+        assertEquals("fd00:0:0:0:0:0:0:2", peer.getEndpoint().getAddress().getHostAddress());
+        assertEquals(51821, peer.getEndpoint().getPort());
+        assertEquals(1700000000, peer.getLastHandshakeTime());
+        assertEquals(1024, peer.getRxBytes());
+        assertEquals(2048, peer.getTxBytes());
+        assertEquals(25, peer.getPersistentKeepalive());
+        
+        WgPeer otherPeer = device.getPeer(fromHex(OTHER_PEER_KEY));
+        assertNotNull(otherPeer);
+        assertEquals(51822, otherPeer.getEndpoint().getPort());
+        assertEquals(1, otherPeer.getAllowedIps().size());
+        assertEquals(24, otherPeer.getAllowedIps().get(0).getCidr());
+    }
+    
+    @Test
+    public void rejectsInvalidCidr() throws Exception {
+        WgPeer peer = WgUapi.getDevice(DEVICE).getPeer(fromHex(PEER_KEY));
+        
+        List<String> allowedIps = new ArrayList<>();
+        peer.getAllowedIps().forEach(a -> allowedIps.add(a.getInetAddr().getHostAddress() + "/" + a.getCidr()));
+        assertEquals(2, allowedIps.size());
+        assertEquals("10.0.0.2/32", allowedIps.get(0));
+        assertEquals(InetAddress.getByName("fd00::2").getHostAddress() + "/128", allowedIps.get(1));
+    }
+    
+    @Test
+    public void writesSetRequest() throws Exception {
+        WgDevice device = new WgDevice(DEVICE);
+        device.setListenPort(51830);
+        WgPeer peer = WgPeer.of(WgPeer.encodeKey(fromHex(PEER_KEY)), "10.0.0.2", 32, "192.0.2.1", 51822, 25);
+        device.addPeer(peer);
+        WgPeer removed = new WgPeer(fromHex(OTHER_PEER_KEY));
+        removed.setRemove(true);
+        device.addPeer(removed);
+        
+        assertEquals(0, WgUapi.setDevice(device));
+        
+        assertEquals(1, server.setRequests.size());
+        String request = server.setRequests.get(0);
+        assertTrue(request, request.startsWith("set=1\nlisten_port=51830\npublic_key=" + PEER_KEY + "\n"));
+        assertTrue(request, request.contains("endpoint=192.0.2.1:51822\n"));
+        assertTrue(request, request.contains("persistent_keepalive_interval=25\n"));
+        assertTrue(request, request.contains("allowed_ip=10.0.0.2/32\n"));
+        assertTrue(request, request.endsWith("public_key=" + OTHER_PEER_KEY + "\nremove=true\n\n"));
+    }
+    
+    @Test
+    public void returnsSetErrno() {
+        server.setReply = "errno=22\n\n";
+        
+        assertEquals(-22, WgUapi.setDevice(new WgDevice(DEVICE)));
+    }
+    
+    @Test
+    public void reusesAndReopensConnection() {
+        assertNotNull(WgUapi.getDevice(DEVICE));
+        assertNotNull(WgUapi.getDevice(DEVICE));
+        assertEquals(1, server.connections);
+        
+        server.closeAfterReply = true;
+        assertNotNull(WgUapi.getDevice(DEVICE));
+        assertNotNull(WgUapi.getDevice(DEVICE));
+        assertEquals(2, server.connections);
+    }
+    
+    @Test
+    public void cachesDeviceNames() throws Exception {
+        assertTrue(WgUapi.hasDevice(DEVICE));
+        assertFalse(WgUapi.hasDevice("wgt1"));
+        
+        // A socket that appears between two listings is only seen after an invalidation
+        Files.createFile(directory.resolve("wgt1" + WgUapi.SOCKET_SUFFIX));
+        assertFalse(WgUapi.hasDevice("wgt1"));
+        
+        WgUapi.invalidate();
+        assertTrue(WgUapi.hasDevice("wgt1"));
+    }
+    
+    private static ServerSocketChannel openServer(Path path) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(path));
+        
+        return channel;
+    }
+    
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        
+        return sb.toString();
+    }
+    
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        
+        return bytes;
+    }
+}
@@ -0,0 +1,406 @@
+// SPDX-License-Identifier: GPL-2.0
+/*
+ * Copyright (C) 2024 wgconnect@proton.me.
+ *
+ * Structured device access for the Java com.wgtools.WgNative class. The devices and peers are
+ * converted directly between struct wgdevice and the WgDevice and WgPeer objects, with no
+ * subcommand text in between.
+ */
+
+#include <errno.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <netinet/in.h>
+#include <jni.h>
+
+#include "com_wgtools_WgNative.h"
+#include "containers.h"
+#include "ipc.h"
+
+#define DEVICE_CLASS "com/wgtools/WgDevice"
+#define PEER_CLASS "com/wgtools/WgPeer"
+#define ALLOWED_IP_CLASS "com/wgtools/WgPeer$AllowedIp"
+
+static jbyteArray new_byte_array(JNIEnv *env, const uint8_t *buf, jsize len) {
+    jbyteArray array = (*env)->NewByteArray(env, len);
+    if (array != NULL)
+        (*env)->SetByteArrayRegion(env, array, 0, len, (const jbyte *)buf);
+    return array;
+}
+
+static bool get_byte_array(JNIEnv *env, jbyteArray array, uint8_t *buf, jsize len) {
+    if (array == NULL || (*env)->GetArrayLength(env, array) != len)
+        return false;
+    (*env)->GetByteArrayRegion(env, array, 0, len, (jbyte *)buf);
+    return true;
+}
+
+static jobject new_allowed_ip(JNIEnv *env, jclass allowedIpClass, jmethodID allowedIpInit, const struct wgallowedip *allowedip) {
+    jbyteArray addr;
+
+    if (allowedip->family == AF_INET)
+        addr = new_byte_array(env, (const uint8_t *)&allowedip->ip4, sizeof(allowedip->ip4));
+    else
+        addr = new_byte_array(env, (const uint8_t *)&allowedip->ip6, sizeof(allowedip->ip6));
+    if (addr == NULL)
+        return NULL;
+
+    jobject allowedIp = (*env)->NewObject(env, allowedIpClass, allowedIpInit, addr, (jint)allowedip->cidr);
+    (*env)->DeleteLocalRef(env, addr);
+    return allowedIp;
+}
+
+static jobject new_peer(JNIEnv *env, jclass peerClass, jmethodID peerInit, jclass allowedIpClass, jmethodID allowedIpInit,
+        const struct wgpeer *peer) {
+    // The arrays of a peer are local refs of their own frame, so a device with many peers
+    // does not exhaust the local refs of the native call
+    if ((*env)->PushLocalFrame(env, 8) < 0)
+        return NULL;
+
+    jbyteArray publicKey = new_byte_array(env, peer->public_key, WG_KEY_LEN);
+    jbyteArray presharedKey = NULL;
+    jbyteArray endpointAddr = NULL;
+    jint endpointPort = 0, endpointScopeId = 0;
+    const struct wgallowedip *allowedip;
+    jsize allowedIpCount = 0, i = 0;
+
+    if (peer->flags & WGPEER_HAS_PRESHARED_KEY)
+        presharedKey = new_byte_array(env, peer->preshared_key, WG_KEY_LEN);
+
+    if (peer->endpoint.addr.sa_family == AF_INET) {
+        endpointAddr = new_byte_array(env, (const uint8_t *)&peer->endpoint.addr4.sin_addr, sizeof(struct in_addr));
+        endpointPort = ntohs(peer->endpoint.addr4.sin_port);
+    } else if (peer->endpoint.addr.sa_family == AF_INET6) {
+        endpointAddr = new_byte_array(env, (const uint8_t *)&peer->endpoint.addr6.sin6_addr, sizeof(struct in6_addr));
+        endpointPort = ntohs(peer->endpoint.addr6.sin6_port);
+        endpointScopeId = (jint)peer->endpoint.addr6.sin6_scope_id;
+    }
+
+    for_each_wgallowedip(peer, allowedip)
+        ++allowedIpCount;
+
+    jobjectArray allowedIps = (*env)->NewObjectArray(env, allowedIpCount, allowedIpClass, NULL);
+    if (publicKey == NULL || allowedIps == NULL)
+        return (*env)->PopLocalFrame(env, NULL);
+
+    for_each_wgallowedip(peer, allowedip) {
+        jobject allowedIp = new_allowed_ip(env, allowedIpClass, allowedIpInit, allowedip);
+        if (allowedIp == NULL)
+            return (*env)->PopLocalFrame(env, NULL);
+        (*env)->SetObjectArrayElement(env, allowedIps, i++, allowedIp);
+        (*env)->DeleteLocalRef(env, allowedIp);
+    }
+
+    jobject peerObj = (*env)->NewObject(env, peerClass, peerInit, publicKey, presharedKey, endpointAddr, endpointPort,
+            endpointScopeId, (jlong)peer->last_handshake_time.tv_sec, (jlong)peer->rx_bytes, (jlong)peer->tx_bytes,
+            (jint)peer->persistent_keepalive_interval, allowedIps);
+
+    // Only the peer object survives the frame, as a local ref of the caller
+    return (*env)->PopLocalFrame(env, peerObj);
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_wgtools_WgNative_listDevices
+  (JNIEnv *env, __attribute__((unused))jclass clazz) {
+    char *interfaces = ipc_list_devices(), *interface;
+    jsize count = 0, i = 0;
+
+    if (interfaces == NULL)
+        return NULL;
+
+    for (interface = interfaces; interface[0]; interface += strlen(interface) + 1)
+        ++count;
+
+    jclass stringClass = (*env)->FindClass(env, "java/lang/String");
+    jobjectArray names = stringClass != NULL ? (*env)->NewObjectArray(env, count, stringClass, NULL) : NULL;
+    if (names != NULL) {
+        for (interface = interfaces; interface[0]; interface += strlen(interface) + 1) {
+            jstring name = (*env)->NewStringUTF(env, interface);
+            if (name == NULL) {
+                names = NULL;
+                break;
+            }
+            (*env)->SetObjectArrayElement(env, names, i++, name);
+            (*env)->DeleteLocalRef(env, name);
+        }
+    }
+
+    free(interfaces);
+    return names;
+}
+
+JNIEXPORT jobject JNICALL Java_com_wgtools_WgNative_getDevice
+  (JNIEnv *env, __attribute__((unused))jclass clazz, jstring name) {
+    struct wgdevice *device = NULL;
+    struct wgpeer *peer;
+    jobject result = NULL;
+    jsize peerCount = 0, i = 0;
+
+    if (name == NULL)
+        return NULL;
+
+    const char *interface = (*env)->GetStringUTFChars(env, name, NULL);
+    if (interface == NULL)
+        return NULL;
+    int ret = ipc_get_device(&device, interface);
+    (*env)->ReleaseStringUTFChars(env, name, interface);
+    if (ret < 0)
+        return NULL;
+
+    jclass deviceClass = (*env)->FindClass(env, DEVICE_CLASS);
+    jclass peerClass = (*env)->FindClass(env, PEER_CLASS);
+    jclass allowedIpClass = (*env)->FindClass(env, ALLOWED_IP_CLASS);
+    if (deviceClass == NULL || peerClass == NULL || allowedIpClass == NULL)
+        goto out;
+
+    jmethodID deviceInit = (*env)->GetMethodID(env, deviceClass, "<init>", "(Ljava/lang/String;[B[BIJ[L" PEER_CLASS ";)V");
+    jmethodID peerInit = (*env)->GetMethodID(env, peerClass, "<init>", "([B[B[BIIJJJI[L" ALLOWED_IP_CLASS ";)V");
+    jmethodID allowedIpInit = (*env)->GetMethodID(env, allowedIpClass, "<init>", "([BI)V");
+    if (deviceInit == NULL || peerInit == NULL || allowedIpInit == NULL)
+        goto out;
+
+    for_each_wgpeer(device, peer)
+        ++peerCount;
+
+    jobjectArray peers = (*env)->NewObjectArray(env, peerCount, peerClass, NULL);
+    if (peers == NULL)
+        goto out;
+
+    for_each_wgpeer(device, peer) {
+        jobject peerObj = new_peer(env, peerClass, peerInit, allowedIpClass, allowedIpInit, peer);
+        if (peerObj == NULL)
+            goto out;
+        (*env)->SetObjectArrayElement(env, peers, i++, peerObj);
+        (*env)->DeleteLocalRef(env, peerObj);
+    }
+
+    jstring deviceName = (*env)->NewStringUTF(env, device->name);
+    jbyteArray publicKey = (device->flags & WGDEVICE_HAS_PUBLIC_KEY) ? new_byte_array(env, device->public_key, WG_KEY_LEN) : NULL;
+    jbyteArray privateKey = (device->flags & WGDEVICE_HAS_PRIVATE_KEY) ? new_byte_array(env, device->private_key, WG_KEY_LEN) : NULL;
+    if (deviceName == NULL)
+        goto out;
+
+    result = (*env)->NewObject(env, deviceClass, deviceInit, deviceName, publicKey, privateKey,
+            (jint)device->listen_port, (jlong)device->fwmark, peers);
+
+out:
+    free_wgdevice(device);
+    return result;
+}
+
+static bool set_allowed_ips(JNIEnv *env, jobject peerObj, struct wgpeer *peer) {
+    jclass peerClass = (*env)->GetObjectClass(env, peerObj);
+    jclass allowedIpClass = (*env)->FindClass(env, ALLOWED_IP_CLASS);
+    jmethodID getAllowedIpArray = (*env)->GetMethodID(env, peerClass, "getAllowedIpArray", "()[L" ALLOWED_IP_CLASS ";");
+    jfieldID addrField = allowedIpClass != NULL ? (*env)->GetFieldID(env, allowedIpClass, "addr", "[B") : NULL;
+    jfieldID cidrField = allowedIpClass != NULL ? (*env)->GetFieldID(env, allowedIpClass, "cidr", "I") : NULL;
+    if (getAllowedIpArray == NULL || addrField == NULL || cidrField == NULL)
+        return false;
+
+    jobjectArray allowedIps = (*env)->CallObjectMethod(env, peerObj, getAllowedIpArray);
+    if (allowedIps == NULL)
+        return false;
+
+    jsize count = (*env)->GetArrayLength(env, allowedIps);
+    for (jsize i = 0; i < count; i++) {
+        jobject allowedIpObj = (*env)->GetObjectArrayElement(env, allowedIps, i);
+        jbyteArray addr = (*env)->GetObjectField(env, allowedIpObj, addrField);
+        jint cidr = (*env)->GetIntField(env, allowedIpObj, cidrField);
+        struct wgallowedip *allowedip = calloc(1, sizeof(*allowedip));
+        if (allowedip == NULL)
+            return false;
+
+        if (get_byte_array(env, addr, (uint8_t *)&allowedip->ip4, sizeof(allowedip->ip4)) && cidr >= 0 && cidr <= 32) {
+            allowedip->family = AF_INET;
+        } else if (get_byte_array(env, addr, (uint8_t *)&allowedip->ip6, sizeof(allowedip->ip6)) && cidr >= 0 && cidr <= 128) {
+            allowedip->family = AF_INET6;
+        } else {
+            free(allowedip);
+            return false;
+        }
+        allowedip->cidr = (uint8_t)cidr;
+
+        if (peer->first_allowedip == NULL)
+            peer->first_allowedip = allowedip;
+        else
+            peer->last_allowedip->next_allowedip = allowedip;
+        peer->last_allowedip = allowedip;
+
+        (*env)->DeleteLocalRef(env, addr);
+        (*env)->DeleteLocalRef(env, allowedIpObj);
+    }
+
+    return true;
+}
+
+static struct wgpeer *to_wgpeer(JNIEnv *env, jobject peerObj) {
+    jclass peerClass = (*env)->GetObjectClass(env, peerObj);
+    jfieldID publicKeyField = (*env)->GetFieldID(env, peerClass, "publicKey", "[B");
+    jfieldID presharedKeyField = (*env)->GetFieldID(env, peerClass, "presharedKey", "[B");
+    jfieldID endpointAddrField = (*env)->GetFieldID(env, peerClass, "endpointAddr", "[B");
+    jfieldID endpointPortField = (*env)->GetFieldID(env, peerClass, "endpointPort", "I");
+    jfieldID endpointScopeIdField = (*env)->GetFieldID(env, peerClass, "endpointScopeId", "I");
+    jfieldID keepaliveField = (*env)->GetFieldID(env, peerClass, "persistentKeepalive", "I");
+    jfieldID removeField = (*env)->GetFieldID(env, peerClass, "remove", "Z");
+    jfieldID replaceAllowedIpsField = (*env)->GetFieldID(env, peerClass, "replaceAllowedIps", "Z");
+    if (publicKeyField == NULL || presharedKeyField == NULL || endpointAddrField == NULL || endpointPortField == NULL ||
+            endpointScopeIdField == NULL || keepaliveField == NULL || removeField == NULL || replaceAllowedIpsField == NULL)
+        return NULL;
+
+    struct wgpeer *peer = calloc(1, sizeof(*peer));
+    if (peer == NULL)
+        return NULL;
+
+    if (!get_byte_array(env, (*env)->GetObjectField(env, peerObj, publicKeyField), peer->public_key, WG_KEY_LEN))
+        goto err;
+    peer->flags |= WGPEER_HAS_PUBLIC_KEY;
+
+    jbyteArray presharedKey = (*env)->GetObjectField(env, peerObj, presharedKeyField);
+    if (presharedKey != NULL) {
+        if (!get_byte_array(env, presharedKey, peer->preshared_key, WG_KEY_LEN))
+            goto err;
+        peer->flags |= WGPEER_HAS_PRESHARED_KEY;
+    }
+
+    jbyteArray endpointAddr = (*env)->GetObjectField(env, peerObj, endpointAddrField);
+    jint endpointPort = (*env)->GetIntField(env, peerObj, endpointPortField);
+    if (endpointAddr != NULL) {
+        if (endpointPort < 0 || endpointPort > 65535)
+            goto err;
+        if (get_byte_array(env, endpointAddr, (uint8_t *)&peer->endpoint.addr4.sin_addr, sizeof(struct in_addr))) {
+            peer->endpoint.addr4.sin_family = AF_INET;
+            peer->endpoint.addr4.sin_port = htons((uint16_t)endpointPort);
+        } else if (get_byte_array(env, endpointAddr, (uint8_t *)&peer->endpoint.addr6.sin6_addr, sizeof(struct in6_addr))) {
+            peer->endpoint.addr6.sin6_family = AF_INET6;
+            peer->endpoint.addr6.sin6_port = htons((uint16_t)endpointPort);
+            peer->endpoint.addr6.sin6_scope_id = (uint32_t)(*env)->GetIntField(env, peerObj, endpointScopeIdField);
+        } else {
+            goto err;
+        }
+    }
+
+    jint keepalive = (*env)->GetIntField(env, peerObj, keepaliveField);
+    if (keepalive >= 0) {
+        if (keepalive > 65535)
+            goto err;
+        peer->persistent_keepalive_interval = (uint16_t)keepalive;
+        peer->flags |= WGPEER_HAS_PERSISTENT_KEEPALIVE_INTERVAL;
+    }
+
+    if ((*env)->GetBooleanField(env, peerObj, removeField))
+        peer->flags |= WGPEER_REMOVE_ME;
+    if ((*env)->GetBooleanField(env, peerObj, replaceAllowedIpsField))
+        peer->flags |= WGPEER_REPLACE_ALLOWEDIPS;
+
+    if (!set_allowed_ips(env, peerObj, peer))
+        goto err;
+
+    return peer;
+
+err:
+    for (struct wgallowedip *allowedip = peer->first_allowedip, *na; allowedip; allowedip = na) {
+        na = allowedip->next_allowedip;
+        free(allowedip);
+    }
+    free(peer);
+    return NULL;
+}
+
+static struct wgpeer *new_wgpeer(JNIEnv *env, jobject peerObj) {
+    // The class, key and allowed ip refs of a peer are local refs of their own frame, so a
+    // device with many peers does not exhaust the local refs of the native call
+    if ((*env)->PushLocalFrame(env, 16) < 0)
+        return NULL;
+
+    struct wgpeer *peer = to_wgpeer(env, peerObj);
+    (*env)->PopLocalFrame(env, NULL);
+    return peer;
+}
+
+JNIEXPORT jint JNICALL Java_com_wgtools_WgNative_setDevice
+  (JNIEnv *env, __attribute__((unused))jclass clazz, jobject deviceObj) {
+    if (deviceObj == NULL)
+        return -EINVAL;
+
+    jclass deviceClass = (*env)->GetObjectClass(env, deviceObj);
+    jfieldID nameField = (*env)->GetFieldID(env, deviceClass, "name", "Ljava/lang/String;");
+    jfieldID privateKeyField = (*env)->GetFieldID(env, deviceClass, "privateKey", "[B");
+    jfieldID listenPortField = (*env)->GetFieldID(env, deviceClass, "listenPort", "I");
+    jfieldID fwmarkField = (*env)->GetFieldID(env, deviceClass, "fwmark", "J");
+    jfieldID replacePeersField = (*env)->GetFieldID(env, deviceClass, "replacePeers", "Z");
+    jmethodID getPeerArray = (*env)->GetMethodID(env, deviceClass, "getPeerArray", "()[L" PEER_CLASS ";");
+    if (nameField == NULL || privateKeyField == NULL || listenPortField == NULL || fwmarkField == NULL ||
+            replacePeersField == NULL || getPeerArray == NULL)
+        return -EINVAL;
+
+    jstring name = (*env)->GetObjectField(env, deviceObj, nameField);
+    if (name == NULL)
+        return -EINVAL;
+
+    struct wgdevice *device = calloc(1, sizeof(*device));
+    if (device == NULL)
+        return -ENOMEM;
+
+    int ret = -EINVAL;
+    const char *interface = (*env)->GetStringUTFChars(env, name, NULL);
+    if (interface == NULL)
+        goto out;
+    bool nameFits = strlen(interface) < IFNAMSIZ;
+    if (nameFits)
+        strncpy(device->name, interface, IFNAMSIZ - 1);
+    (*env)->ReleaseStringUTFChars(env, name, interface);
+    if (!nameFits)
+        goto out;
+
+    jbyteArray privateKey = (*env)->GetObjectField(env, deviceObj, privateKeyField);
+    if (privateKey != NULL) {
+        if (!get_byte_array(env, privateKey, device->private_key, WG_KEY_LEN))
+            goto out;
+        device->flags |= WGDEVICE_HAS_PRIVATE_KEY;
+    }
+
+    jint listenPort = (*env)->GetIntField(env, deviceObj, listenPortField);
+    if (listenPort >= 0) {
+        if (listenPort > 65535)
+            goto out;
+        device->listen_port = (uint16_t)listenPort;
+        device->flags |= WGDEVICE_HAS_LISTEN_PORT;
+    }
+
+    jlong fwmark = (*env)->GetLongField(env, deviceObj, fwmarkField);
+    if (fwmark >= 0) {
+        if (fwmark > UINT32_MAX)
+            goto out;
+        device->fwmark = (uint32_t)fwmark;
+        device->flags |= WGDEVICE_HAS_FWMARK;
+    }
+
+    if ((*env)->GetBooleanField(env, deviceObj, replacePeersField))
+        device->flags |= WGDEVICE_REPLACE_PEERS;
+
+    jobjectArray peers = (*env)->CallObjectMethod(env, deviceObj, getPeerArray);
+    if (peers == NULL)
+        goto out;
+
+    jsize count = (*env)->GetArrayLength(env, peers);
+    for (jsize i = 0; i < count; i++) {
+        jobject peerObj = (*env)->GetObjectArrayElement(env, peers, i);
+        struct wgpeer *peer = peerObj != NULL ? new_wgpeer(env, peerObj) : NULL;
+        (*env)->DeleteLocalRef(env, peerObj);
+        if (peer == NULL)
+            goto out;
+
+        if (device->first_peer == NULL)
+            device->first_peer = peer;
+        else
+            device->last_peer->next_peer = peer;
+        device->last_peer = peer;
+    }
+
+    ret = ipc_set_device(device);
+
+out:
+    free_wgdevice(device);
+    return ret;
+}
@@ -0,0 +1,111 @@
+// SPDX-License-Identifier: GPL-2.0
+/*
+ * Copyright (C) 2024 wgconnect@proton.me.
+ *
+ * The rtnetlink socket shim of the Java com.wgtools.NetlinkSocket class. The messages are built
+ * and parsed in Java; this file only opens the socket and moves the bytes.
+ */
+
+#include <errno.h>
+#include <stdlib.h>
+#include <unistd.h>
+#include <jni.h>
+
+#include "com_wgtools_NetlinkSocket.h"
+
+#if defined(__linux__)
+
+#include <sys/socket.h>
+#include <linux/netlink.h>
+
+JNIEXPORT jint JNICALL Java_com_wgtools_NetlinkSocket_socketOpen
+  (__attribute__((unused))JNIEnv *env, __attribute__((unused))jclass clazz, jint groups) {
+    struct sockaddr_nl addr = { .nl_family = AF_NETLINK, .nl_groups = (__u32)groups };
+    int fd = socket(AF_NETLINK, SOCK_RAW | SOCK_CLOEXEC, NETLINK_ROUTE);
+
+    if (fd < 0)
+        return -errno;
+
+    if (bind(fd, (struct sockaddr *)&addr, sizeof(addr)) < 0) {
+        int ret = -errno;
+        close(fd);
+        return ret;
+    }
+
+    return fd;
+}
+
+JNIEXPORT jint JNICALL Java_com_wgtools_NetlinkSocket_socketSend
+  (JNIEnv *env, __attribute__((unused))jclass clazz, jint fd, jbyteArray buf, jint len) {
+    struct sockaddr_nl addr = { .nl_family = AF_NETLINK };
+    ssize_t ret;
+
+    if (buf == NULL || len < 0 || len > (*env)->GetArrayLength(env, buf))
+        return -EINVAL;
+
+    jbyte *bytes = (*env)->GetByteArrayElements(env, buf, NULL);
+    if (bytes == NULL)
+        return -ENOMEM;
+
+    do {
+        ret = sendto(fd, bytes, (size_t)len, 0, (struct sockaddr *)&addr, sizeof(addr));
+    } while (ret < 0 && errno == EINTR);
+    if (ret < 0)
+        ret = -errno;
+
+    (*env)->ReleaseByteArrayElements(env, buf, bytes, JNI_ABORT);
+    return (jint)ret;
+}
+
+JNIEXPORT jint JNICALL Java_com_wgtools_NetlinkSocket_socketRecv
+  (JNIEnv *env, __attribute__((unused))jclass clazz, jint fd, jbyteArray buf) {
+    ssize_t ret;
+
+    if (buf == NULL)
+        return -EINVAL;
+
+    jsize len = (*env)->GetArrayLength(env, buf);
+    jbyte *bytes = (*env)->GetByteArrayElements(env, buf, NULL);
+    if (bytes == NULL)
+        return -ENOMEM;
+
+    do {
+        ret = recv(fd, bytes, (size_t)len, 0);
+    } while (ret < 0 && errno == EINTR);
+    if (ret < 0)
+        ret = -errno;
+
+    (*env)->ReleaseByteArrayElements(env, buf, bytes, ret > 0 ? 0 : JNI_ABORT);
+    return (jint)ret;
+}
+
+JNIEXPORT void JNICALL Java_com_wgtools_NetlinkSocket_socketClose
+  (__attribute__((unused))JNIEnv *env, __attribute__((unused))jclass clazz, jint fd) {
+    if (fd >= 0)
+        close(fd);
+}
+
+#else
+
+JNIEXPORT jint JNICALL Java_com_wgtools_NetlinkSocket_socketOpen
+  (__attribute__((unused))JNIEnv *env, __attribute__((unused))jclass clazz, __attribute__((unused))jint groups) {
+    return -ENOSYS;
+}
+
+JNIEXPORT jint JNICALL Java_com_wgtools_NetlinkSocket_socketSend
+  (__attribute__((unused))JNIEnv *env, __attribute__((unused))jclass clazz, __attribute__((unused))jint fd,
+   __attribute__((unused))jbyteArray buf, __attribute__((unused))jint len) {
+    return -ENOSYS;
+}
+
+JNIEXPORT jint JNICALL Java_com_wgtools_NetlinkSocket_socketRecv
+  (__attribute__((unused))JNIEnv *env, __attribute__((unused))jclass clazz, __attribute__((unused))jint fd,
+   __attribute__((unused))jbyteArray buf) {
+    return -ENOSYS;
+}
+
+JNIEXPORT void JNICALL Java_com_wgtools_NetlinkSocket_socketClose
+  (__attribute__((unused))JNIEnv *env, __attribute__((unused))jclass clazz, __attribute__((unused))jint fd) {
+}
+
+#endif
@@ -14,10 +14,12 @@
 #include "subcommands.h"
 #include "jni-wg.h"
 
-static Stream *jniIn;
-static Stream *jniOut;
-static Stream *jniErr;
-static int exitCode;
+// The context of the subcommand call running on this thread
+static __thread JniContext *jniCtx;
+
+#define jniIn (&jniCtx->in)
+#define jniOut (&jniCtx->out)
+#define jniErr (&jniCtx->err)
 
 static void show_usage(FILE *stream) {
 	fprintf(stream, "Usage: %s <cmd> [<args>]\n\n", PROG_NAME);
@@ -27,35 +29,52 @@ static void show_usage(FILE *stream) {
 	fprintf(stream, "You may pass `--help' to any of these commands to view usage.\n");
 }
 
-void streams_alloc(void) {
-    jniIn = (Stream *)calloc(1, sizeof(Stream)); 
-    jniIn->stream = open_memstream(&jniIn->buf, &jniIn->len);
-
-    jniOut = (Stream *)calloc(1, sizeof(Stream)); 
-    jniOut->stream = open_memstream(&jniOut->buf, &jniOut->len);
-
-    jniErr = (Stream *)calloc(1, sizeof(Stream)); 
-    jniErr->stream = open_memstream(&jniErr->buf, &jniErr->len);
+static int stream_open(Stream *stream) {
+    stream->buf = NULL;
+    stream->len = 0;
+    stream->stream = open_memstream(&stream->buf, &stream->len);
+    return stream->stream != NULL ? 0 : -1;
 }
 
-void streams_dealloc(void) {
-    if (jniIn != NULL) {
-        fclose(jniIn->stream); free(jniIn->buf);
-        free(jniIn);
+static void stream_close(Stream *stream) {
+    if (stream->stream != NULL) {
+        fclose(stream->stream);
+        stream->stream = NULL;
     }
+    free(stream->buf);
+    stream->buf = NULL;
+}
 
-    if (jniOut != NULL) {
-        fclose(jniOut->stream); free(jniOut->buf);
-        free(jniOut);
-    }
+// The context is allocated, so the thread-local pointer never refers to a stack frame
+static JniContext *context_open(void) {
+    JniContext *ctx = calloc(1, sizeof(*ctx));
+    if (ctx == NULL)
+        return NULL;
 
-    if (jniErr != NULL) {
-        fclose(jniErr->stream); free(jniErr->buf);
-        free(jniErr);
+    ctx->exitCode = 1;
+
+    if (stream_open(&ctx->in) || stream_open(&ctx->out) || stream_open(&ctx->err)) {
+        stream_close(&ctx->in);
+        stream_close(&ctx->out);
+        stream_close(&ctx->err);
+        free(ctx);
+        return NULL;
     }
+
+    jniCtx = ctx;
+    return ctx;
+}
+
+static void context_close(JniContext *ctx) {
+    jniCtx = NULL;
+
+    stream_close(&ctx->in);
+    stream_close(&ctx->out);
+    stream_close(&ctx->err);
+    free(ctx);
 }
 
-jobjectArray streams_to_array(JNIEnv *env) {
+static jobjectArray streams_to_array(JNIEnv *env) {
     // flush the output and error streams
     fflush(jniOut->stream);
     fflush(jniErr->stream);
@@ -70,11 +89,11 @@ jobjectArray streams_to_array(JNIEnv *env) {
     }
 
     // call the constructor to allocate a new integer
-    jobject exitCodeObj = (*env)->NewObject(env, classInteger, midInit, exitCode);
+    jobject exitCodeObj = (*env)->NewObject(env, classInteger, midInit, jniCtx->exitCode);
 
     // convert the output and error bufs to a jstring
-    jstring outStr = (*env)->NewStringUTF(env, jniOut->buf);
-    jstring errStr = (*env)->NewStringUTF(env, jniErr->buf);
+    jstring outStr = (*env)->NewStringUTF(env, jniOut->buf != NULL ? jniOut->buf : "");
+    jstring errStr = (*env)->NewStringUTF(env, jniErr->buf != NULL ? jniErr->buf : "");
 
     // get a class reference for java.lang.Object
     jclass classObject = (*env)->FindClass(env, "java/lang/Object");
@@ -126,7 +145,6 @@ void jni_in_printf(char *fmt, ...) {
 }
 
 size_t jni_in_read(void *ptr, size_t size, size_t nmemb) {
-    fwrite(jniIn->buf , 1, jniIn->len, stdout);
     return fread(ptr, size, nmemb, jniIn->stream);
 }
 
@@ -265,10 +283,13 @@ void jni_perror(const char *str, int errnum) {
 JNIEXPORT jobjectArray JNICALL Java_com_wgtools_WgSubcommand_wgCommand
   (JNIEnv *env, __attribute__((unused))jobject thisObj, jobjectArray args) {
 
+    JniContext *ctx;
+
     PROG_NAME = JNI_PROG_NAME;
 
-    streams_alloc();
-    exitCode = 1;
+    if ((ctx = context_open()) == NULL)
+        return NULL;
+
     if (args != NULL) {
         int argc = (*env)->GetArrayLength(env, args);
         const char *argv[argc];
@@ -279,15 +300,15 @@ JNIEXPORT jobjectArray JNICALL Java_com_wgtools_WgSubcommand_wgCommand
         }
 
 	    size_t i = 0;
-	    for (; i < subcommands_count; ++i) {
+	    for (; argc > 0 && i < subcommands_count; ++i) {
 		    if (!strcmp(argv[0], subcommands[i].subcommand)) {
-			    exitCode = subcommands[i].function(argc, argv);
+			    ctx->exitCode = subcommands[i].function(argc, argv);
                 break;
             }
         }
 
-        if (i == subcommands_count) {
-	        fprintf(jniErr->stream, "Invalid subcommand: `%s'\n", argv[1]);
+        if (argc == 0 || i == subcommands_count) {
+	        fprintf(jniErr->stream, "Invalid subcommand: `%s'\n", argc > 0 ? argv[0] : "");
 	        show_usage(jniErr->stream);
         }
 
@@ -297,7 +318,7 @@ JNIEXPORT jobjectArray JNICALL Java_com_wgtools_WgSubcommand_wgCommand
     }
 
     jobjectArray array = streams_to_array(env);
-    streams_dealloc();
+    context_close(ctx);
 
     return array;
 }
@@ -19,6 +19,18 @@ typedef struct {
     FILE *stream;
 } Stream;
 
+/*
+ * The input, output and error streams and the exit code of one subcommand call. A context is
+ * allocated for each call and bound to the calling thread, so concurrent calls from different
+ * Java threads never share a stream.
+ */
+typedef struct {
+    Stream in;
+    Stream out;
+    Stream err;
+    int exitCode;
+} JniContext;
+
 extern void jni_in_printf(char *fmt, ...);
 extern size_t jni_in_read(void *ptr, size_t size, size_t nmemb);
 extern int jni_in_getc(void);
@@ -70,7 +70,7 @@ static void sort_peers(struct wgdevice *device)
 
 static char *key(const uint8_t key[static WG_KEY_LEN])
 {
-	static char base64[WG_KEY_LEN_BASE64];
+	static __thread char base64[WG_KEY_LEN_BASE64];
 
 	key_to_base64(base64, key);
 	return base64;
@@ -94,7 +94,7 @@ static const char *masked_key(const uint8_t masked_key[static WG_KEY_LEN])
 
 static char *ip(const struct wgallowedip *ip)
 {
-	static char buf[INET6_ADDRSTRLEN + 1];
+	static __thread char buf[INET6_ADDRSTRLEN + 1];
 
 	memset(buf, 0, INET6_ADDRSTRLEN + 1);
 	if (ip->family == AF_INET)
@@ -108,7 +108,7 @@ static char *endpoint(const struct sockaddr *addr)
 {
 	char host[4096 + 1];
 	char service[512 + 1];
-	static char buf[sizeof(host) + sizeof(service) + 4];
+	static __thread char buf[sizeof(host) + sizeof(service) + 4];
 	int ret;
 	socklen_t addr_len = 0;
 
@@ -157,7 +157,7 @@ static size_t pretty_time(char *buf, const size_t len, unsigned long long left)
 
 static char *ago(const struct timespec64 *t)
 {
-	static char buf[1024];
+	static __thread char buf[1024];
 	size_t offset;
 	time_t now = time(NULL);
 
@@ -176,7 +176,7 @@ static char *ago(const struct timespec64 *t)
 
 static char *every(uint16_t seconds)
 {
-	static char buf[1024] = "every ";
+	static __thread char buf[1024] = "every ";
 
 	pretty_time(buf + strlen("every "), sizeof(buf) - strlen("every ") - 1, seconds);
 	return buf;
@@ -184,7 +184,7 @@ static char *every(uint16_t seconds)
 
 static char *bytes(uint64_t b)
 {
-	static char buf[1024];
+	static __thread char buf[1024];
 
 	if (b < 1024ULL)
 		snprintf(buf, sizeof(buf), "%u " TERMINAL_FG_CYAN "B" TERMINAL_RESET, (unsigned int)b);
@@ -200,7 +200,7 @@ static char *bytes(uint64_t b)
 	return buf;
 }
 
-static const char *COMMAND_NAME;
+static __thread const char *COMMAND_NAME;
 static void show_usage(void)
 {
 	jni_out_printf("Usage: %s { <interface> | all | interfaces } [public-key | private-key | listen-port | fwmark | peers | preshared-keys | endpoints | allowed-ips | latest-handshakes | transfer | persistent-keepalive | dump]\n", COMMAND_NAME);